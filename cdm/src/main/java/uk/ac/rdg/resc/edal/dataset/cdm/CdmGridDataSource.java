@@ -37,6 +37,7 @@ import java.util.Set;
 import ucar.ma2.Array;
 import ucar.ma2.Index;
 import ucar.ma2.InvalidRangeException;
+import ucar.nc2.Attribute;
 import ucar.nc2.Variable;
 import ucar.nc2.dataset.NetcdfDataset;
 import ucar.nc2.dataset.NetcdfDataset.Enhance;
@@ -151,45 +152,23 @@ final class CdmGridDataSource implements GridDataSource {
     @Override
     public Array4D<Number> read(String variableId, int tmin, int tmax, int zmin, int zmax,
             int ymin, int ymax, int xmin, int xmax) throws IOException, DataReadingException {
+        return read(variableId, tmin, tmax, zmin, zmax, ymin, ymax, 1, xmin, xmax, 1);
+    }
+
+    /**
+     * Reads strided data directly, using the stride support of NetCDF
+     * {@link ucar.ma2.Range}s
+     */
+    @Override
+    public Array4D<Number> read(String variableId, int tmin, int tmax, int zmin, int zmax,
+            int ymin, int ymax, int yStride, int xmin, int xmax, int xStride)
+            throws IOException, DataReadingException {
         /*
          * Get hold of the variable from which we want to read data
          */
         GridDatatype gridDatatype = gridDataset.findGridDatatype(variableId);
-        VariableDS var;
-        if (gridDatatype != null) {
-            /*
-             * This is the ideal option, but in the case of staggered grids, we
-             * may not have any grid datatypes
-             */
-            var = gridDatatype.getVariable();
-        } else {
-            /*
-             * In this case, just find the original variable and either cast it
-             * or create a new VariableDS, as required
-             */
-            Variable origVar = nc.findVariable(variableId);
-            if (origVar instanceof VariableDS) {
-                var = (VariableDS) origVar;
-            } else {
-                var = new VariableDS(null, origVar, false);
-            }
-        }
-
-        /*
-         * Create RangesList object from GridDatatype object This will lead to
-         * many RangesList objects being created during data extraction for
-         * PIXEL_BY_PIXEL and SCANLINE strategies.
-         * 
-         * Therefore we cache it - it doesn't give a huge increase in speed, but
-         * it is noticeable
-         */
-        RangesList rangesList;
-        if (rangeListCache.containsKey(variableId)) {
-            rangesList = rangeListCache.get(variableId);
-        } else {
-            rangesList = new RangesList(gridDatatype);
-            rangeListCache.put(variableId, rangesList);
-        }
+        VariableDS var = getVariable(variableId, gridDatatype);
+        RangesList rangesList = getRangesList(variableId, gridDatatype);
 
         /*
          * Set the ranges for t,z,y and x. This can be done without raising
@@ -197,8 +176,8 @@ final class CdmGridDataSource implements GridDataSource {
          */
         rangesList.setTRange(tmin, tmax);
         rangesList.setZRange(zmin, zmax);
-        rangesList.setYRange(ymin, ymax);
-        rangesList.setXRange(xmin, xmax);
+        rangesList.setYRange(ymin, ymax, yStride);
+        rangesList.setXRange(xmin, xmax, xStride);
 
         final Array arr;
         Variable origVar = var.getOriginalVariable();
@@ -253,12 +232,75 @@ final class CdmGridDataSource implements GridDataSource {
         /*
          * Returns a 4D array that wraps the Array
          */
-        int[] shape = new int[] { (tmax - tmin + 1), (zmax - zmin + 1), (ymax - ymin + 1),
-                (xmax - xmin + 1) };
+        int[] shape = new int[] { (tmax - tmin + 1), (zmax - zmin + 1),
+                (ymax - ymin) / yStride + 1, (xmax - xmin) / xStride + 1 };
         WrappedArray wrappedArray = new WrappedArray(var, arr, needsEnhance, shape, rangesList);
         return wrappedArray;
     }
 
+    /**
+     * Reads the chunk shape from the "_ChunkSizes" attribute which the CDM
+     * adds to chunked NetCDF-4/HDF5 variables
+     */
+    @Override
+    public int[] getHorizontalChunkShape(String variableId) {
+        GridDatatype gridDatatype = gridDataset.findGridDatatype(variableId);
+        VariableDS var = getVariable(variableId, gridDatatype);
+        Attribute chunkSizes = var.findAttribute("_ChunkSizes");
+        if (chunkSizes == null) {
+            return null;
+        }
+        RangesList rangesList = getRangesList(variableId, gridDatatype);
+        int yAxisIndex = rangesList.getYAxisIndex();
+        int xAxisIndex = rangesList.getXAxisIndex();
+        if (yAxisIndex < 0 || xAxisIndex < 0 || yAxisIndex >= chunkSizes.getLength()
+                || xAxisIndex >= chunkSizes.getLength()) {
+            return null;
+        }
+        return new int[] { chunkSizes.getNumericValue(yAxisIndex).intValue(),
+                chunkSizes.getNumericValue(xAxisIndex).intValue() };
+    }
+
+    private VariableDS getVariable(String variableId, GridDatatype gridDatatype) {
+        if (gridDatatype != null) {
+            /*
+             * This is the ideal option, but in the case of staggered grids, we
+             * may not have any grid datatypes
+             */
+            return gridDatatype.getVariable();
+        } else {
+            /*
+             * In this case, just find the original variable and either cast it
+             * or create a new VariableDS, as required
+             */
+            Variable origVar = nc.findVariable(variableId);
+            if (origVar instanceof VariableDS) {
+                return (VariableDS) origVar;
+            } else {
+                return new VariableDS(null, origVar, false);
+            }
+        }
+    }
+
+    private RangesList getRangesList(String variableId, GridDatatype gridDatatype) {
+        /*
+         * Create RangesList object from GridDatatype object This will lead to
+         * many RangesList objects being created during data extraction for
+         * PIXEL_BY_PIXEL and SCANLINE strategies.
+         * 
+         * Therefore we cache it - it doesn't give a huge increase in speed, but
+         * it is noticeable
+         */
+        RangesList rangesList;
+        if (rangeListCache.containsKey(variableId)) {
+            rangesList = rangeListCache.get(variableId);
+        } else {
+            rangesList = new RangesList(gridDatatype);
+            rangeListCache.put(variableId, rangesList);
+        }
+        return rangesList;
+    }
+
     @Override
     public void close() throws DataReadingException {
         NetcdfDatasetAggregator.releaseDataset(nc);
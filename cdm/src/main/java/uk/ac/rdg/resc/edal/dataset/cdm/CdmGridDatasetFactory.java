@@ -135,6 +135,7 @@ public class CdmGridDatasetFactory extends CdmDatasetFactory implements Serializ
 
         CdmGridDataset cdmGridDataset = new CdmGridDataset(id, location, vars,
                 CdmUtils.getOptimumDataReadingStrategy(nc));
+        cdmGridDataset.setDataReadingCostModel(CdmUtils.createDataReadingCostModel(nc));
         return cdmGridDataset;
     }
 
@@ -658,6 +659,7 @@ public class CdmGridDatasetFactory extends CdmDatasetFactory implements Serializ
 
         CdmSgridDataset cdmGridDataset = new CdmSgridDataset(id, location, varMetadata,
                 CdmUtils.getOptimumDataReadingStrategy(nc), rangesList, paddings);
+        cdmGridDataset.setDataReadingCostModel(CdmUtils.createDataReadingCostModel(nc));
         return cdmGridDataset;
     }
 
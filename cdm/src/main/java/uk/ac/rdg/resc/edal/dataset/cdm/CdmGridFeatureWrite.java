@@ -28,10 +28,12 @@
 
 package uk.ac.rdg.resc.edal.dataset.cdm;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -43,7 +45,6 @@ import ucar.ma2.Array;
 import ucar.ma2.ArrayFloat;
 import ucar.ma2.ArrayLong;
 import ucar.ma2.DataType;
-import ucar.ma2.Index;
 import ucar.ma2.InvalidRangeException;
 import ucar.nc2.Attribute;
 import ucar.nc2.Dimension;
@@ -51,6 +52,7 @@ import ucar.nc2.NetcdfFileWriter;
 import ucar.nc2.NetcdfFileWriter.Version;
 import ucar.nc2.Variable;
 import uk.ac.rdg.resc.edal.domain.GridDomain;
+import uk.ac.rdg.resc.edal.exceptions.DataReadingException;
 import uk.ac.rdg.resc.edal.feature.GridFeature;
 import uk.ac.rdg.resc.edal.grid.RectilinearGrid;
 import uk.ac.rdg.resc.edal.grid.TimeAxis;
@@ -78,7 +80,8 @@ public class CdmGridFeatureWrite {
      * @param outFile
      *            The {@link File} to write to.
      * @throws IOException
-     *             - If there is a problem writing to the file location.
+     *             - If there is a problem writing to the file location, or
+     *             reading the data of the feature.
      * @throws InvalidRangeException
      *             - Usually indicative of a bug...
      */
@@ -97,7 +100,8 @@ public class CdmGridFeatureWrite {
      * @param outFile
      *            The {@link File} to write to.
      * @throws IOException
-     *             - If there is a problem writing to the file location.
+     *             - If there is a problem writing to the file location, or
+     *             reading the data of the feature.
      * @throws InvalidRangeException
      *             - Usually indicative of a bug...
      */
@@ -204,62 +208,11 @@ public class CdmGridFeatureWrite {
         }
 
         /*
-         * Now write all data variables
+         * Now define all data variables. The data itself is written once the
+         * file has been created.
          */
+        Map<String, Variable> dataVariables = new LinkedHashMap<>();
         for (String varId : outputVariables) {
-            Array4D<Number> array4d = f.getValues(varId);
-
-            /*
-             * Pick the appropriately dimensioned array
-             */
-            ArrayFloat values;
-            if (!zPresent && !tPresent) {
-                values = new ArrayFloat.D2(ySize, xSize);
-            } else if (zPresent && !tPresent) {
-                values = new ArrayFloat.D3(zSize, ySize, xSize);
-            } else if (!zPresent && tPresent) {
-                values = new ArrayFloat.D3(tSize, ySize, xSize);
-            } else {
-                values = new ArrayFloat.D4(tSize, zSize, ySize, xSize);
-            }
-            Index index = values.getIndex();
-
-            /*
-             * Loop over all 4 possible dimensions. If z/t are not present,
-             * their respective loops will only execute once.
-             */
-            for (int t = 0; t < tSize; t++) {
-                for (int z = 0; z < zSize; z++) {
-                    for (int y = 0; y < ySize; y++) {
-                        for (int x = 0; x < xSize; x++) {
-                            /*
-                             * How to set the index depends on which dimensions
-                             * are present.
-                             */
-                            if (!zPresent && !tPresent) {
-                                index.set(y, x);
-                            } else if (zPresent && !tPresent) {
-                                index.set(z, y, x);
-                            } else if (!zPresent && tPresent) {
-                                index.set(t, y, x);
-                            } else {
-                                index.set(t, z, y, x);
-                            }
-
-                            Number number = array4d.get(t, z, y, x);
-                            if (number == null ||
-                            // If we have no data, or we wish to mask the data
-                                    (cellsToMask != null
-                                            && cellsToMask.contains(new GridCoordinates2D(x, y)))) {
-                                // We use the fill value
-                                number = FILL_VALUE;
-                            }
-                            values.set(index, number.floatValue());
-                        }
-                    }
-                }
-            }
-
             Variable variable = fileWriter.addVariable(null, varId, DataType.FLOAT, dims);
 
             fileWriter.addVariableAttribute(variable,
@@ -270,7 +223,7 @@ public class CdmGridFeatureWrite {
                     new Attribute("long_name", f.getParameter(varId).getDescription()));
             fileWriter.addVariableAttribute(variable, new Attribute("_FillValue", FILL_VALUE));
 
-            dataToWrite.put(variable, values);
+            dataVariables.put(varId, variable);
 
             for (Entry<Object, Object> entry : f.getFeatureProperties().entrySet()) {
                 /*
@@ -288,7 +241,6 @@ public class CdmGridFeatureWrite {
                             new Attribute((String) entry.getKey(), (Number) value));
                 }
             }
-
         }
 
         /*
@@ -303,9 +255,80 @@ public class CdmGridFeatureWrite {
          * Finally actually create the file and write data to it
          */
         fileWriter.create();
-        for (Entry<Variable, Array> entry : dataToWrite.entrySet()) {
-            fileWriter.write(entry.getKey(), entry.getValue());
+        try {
+            for (Entry<Variable, Array> entry : dataToWrite.entrySet()) {
+                fileWriter.write(entry.getKey(), entry.getValue());
+            }
+
+            /*
+             * The data variables are written one horizontal slab at a time, so
+             * that we never need to hold more than a single (t,z) layer of data
+             * in memory.
+             */
+            int[] slabShape;
+            if (!zPresent && !tPresent) {
+                slabShape = new int[] { ySize, xSize };
+            } else if (zPresent && tPresent) {
+                slabShape = new int[] { 1, 1, ySize, xSize };
+            } else {
+                slabShape = new int[] { 1, ySize, xSize };
+            }
+            ArrayFloat slab = (ArrayFloat) Array.factory(DataType.FLOAT, slabShape);
+            for (Entry<String, Variable> entry : dataVariables.entrySet()) {
+                Array4D<Number> array4d = f.getValues(entry.getKey());
+                try {
+                    for (int t = 0; t < tSize; t++) {
+                        for (int z = 0; z < zSize; z++) {
+                            int s = 0;
+                            for (int y = 0; y < ySize; y++) {
+                                for (int x = 0; x < xSize; x++) {
+                                    Number number = array4d.get(t, z, y, x);
+                                    if (number == null ||
+                                    // If we have no data, or we wish to mask the data
+                                            (cellsToMask != null && cellsToMask
+                                                    .contains(new GridCoordinates2D(x, y)))) {
+                                        // We use the fill value
+                                        number = FILL_VALUE;
+                                    }
+                                    slab.setFloat(s++, number.floatValue());
+                                }
+                            }
+
+                            /*
+                             * How to set the origin depends on which dimensions are
+                             * present.
+                             */
+                            int[] origin;
+                            if (!zPresent && !tPresent) {
+                                origin = new int[] { 0, 0 };
+                            } else if (zPresent && !tPresent) {
+                                origin = new int[] { z, 0, 0 };
+                            } else if (!zPresent && tPresent) {
+                                origin = new int[] { t, 0, 0 };
+                            } else {
+                                origin = new int[] { t, z, 0, 0 };
+                            }
+                            fileWriter.write(entry.getValue(), origin, slab);
+                        }
+                    }
+                } catch (DataReadingException e) {
+                    /*
+                     * Values may be read lazily from the underlying data, in
+                     * which case reading problems appear here
+                     */
+                    throw new IOException("Problem reading data for the variable "
+                            + entry.getKey(), e);
+                } finally {
+                    if (array4d instanceof Closeable) {
+                        /*
+                         * Release any resources used to read the values
+                         */
+                        ((Closeable) array4d).close();
+                    }
+                }
+            }
+        } finally {
+            fileWriter.close();
         }
-        fileWriter.close();
     }
 }
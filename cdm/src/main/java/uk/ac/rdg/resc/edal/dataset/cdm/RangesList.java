@@ -170,25 +170,33 @@ final class RangesList {
     }
 
     public void setXRange(int xmin, int xmax) {
-        setRange(xAxisIndex, xmin, xmax);
+        setRange(xAxisIndex, xmin, xmax, 1);
+    }
+
+    public void setXRange(int xmin, int xmax, int xStride) {
+        setRange(xAxisIndex, xmin, xmax, xStride);
     }
 
     public void setYRange(int ymin, int ymax) {
-        setRange(yAxisIndex, ymin, ymax);
+        setRange(yAxisIndex, ymin, ymax, 1);
+    }
+
+    public void setYRange(int ymin, int ymax, int yStride) {
+        setRange(yAxisIndex, ymin, ymax, yStride);
     }
 
     public void setZRange(int zmin, int zmax) {
-        setRange(zAxisIndex, zmin, zmax);
+        setRange(zAxisIndex, zmin, zmax, 1);
     }
 
     public void setTRange(int tmin, int tmax) {
-        setRange(tAxisIndex, tmin, tmax);
+        setRange(tAxisIndex, tmin, tmax, 1);
     }
 
-    private void setRange(int index, int min, int max) {
+    private void setRange(int index, int min, int max, int stride) {
         if (index >= 0 && min >= 0 && max >= 0) {
             try {
-                ranges.set(index, new Range(min, max));
+                ranges.set(index, new Range(min, max, stride));
             } catch (InvalidRangeException ire) {
                 /*
                  * This is a programming error, so is wrapped as a runtime
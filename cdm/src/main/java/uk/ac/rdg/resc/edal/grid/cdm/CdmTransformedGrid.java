@@ -285,7 +285,7 @@ public class CdmTransformedGrid extends AbstractTransformedGrid {
     }
 
     @Override
-    public double transformNativeHeadingToWgs84(double xComp, double yComp, double lon, double lat) {
+    public double[] getNativeToWgs84Derivatives(double lon, double lat) {
         double dxy = 1e-8;
         ProjectionPoint centre = proj.latLonToProj(lat, lon);
         LatLonPoint xPlus = proj.projToLatLon(centre.getX() + dxy, centre.getY());
@@ -305,13 +305,8 @@ public class CdmTransformedGrid extends AbstractTransformedGrid {
         dXlatlon_dYnative = (yPlus.getLongitude() - lon);
         dYlatlon_dYnative = (yPlus.getLatitude() - lat);
 
-        /*
-         * Get the new components
-         */
-        float newX = (float) (dXlatlon_dXnative * xComp + dXlatlon_dYnative * yComp);
-        float newY = (float) (dYlatlon_dXnative * xComp + dYlatlon_dYnative * yComp);
-
-        return GISUtils.RAD2DEG * Math.atan2(newX, newY);
+        return new double[] { dXlatlon_dXnative, dXlatlon_dYnative, dYlatlon_dXnative,
+                dYlatlon_dYnative };
     }
 
     @Override
@@ -56,6 +56,7 @@ import ucar.nc2.dt.GridCoordSystem;
 import ucar.nc2.dt.GridDatatype;
 import ucar.nc2.dt.grid.GridDataset;
 import ucar.nc2.time.CalendarDate;
+import uk.ac.rdg.resc.edal.dataset.DataReadingCostModel;
 import uk.ac.rdg.resc.edal.dataset.DataReadingStrategy;
 import uk.ac.rdg.resc.edal.domain.Extent;
 import uk.ac.rdg.resc.edal.exceptions.DataReadingException;
@@ -181,6 +182,33 @@ public final class CdmUtils {
         }
     }
 
+    /**
+     * Creates a {@link DataReadingCostModel} for the given NetcdfDataset. The
+     * initial cost coefficients reflect the type of storage: remote data (e.g.
+     * OPeNDAP) has a very high cost per read call, local uncompressed data has
+     * a very low one, and other formats (which may be compressed and/or
+     * chunked) lie in between. These are refined from the timings of actual
+     * reads.
+     * 
+     * @param nc
+     *            The NetcdfDataset from which data will be read.
+     * @return A {@link DataReadingCostModel} for choosing the strategy to read
+     *         each map with
+     */
+    public static DataReadingCostModel createDataReadingCostModel(NetcdfDataset nc) {
+        String location = nc.getLocation();
+        String fileType = nc.getFileTypeId();
+        if (location != null
+                && (location.startsWith("http:") || location.startsWith("https:") || location
+                        .startsWith("dods:"))) {
+            return new DataReadingCostModel(100.0, 20.0);
+        } else if ("netCDF".equalsIgnoreCase(fileType) || "HDF4".equalsIgnoreCase(fileType)) {
+            return new DataReadingCostModel(0.05, 5.0);
+        } else {
+            return new DataReadingCostModel(20.0, 5.0);
+        }
+    }
+
     /**
      *
      * @param coordSys
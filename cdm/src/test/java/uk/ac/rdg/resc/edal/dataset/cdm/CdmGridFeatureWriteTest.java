@@ -0,0 +1,214 @@
+/*******************************************************************************
+ * Copyright (c) 2017 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.dataset.cdm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import ucar.ma2.Array;
+import ucar.ma2.InvalidRangeException;
+import ucar.nc2.NetcdfFile;
+import ucar.nc2.Variable;
+import ucar.nc2.jni.netcdf.Nc4Iosp;
+import uk.ac.rdg.resc.edal.dataset.GriddedDataset;
+import uk.ac.rdg.resc.edal.domain.SimpleGridDomain;
+import uk.ac.rdg.resc.edal.exceptions.DataReadingException;
+import uk.ac.rdg.resc.edal.exceptions.EdalException;
+import uk.ac.rdg.resc.edal.feature.GridFeature;
+import uk.ac.rdg.resc.edal.grid.RegularGridImpl;
+import uk.ac.rdg.resc.edal.grid.TimeAxisImpl;
+import uk.ac.rdg.resc.edal.metadata.Parameter;
+import uk.ac.rdg.resc.edal.util.Array4D;
+import uk.ac.rdg.resc.edal.util.GISUtils;
+
+/**
+ * Tests that {@link CdmGridFeatureWrite} writes {@link GridFeature}s whose
+ * values are read lazily, one horizontal slab at a time.
+ */
+public class CdmGridFeatureWriteTest {
+    private File outFile;
+
+    @Before
+    public void setup() throws IOException {
+        /*
+         * Writing NetCDF-4 requires the native NetCDF library
+         */
+        Assume.assumeTrue(Nc4Iosp.isClibraryPresent());
+        outFile = File.createTempFile("edal-write", ".nc");
+    }
+
+    @After
+    public void tearDown() {
+        if (outFile != null) {
+            outFile.delete();
+        }
+    }
+
+    @Test
+    public void testWriteDatasetFeature() throws EdalException, IOException,
+            InvalidRangeException {
+        /*
+         * The test dataset is 4D, with vLon covering [0,100] along the x-axis
+         * at each depth and time. See CdmGridDatasetFactoryTest
+         */
+        URL url = this.getClass().getResource("/test.nc");
+        CdmGridDatasetFactory datasetFactory = new CdmGridDatasetFactory();
+        GriddedDataset dataset = (GriddedDataset) datasetFactory.createDataset("testdataset",
+                url.getPath());
+        GridFeature feature = dataset.readFeature("vLon");
+
+        CdmGridFeatureWrite.gridFeatureToNetCDF(feature, outFile);
+
+        NetcdfFile nc = NetcdfFile.open(outFile.getAbsolutePath());
+        try {
+            Variable variable = nc.findVariable("vLon");
+            assertArrayEquals(new int[] { 10, 11, 19, 36 }, variable.getShape());
+            Array data = variable.read();
+            for (int t = 0; t < 10; t++) {
+                for (int z = 0; z < 11; z++) {
+                    for (int y = 0; y < 19; y++) {
+                        for (int x = 0; x < 36; x++) {
+                            int index = ((t * 11 + z) * 19 + y) * 36 + x;
+                            assertEquals(100f * x / 35, data.getFloat(index), 1e-5);
+                        }
+                    }
+                }
+            }
+        } finally {
+            nc.close();
+        }
+    }
+
+    @Test
+    public void testWriteBySlab() throws IOException, InvalidRangeException {
+        SlabArray values = new SlabArray(3, 4, false);
+        CdmGridFeatureWrite.gridFeatureToNetCDF(getFeature(values), outFile);
+
+        /*
+         * Each slab should have been read once, in order, and the values
+         * closed once they were written
+         */
+        assertEquals(3, values.nSlabs);
+        assertTrue(values.closed);
+
+        NetcdfFile nc = NetcdfFile.open(outFile.getAbsolutePath());
+        try {
+            Array data = nc.findVariable("var").read();
+            for (int t = 0; t < 3; t++) {
+                for (int i = 0; i < 4 * 4; i++) {
+                    assertEquals(t * 100 + i, data.getFloat(t * 16 + i), 1e-5);
+                }
+            }
+        } finally {
+            nc.close();
+        }
+    }
+
+    @Test
+    public void testReadErrorIsReported() throws InvalidRangeException {
+        SlabArray values = new SlabArray(3, 4, true);
+        try {
+            CdmGridFeatureWrite.gridFeatureToNetCDF(getFeature(values), outFile);
+            fail("Reading errors should be reported by the write");
+        } catch (IOException e) {
+            assertTrue(e.getCause() instanceof DataReadingException);
+        }
+        assertTrue(values.closed);
+    }
+
+    private static GridFeature getFeature(SlabArray values) {
+        RegularGridImpl grid = new RegularGridImpl(0, 0, 4, 4, GISUtils.defaultGeographicCRS(),
+                4, 4);
+        TimeAxisImpl tAxis = new TimeAxisImpl("time", Arrays.asList(new DateTime(2000, 1, 1,
+                0, 0, DateTimeZone.UTC), new DateTime(2000, 1, 2, 0, 0, DateTimeZone.UTC),
+                new DateTime(2000, 1, 3, 0, 0, DateTimeZone.UTC)));
+        Map<String, Parameter> parameters = new HashMap<>();
+        parameters.put("var", new Parameter("var", "Variable", "A test variable", "none", null));
+        Map<String, Array4D<Number>> valuesMap = new HashMap<>();
+        valuesMap.put("var", values);
+        return new GridFeature("test", "Test feature", "A test feature", new SimpleGridDomain(
+                grid, null, tAxis), parameters, valuesMap);
+    }
+
+    /**
+     * An {@link Array4D} which records how its values are read, in the same
+     * way as the lazily-read values of a {@link GriddedDataset}
+     */
+    private static class SlabArray extends Array4D<Number> implements Closeable {
+        private static final long serialVersionUID = 1L;
+        private final boolean fail;
+        private int currentT = -1;
+        private int nSlabs = 0;
+        private boolean closed = false;
+
+        public SlabArray(int tSize, int size, boolean fail) {
+            super(tSize, 1, size, size);
+            this.fail = fail;
+        }
+
+        @Override
+        public Number get(int... coords) {
+            if (coords[T_IND] != currentT) {
+                if (fail) {
+                    throw new DataReadingException("Test read failure");
+                }
+                currentT = coords[T_IND];
+                nSlabs++;
+            }
+            return currentT * 100 + coords[Y_IND] * getXSize() + coords[X_IND];
+        }
+
+        @Override
+        public void set(Number value, int... coords) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
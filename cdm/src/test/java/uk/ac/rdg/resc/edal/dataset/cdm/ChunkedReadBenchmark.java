@@ -0,0 +1,170 @@
+/*******************************************************************************
+ * Copyright (c) 2017 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.dataset.cdm;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import ucar.ma2.ArrayFloat;
+import ucar.ma2.ArrayInt;
+import ucar.ma2.DataType;
+import ucar.ma2.InvalidRangeException;
+import ucar.nc2.Attribute;
+import ucar.nc2.Dimension;
+import ucar.nc2.NetcdfFileWriter;
+import ucar.nc2.Variable;
+import ucar.nc2.dataset.NetcdfDataset;
+import ucar.nc2.write.Nc4Chunking;
+import ucar.nc2.write.Nc4ChunkingStrategy;
+import uk.ac.rdg.resc.edal.dataset.DataReadingStrategy;
+import uk.ac.rdg.resc.edal.dataset.Domain2DMapper;
+import uk.ac.rdg.resc.edal.exceptions.DataReadingException;
+import uk.ac.rdg.resc.edal.grid.HorizontalGrid;
+import uk.ac.rdg.resc.edal.grid.RegularGridImpl;
+import uk.ac.rdg.resc.edal.util.GISUtils;
+import uk.ac.rdg.resc.edal.util.cdm.CdmUtils;
+
+/**
+ * This class is not part of the test suite, but may be run to compare the
+ * speed of the different {@link DataReadingStrategy}s on a deflated, chunked
+ * NetCDF-4 file. The file is created (in the same way as in
+ * {@link uk.ac.rdg.resc.edal.cdm.CreateNetCDF}) if it does not already exist.
+ * Writing NetCDF-4 requires the native NetCDF-C library to be available.
+ */
+public class ChunkedReadBenchmark {
+    private static final int NLON = 4000;
+    private static final int NLAT = 2000;
+    private static final int CHUNK_SIZE = 200;
+    private static final int REPEATS = 10;
+
+    public static void main(String[] args) throws IOException, InvalidRangeException,
+            DataReadingException {
+        String filename = args.length > 0 ? args[0] : "chunked.nc";
+        if (!new File(filename).exists()) {
+            createFile(filename);
+        }
+
+        NetcdfDataset nc = NetcdfDataset.openDataset(filename);
+        try {
+            CdmGridDataSource dataSource = new CdmGridDataSource(nc);
+            System.out.println("Chunk shape: "
+                    + Arrays.toString(dataSource.getHorizontalChunkShape("data")));
+            HorizontalGrid sourceGrid = CdmUtils.createHorizontalGrid(CdmUtils
+                    .getGridDataset(nc).findGridDatatype("data").getCoordinateSystem());
+
+            benchmark("Whole grid, 256x256", dataSource, Domain2DMapper.forGrid(sourceGrid,
+                    new RegularGridImpl(-180, -90, 180, 90, GISUtils.defaultGeographicCRS(), 256,
+                            256)));
+            benchmark("Zoomed in, 256x256", dataSource, Domain2DMapper.forGrid(sourceGrid,
+                    new RegularGridImpl(0, 0, 10, 10, GISUtils.defaultGeographicCRS(), 256, 256)));
+            benchmark("Sparse points, 8x8", dataSource, Domain2DMapper.forGrid(sourceGrid,
+                    new RegularGridImpl(-180, -90, 180, 90, GISUtils.defaultGeographicCRS(), 8, 8)));
+        } finally {
+            nc.close();
+        }
+    }
+
+    private static void benchmark(String title, CdmGridDataSource dataSource,
+            Domain2DMapper mapper) throws IOException, DataReadingException {
+        System.out.println(title + ":");
+        for (DataReadingStrategy strategy : DataReadingStrategy.values()) {
+            /*
+             * Warm up, then time
+             */
+            strategy.readMapData(dataSource, "data", 0, 0, mapper);
+            long start = System.nanoTime();
+            for (int i = 0; i < REPEATS; i++) {
+                strategy.readMapData(dataSource, "data", 0, 0, mapper);
+            }
+            double millis = (System.nanoTime() - start) / (1e6 * REPEATS);
+            System.out.println(String.format("    %-15s%10.2fms", strategy, millis));
+        }
+    }
+
+    private static void createFile(String filename) throws IOException, InvalidRangeException {
+        NetcdfFileWriter dataFile = NetcdfFileWriter.createNew(NetcdfFileWriter.Version.netcdf4,
+                filename, Nc4ChunkingStrategy.factory(Nc4Chunking.Strategy.standard, 5, true));
+        try {
+            Dimension timeDim = dataFile.addDimension(null, "time", 1);
+            Dimension latDim = dataFile.addDimension(null, "latitude", NLAT);
+            Dimension lonDim = dataFile.addDimension(null, "longitude", NLON);
+            List<Dimension> dims = new ArrayList<>();
+            dims.add(timeDim);
+            dims.add(latDim);
+            dims.add(lonDim);
+
+            Variable lat = dataFile.addVariable(null, "latitude", DataType.FLOAT,
+                    Arrays.asList(latDim));
+            dataFile.addVariableAttribute(lat, new Attribute("units", "degrees_north"));
+            Variable lon = dataFile.addVariable(null, "longitude", DataType.FLOAT,
+                    Arrays.asList(lonDim));
+            dataFile.addVariableAttribute(lon, new Attribute("units", "degrees_east"));
+            Variable time = dataFile.addVariable(null, "time", DataType.INT,
+                    Arrays.asList(timeDim));
+            dataFile.addVariableAttribute(time, new Attribute("units",
+                    "seconds since 1970-01-01 00:00:00"));
+            Variable data = dataFile.addVariable(null, "data", DataType.FLOAT, dims);
+            /*
+             * This is used by the chunking strategy when writing
+             */
+            dataFile.addVariableAttribute(data, new Attribute("_ChunkSizes", Arrays.asList(1,
+                    CHUNK_SIZE, CHUNK_SIZE)));
+            dataFile.create();
+
+            ArrayFloat.D1 latData = new ArrayFloat.D1(NLAT);
+            for (int j = 0; j < NLAT; j++) {
+                latData.set(j, -90f + 180f * (j + 0.5f) / NLAT);
+            }
+            ArrayFloat.D1 lonData = new ArrayFloat.D1(NLON);
+            for (int i = 0; i < NLON; i++) {
+                lonData.set(i, -180f + 360f * (i + 0.5f) / NLON);
+            }
+            ArrayInt.D1 timeData = new ArrayInt.D1(1, false);
+            ArrayFloat.D3 values = new ArrayFloat.D3(1, NLAT, NLON);
+            for (int j = 0; j < NLAT; j++) {
+                for (int i = 0; i < NLON; i++) {
+                    /*
+                     * Smoothly-varying values, so that they compress
+                     * realistically
+                     */
+                    values.set(0, j, i, (float) (Math.sin(i / 100.0) * Math.cos(j / 100.0)));
+                }
+            }
+            dataFile.write(lat, latData);
+            dataFile.write(lon, lonData);
+            dataFile.write(time, timeData);
+            dataFile.write(data, values);
+        } finally {
+            dataFile.close();
+        }
+    }
+}
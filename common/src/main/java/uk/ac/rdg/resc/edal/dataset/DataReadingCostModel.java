@@ -0,0 +1,389 @@
+/*******************************************************************************
+ * Copyright (c) 2017 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.dataset;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.rdg.resc.edal.exceptions.DataReadingException;
+import uk.ac.rdg.resc.edal.util.Array2D;
+import uk.ac.rdg.resc.edal.util.Metrics;
+
+/**
+ * Chooses a {@link DataReadingStrategy} for each map request from an estimate
+ * of its cost.
+ * 
+ * The cost of a read is modelled as a fixed cost per read call plus a cost per
+ * grid cell fetched from storage. For each strategy, the number of calls and
+ * cells is estimated from the statistics of the {@link Domain2DMapper} (the
+ * bounding box, the number of distinct scanlines and i-j pairs, and the
+ * strides) and the chunk shape of the variable being read: a chunked variable
+ * is always read a whole chunk at a time.
+ * 
+ * The two cost coefficients start at values supplied by the dataset (which
+ * will typically be chosen based on the type of storage) and are then learnt
+ * from the timings of the reads made through
+ * {@link #readMapData(GridDataSource, String, int, int, Domain2DMapper)}. Older
+ * timings are gradually forgotten, so that the coefficients follow changes in
+ * the performance of the storage.
+ * 
+ * The number of times that each strategy has been chosen is recorded, and is
+ * available from {@link #getDecisionCounts()}. Reads are also counted in
+ * {@link Metrics}, by strategy and dataset.
+ * 
+ * The model is {@link Serializable}, so that it is kept (along with anything
+ * it has learnt) when its dataset is stored in a {@link DatasetSnapshot}.
+ */
+public class DataReadingCostModel implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private static final Logger log = LoggerFactory.getLogger(DataReadingCostModel.class);
+
+    /*
+     * The weight given to previous observations when a new one is added
+     */
+    private static final double DECAY = 0.95;
+    /*
+     * The effective number of observations needed before the coefficients are
+     * fitted independently, rather than by scaling the initial values
+     */
+    private static final double MIN_OBSERVATIONS = 5.0;
+    /*
+     * Strategies which would need to hold more than this fraction of the
+     * maximum heap size in memory are not considered. Each cell is assumed to
+     * take 8 bytes.
+     */
+    private static final double MAX_MEMORY_FRACTION = 0.5;
+    private static final int BYTES_PER_CELL = 8;
+
+    private final double initialCallCost;
+    private final double initialCellCost;
+
+    /*
+     * The current coefficients, both in milliseconds
+     */
+    private double callCost;
+    private double cellCost;
+
+    /*
+     * Exponentially-weighted sums for a least-squares fit of time = callCost *
+     * calls + cellCost * cells
+     */
+    private double weight = 0.0;
+    private double sumCallsCalls = 0.0;
+    private double sumCallsCells = 0.0;
+    private double sumCellsCells = 0.0;
+    private double sumCallsTime = 0.0;
+    private double sumCellsTime = 0.0;
+
+    private long nTimedReads = 0L;
+    private final Map<DataReadingStrategy, Long> decisionCounts = new EnumMap<>(
+            DataReadingStrategy.class);
+
+    /**
+     * Create a new {@link DataReadingCostModel}
+     * 
+     * @param callCostMillis
+     *            The initial estimate of the fixed cost of each read call, in
+     *            milliseconds
+     * @param cellCostNanos
+     *            The initial estimate of the cost of fetching each grid cell
+     *            from storage, in nanoseconds
+     */
+    public DataReadingCostModel(double callCostMillis, double cellCostNanos) {
+        if (callCostMillis < 0 || cellCostNanos < 0 || callCostMillis + cellCostNanos <= 0) {
+            throw new IllegalArgumentException("Costs must be non-negative and not both zero");
+        }
+        initialCallCost = callCostMillis;
+        initialCellCost = cellCostNanos / 1e6;
+        callCost = initialCallCost;
+        cellCost = initialCellCost;
+    }
+
+    /**
+     * Chooses a {@link DataReadingStrategy}, reads map data with it, and uses
+     * the time taken to refine the cost coefficients.
+     * 
+     * @param dataSource
+     *            The {@link GridDataSource} to read from
+     * @param varId
+     *            The ID of the variable to read
+     * @param tIndex
+     *            The time index to read
+     * @param zIndex
+     *            The vertical index to read
+     * @param domainMapper
+     *            The {@link Domain2DMapper} describing the data to read
+     * @return The map data which was read
+     * @throws IOException
+     *             If there is an IO problem accessing the data
+     * @throws DataReadingException
+     *             If there is another issue reading the data
+     */
+    public Array2D<Number> readMapData(GridDataSource dataSource, String varId, int tIndex,
+            int zIndex, Domain2DMapper domainMapper) throws IOException, DataReadingException {
+        return readMapData(dataSource, varId, tIndex, zIndex, domainMapper, null);
+    }
+
+    /**
+     * Chooses a {@link DataReadingStrategy}, reads map data with it, and uses
+     * the time taken to refine the cost coefficients.
+     * 
+     * @param dataSource
+     *            The {@link GridDataSource} to read from
+     * @param varId
+     *            The ID of the variable to read
+     * @param tIndex
+     *            The time index to read
+     * @param zIndex
+     *            The vertical index to read
+     * @param domainMapper
+     *            The {@link Domain2DMapper} describing the data to read
+     * @param datasetId
+     *            The ID of the dataset being read, used to label the count of
+     *            strategies used. May be <code>null</code>.
+     * @return The map data which was read
+     * @throws IOException
+     *             If there is an IO problem accessing the data
+     * @throws DataReadingException
+     *             If there is another issue reading the data
+     */
+    public Array2D<Number> readMapData(GridDataSource dataSource, String varId, int tIndex,
+            int zIndex, Domain2DMapper domainMapper, String datasetId) throws IOException,
+            DataReadingException {
+        if (domainMapper.isEmpty()) {
+            /*
+             * Nothing will be read, so there is nothing to choose or to learn
+             * from
+             */
+            return DataReadingStrategy.BOUNDING_BOX.readMapData(dataSource, varId, tIndex, zIndex,
+                    domainMapper);
+        }
+        int[] chunkShape = dataSource.getHorizontalChunkShape(varId);
+        DataReadingStrategy strategy = chooseStrategy(domainMapper, chunkShape);
+        long[] estimate = estimateReads(strategy, domainMapper, chunkShape);
+        Metrics.increment(Metrics.READ_STRATEGY, "strategy", strategy.name(), "dataset",
+                datasetId);
+
+        long start = System.nanoTime();
+        Array2D<Number> data = strategy.readMapData(dataSource, varId, tIndex, zIndex,
+                domainMapper);
+        observe(estimate[0], estimate[1], (System.nanoTime() - start) / 1e6);
+        return data;
+    }
+
+    /**
+     * Chooses the {@link DataReadingStrategy} with the lowest estimated cost
+     * for the given request. The {@link DataReadingStrategy#STRIDED} strategy
+     * is only considered when it will give exactly the same results as the
+     * others, and the {@link DataReadingStrategy#CHUNKED} strategy is only
+     * considered for chunked data.
+     * 
+     * @param domainMapper
+     *            The {@link Domain2DMapper} describing the data to read
+     * @param chunkShape
+     *            The y and x sizes of the storage chunks, or <code>null</code>
+     *            if the data are not chunked
+     * @return The cheapest {@link DataReadingStrategy}
+     */
+    public DataReadingStrategy chooseStrategy(Domain2DMapper domainMapper, int[] chunkShape) {
+        long maxCells = (long) (MAX_MEMORY_FRACTION * Runtime.getRuntime().maxMemory())
+                / BYTES_PER_CELL;
+        DataReadingStrategy best = null;
+        double bestCost = Double.MAX_VALUE;
+        synchronized (this) {
+            for (DataReadingStrategy strategy : DataReadingStrategy.values()) {
+                if (strategy == DataReadingStrategy.STRIDED
+                        && (!domainMapper.hasExactStrides() || domainMapper.getIStride() == 1
+                                && domainMapper.getJStride() == 1)) {
+                    /*
+                     * Either approximate, or no different to BOUNDING_BOX
+                     */
+                    continue;
+                }
+                if (strategy == DataReadingStrategy.CHUNKED && chunkShape == null) {
+                    /*
+                     * No different to BOUNDING_BOX
+                     */
+                    continue;
+                }
+                long[] estimate = estimateReads(strategy, domainMapper, chunkShape);
+                if (estimate[1] / estimate[0] > maxCells) {
+                    /*
+                     * A single read would use too much memory
+                     */
+                    continue;
+                }
+                double cost = callCost * estimate[0] + cellCost * estimate[1];
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    best = strategy;
+                }
+            }
+            if (best == null) {
+                /*
+                 * Everything is too big. SCANLINE holds the least data in
+                 * memory at any one time.
+                 */
+                best = DataReadingStrategy.SCANLINE;
+            }
+            Long count = decisionCounts.get(best);
+            decisionCounts.put(best, count == null ? 1L : count + 1L);
+        }
+        log.debug("Chose {} with estimated cost {}ms", best, bestCost);
+        return best;
+    }
+
+    /**
+     * Estimates the number of read calls made and grid cells fetched from
+     * storage by a {@link DataReadingStrategy}.
+     * 
+     * @return An array containing the number of calls and the number of cells
+     */
+    static long[] estimateReads(DataReadingStrategy strategy, Domain2DMapper domainMapper,
+            int[] chunkShape) {
+        int chunkY = chunkShape == null ? 1 : Math.max(1, chunkShape[0]);
+        int chunkX = chunkShape == null ? 1 : Math.max(1, chunkShape[1]);
+        int imin = domainMapper.getMinIIndex();
+        int imax = domainMapper.getMaxIIndex();
+        int jmin = domainMapper.getMinJIndex();
+        int jmax = domainMapper.getMaxJIndex();
+        /*
+         * The number of chunks needed to cover the bounding box in each
+         * direction
+         */
+        long chunkRows = jmax / chunkY - jmin / chunkY + 1;
+        long chunkCols = imax / chunkX - imin / chunkX + 1;
+        long chunkSize = (long) chunkY * chunkX;
+
+        switch (strategy) {
+        case PIXEL_BY_PIXEL:
+            long nPairs = domainMapper.getNumUniqueIJPairs();
+            return new long[] { nPairs, nPairs * chunkSize };
+        case SCANLINE:
+            long nScanlines = domainMapper.getNumUniqueJIndices();
+            return new long[] { nScanlines, nScanlines * chunkCols * chunkSize };
+        case STRIDED:
+            long jSize = (jmax - jmin) / domainMapper.getJStride() + 1;
+            long iSize = (imax - imin) / domainMapper.getIStride() + 1;
+            return new long[] { 1L, Math.min(jSize, chunkRows) * Math.min(iSize, chunkCols)
+                    * chunkSize };
+        case CHUNKED:
+            long nChunks = domainMapper.getNumDistinctBlocks(chunkY, chunkX);
+            return new long[] { nChunks, nChunks * chunkSize };
+        case BOUNDING_BOX:
+        default:
+            return new long[] { 1L, chunkRows * chunkCols * chunkSize };
+        }
+    }
+
+    /**
+     * Adds a timed read to the model and refits the cost coefficients
+     * 
+     * @param calls
+     *            The number of read calls made
+     * @param cells
+     *            The number of grid cells fetched
+     * @param millis
+     *            The time taken, in milliseconds
+     */
+    synchronized void observe(long calls, long cells, double millis) {
+        weight = weight * DECAY + 1.0;
+        sumCallsCalls = sumCallsCalls * DECAY + (double) calls * calls;
+        sumCallsCells = sumCallsCells * DECAY + (double) calls * cells;
+        sumCellsCells = sumCellsCells * DECAY + (double) cells * cells;
+        sumCallsTime = sumCallsTime * DECAY + calls * millis;
+        sumCellsTime = sumCellsTime * DECAY + cells * millis;
+        nTimedReads++;
+
+        if (weight >= MIN_OBSERVATIONS) {
+            double det = sumCallsCalls * sumCellsCells - sumCallsCells * sumCallsCells;
+            if (det > 1e-6 * sumCallsCalls * sumCellsCells) {
+                double a = (sumCallsTime * sumCellsCells - sumCellsTime * sumCallsCells) / det;
+                double b = (sumCellsTime * sumCallsCalls - sumCallsTime * sumCallsCells) / det;
+                if (a >= 0 && b >= 0 && a + b > 0) {
+                    callCost = a;
+                    cellCost = b;
+                    return;
+                }
+            }
+        }
+        /*
+         * There is not yet enough variety in the reads to fit both
+         * coefficients, so keep their initial ratio and just fit the overall
+         * scale
+         */
+        double sumPredictedPredicted = initialCallCost * initialCallCost * sumCallsCalls + 2
+                * initialCallCost * initialCellCost * sumCallsCells + initialCellCost
+                * initialCellCost * sumCellsCells;
+        double sumPredictedTime = initialCallCost * sumCallsTime + initialCellCost
+                * sumCellsTime;
+        if (sumPredictedPredicted > 0 && sumPredictedTime > 0) {
+            double scale = sumPredictedTime / sumPredictedPredicted;
+            callCost = initialCallCost * scale;
+            cellCost = initialCellCost * scale;
+        }
+    }
+
+    /**
+     * @return The current estimate of the fixed cost of each read call, in
+     *         milliseconds
+     */
+    public synchronized double getCallCostMillis() {
+        return callCost;
+    }
+
+    /**
+     * @return The current estimate of the cost of fetching each grid cell, in
+     *         nanoseconds
+     */
+    public synchronized double getCellCostNanos() {
+        return cellCost * 1e6;
+    }
+
+    /**
+     * @return The number of reads which have been timed
+     */
+    public synchronized long getNumTimedReads() {
+        return nTimedReads;
+    }
+
+    /**
+     * @return The number of times that each {@link DataReadingStrategy} has
+     *         been chosen
+     */
+    public synchronized Map<DataReadingStrategy, Long> getDecisionCounts() {
+        return Collections.unmodifiableMap(new EnumMap<>(decisionCounts));
+    }
+}
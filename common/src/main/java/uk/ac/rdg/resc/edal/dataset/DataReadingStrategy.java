@@ -28,8 +28,11 @@
 package uk.ac.rdg.resc.edal.dataset;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.h2.store.DataReader;
 
@@ -112,6 +115,30 @@ import uk.ac.rdg.resc.edal.util.ValuesArray2D;
  * </p>
  * <img src="doc-files/pixelmap_scanline.png">
  * 
+ * <h3>Strategy 4: read a strided subset of data</h3>
+ * <p>
+ * When the target grid is much coarser than the source grid, the distinct i
+ * and j indices needed are spread out. {@link DomainMapper#getIStride()} and
+ * {@link DomainMapper#getJStride()} give regular spacings which have at least
+ * one point per distinct index, and the data on that regular lattice are read
+ * in a single strided read from the {@link GridDataSource}. The amount of
+ * data read is then proportional to the size of the output rather than the
+ * size of the bounding box. This is the {@link #STRIDED strided} strategy. It
+ * is only used when every needed index lies on the strided lattice.
+ * </p>
+ * 
+ * <h3>Strategy 5: read whole storage chunks</h3>
+ * <p>
+ * Chunked (and usually compressed) data, such as NetCDF-4, can only be read a
+ * whole chunk at a time. Reading the bounding box decompresses every chunk in
+ * it, whether or not it contains any of the needed points, and reading
+ * scanlines decompresses each chunk once for every scanline through it.
+ * Instead, the needed points can be grouped by the chunk which contains them
+ * (using {@link GridDataSource#getHorizontalChunkShape(String)}), and each of
+ * those chunks read exactly once. This is the {@link #CHUNKED chunked}
+ * strategy.
+ * </p>
+ * 
  * @author Jon
  * @author Guy Griffiths
  */
@@ -207,6 +234,115 @@ public enum DataReadingStrategy {
             }
             return ret;
         }
+    },
+
+    /**
+     * Reads a regularly-strided subset of the bounding box in a single
+     * operation, so that the amount of data read is proportional to the size
+     * of the output. Recommended when the target grid is much coarser than the
+     * source grid.
+     * 
+     * Where the source indices needed are not evenly spaced (see
+     * {@link DomainMapper#hasExactStrides()}), they do not all lie on a
+     * strided lattice, and the {@link #BOUNDING_BOX bounding-box} strategy is
+     * used instead.
+     */
+    STRIDED {
+        @Override
+        public Array2D<Number> readMapData(GridDataSource dataSource, String varId, int tIndex,
+                int zIndex, Domain2DMapper domainMapper) throws IOException, DataReadingException {
+            Array2D<Number> ret = new ValuesArray2D(domainMapper.getTargetYSize(),
+                    domainMapper.getTargetXSize());
+            if (domainMapper.isEmpty()) {
+                return ret;
+            }
+            if (!domainMapper.hasExactStrides()) {
+                return BOUNDING_BOX.readMapData(dataSource, varId, tIndex, zIndex, domainMapper);
+            }
+            int imin = domainMapper.getMinIIndex();
+            int jmin = domainMapper.getMinJIndex();
+            int iStride = domainMapper.getIStride();
+            int jStride = domainMapper.getJStride();
+            int iSize = (domainMapper.getMaxIIndex() - imin) / iStride + 1;
+            int jSize = (domainMapper.getMaxJIndex() - jmin) / jStride + 1;
+            Array4D<Number> data = dataSource.read(varId, tIndex, tIndex, zIndex, zIndex, jmin,
+                    jmin + (jSize - 1) * jStride, jStride, imin, imin + (iSize - 1) * iStride,
+                    iStride);
+            for (DomainMapperEntry<int[]> pme : domainMapper) {
+                int i = (pme.getSourceGridIIndex() - imin) / iStride;
+                int j = (pme.getSourceGridJIndex() - jmin) / jStride;
+                Number value = data.get(0, 0, j, i);
+                for (int[] targetPoint : pme.getTargetIndices()) {
+                    ret.set(value, new int[] { targetPoint[1], targetPoint[0] });
+                }
+            }
+            return ret;
+        }
+    },
+
+    /**
+     * Reads each storage chunk which contains at least one needed data point
+     * exactly once. Recommended for chunked and compressed data, especially
+     * when the points needed are sparse. If the data are not chunked, this is
+     * the same as the {@link #BOUNDING_BOX bounding-box} strategy.
+     */
+    CHUNKED {
+        @Override
+        public Array2D<Number> readMapData(GridDataSource dataSource, String varId, int tIndex,
+                int zIndex, Domain2DMapper domainMapper) throws IOException, DataReadingException {
+            int[] chunkShape = dataSource.getHorizontalChunkShape(varId);
+            if (chunkShape == null) {
+                return BOUNDING_BOX.readMapData(dataSource, varId, tIndex, zIndex, domainMapper);
+            }
+            int chunkY = Math.max(1, chunkShape[0]);
+            int chunkX = Math.max(1, chunkShape[1]);
+
+            Array2D<Number> ret = new ValuesArray2D(domainMapper.getTargetYSize(),
+                    domainMapper.getTargetXSize());
+            /*
+             * Group the entries by the chunk which contains them. The entries
+             * are sorted by j and then i index, so the chunks will be read in
+             * storage order.
+             */
+            Map<Long, List<DomainMapperEntry<int[]>>> chunks = new LinkedHashMap<>();
+            for (DomainMapperEntry<int[]> pme : domainMapper) {
+                long chunkKey = ((long) (pme.getSourceGridJIndex() / chunkY) << 32)
+                        | (pme.getSourceGridIIndex() / chunkX);
+                List<DomainMapperEntry<int[]>> entries = chunks.get(chunkKey);
+                if (entries == null) {
+                    entries = new ArrayList<>();
+                    chunks.put(chunkKey, entries);
+                }
+                entries.add(pme);
+            }
+
+            for (List<DomainMapperEntry<int[]>> entries : chunks.values()) {
+                /*
+                 * Read the part of this chunk which covers the needed points.
+                 * The whole chunk will be decompressed, but only once.
+                 */
+                int imin = Integer.MAX_VALUE;
+                int imax = -1;
+                int jmin = Integer.MAX_VALUE;
+                int jmax = -1;
+                for (DomainMapperEntry<int[]> pme : entries) {
+                    imin = Math.min(imin, pme.getSourceGridIIndex());
+                    imax = Math.max(imax, pme.getSourceGridIIndex());
+                    jmin = Math.min(jmin, pme.getSourceGridJIndex());
+                    jmax = Math.max(jmax, pme.getSourceGridJIndex());
+                }
+                Array4D<Number> data = dataSource.read(varId, tIndex, tIndex, zIndex, zIndex,
+                        jmin, jmax, imin, imax);
+                for (DomainMapperEntry<int[]> pme : entries) {
+                    Number value = data.get(0, 0, pme.getSourceGridJIndex() - jmin,
+                            pme.getSourceGridIIndex() - imin);
+                    for (int[] targetPoint : pme.getTargetIndices()) {
+                        ret.set(value, new int[] { targetPoint[1], targetPoint[0] });
+                    }
+                }
+            }
+            return ret;
+        }
     };
 
     abstract public Array2D<Number> readMapData(GridDataSource dataSource, String varId,
@@ -34,6 +34,7 @@ import java.util.HashMap;
 import java.util.Map;
 
 import uk.ac.rdg.resc.edal.exceptions.EdalException;
+import uk.ac.rdg.resc.edal.grid.LookUpTableGrid;
 
 /**
  * A factory for {@link Dataset} objects. The intention is that one factory
@@ -67,11 +68,14 @@ public abstract class DatasetFactory {
      * @param workingDir
      *            A default working directory which {@link DatasetFactory}
      *            subclasses can use to store data (e.g. to write spatial
-     *            indices to disk)
+     *            indices to disk). Look-up tables for curvilinear grids are
+     *            also persisted here.
      * 
      */
     public static void setWorkingDirectory(File workingDir) {
         DatasetFactory.workingDir = workingDir;
+        LookUpTableGrid.setLookUpTableDirectory(workingDir == null ? null : new File(workingDir,
+                "lookuptables"));
     }
 
     /**
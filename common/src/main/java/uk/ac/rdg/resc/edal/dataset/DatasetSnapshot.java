@@ -0,0 +1,324 @@
+/*******************************************************************************
+ * Copyright (c) 2017 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.dataset;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A snapshot of the metadata of a {@link Dataset} (its variables, domains,
+ * plugins etc.), persisted in the working directory of the
+ * {@link DatasetFactory}s. Loading a snapshot is much faster than re-scanning
+ * the underlying data, so snapshots can be used to make datasets available
+ * immediately when a server restarts, and then revalidated in the background.
+ * 
+ * Snapshots use Java serialisation, so only {@link Serializable}
+ * {@link Dataset}s can be snapshotted. Each snapshot is stored with the
+ * location and {@link DatasetFactory} it was created from, and a signature
+ * (see {@link DatasetSnapshot#getLocationSignature(String)}) of the files at
+ * that location at the time the snapshot was taken.
+ */
+public final class DatasetSnapshot {
+    private static final Logger log = LoggerFactory.getLogger(DatasetSnapshot.class);
+
+    private static final int FILE_MAGIC = 0x45445353;
+    /*
+     * Increment this whenever the serialised form of datasets changes
+     * incompatibly, so that old snapshots are ignored
+     */
+    private static final int FILE_VERSION = 2;
+    private static final String FILE_SUFFIX = ".snapshot";
+
+    private final Dataset dataset;
+    private final String signature;
+
+    private DatasetSnapshot(Dataset dataset, String signature) {
+        this.dataset = dataset;
+        this.signature = signature;
+    }
+
+    /**
+     * @return The {@link Dataset} which was snapshotted
+     */
+    public Dataset getDataset() {
+        return dataset;
+    }
+
+    /**
+     * @return The signature of the dataset location at the time the snapshot
+     *         was taken, or <code>null</code> if it could not be determined
+     */
+    public String getSignature() {
+        return signature;
+    }
+
+    /**
+     * Saves a snapshot of a {@link Dataset} to the working directory,
+     * replacing any existing snapshot of a dataset with the same ID.
+     * 
+     * @param dataset
+     *            The {@link Dataset} to snapshot
+     * @param location
+     *            The location the {@link Dataset} was created from
+     * @param factoryName
+     *            The class name of the {@link DatasetFactory} which created
+     *            the {@link Dataset}
+     * @param signature
+     *            The signature of the location, calculated
+     *            <em>before</em> the {@link Dataset} was created. May be
+     *            <code>null</code>
+     * @return <code>true</code> if the snapshot was saved, <code>false</code>
+     *         if no working directory has been set, or the {@link Dataset}
+     *         cannot be serialised
+     */
+    public static boolean save(Dataset dataset, String location, String factoryName,
+            String signature) {
+        File snapshotFile = getSnapshotFile(dataset.getId());
+        if (snapshotFile == null || !(dataset instanceof Serializable)) {
+            return false;
+        }
+        File tmpFile = new File(snapshotFile.getPath() + ".tmp");
+        try {
+            /*
+             * Write to a temporary file and then move it, so that a partially
+             * written snapshot is never read
+             */
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(tmpFile)))) {
+                out.writeInt(FILE_MAGIC);
+                out.writeInt(FILE_VERSION);
+                out.writeUTF(location);
+                out.writeUTF(factoryName);
+                out.writeBoolean(signature != null);
+                if (signature != null) {
+                    out.writeUTF(signature);
+                }
+                ObjectOutputStream objectOut = new ObjectOutputStream(out);
+                objectOut.writeObject(dataset);
+                objectOut.flush();
+            }
+            try {
+                Files.move(tmpFile.toPath(), snapshotFile.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmpFile.toPath(), snapshotFile.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+            return true;
+        } catch (IOException e) {
+            /*
+             * This will include the case where some part of the dataset is
+             * not serialisable. That's not a problem, we just won't be able to
+             * start this dataset quickly.
+             */
+            log.warn("Could not save a snapshot of the dataset " + dataset.getId(), e);
+            tmpFile.delete();
+            return false;
+        }
+    }
+
+    /**
+     * Loads a snapshot of a {@link Dataset} from the working directory
+     * 
+     * @param id
+     *            The ID of the {@link Dataset}
+     * @param location
+     *            The location the {@link Dataset} should have been created from
+     * @param factoryName
+     *            The class name of the {@link DatasetFactory} which should
+     *            have created the {@link Dataset}
+     * @return The {@link DatasetSnapshot}, or <code>null</code> if there is
+     *         no valid snapshot of the given dataset, or if it was created from
+     *         a different location or by a different {@link DatasetFactory}
+     */
+    public static DatasetSnapshot load(String id, String location, String factoryName) {
+        File snapshotFile = getSnapshotFile(id);
+        if (snapshotFile == null || !snapshotFile.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(snapshotFile)))) {
+            if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION
+                    || !location.equals(in.readUTF()) || !factoryName.equals(in.readUTF())) {
+                log.debug("Snapshot of " + id + " is out of date, and will not be used");
+                return null;
+            }
+            String signature = in.readBoolean() ? in.readUTF() : null;
+            Object dataset = new ObjectInputStream(in).readObject();
+            if (!(dataset instanceof Dataset) || !id.equals(((Dataset) dataset).getId())) {
+                return null;
+            }
+            return new DatasetSnapshot((Dataset) dataset, signature);
+        } catch (IOException | ClassNotFoundException | RuntimeException e) {
+            /*
+             * Most likely the classes have changed since the snapshot was
+             * taken. We ignore it, and the dataset will be loaded as normal.
+             */
+            log.warn("Could not read the snapshot of the dataset " + id
+                    + ".  It will be loaded from its location instead.", e);
+            return null;
+        }
+    }
+
+    /**
+     * Calculates a signature of the files at a location, from their paths,
+     * sizes and modification times. If two signatures of the same location
+     * are equal, the files have (almost certainly) not changed in between.
+     * 
+     * @param location
+     *            The location of a dataset. This may be a file, a directory,
+     *            or a glob expression.
+     * @return The signature, or <code>null</code> if the location is not on
+     *         the local filesystem, or there are no files there.
+     */
+    public static String getLocationSignature(String location) {
+        List<Path> paths;
+        try {
+            paths = getLocationFiles(location);
+        } catch (IOException e) {
+            log.debug("Could not list the files at " + location, e);
+            return null;
+        }
+        if (paths == null || paths.isEmpty()) {
+            return null;
+        }
+        Collections.sort(paths);
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            /* All JVMs are required to support SHA-1 */
+            throw new IllegalStateException(e);
+        }
+        for (Path path : paths) {
+            File file = path.toFile();
+            digest.update(path.toString().getBytes(StandardCharsets.UTF_8));
+            digest.update((":" + file.lastModified() + ":" + file.length() + "\n")
+                    .getBytes(StandardCharsets.UTF_8));
+        }
+        StringBuilder signature = new StringBuilder();
+        for (byte b : digest.digest()) {
+            signature.append(String.format("%02x", b));
+        }
+        return signature.toString();
+    }
+
+    /*
+     * Lists the local files which make up the given location, or returns null
+     * if the location is a remote one
+     */
+    private static List<Path> getLocationFiles(String location) throws IOException {
+        if (location.startsWith("file://")) {
+            location = location.substring(7);
+        } else if (location.startsWith("file:")) {
+            location = location.substring(5);
+        } else if (location.matches("^[a-zA-Z][a-zA-Z0-9+.\\-]+:.*")) {
+            /* Any other URL scheme (http, dods etc.) */
+            return null;
+        }
+
+        int globStart = -1;
+        for (char c : new char[] { '*', '?', '[', '{' }) {
+            int index = location.indexOf(c);
+            if (index >= 0 && (globStart < 0 || index < globStart)) {
+                globStart = index;
+            }
+        }
+
+        if (globStart < 0) {
+            File file = new File(location);
+            if (file.isFile()) {
+                List<Path> paths = new ArrayList<>();
+                paths.add(file.getAbsoluteFile().toPath());
+                return paths;
+            } else if (file.isDirectory()) {
+                try (Stream<Path> files = Files.walk(file.getAbsoluteFile().toPath())) {
+                    return files.filter(Files::isRegularFile).collect(Collectors.toList());
+                }
+            } else {
+                return null;
+            }
+        }
+
+        /*
+         * Walk the directory tree below the last directory before the glob
+         * expression starts, and return all of the files which match it
+         */
+        int baseEnd = Math.max(location.lastIndexOf('/', globStart),
+                location.lastIndexOf(File.separatorChar, globStart));
+        File baseDir = new File(baseEnd < 0 ? "." : location.substring(0, baseEnd + 1))
+                .getAbsoluteFile();
+        if (!baseDir.isDirectory()) {
+            return null;
+        }
+        String pattern = location.substring(baseEnd + 1);
+        final PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+        final Path basePath = baseDir.toPath();
+        try (Stream<Path> files = Files.walk(basePath)) {
+            return files.filter(
+                    path -> Files.isRegularFile(path)
+                            && matcher.matches(basePath.relativize(path))).collect(
+                    Collectors.toList());
+        }
+    }
+
+    private static File getSnapshotFile(String id) {
+        if (DatasetFactory.workingDir == null) {
+            return null;
+        }
+        return new File(DatasetFactory.workingDir, id + FILE_SUFFIX);
+    }
+}
@@ -30,12 +30,19 @@ package uk.ac.rdg.resc.edal.dataset;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
 
 import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import uk.ac.rdg.resc.edal.domain.DiscreteHorizontalDomain;
 import uk.ac.rdg.resc.edal.domain.Extent;
@@ -43,17 +50,20 @@ import uk.ac.rdg.resc.edal.domain.MapDomain;
 import uk.ac.rdg.resc.edal.exceptions.DataReadingException;
 import uk.ac.rdg.resc.edal.exceptions.VariableNotFoundException;
 import uk.ac.rdg.resc.edal.feature.MapFeature;
+import uk.ac.rdg.resc.edal.feature.ProfileFeature;
 import uk.ac.rdg.resc.edal.geometry.BoundingBox;
 import uk.ac.rdg.resc.edal.grid.HorizontalCell;
 import uk.ac.rdg.resc.edal.grid.HorizontalGrid;
 import uk.ac.rdg.resc.edal.grid.TimeAxis;
 import uk.ac.rdg.resc.edal.grid.VerticalAxis;
 import uk.ac.rdg.resc.edal.metadata.DiscreteLayeredVariableMetadata;
+import uk.ac.rdg.resc.edal.position.GeoPosition;
 import uk.ac.rdg.resc.edal.position.HorizontalPosition;
 import uk.ac.rdg.resc.edal.position.VerticalPosition;
 import uk.ac.rdg.resc.edal.util.Array1D;
 import uk.ac.rdg.resc.edal.util.Array2D;
 import uk.ac.rdg.resc.edal.util.GISUtils;
+import uk.ac.rdg.resc.edal.util.ValuesArray1D;
 
 /**
  * A partial implementation of an {@link HorizontallyDiscreteDataset} based on a
@@ -74,6 +84,7 @@ import uk.ac.rdg.resc.edal.util.GISUtils;
  */
 public abstract class DiscreteLayeredDataset<DS extends DataSource, VM extends DiscreteLayeredVariableMetadata>
         extends HorizontallyDiscreteDataset<DS> implements Serializable {
+    private static final Logger log = LoggerFactory.getLogger(DiscreteLayeredDataset.class);
     private static final long serialVersionUID = 1L;
 
     public DiscreteLayeredDataset(String id, Collection<VM> vars) {
@@ -308,6 +319,139 @@ public abstract class DiscreteLayeredDataset<DS extends DataSource, VM extends D
         return extractPoint(metadata, t, z, hPos, dataSource);
     }
 
+    @Override
+    protected final Array1D<Number> readUnderlyingMultiplePointData(String varId,
+            List<GeoPosition> positions, DS dataSource) throws DataReadingException,
+            VariableNotFoundException {
+        VM metadata = getVariableMetadata(varId);
+
+        VerticalAxis verticalDomain = metadata.getVerticalDomain();
+        TimeAxis temporalDomain = metadata.getTemporalDomain();
+
+        /*
+         * Group the positions by the horizontal layer they lie in, so that each
+         * layer can be extracted in one go. Most transects will lie entirely
+         * within a single layer.
+         */
+        Map<List<Integer>, List<Integer>> layersToPositions = new LinkedHashMap<>();
+        for (int i = 0; i < positions.size(); i++) {
+            GeoPosition position = positions.get(i);
+            Double zVal = null;
+            if (position.getVerticalPosition() != null) {
+                zVal = position.getVerticalPosition().getZ();
+            }
+            int z = getVerticalIndex(zVal, verticalDomain, varId);
+            int t = getTimeIndex(position.getTime(), temporalDomain, varId);
+            List<Integer> layer = Arrays.asList(t, z);
+            if (!layersToPositions.containsKey(layer)) {
+                layersToPositions.put(layer, new ArrayList<Integer>());
+            }
+            layersToPositions.get(layer).add(i);
+        }
+
+        Array1D<Number> data = new ValuesArray1D(positions.size());
+        for (Entry<List<Integer>, List<Integer>> layer : layersToPositions.entrySet()) {
+            final List<Integer> positionIndices = layer.getValue();
+            List<HorizontalPosition> hPositions = new ArrayList<>(positionIndices.size());
+            for (Integer index : positionIndices) {
+                hPositions.add(positions.get(index).getHorizontalPosition());
+            }
+            Array1D<Number> layerData = extractMultiplePoints(metadata, layer.getKey().get(0),
+                    layer.getKey().get(1), hPositions, dataSource);
+            for (int i = 0; i < positionIndices.size(); i++) {
+                data.set(layerData.get(i), positionIndices.get(i));
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Extracts a vertical section through this dataset. This returns a single
+     * {@link ProfileFeature} for each of the supplied positions, all at the
+     * same time and covering the entire vertical axis of the variable.
+     * 
+     * This is equivalent to calling
+     * {@link #extractProfileFeatures(Set, BoundingBox, Extent, Extent, HorizontalPosition, DateTime)}
+     * once for each position, but allows the underlying data to be read in a
+     * much smaller number of operations.
+     * 
+     * @param varId
+     *            The ID of the variable to extract a section for
+     * @param positions
+     *            The {@link HorizontalPosition}s making up the section. Usually
+     *            these will be points along a transect.
+     * @param time
+     *            The time at which to extract the section. If
+     *            <code>null</code>, the time closest to the current time will
+     *            be used
+     * @return A {@link List} of {@link ProfileFeature}s, one per supplied
+     *         position which lies within the domain of the variable, in the
+     *         same order as the supplied positions
+     * @throws DataReadingException
+     *             If there is a problem reading the underlying data
+     * @throws VariableNotFoundException
+     *             If the requested variable is not present in this
+     *             {@link Dataset}
+     */
+    public List<ProfileFeature> extractProfileSection(String varId,
+            List<HorizontalPosition> positions, DateTime time) throws DataReadingException,
+            VariableNotFoundException {
+        VM metadata = getVariableMetadata(varId);
+        VerticalAxis zAxis = metadata.getVerticalDomain();
+        if (zAxis == null) {
+            throw new UnsupportedOperationException(
+                    "Profile extraction not supported for the variable: " + varId);
+        }
+        List<ProfileFeature> features = new ArrayList<>();
+        Set<String> varIds = Collections.singleton(varId);
+        if (isDerivedVariable(varId) != null) {
+            /*
+             * Derived variables may depend on variables with differing domains.
+             * Extract them individually, which will handle this.
+             */
+            for (HorizontalPosition pos : positions) {
+                features.addAll(extractProfileFeatures(varIds, null, null, null, pos, time));
+            }
+            return features;
+        }
+
+        TimeAxis tAxis = metadata.getTemporalDomain();
+        int tIndex = getTimeIndex(time, tAxis, varId);
+        DateTime featureTime = tAxis == null ? null : tAxis.getCoordinateValue(tIndex);
+
+        List<Integer> zIndices = new ArrayList<>();
+        for (int i = 0; i < zAxis.size(); i++) {
+            zIndices.add(i);
+        }
+
+        DS dataSource = null;
+        try {
+            dataSource = openDataSource();
+            List<Array1D<Number>> sectionData = extractProfileSectionData(metadata, zIndices,
+                    tIndex, positions, dataSource);
+            for (int i = 0; i < positions.size(); i++) {
+                Array1D<Number> profileData = sectionData.get(i);
+                if (profileData == null) {
+                    continue;
+                }
+                HorizontalPosition pos = positions.get(i);
+                features.add(new ProfileFeature(generateId(varIds, null, null, null, pos, null,
+                        featureTime), "Extracted Profile Feature", generateDescription(
+                        "Profile feature", varIds), zAxis, pos, featureTime,
+                        getParameters(varIds), Collections.singletonMap(varId, profileData)));
+            }
+        } finally {
+            if (dataSource != null) {
+                try {
+                    dataSource.close();
+                } catch (DataReadingException e) {
+                    log.error("Problem closing data source");
+                }
+            }
+        }
+        return features;
+    }
+
     /**
      * @param bbox
      *            The {@link BoundingBox} in which to select
@@ -427,6 +571,78 @@ public abstract class DiscreteLayeredDataset<DS extends DataSource, VM extends D
     protected abstract Array1D<Number> extractTimeseriesData(VM metadata, List<Integer> ts,
             int zIndex, HorizontalPosition hPos, DS dataSource) throws DataReadingException;
 
+    /**
+     * Extracts data at a number of points within a single horizontal layer.
+     * 
+     * The default implementation calls
+     * {@link #extractPoint(DiscreteLayeredVariableMetadata, int, int, HorizontalPosition, DataSource)}
+     * for each position. Subclasses should override this if they can read
+     * multiple points more efficiently.
+     * 
+     * @param metadata
+     *            The {@link DiscreteLayeredVariableMetadata} object
+     *            representing the variable to extract data for
+     * @param t
+     *            The t-index at which to extract data
+     * @param z
+     *            The z-index at which to extract data
+     * @param hPositions
+     *            The {@link HorizontalPosition}s at which to extract data
+     * @param dataSource
+     *            The {@link DataSource} used to extract data
+     * @return An {@link Array1D} containing one value per position
+     * @throws DataReadingException
+     *             If there is a problem reading the underlying data
+     */
+    protected Array1D<Number> extractMultiplePoints(VM metadata, int t, int z,
+            List<HorizontalPosition> hPositions, DS dataSource) throws DataReadingException {
+        Array1D<Number> data = new ValuesArray1D(hPositions.size());
+        for (int i = 0; i < hPositions.size(); i++) {
+            data.set(extractPoint(metadata, t, z, hPositions.get(i), dataSource), i);
+        }
+        return data;
+    }
+
+    /**
+     * Extracts data corresponding to a vertical section - i.e. a vertical
+     * profile at each of a number of horizontal positions.
+     * 
+     * The default implementation calls
+     * {@link #extractProfileData(DiscreteLayeredVariableMetadata, List, int, HorizontalPosition, DataSource)}
+     * for each position. Subclasses should override this if they can read
+     * multiple profiles more efficiently.
+     * 
+     * @param metadata
+     *            The {@link DiscreteLayeredVariableMetadata} object
+     *            representing the variable to extract data for
+     * @param zs
+     *            A {@link List} of integer z-indices at which to extract data
+     * @param tIndex
+     *            The time index at which to extract data
+     * @param hPositions
+     *            The {@link HorizontalPosition}s at which to extract data
+     * @param dataSource
+     *            The {@link DataSource} used to extract data
+     * @return A {@link List} containing an {@link Array1D} for each of the
+     *         supplied positions, or <code>null</code> for positions which lie
+     *         outside the horizontal domain
+     * @throws DataReadingException
+     *             If there is a problem reading the underlying data
+     */
+    protected List<Array1D<Number>> extractProfileSectionData(VM metadata, List<Integer> zs,
+            int tIndex, List<HorizontalPosition> hPositions, DS dataSource)
+            throws DataReadingException {
+        List<Array1D<Number>> ret = new ArrayList<>();
+        for (HorizontalPosition hPos : hPositions) {
+            if (metadata.getHorizontalDomain().contains(hPos)) {
+                ret.add(extractProfileData(metadata, zs, tIndex, hPos, dataSource));
+            } else {
+                ret.add(null);
+            }
+        }
+        return ret;
+    }
+
     /**
      * Extract data at a point
      * 
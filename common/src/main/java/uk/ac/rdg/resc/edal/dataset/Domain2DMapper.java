@@ -39,14 +39,16 @@ import net.sf.ehcache.config.Configuration;
 import net.sf.ehcache.config.PersistenceConfiguration;
 import net.sf.ehcache.config.PersistenceConfiguration.Strategy;
 import net.sf.ehcache.store.MemoryStoreEvictionPolicy;
-import uk.ac.rdg.resc.edal.grid.GridCell2D;
+
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
 import uk.ac.rdg.resc.edal.grid.HorizontalGrid;
 import uk.ac.rdg.resc.edal.grid.RectilinearGrid;
 import uk.ac.rdg.resc.edal.grid.ReferenceableAxis;
 import uk.ac.rdg.resc.edal.position.HorizontalPosition;
-import uk.ac.rdg.resc.edal.util.Array;
 import uk.ac.rdg.resc.edal.util.GISUtils;
 import uk.ac.rdg.resc.edal.util.GridCoordinates2D;
+import uk.ac.rdg.resc.edal.util.Metrics;
 
 /**
  * This is an implementation of a {@link DomainMapper} which maps 2D indices
@@ -116,10 +118,14 @@ public class Domain2DMapper extends DomainMapper<int[]> {
      * @return A {@link Domain2DMapper} performing the mapping
      */
     public static Domain2DMapper forGrid(HorizontalGrid sourceGrid, final HorizontalGrid targetGrid) {
+        Metrics.add("edal_domain_mapper_cells_total", targetGrid.size());
         Domain2DMapperCacheKey key = new Domain2DMapperCacheKey(sourceGrid, targetGrid);
         if (domainMapperCache.isKeyInCache(key)) {
+            Metrics.cacheLookup(CACHE_NAME, true);
             return (Domain2DMapper) domainMapperCache.get(key).getObjectValue();
         }
+        Metrics.cacheLookup(CACHE_NAME, false);
+        long start = Metrics.start();
         Domain2DMapper ret;
         if (sourceGrid instanceof RectilinearGrid
                 && targetGrid instanceof RectilinearGrid
@@ -143,6 +149,7 @@ public class Domain2DMapper extends DomainMapper<int[]> {
              */
             ret = forGeneralGrids(sourceGrid, targetGrid);
         }
+        Metrics.stop(start, "edal_domain_mapper_create_seconds");
         domainMapperCache.put(new Element(key, ret));
         return ret;
     }
@@ -203,16 +210,48 @@ public class Domain2DMapper extends DomainMapper<int[]> {
         Domain2DMapper mapper = new Domain2DMapper(sourceGrid, targetGrid.getXSize(),
                 targetGrid.getYSize());
         /*
-         * Find the nearest grid coordinates to all the points in the domain
+         * Find the nearest grid coordinates to all the points in the domain.
+         * 
+         * We only need the centres of the target grid cells, so we read them
+         * as coordinates rather than creating a GridCell2D for every cell, and
+         * transform them to the source CRS all at once.
          */
-        Array<GridCell2D> targetDomainObjects = targetGrid.getDomainObjects();
-        for (int j = 0; j < targetGrid.getYSize(); j++) {
-            for (int i = 0; i < targetGrid.getXSize(); i++) {
-                targetGrid.getDomainObjects().get(j, i).getCentre();
-                HorizontalPosition transformedPosition = GISUtils.transformPosition(
-                        targetDomainObjects.get(j, i).getCentre(),
-                        sourceGrid.getCoordinateReferenceSystem());
-                GridCoordinates2D indices = sourceGrid.findIndexOf(transformedPosition);
+        int xSize = targetGrid.getXSize();
+        int ySize = targetGrid.getYSize();
+        int n = xSize * ySize;
+        double[] xy = new double[2 * n];
+        if (targetGrid instanceof RectilinearGrid) {
+            RectilinearGrid rectilinearTarget = (RectilinearGrid) targetGrid;
+            int k = 0;
+            for (int j = 0; j < ySize; j++) {
+                double y = rectilinearTarget.getCentreY(j);
+                for (int i = 0; i < xSize; i++) {
+                    xy[k++] = rectilinearTarget.getCentreX(i);
+                    xy[k++] = y;
+                }
+            }
+        } else {
+            double[] xs = new double[n];
+            double[] ys = new double[n];
+            targetGrid.fillCentres(xs, ys);
+            for (int k = 0; k < n; k++) {
+                xy[2 * k] = xs[k];
+                xy[2 * k + 1] = ys[k];
+            }
+        }
+        CoordinateReferenceSystem sourceCrs = sourceGrid.getCoordinateReferenceSystem();
+        CoordinateReferenceSystem targetCrs = targetGrid.getCoordinateReferenceSystem();
+        if (sourceCrs != null && targetCrs != null) {
+            GISUtils.transformCoordinates(targetCrs, sourceCrs, xy, n);
+        }
+        int k = 0;
+        for (int j = 0; j < ySize; j++) {
+            for (int i = 0; i < xSize; i++, k++) {
+                if (Double.isNaN(xy[2 * k]) || Double.isNaN(xy[2 * k + 1])) {
+                    continue;
+                }
+                GridCoordinates2D indices = sourceGrid.findIndexOf(new HorizontalPosition(
+                        xy[2 * k], xy[2 * k + 1], sourceCrs));
                 if (indices != null) {
                     mapper.put(indices.getX(), indices.getY(), mapper.convertCoordsToIndex(i, j));
                 }
@@ -30,9 +30,12 @@ package uk.ac.rdg.resc.edal.dataset;
 
 import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.Set;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -130,6 +133,18 @@ abstract class DomainMapper<T> implements Iterable<DomainMapper.DomainMapperEntr
     private int minJIndex = Integer.MAX_VALUE;
     private int maxIIndex = -1;
     private int maxJIndex = -1;
+    /*
+     * The regular strides which cover the distinct source indices, and counts
+     * of the distinct source indices. Calculated lazily, and only read once
+     * indexStatisticsCalculated is true. Since that is volatile and written
+     * after the others, they are then visible to all threads.
+     */
+    private int iStride = -1;
+    private int jStride = -1;
+    private boolean exactStrides = false;
+    private int numUniqueIJPairs = -1;
+    private int numUniqueJIndices = -1;
+    private volatile boolean indexStatisticsCalculated = false;
 
     protected DomainMapper(HorizontalGrid sourceGrid, long targetDomainSize) {
         if (targetDomainSize > Integer.MAX_VALUE) {
@@ -367,6 +382,150 @@ abstract class DomainMapper<T> implements Iterable<DomainMapper.DomainMapperEntr
         return maxJIndex;
     }
 
+    /**
+     * Gets the largest regular spacing of i indices which still has at least
+     * one point per distinct i index in this mapper - i.e. the smallest gap
+     * between distinct i indices. If the distinct i indices are evenly spaced
+     * (e.g. when a regular source grid is mapped onto a regular target grid
+     * whose spacing is an exact multiple of the source spacing) every one of
+     * them lies on the strided lattice starting at {@link #getMinIIndex()}.
+     * Otherwise, each lies within half a stride of a lattice point.
+     * 
+     * @return The i stride, or 1 if this mapper is empty
+     */
+    public int getIStride() {
+        if (!indexStatisticsCalculated) {
+            calculateIndexStatistics();
+        }
+        return iStride;
+    }
+
+    /**
+     * Gets the largest regular spacing of j indices which still has at least
+     * one point per distinct j index in this mapper. See
+     * {@link #getIStride()}.
+     * 
+     * @return The j stride, or 1 if this mapper is empty
+     */
+    public int getJStride() {
+        if (!indexStatisticsCalculated) {
+            calculateIndexStatistics();
+        }
+        return jStride;
+    }
+
+    /**
+     * @return <code>true</code> if every distinct source index in this mapper
+     *         lies exactly on the lattice defined by {@link #getMinIIndex()},
+     *         {@link #getMinJIndex()}, {@link #getIStride()} and
+     *         {@link #getJStride()}. In this case, the
+     *         {@link DataReadingStrategy#STRIDED} strategy gives identical
+     *         results to the other strategies.
+     */
+    public boolean hasExactStrides() {
+        if (!indexStatisticsCalculated) {
+            calculateIndexStatistics();
+        }
+        return exactStrides;
+    }
+
+    /**
+     * Gets the number of distinct j indices in this mapper. This is the number
+     * of scanlines which will be read by the
+     * {@link DataReadingStrategy#SCANLINE} data reading strategy.
+     * 
+     * @return the number of distinct j indices in this mapper
+     */
+    public int getNumUniqueJIndices() {
+        if (!indexStatisticsCalculated) {
+            calculateIndexStatistics();
+        }
+        return numUniqueJIndices;
+    }
+
+    /**
+     * Gets the number of distinct blocks of the source grid which contain at
+     * least one of the source indices in this mapper, when the source grid is
+     * divided into blocks of the given size starting from index 0. This is the
+     * number of storage chunks which are read by the
+     * {@link DataReadingStrategy#CHUNKED} data reading strategy.
+     * 
+     * @param blockJSize
+     *            The size of each block in the j direction
+     * @param blockISize
+     *            The size of each block in the i direction
+     * @return the number of blocks containing source indices
+     */
+    public int getNumDistinctBlocks(int blockJSize, int blockISize) {
+        Set<Long> blocks = new HashSet<>();
+        for (int k = 0; k < sourceGridIndices.size(); k++) {
+            long sourceGridIndex = sourceGridIndices.getLong(k);
+            long i = sourceGridIndex % sourceGridISize;
+            long j = sourceGridIndex / sourceGridISize;
+            blocks.add(((j / blockJSize) << 32) | (i / blockISize));
+        }
+        return blocks.size();
+    }
+
+    private synchronized void calculateIndexStatistics() {
+        if (indexStatisticsCalculated) {
+            return;
+        }
+        if (isEmpty()) {
+            numUniqueIJPairs = 0;
+            numUniqueJIndices = 0;
+            exactStrides = true;
+            jStride = 1;
+            iStride = 1;
+            indexStatisticsCalculated = true;
+            return;
+        }
+        BitSet is = new BitSet(maxIIndex - minIIndex + 1);
+        BitSet js = new BitSet(maxJIndex - minJIndex + 1);
+        int nPairs = 0;
+        long lastSourceGridIndex = -1;
+        for (int k = 0; k < sourceGridIndices.size(); k++) {
+            long sourceGridIndex = sourceGridIndices.getLong(k);
+            /*
+             * The source indices are sorted, so repeated values are adjacent
+             */
+            if (sourceGridIndex != lastSourceGridIndex) {
+                nPairs++;
+                lastSourceGridIndex = sourceGridIndex;
+            }
+            is.set((int) (sourceGridIndex % sourceGridISize) - minIIndex);
+            js.set((int) (sourceGridIndex / sourceGridISize) - minJIndex);
+        }
+        int iGap = getSmallestGap(is);
+        int jGap = getSmallestGap(js);
+        exactStrides = isOnLattice(is, iGap) && isOnLattice(js, jGap);
+        numUniqueIJPairs = nPairs;
+        numUniqueJIndices = js.cardinality();
+        jStride = jGap;
+        iStride = iGap;
+        indexStatisticsCalculated = true;
+    }
+
+    private static boolean isOnLattice(BitSet indices, int stride) {
+        for (int index = indices.nextSetBit(0); index >= 0; index = indices.nextSetBit(index + 1)) {
+            if (index % stride != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int getSmallestGap(BitSet indices) {
+        int smallestGap = Integer.MAX_VALUE;
+        int previous = indices.nextSetBit(0);
+        for (int next = indices.nextSetBit(previous + 1); next >= 0; next = indices
+                .nextSetBit(next + 1)) {
+            smallestGap = Math.min(smallestGap, next - previous);
+            previous = next;
+        }
+        return smallestGap == Integer.MAX_VALUE ? 1 : smallestGap;
+    }
+
     /**
      * <p>
      * Gets the number of unique i-j pairs in this pixel map. When combined with
@@ -375,19 +534,17 @@ abstract class DomainMapper<T> implements Iterable<DomainMapper.DomainMapperEntr
      * by the {@link DataReadingStrategy#PIXEL_BY_PIXEL} data reading strategy.
      * </p>
      * <p>
-     * This implementation counts the number of unique pairs by cycling through
-     * the {@link #iterator()} and so is not a cheap operation. Use sparingly,
-     * e.g. for debugging.
+     * The pairs are counted on the first call to this method (or to one of the
+     * stride methods) and cached thereafter.
      * </p>
      * 
      * @return the number of unique i-j pairs in this pixel map.
      */
     public int getNumUniqueIJPairs() {
-        int count = 0;
-        for (@SuppressWarnings("unused")
-        DomainMapperEntry<T> pme : this)
-            count++;
-        return count;
+        if (!indexStatisticsCalculated) {
+            calculateIndexStatistics();
+        }
+        return numUniqueIJPairs;
     }
 
     /**
@@ -399,7 +556,7 @@ abstract class DomainMapper<T> implements Iterable<DomainMapper.DomainMapperEntr
      * @return the size of the i-j bounding box that encompasses all data.
      */
     public long getBoundingBoxSize() {
-        return (maxIIndex - minIIndex + 1) * (maxJIndex - minJIndex + 1);
+        return (long) (maxIIndex - minIIndex + 1) * (maxJIndex - minJIndex + 1);
     }
 
     /**
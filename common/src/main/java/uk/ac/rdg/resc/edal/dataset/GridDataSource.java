@@ -75,4 +75,84 @@ public interface GridDataSource extends DataSource {
      */
     public Array4D<Number> read(String variableId, int tmin, int tmax, int zmin, int zmax,
             int ymin, int ymax, int xmin, int xmax) throws IOException, DataReadingException;
+
+    /**
+     * Read an {@link Array4D} of data from the underlying data source, taking
+     * every n-th point in the x and y directions. The returned array has y
+     * size <code>(ymax - ymin) / yStride + 1</code>, and x size
+     * <code>(xmax - xmin) / xStride + 1</code>.
+     * 
+     * The default implementation reads the whole of the requested region and
+     * subsamples it in memory. Implementations which can read strided data
+     * directly should override this.
+     * 
+     * @param variableId
+     *            The variable ID to read
+     * @param tmin
+     *            The minimum time index in the underlying data
+     * @param tmax
+     *            The maximum time index in the underlying data
+     * @param zmin
+     *            The minimum z index in the underlying data
+     * @param zmax
+     *            The maximum z index in the underlying data
+     * @param ymin
+     *            The minimum y index in the underlying data
+     * @param ymax
+     *            The maximum y index in the underlying data
+     * @param yStride
+     *            The spacing of the y indices to read
+     * @param xmin
+     *            The minimum x index in the underlying data
+     * @param xmax
+     *            The maximum x index in the underlying data
+     * @param xStride
+     *            The spacing of the x indices to read
+     * @return An {@link Array4D} containing the data which was read
+     * @throws IOException
+     *             If there is an IO problem accessing the data
+     * @throws DataReadingException
+     *             If there is another issue reading the data
+     */
+    public default Array4D<Number> read(String variableId, int tmin, int tmax, int zmin,
+            int zmax, int ymin, int ymax, final int yStride, int xmin, int xmax,
+            final int xStride) throws IOException, DataReadingException {
+        final Array4D<Number> data = read(variableId, tmin, tmax, zmin, zmax, ymin, ymax, xmin,
+                xmax);
+        if (xStride == 1 && yStride == 1) {
+            return data;
+        }
+        return new Array4D<Number>(tmax - tmin + 1, zmax - zmin + 1, (ymax - ymin) / yStride + 1,
+                (xmax - xmin) / xStride + 1) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public Number get(int... coords) {
+                return data.get(coords[0], coords[1], coords[2] * yStride, coords[3] * xStride);
+            }
+
+            @Override
+            public void set(Number value, int... coords) {
+                throw new UnsupportedOperationException("This Array4D is immutable");
+            }
+        };
+    }
+
+    /**
+     * Gets the shape of the storage chunks of a variable in the horizontal
+     * directions. This is used to estimate how much data each
+     * {@link DataReadingStrategy} will actually fetch from storage, since
+     * chunked (and especially compressed) data can only be read a whole chunk
+     * at a time.
+     * 
+     * @param variableId
+     *            The variable ID
+     * @return An array containing the y and x sizes of the storage chunks, or
+     *         <code>null</code> if the data are not chunked or the chunk shape
+     *         is unknown. The default implementation returns
+     *         <code>null</code>.
+     */
+    public default int[] getHorizontalChunkShape(String variableId) {
+        return null;
+    }
 }
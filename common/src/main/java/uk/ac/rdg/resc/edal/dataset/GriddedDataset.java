@@ -28,6 +28,7 @@
 
 package uk.ac.rdg.resc.edal.dataset;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -40,6 +41,7 @@ import java.util.Map;
 import java.util.Set;
 
 import org.joda.time.DateTime;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -67,11 +69,15 @@ import uk.ac.rdg.resc.edal.metadata.GridVariableMetadata;
 import uk.ac.rdg.resc.edal.metadata.Parameter;
 import uk.ac.rdg.resc.edal.metadata.VariableMetadata;
 import uk.ac.rdg.resc.edal.position.HorizontalPosition;
+import uk.ac.rdg.resc.edal.util.Array;
 import uk.ac.rdg.resc.edal.util.Array1D;
 import uk.ac.rdg.resc.edal.util.Array2D;
 import uk.ac.rdg.resc.edal.util.Array4D;
 import uk.ac.rdg.resc.edal.util.GridCoordinates2D;
+import uk.ac.rdg.resc.edal.util.Metrics;
+import uk.ac.rdg.resc.edal.util.Metrics.LabelledCounter;
 import uk.ac.rdg.resc.edal.util.ValuesArray1D;
+import uk.ac.rdg.resc.edal.util.ValuesArray2D;
 
 /**
  * A partial implementation of a {@link Dataset} based on a 4D grid, using a
@@ -84,11 +90,78 @@ public abstract class GriddedDataset extends
         DiscreteLayeredDataset<GridDataSource, GridVariableMetadata> {
     private static final Logger log = LoggerFactory.getLogger(GriddedDataset.class);
     private static final long serialVersionUID = 1L;
+    /*
+     * The size (in source grid cells) of the tiles used when reading transects
+     */
+    private static final int TRANSECT_TILE_SIZE = 64;
+
+    private transient GriddedDatasetStatistics statistics = null;
+    private transient GriddedDatasetOverviews overviews = null;
+    /*
+     * Unlike the statistics and overviews, this depends on how the dataset was
+     * created, so it is serialised with it
+     */
+    private DataReadingCostModel costModel = null;
 
     public GriddedDataset(String id, Collection<GridVariableMetadata> vars) {
         super(id, vars);
     }
 
+    /**
+     * @return The precomputed {@link GriddedDatasetStatistics} of this
+     *         dataset, or <code>null</code> if none have been set
+     */
+    public GriddedDatasetStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * @param statistics
+     *            The {@link GriddedDatasetStatistics} for this dataset, which
+     *            can be used to find value ranges without reading data
+     */
+    public void setStatistics(GriddedDatasetStatistics statistics) {
+        this.statistics = statistics;
+    }
+
+    /**
+     * @return The {@link GriddedDatasetOverviews} used to accelerate the
+     *         extraction of zoomed-out maps, or <code>null</code> if overviews
+     *         are not used
+     */
+    public GriddedDatasetOverviews getOverviews() {
+        return overviews;
+    }
+
+    /**
+     * @param overviews
+     *            The {@link GriddedDatasetOverviews} to use when extracting
+     *            zoomed-out maps, or <code>null</code> to always read maps from
+     *            the source data
+     */
+    public void setOverviews(GriddedDatasetOverviews overviews) {
+        this.overviews = overviews;
+    }
+
+    /**
+     * @return The {@link DataReadingCostModel} used to choose how to read
+     *         maps, or <code>null</code> if {@link #getDataReadingStrategy()}
+     *         is always used
+     */
+    public DataReadingCostModel getDataReadingCostModel() {
+        return costModel;
+    }
+
+    /**
+     * @param costModel
+     *            The {@link DataReadingCostModel} to use to choose a
+     *            {@link DataReadingStrategy} for each map, or <code>null</code>
+     *            to always use {@link #getDataReadingStrategy()}
+     */
+    public void setDataReadingCostModel(DataReadingCostModel costModel) {
+        this.costModel = costModel;
+    }
+
     @Override
     public Class<GridFeature> getFeatureType(String variableId) {
         /*
@@ -98,6 +171,22 @@ public abstract class GriddedDataset extends
         return GridFeature.class;
     }
 
+    /**
+     * {@inheritDoc}
+     * 
+     * The values of the returned {@link GridFeature} are read lazily from the
+     * underlying data, one horizontal (t,z) slab at a time. This means that
+     * the memory used is bounded by the size of a single horizontal layer,
+     * regardless of the size of the variable, provided that the values are
+     * accessed in (t,z,y,x) order (e.g. by iterating over them).
+     *
+     * A single data source is opened when the feature is created and shared
+     * by all of its variables. It is closed once every variable has been read
+     * to its final slab. Value arrays which implement {@link Closeable} should
+     * be closed by callers which do not read all of the data. Problems
+     * reading the data are thrown from the value arrays as
+     * {@link DataReadingException}s.
+     */
     @Override
     public GridFeature readFeature(String featureId) throws DataReadingException,
             VariableNotFoundException {
@@ -114,71 +203,72 @@ public abstract class GriddedDataset extends
         }
         GridVariableMetadata gridVariableMetadata = (GridVariableMetadata) variableMetadata;
 
-        GridDataSource gridDataSource = null;
-        try {
-            gridDataSource = openDataSource();
-
-            /*
-             * Create a GridDomain from the GridVariableMetadata
-             */
-            GridDomain domain = new SimpleGridDomain(gridVariableMetadata.getHorizontalDomain(),
-                    gridVariableMetadata.getVerticalDomain(),
-                    gridVariableMetadata.getTemporalDomain());
+        /*
+         * Create a GridDomain from the GridVariableMetadata
+         */
+        GridDomain domain = new SimpleGridDomain(gridVariableMetadata.getHorizontalDomain(),
+                gridVariableMetadata.getVerticalDomain(),
+                gridVariableMetadata.getTemporalDomain());
 
-            /*
-             * We want this feature to contain all the children of the requested
-             * layer.
-             */
-            Set<String> variablesToRead = recursivelyGetChildIds(gridVariableMetadata, null);
+        /*
+         * We want this feature to contain all the children of the requested
+         * layer.
+         */
+        Set<String> variablesToRead = recursivelyGetChildIds(gridVariableMetadata, null);
 
-            Map<String, Parameter> parameters = new LinkedHashMap<>();
-            Map<String, Array4D<Number>> values = new HashMap<String, Array4D<Number>>();
-            for (String variableId : variablesToRead) {
-                VariableMetadata requiredMetadata = getVariableMetadata(variableId);
-                if (!(requiredMetadata instanceof GridVariableMetadata)) {
-                    /*
-                     * We have a variable which does not have a native grid
-                     * which we can read onto.
-                     */
-                    String message;
-                    if (variableId.equals(featureId)) {
-                        message = "The feature "
-                                + variableId
-                                + " is not gridded.  It is probably a derived variable which is derived from variables with different grids.";
-                    } else {
-                        message = "The feature "
-                                + variableId
-                                + " (which is a child variable of "
-                                + featureId
-                                + ") is not gridded.  It is probably a derived variable which is derived from variables with different grids.";
-                    }
-                    throw new DataReadingException(message);
-                }
+        Map<String, Parameter> parameters = new LinkedHashMap<>();
+        Map<String, Array4D<Number>> values = new HashMap<String, Array4D<Number>>();
+        /*
+         * All of the variables in the feature are read from a single data
+         * source
+         */
+        SlabReader reader = new SlabReader();
+        for (String variableId : variablesToRead) {
+            VariableMetadata requiredMetadata = getVariableMetadata(variableId);
+            if (!(requiredMetadata instanceof GridVariableMetadata)) {
                 /*
-                 * Read the actual data. This method will recursively read any
-                 * data required for derived variables.
+                 * We have a variable which does not have a native grid which
+                 * we can read onto.
                  */
-                Array4D<Number> data = read4dData(variableId, gridDataSource,
-                        (GridVariableMetadata) requiredMetadata);
-                values.put(variableId, data);
-                parameters.put(variableId, requiredMetadata.getParameter());
+                String message;
+                if (variableId.equals(featureId)) {
+                    message = "The feature "
+                            + variableId
+                            + " is not gridded.  It is probably a derived variable which is derived from variables with different grids.";
+                } else {
+                    message = "The feature "
+                            + variableId
+                            + " (which is a child variable of "
+                            + featureId
+                            + ") is not gridded.  It is probably a derived variable which is derived from variables with different grids.";
+                }
+                throw new DataReadingException(message);
             }
+            GridVariableMetadata requiredGridMetadata = (GridVariableMetadata) requiredMetadata;
+            checkDerivedDomains(variableId, requiredGridMetadata);
 
-            return new GridFeature(featureId, featureId + " data",
-                    "The entire range of data for the variable: " + featureId, domain, parameters,
-                    values);
-        } catch (Throwable e) {
-            e.printStackTrace();
-            throw new DataReadingException("Problem reading the data from underlying storage", e);
-        } finally {
-            if (gridDataSource != null) {
-                try {
-                    gridDataSource.close();
-                } catch (DataReadingException e) {
-                    log.error("Problem closing data source");
-                }
+            /*
+             * The data itself is read lazily, one horizontal slab at a time.
+             */
+            int xSize = requiredGridMetadata.getHorizontalDomain().getXSize();
+            int ySize = requiredGridMetadata.getHorizontalDomain().getYSize();
+            int zSize = 1;
+            if (requiredGridMetadata.getVerticalDomain() != null) {
+                zSize = requiredGridMetadata.getVerticalDomain().size();
             }
+            int tSize = 1;
+            if (requiredGridMetadata.getTemporalDomain() != null) {
+                tSize = requiredGridMetadata.getTemporalDomain().size();
+            }
+            values.put(variableId, new SlabReadingArray4D(variableId,
+                    requiredGridMetadata.getHorizontalDomain(), reader, 0, tSize, 0, zSize, 0,
+                    ySize, 0, xSize));
+            parameters.put(variableId, requiredMetadata.getParameter());
         }
+
+        return new GridFeature(featureId, featureId + " data",
+                "The entire range of data for the variable: " + featureId, domain, parameters,
+                values);
     }
 
     /**
@@ -203,16 +293,16 @@ public abstract class GriddedDataset extends
      * @param tExtent
      *            The {@link Extent} in time to subset. If <code>null</code>,
      *            all available time values (if there are any) will be extracted
-     * @return A new {@link GridFeature} whose domain
+     * @return A new {@link GridFeature} whose domain is the subset of the
+     *         native grid. As with {@link #readFeature(String)}, its values
+     *         are read lazily, one horizontal slab at a time.
      */
     public GridFeature subsetFeatures(Set<String> variables, BoundingBox hBox,
             Extent<Double> zExtent, Extent<DateTime> tExtent) throws EdalException, IOException {
-        /*
-         * Open the GridDataSource as a resource, so it gets closed automatically.
-         */
-        try (GridDataSource dataSource = this.openDataSource()) {
+        try {
             Map<String, Parameter> parameters = new HashMap<>();
             Map<String, Array4D<Number>> valuesMap = new HashMap<>();
+            SlabReader reader = new SlabReader();
             /*
              * Used to check that all variables share a common domain
              */
@@ -415,17 +505,16 @@ public abstract class GriddedDataset extends
                  * Store the Parameter data + values
                  */
                 parameters.put(var, metadata.getParameter());
-                Array4D<Number> data = dataSource.read(var, minT, maxT, minZ, maxZ, minY, maxY,
-                        minX, maxX);
-                valuesMap.put(var, data);
+                checkDerivedDomains(var, metadata);
+                valuesMap.put(var, new SlabReadingArray4D(var, grid, reader, minT, maxT - minT
+                        + 1, minZ, maxZ - minZ + 1, minY, maxY - minY + 1, minX, maxX - minX + 1));
             }
 
             return new GridFeature(id, nameStr.toString(), descriptionStr.toString(), outputDomain,
                     parameters, valuesMap);
         } catch (Exception e) {
             /*
-             * Catch and rethrow any exceptions. This try-catch block is just to
-             * auto-close the GridDataSource
+             * Catch, log, and rethrow any exceptions.
              */
             log.error("Problem subsetting feature", e);
             throw e;
@@ -444,129 +533,443 @@ public abstract class GriddedDataset extends
     }
 
     /**
-     * Reads entire 4D data from a variable.
+     * Checks that all of the variables required to derive a variable share its
+     * horizontal grid. If this is not the case, a {@link GridFeature} cannot be
+     * read for the variable.
+     * 
+     * @param varId
+     *            The ID of the variable to check
+     * @param metadata
+     *            The {@link GridVariableMetadata} of the variable
+     * @throws DataReadingException
+     *             If the source variables' domains do not match the domain for
+     *             a derived variable
+     * @throws VariableNotFoundException
+     *             If a required variable is not found
+     */
+    private void checkDerivedDomains(String varId, GridVariableMetadata metadata)
+            throws DataReadingException, VariableNotFoundException {
+        VariablePlugin plugin = isDerivedVariable(varId);
+        if (plugin == null) {
+            return;
+        }
+        for (String requiredVariable : plugin.usesVariables()) {
+            VariableMetadata sourceMetadata = getVariableMetadata(requiredVariable);
+            if (!(sourceMetadata instanceof GridVariableMetadata)
+                    || !((GridVariableMetadata) sourceMetadata).getHorizontalDomain().equals(
+                            metadata.getHorizontalDomain())) {
+                throw new DataReadingException("The derived variable " + varId
+                        + " has a different domain to one of its source variables: "
+                        + requiredVariable + ".  This means that a GridFeature cannot be read.");
+            }
+            checkDerivedDomains(requiredVariable, metadata);
+        }
+    }
+
+    /**
+     * Reads a single horizontal slab of data from a variable.
      * 
      * @param varId
      *            The ID of the variable to read
      * @param gridDataSource
      *            A {@link GridDataSource} which can be used to access the data
-     * @param metadata
-     *            The {@link GridVariableMetadata} of the variable we are aiming
-     *            to read. This will only be used if we are reading a derived
-     *            variable, and it is used to check that all required variables
-     *            share the same {@link GridDomain}.
-     * @return An {@link Array4D} containing the read data.
+     * @param hGrid
+     *            The {@link HorizontalGrid} of the variable. This is used to
+     *            find the positions at which derived variables are calculated
+     * @param t
+     *            The t-index of the slab
+     * @param z
+     *            The z-index of the slab
+     * @param ymin
+     *            The minimum y-index to read
+     * @param ymax
+     *            The maximum y-index to read
+     * @param xmin
+     *            The minimum x-index to read
+     * @param xmax
+     *            The maximum x-index to read
+     * @return An {@link Array2D} containing the read data.
      * @throws IOException
      *             If there is a problem reading the underlying data
      * @throws DataReadingException
-     *             If the source variables' domains do not match the domain for
-     *             a derived variable
+     *             If there is a problem reading the underlying data
      * @throws VariableNotFoundException
      *             If the requested variable is not found
      */
-    private Array4D<Number> read4dData(final String varId, GridDataSource gridDataSource,
-            final GridVariableMetadata metadata) throws IOException, DataReadingException,
-            VariableNotFoundException {
-        final VariablePlugin plugin = isDerivedVariable(varId);
+    private Array2D<Number> readSlab(final String varId, GridDataSource gridDataSource,
+            HorizontalGrid hGrid, int t, int z, int ymin, int ymax, int xmin, int xmax)
+            throws IOException, DataReadingException, VariableNotFoundException {
+        int ySize = ymax - ymin + 1;
+        int xSize = xmax - xmin + 1;
+        VariablePlugin plugin = isDerivedVariable(varId);
         if (plugin == null) {
-            /*
-             * We have a non-derived variable - this means that
-             * getVariableMetadata will return GridVariableMetadata
-             */
-            GridVariableMetadata variableMetadata = (GridVariableMetadata) getVariableMetadata(varId);
+            final Array4D<Number> data = gridDataSource.read(varId, t, t, z, z, ymin, ymax, xmin,
+                    xmax);
+            return new Array2D<Number>(ySize, xSize) {
+                private static final long serialVersionUID = 1L;
 
-            /*
-             * Find the grid size and read the data
-             */
-            int xSize = variableMetadata.getHorizontalDomain().getXSize();
-            int ySize = variableMetadata.getHorizontalDomain().getYSize();
-            int zSize = 1;
-            if (variableMetadata.getVerticalDomain() != null) {
-                zSize = variableMetadata.getVerticalDomain().size();
-            }
-            int tSize = 1;
-            if (variableMetadata.getTemporalDomain() != null) {
-                tSize = variableMetadata.getTemporalDomain().size();
-            }
+                @Override
+                public Number get(int... coords) {
+                    return data.get(0, 0, coords[0], coords[1]);
+                }
 
-            return gridDataSource.read(varId, 0, tSize - 1, 0, zSize - 1, 0, ySize - 1, 0,
-                    xSize - 1);
+                @Override
+                public void set(Number value, int... coords) {
+                    throw new UnsupportedOperationException("This Array2D is immutable");
+                }
+            };
         } else {
             String[] requiredVariables = plugin.usesVariables();
             /*
              * Java generics type-erasure warning suppressor.
              */
             @SuppressWarnings("unchecked")
-            final Array4D<Number>[] requiredData = new Array4D[requiredVariables.length];
+            Array2D<Number>[] requiredData = new Array2D[requiredVariables.length];
             for (int i = 0; i < requiredVariables.length; i++) {
-                VariableMetadata sourceMetadata = getVariableMetadata(requiredVariables[i]);
-                if (!(sourceMetadata instanceof GridVariableMetadata)
-                        || !((GridVariableMetadata) sourceMetadata).getHorizontalDomain().equals(
-                                metadata.getHorizontalDomain())) {
-                    throw new DataReadingException("The derived variable " + varId
-                            + " has a different domain to one of its source variables: "
-                            + requiredVariables[i]
-                            + ".  This means that a GridFeature cannot be read.");
-                }
-                requiredData[i] = read4dData(requiredVariables[i], gridDataSource, metadata);
+                requiredData[i] = readSlab(requiredVariables[i], gridDataSource, hGrid, t, z,
+                        ymin, ymax, xmin, xmax);
             }
 
-            int tSize = requiredData[0].getTSize();
-            int zSize = requiredData[0].getZSize();
-            int ySize = requiredData[0].getYSize();
-            int xSize = requiredData[0].getXSize();
             /*
-             * Wrap the data in an anonymous Array4D.
+             * Rectilinear grids can give us the cell centres directly, without
+             * creating a GridCell2D for every cell
              */
-            return new Array4D<Number>(tSize, zSize, ySize, xSize) {
-                @Override
-                public Number get(int... coords) {
+            RectilinearGrid rectilinearGrid = null;
+            Array<GridCell2D> domainObjects = null;
+            if (hGrid instanceof RectilinearGrid) {
+                rectilinearGrid = (RectilinearGrid) hGrid;
+            } else {
+                domainObjects = hGrid.getDomainObjects();
+            }
+            CoordinateReferenceSystem crs = hGrid.getCoordinateReferenceSystem();
+            Array2D<Number> ret = new ValuesArray2D(ySize, xSize);
+            Number[] sourceValues = new Number[requiredData.length];
+            for (int y = 0; y < ySize; y++) {
+                for (int x = 0; x < xSize; x++) {
                     /*
-                     * Use the metadata to get the horizontal position.
+                     * Use the grid to get the horizontal position.
                      */
-                    int xIndex = coords[3];
-                    int yIndex = coords[2];
-                    GridCell2D gridCell2D = metadata.getHorizontalDomain().getDomainObjects()
-                            .get(yIndex, xIndex);
-                    HorizontalPosition pos = gridCell2D == null ? null : gridCell2D.getCentre();
-
+                    HorizontalPosition pos;
+                    if (rectilinearGrid != null) {
+                        pos = new HorizontalPosition(rectilinearGrid.getCentreX(x + xmin),
+                                rectilinearGrid.getCentreY(y + ymin), crs);
+                    } else {
+                        GridCell2D gridCell2D = domainObjects.get(y + ymin, x + xmin);
+                        pos = gridCell2D == null ? null : gridCell2D.getCentre();
+                    }
                     /*
                      * Set the source values
                      */
-                    Number[] sourceValues = new Number[requiredData.length];
                     for (int i = 0; i < requiredData.length; i++) {
-                        sourceValues[i] = requiredData[i].get(coords);
+                        sourceValues[i] = requiredData[i].get(y, x);
                     }
                     /*
                      * Generate the value
                      */
-                    return plugin.getValue(varId, pos, sourceValues);
+                    ret.set(plugin.getValue(varId, pos, sourceValues), y, x);
                 }
+            }
+            return ret;
+        }
+    }
 
-                @Override
-                public void set(Number value, int... coords) {
-                    throw new UnsupportedOperationException("This Array4D is immutable");
+    /**
+     * Reads a 2D slab of data at the native resolution of a variable, opening
+     * and closing a {@link GridDataSource} to do so.
+     * 
+     * @param varId
+     *            The ID of the variable to read
+     * @param t
+     *            The t-index of the slab
+     * @param z
+     *            The z-index of the slab
+     * @param ymin
+     *            The minimum y-index to read
+     * @param ymax
+     *            The maximum y-index to read
+     * @param xmin
+     *            The minimum x-index to read
+     * @param xmax
+     *            The maximum x-index to read
+     * @return An {@link Array2D} containing the read data.
+     * @throws DataReadingException
+     *             If there is a problem reading the underlying data
+     * @throws VariableNotFoundException
+     *             If the requested variable is not found
+     */
+    Array2D<Number> readSourceData(String varId, int t, int z, int ymin, int ymax, int xmin,
+            int xmax) throws DataReadingException, VariableNotFoundException {
+        GridDataSource dataSource = null;
+        try {
+            dataSource = openDataSource();
+            return readSlab(varId, dataSource, getVariableMetadata(varId).getHorizontalDomain(),
+                    t, z, ymin, ymax, xmin, xmax);
+        } catch (IOException e) {
+            throw new DataReadingException("Problem reading the data from underlying storage", e);
+        } finally {
+            if (dataSource != null) {
+                try {
+                    dataSource.close();
+                } catch (DataReadingException e) {
+                    log.error("Problem closing data source");
                 }
-            };
+            }
+        }
+    }
+
+    /**
+     * Gets a key identifying a horizontal slice of a variable. This uses the
+     * time and elevation values of the slice rather than their indices, so
+     * that keys remain valid when (e.g.) timesteps are added to a dataset.
+     * 
+     * @param metadata
+     *            The {@link GridVariableMetadata} of the variable
+     * @param t
+     *            The t-index of the slice
+     * @param z
+     *            The z-index of the slice
+     * @return A key for the slice
+     */
+    static String getSliceKey(GridVariableMetadata metadata, int t, int z) {
+        TimeAxis tAxis = metadata.getTemporalDomain();
+        VerticalAxis zAxis = metadata.getVerticalDomain();
+        return metadata.getId() + "|"
+                + (tAxis == null ? "-" : tAxis.getCoordinateValue(t).getMillis()) + "|"
+                + (zAxis == null ? "-" : zAxis.getCoordinateValue(z));
+    }
+
+    /**
+     * Reads horizontal slabs of data for the {@link SlabReadingArray4D}s
+     * belonging to a single {@link GridFeature}. All of the arrays share a
+     * single {@link GridDataSource}, which is opened when the first slab is
+     * read (so that features which are never read hold no resources) and
+     * closed once every array has either read its final slab or been closed.
+     */
+    private final class SlabReader {
+        private GridDataSource dataSource = null;
+        private int nActiveArrays = 0;
+
+        synchronized void open() throws DataReadingException {
+            if (dataSource == null) {
+                dataSource = openDataSource();
+            }
+        }
+
+        synchronized void register() {
+            nActiveArrays++;
+        }
+
+        synchronized Array2D<Number> read(String varId, HorizontalGrid hGrid, int t, int z,
+                int ymin, int ymax, int xmin, int xmax) {
+            open();
+            try {
+                return readSlab(varId, dataSource, hGrid, t, z, ymin, ymax, xmin, xmax);
+            } catch (IOException e) {
+                throw new DataReadingException("Problem reading the data from underlying storage",
+                        e);
+            } catch (VariableNotFoundException e) {
+                throw new DataReadingException("Problem reading the data from underlying storage",
+                        e);
+            }
+        }
+
+        synchronized void release() {
+            nActiveArrays--;
+            if (nActiveArrays <= 0 && dataSource != null) {
+                try {
+                    dataSource.close();
+                } catch (DataReadingException e) {
+                    log.error("Problem closing data source");
+                }
+                dataSource = null;
+            }
+        }
+    }
+
+    /**
+     * An {@link Array4D} which lazily reads data from this dataset one
+     * horizontal (t,z) slab at a time, keeping only the most recently read
+     * slab in memory. This allows very large features to be written out
+     * without holding all of their data in memory at once.
+     * 
+     * Accessing values in (t,z,y,x) order (as the {@link Array4D#iterator()}
+     * does) will read each slab exactly once, and the underlying data source
+     * is released once the final slab has been read. Callers which stop
+     * before this point should {@link #close()} the array. Problems reading
+     * the data are thrown from {@link #get(int...)} as
+     * {@link DataReadingException}s.
+     */
+    private final class SlabReadingArray4D extends Array4D<Number> implements Closeable {
+        private final String varId;
+        private final HorizontalGrid hGrid;
+        private final SlabReader reader;
+        private final int tOffset;
+        private final int zOffset;
+        private final int yOffset;
+        private final int xOffset;
+
+        private int slabT = -1;
+        private int slabZ = -1;
+        private Array2D<Number> slab = null;
+        private boolean active = true;
+
+        public SlabReadingArray4D(String varId, HorizontalGrid hGrid, SlabReader reader,
+                int tOffset, int tSize, int zOffset, int zSize, int yOffset, int ySize,
+                int xOffset, int xSize) {
+            super(tSize, zSize, ySize, xSize);
+            this.varId = varId;
+            this.hGrid = hGrid;
+            this.reader = reader;
+            this.tOffset = tOffset;
+            this.zOffset = zOffset;
+            this.yOffset = yOffset;
+            this.xOffset = xOffset;
+            reader.register();
+        }
+
+        @Override
+        public synchronized Number get(int... coords) {
+            int t = coords[T_IND];
+            int z = coords[Z_IND];
+            if (t != slabT || z != slabZ) {
+                if (!active) {
+                    /*
+                     * The data is being read again after the final slab, so
+                     * we need the data source again
+                     */
+                    reader.register();
+                    active = true;
+                }
+                slab = reader.read(varId, hGrid, t + tOffset, z + zOffset, yOffset, yOffset
+                        + getYSize() - 1, xOffset, xOffset + getXSize() - 1);
+                slabT = t;
+                slabZ = z;
+                if (t == getTSize() - 1 && z == getZSize() - 1) {
+                    active = false;
+                    reader.release();
+                }
+            }
+            return slab.get(coords[Y_IND], coords[X_IND]);
+        }
+
+        @Override
+        public synchronized void close() {
+            if (active) {
+                active = false;
+                reader.release();
+            }
+            slab = null;
+            slabT = -1;
+            slabZ = -1;
+        }
+
+        @Override
+        public void set(Number value, int... coords) {
+            throw new UnsupportedOperationException("This Array4D is immutable");
+        }
+    }
+
+    /**
+     * A {@link GridDataSource} which counts the reads made from another
+     * {@link GridDataSource}, and the number of values read
+     */
+    private static final class MeteredGridDataSource implements GridDataSource {
+        private final GridDataSource dataSource;
+        /*
+         * Formatted once, since some strategies make a read call for every
+         * pixel
+         */
+        private final LabelledCounter reads;
+        private final LabelledCounter valuesRead;
+
+        public MeteredGridDataSource(GridDataSource dataSource, String datasetId) {
+            this.dataSource = dataSource;
+            this.reads = Metrics.counter("edal_data_reads_total", "dataset", datasetId);
+            this.valuesRead = Metrics.counter("edal_data_values_read_total", "dataset",
+                    datasetId);
+        }
+
+        private Array4D<Number> count(Array4D<Number> data) {
+            reads.increment();
+            valuesRead.add(data.size());
+            return data;
+        }
+
+        @Override
+        public Array4D<Number> read(String variableId, int tmin, int tmax, int zmin, int zmax,
+                int ymin, int ymax, int xmin, int xmax) throws IOException,
+                DataReadingException {
+            return count(dataSource.read(variableId, tmin, tmax, zmin, zmax, ymin, ymax, xmin,
+                    xmax));
+        }
+
+        @Override
+        public Array4D<Number> read(String variableId, int tmin, int tmax, int zmin, int zmax,
+                int ymin, int ymax, int yStride, int xmin, int xmax, int xStride)
+                throws IOException, DataReadingException {
+            return count(dataSource.read(variableId, tmin, tmax, zmin, zmax, ymin, ymax,
+                    yStride, xmin, xmax, xStride));
+        }
+
+        @Override
+        public int[] getHorizontalChunkShape(String variableId) {
+            return dataSource.getHorizontalChunkShape(variableId);
+        }
+
+        @Override
+        public void close() throws DataReadingException {
+            dataSource.close();
         }
     }
 
     @Override
     protected Array2D<Number> extractHorizontalData(GridVariableMetadata metadata, int tIndex,
             int zIndex, HorizontalGrid targetGrid, GridDataSource dataSource) {
+        long start = Metrics.start();
+        try {
+            return readMapData(metadata, tIndex, zIndex, targetGrid,
+                    Metrics.isEnabled() ? new MeteredGridDataSource(dataSource, getId())
+                            : dataSource);
+        } finally {
+            Metrics.stop(start, "edal_data_read_seconds", "dataset", getId());
+        }
+    }
+
+    private Array2D<Number> readMapData(GridVariableMetadata metadata, int tIndex, int zIndex,
+            HorizontalGrid targetGrid, GridDataSource dataSource) {
         HorizontalGrid sourceGrid = metadata.getHorizontalDomain();
         /*
          * Create a DomainMapper from the source and target grids
          */
         Domain2DMapper domainMapper = Domain2DMapper.forGrid(sourceGrid, targetGrid);
 
+        if (overviews != null) {
+            /*
+             * For zoomed-out maps, a reduced-resolution overview may be
+             * available
+             */
+            Array2D<Number> overviewData = overviews.readMapData(metadata, tIndex, zIndex,
+                    domainMapper);
+            if (overviewData != null) {
+                return overviewData;
+            }
+        }
+
         /*
          * Now use the appropriate DataReadingStrategy to read data
          */
         Array2D<Number> data;
         try {
-            data = getDataReadingStrategy().readMapData(dataSource, metadata.getId(), tIndex,
-                    zIndex, domainMapper);
+            if (costModel != null) {
+                data = costModel.readMapData(dataSource, metadata.getId(), tIndex, zIndex,
+                        domainMapper, getId());
+            } else {
+                DataReadingStrategy strategy = getDataReadingStrategy();
+                Metrics.increment(Metrics.READ_STRATEGY, "strategy", strategy.name(),
+                        "dataset", getId());
+                data = strategy.readMapData(dataSource, metadata.getId(), tIndex, zIndex,
+                        domainMapper);
+            }
         } catch (IOException e) {
             throw new DataReadingException("Could not read underlying data", e);
         }
@@ -634,6 +1037,120 @@ public abstract class GriddedDataset extends
         return data;
     }
 
+    @Override
+    protected Array1D<Number> extractMultiplePoints(GridVariableMetadata metadata, int t, int z,
+            List<HorizontalPosition> hPositions, GridDataSource dataSource)
+            throws DataReadingException {
+        Number[][] values = readPointsByTile(dataSource, metadata, t, z, z, hPositions);
+        Array1D<Number> data = new ValuesArray1D(hPositions.size());
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null) {
+                data.set(values[i][0], i);
+            }
+        }
+        return data;
+    }
+
+    @Override
+    protected List<Array1D<Number>> extractProfileSectionData(GridVariableMetadata metadata,
+            List<Integer> zs, int tIndex, List<HorizontalPosition> hPositions,
+            GridDataSource dataSource) throws DataReadingException {
+        int zMin = Collections.min(zs);
+        int zMax = Collections.max(zs);
+        Number[][] values = readPointsByTile(dataSource, metadata, tIndex, zMin, zMax,
+                hPositions);
+        List<Array1D<Number>> ret = new ArrayList<>();
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == null) {
+                ret.add(null);
+                continue;
+            }
+            Array1D<Number> profile = new ValuesArray1D(zs.size());
+            int j = 0;
+            for (Integer z : zs) {
+                profile.set(values[i][z - zMin], j++);
+            }
+            ret.add(profile);
+        }
+        return ret;
+    }
+
+    /**
+     * Reads the data at a number of horizontal positions, over a range of
+     * z-indices. This is used for extracting transects and vertical sections.
+     * 
+     * All of the positions are first mapped to grid indices in a single pass.
+     * If the bounding box of these is small, it is read in a single operation.
+     * Otherwise the indices are grouped into square tiles of the source grid,
+     * and the bounding box of the required indices within each tile is read.
+     * This means that a transect is read in a small number of operations,
+     * without reading the (potentially huge) bounding box of the whole
+     * transect.
+     * 
+     * @return An array containing an array of values (one per z-index) for
+     *         each position, or <code>null</code> where the position lies
+     *         outside the source grid
+     */
+    private Number[][] readPointsByTile(GridDataSource dataSource,
+            GridVariableMetadata metadata, int tIndex, int zMin, int zMax,
+            List<HorizontalPosition> hPositions) throws DataReadingException {
+        Number[][] ret = new Number[hPositions.size()][];
+        Domain1DMapper mapper = Domain1DMapper.forList(metadata.getHorizontalDomain(),
+                hPositions);
+        if (mapper.isEmpty()) {
+            return ret;
+        }
+
+        long bboxSize = (long) (mapper.getMaxIIndex() - mapper.getMinIIndex() + 1)
+                * (mapper.getMaxJIndex() - mapper.getMinJIndex() + 1);
+        boolean singleRead = bboxSize <= (long) TRANSECT_TILE_SIZE * TRANSECT_TILE_SIZE;
+
+        Map<Long, List<DomainMapper.DomainMapperEntry<Integer>>> tiles = new LinkedHashMap<>();
+        for (DomainMapper.DomainMapperEntry<Integer> entry : mapper) {
+            long tileKey = 0L;
+            if (!singleRead) {
+                tileKey = ((long) (entry.getSourceGridJIndex() / TRANSECT_TILE_SIZE) << 32)
+                        | (entry.getSourceGridIIndex() / TRANSECT_TILE_SIZE);
+            }
+            if (!tiles.containsKey(tileKey)) {
+                tiles.put(tileKey, new ArrayList<DomainMapper.DomainMapperEntry<Integer>>());
+            }
+            tiles.get(tileKey).add(entry);
+        }
+
+        int zSize = zMax - zMin + 1;
+        for (List<DomainMapper.DomainMapperEntry<Integer>> tile : tiles.values()) {
+            int imin = Integer.MAX_VALUE;
+            int imax = -1;
+            int jmin = Integer.MAX_VALUE;
+            int jmax = -1;
+            for (DomainMapper.DomainMapperEntry<Integer> entry : tile) {
+                imin = Math.min(imin, entry.getSourceGridIIndex());
+                imax = Math.max(imax, entry.getSourceGridIIndex());
+                jmin = Math.min(jmin, entry.getSourceGridJIndex());
+                jmax = Math.max(jmax, entry.getSourceGridJIndex());
+            }
+            Array4D<Number> data;
+            try {
+                data = dataSource.read(metadata.getId(), tIndex, tIndex, zMin, zMax, jmin, jmax,
+                        imin, imax);
+            } catch (IOException e) {
+                throw new DataReadingException("Problem reading underlying data", e);
+            }
+            for (DomainMapper.DomainMapperEntry<Integer> entry : tile) {
+                Number[] values = new Number[zSize];
+                for (int z = 0; z < zSize; z++) {
+                    values[z] = data.get(0, z, entry.getSourceGridJIndex() - jmin,
+                            entry.getSourceGridIIndex() - imin);
+                }
+                for (Integer targetIndex : entry.getTargetIndices()) {
+                    ret[targetIndex] = values;
+                }
+            }
+        }
+        return ret;
+    }
+
     @Override
     protected Number extractPoint(GridVariableMetadata metadata, int t, int z,
             HorizontalPosition hPos, GridDataSource dataSource) throws DataReadingException {
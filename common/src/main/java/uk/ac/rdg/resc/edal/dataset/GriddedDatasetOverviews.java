@@ -0,0 +1,559 @@
+/*******************************************************************************
+ * Copyright (c) 2017 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.dataset;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.rdg.resc.edal.dataset.DomainMapper.DomainMapperEntry;
+import uk.ac.rdg.resc.edal.geometry.BoundingBox;
+import uk.ac.rdg.resc.edal.grid.HorizontalGrid;
+import uk.ac.rdg.resc.edal.metadata.GridVariableMetadata;
+import uk.ac.rdg.resc.edal.util.Array2D;
+import uk.ac.rdg.resc.edal.util.ValuesArray2D;
+
+/**
+ * A pyramid of reduced-resolution overviews of the horizontal slices of a
+ * {@link GriddedDataset}, used to accelerate the extraction of zoomed-out
+ * maps.
+ * 
+ * Each overview level is a decimation of the source grid by a power of 2:
+ * each cell of the level with factor f takes the value of the source cell at
+ * the centre of the f x f block of source cells it covers. Decimation (rather
+ * than averaging) means that overview values are always genuine data values,
+ * as they would be when a map is extracted directly with nearest-neighbour
+ * sampling.
+ * 
+ * When a map is extracted, the coarsest level which still has at least one
+ * cell per target pixel is used. Overviews for a slice are built the first
+ * time they would be useful, in the background - the request which triggers
+ * building is served from the source data as usual. Built levels are held in
+ * a bounded in-memory cache and (if a cache directory is available) on disk.
+ * Overviews on disk are keyed on a signature of the data files, so that they
+ * are not reused once the data has changed, and the least recently used are
+ * removed when the disk cache exceeds its size limit.
+ */
+public class GriddedDatasetOverviews {
+    private static final Logger log = LoggerFactory.getLogger(GriddedDatasetOverviews.class);
+
+    /** The default maximum size of the in-memory cache of overview levels */
+    public static final long DEFAULT_MEMORY_CACHE_BYTES = 64L * 1024 * 1024;
+    /** The default maximum size of the overviews stored on disk */
+    public static final long DEFAULT_DISK_CACHE_BYTES = 1024L * 1024 * 1024;
+    /*
+     * Overview levels are not created if they would have fewer than this many
+     * cells in either direction
+     */
+    private static final int MIN_OVERVIEW_SIZE = 16;
+    /*
+     * The number of source rows to read at once when building overviews
+     */
+    private static final int STRIP_ROWS = 256;
+    private static final String FILE_SUFFIX = ".ovr";
+
+    private static final ExecutorService SHARED_EXECUTOR = Executors.newFixedThreadPool(2,
+            new ThreadFactory() {
+                private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r,
+                            "dataset-overviews-" + threadNumber.getAndIncrement());
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+
+    private final GriddedDataset dataset;
+    /* Runs the building of overviews */
+    private final Executor executor;
+    private final File cacheDir;
+    /*
+     * Identifies the state of the underlying data, so that overviews stored
+     * on disk are not used once it has changed
+     */
+    private final String dataSignature;
+    private final long maxMemoryBytes;
+    private final long maxDiskBytes;
+    private final AtomicLong diskBytes = new AtomicLong(0L);
+    /* Access-ordered, so that it can be used as an LRU cache */
+    private final Map<String, float[]> memoryCache = new LinkedHashMap<>(16, 0.75f, true);
+    private long memoryBytes = 0L;
+    /* Keys of slices whose overviews are currently being built */
+    private final Set<String> building = Collections
+            .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * Creates a new {@link GriddedDatasetOverviews} with the default cache
+     * sizes, cached on disk in the {@link DatasetFactory} working directory
+     * (if set).
+     * 
+     * @param dataset
+     *            The {@link GriddedDataset} to create overviews of
+     * @param dataSignature
+     *            A signature of the data files (see
+     *            {@link DatasetSnapshot#getLocationSignature(String)}). If this
+     *            is <code>null</code>, changes to the data cannot be detected,
+     *            so overviews are only held in memory
+     */
+    public GriddedDatasetOverviews(GriddedDataset dataset, String dataSignature) {
+        this(dataset, DatasetFactory.workingDir == null || dataSignature == null ? null
+                : new File(DatasetFactory.workingDir, dataset.getId() + ".overviews"),
+                dataSignature, DEFAULT_MEMORY_CACHE_BYTES, DEFAULT_DISK_CACHE_BYTES);
+    }
+
+    /**
+     * Creates a new {@link GriddedDatasetOverviews} which holds overviews in
+     * memory only
+     * 
+     * @param dataset
+     *            The {@link GriddedDataset} to create overviews of
+     * @param maxMemoryBytes
+     *            The maximum size of overview levels to hold in memory
+     */
+    public GriddedDatasetOverviews(GriddedDataset dataset, long maxMemoryBytes) {
+        this(dataset, null, null, maxMemoryBytes, 0L);
+    }
+
+    /**
+     * Creates a new {@link GriddedDatasetOverviews}
+     * 
+     * @param dataset
+     *            The {@link GriddedDataset} to create overviews of
+     * @param cacheDir
+     *            The directory to store overviews in. May be <code>null</code>,
+     *            in which case overviews are only held in memory
+     * @param dataSignature
+     *            A signature of the data files (see
+     *            {@link DatasetSnapshot#getLocationSignature(String)}), or
+     *            <code>null</code> if the data never changes. Overviews stored
+     *            on disk under a different signature are not used.
+     * @param maxMemoryBytes
+     *            The maximum size of overview levels to hold in memory
+     * @param maxDiskBytes
+     *            The maximum size of overview levels to store on disk
+     */
+    public GriddedDatasetOverviews(GriddedDataset dataset, File cacheDir, String dataSignature,
+            long maxMemoryBytes, long maxDiskBytes) {
+        this(dataset, cacheDir, dataSignature, maxMemoryBytes, maxDiskBytes, SHARED_EXECUTOR);
+    }
+
+    /*
+     * Allows tests to build overviews on the calling thread
+     */
+    GriddedDatasetOverviews(GriddedDataset dataset, File cacheDir, String dataSignature,
+            long maxMemoryBytes, long maxDiskBytes, Executor executor) {
+        this.dataset = dataset;
+        this.dataSignature = dataSignature;
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.maxDiskBytes = maxDiskBytes;
+        this.executor = executor;
+        if (cacheDir != null && !cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+            log.warn("Could not create overview cache directory " + cacheDir
+                    + ".  Overviews will only be cached in memory");
+            cacheDir = null;
+        }
+        this.cacheDir = cacheDir;
+        if (cacheDir != null) {
+            for (File file : listCacheFiles()) {
+                diskBytes.addAndGet(file.length());
+            }
+            /*
+             * Overviews of old versions of the data are never read, so will be
+             * removed here if the limit has been reached
+             */
+            pruneDisk();
+        }
+    }
+
+    /**
+     * Reads map data from the overviews, if a suitable overview level is
+     * available.
+     * 
+     * @param metadata
+     *            The {@link GridVariableMetadata} of the (non-derived) variable
+     *            to read
+     * @param tIndex
+     *            The t-index of the slice to read
+     * @param zIndex
+     *            The z-index of the slice to read
+     * @param domainMapper
+     *            The {@link Domain2DMapper} mapping the source grid onto the
+     *            target grid
+     * @return The data on the target grid, or <code>null</code> if the target
+     *         grid is not coarse enough to use an overview, or the required
+     *         overview has not yet been built.
+     */
+    Array2D<Number> readMapData(GridVariableMetadata metadata, int tIndex, int zIndex,
+            Domain2DMapper domainMapper) {
+        if (domainMapper.isEmpty()) {
+            return null;
+        }
+        HorizontalGrid grid = metadata.getHorizontalDomain();
+        int factor = chooseFactor(domainMapper.getBoundingBoxSize(),
+                domainMapper.getTargetDomainSize(), grid.getXSize(), grid.getYSize());
+        if (factor < 2) {
+            return null;
+        }
+
+        String sliceKey = getSliceKey(metadata, tIndex, zIndex);
+        float[] level = getLevel(sliceKey, factor);
+        if (level == null) {
+            scheduleBuild(metadata, tIndex, zIndex, sliceKey);
+            return null;
+        }
+
+        int levelXSize = getLevelSize(grid.getXSize(), factor);
+        Array2D<Number> ret = new ValuesArray2D(domainMapper.getTargetYSize(),
+                domainMapper.getTargetXSize());
+        for (DomainMapperEntry<int[]> entry : domainMapper) {
+            float value = level[(entry.getSourceGridJIndex() / factor) * levelXSize
+                    + entry.getSourceGridIIndex() / factor];
+            Number number = Float.isNaN(value) ? null : value;
+            for (int[] targetPoint : entry.getTargetIndices()) {
+                ret.set(number, new int[] { targetPoint[1], targetPoint[0] });
+            }
+        }
+        return ret;
+    }
+
+    /*
+     * Finds the largest decimation factor which still leaves at least one
+     * source cell per target pixel, or 1 if no overview is suitable.
+     */
+    private static int chooseFactor(long sourceCells, int targetCells, int xSize, int ySize) {
+        if (targetCells <= 0) {
+            return 1;
+        }
+        double cellsPerPixel = (double) sourceCells / targetCells;
+        int factor = 1;
+        while (4.0 * factor * factor <= cellsPerPixel
+                && getLevelSize(xSize, 2 * factor) >= MIN_OVERVIEW_SIZE
+                && getLevelSize(ySize, 2 * factor) >= MIN_OVERVIEW_SIZE) {
+            factor *= 2;
+        }
+        return factor;
+    }
+
+    private static int getLevelSize(int sourceSize, int factor) {
+        return (sourceSize + factor - 1) / factor;
+    }
+
+    /*
+     * Overviews must be rebuilt if the horizontal grid or the data changes, so
+     * include them in the key
+     */
+    private String getSliceKey(GridVariableMetadata metadata, int tIndex, int zIndex) {
+        HorizontalGrid grid = metadata.getHorizontalDomain();
+        BoundingBox bbox = grid.getBoundingBox();
+        return GriddedDataset.getSliceKey(metadata, tIndex, zIndex) + "|" + grid.getXSize() + "x"
+                + grid.getYSize() + "," + bbox.getMinX() + "," + bbox.getMinY() + ","
+                + bbox.getMaxX() + "," + bbox.getMaxY() + "|" + dataSignature;
+    }
+
+    private float[] getLevel(String sliceKey, int factor) {
+        String key = sliceKey + "|" + factor;
+        synchronized (memoryCache) {
+            float[] level = memoryCache.get(key);
+            if (level != null) {
+                return level;
+            }
+        }
+        if (cacheDir == null) {
+            return null;
+        }
+        File file = getCacheFile(key);
+        if (!file.exists()) {
+            return null;
+        }
+        try (FileChannel channel = new FileInputStream(file).getChannel()) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    throw new IOException("Overview file is truncated");
+                }
+            }
+            buffer.flip();
+            float[] level = new float[buffer.remaining() / 4];
+            buffer.asFloatBuffer().get(level);
+            putInMemory(key, level);
+            /*
+             * Mark as recently used, so that it is kept when pruning
+             */
+            file.setLastModified(System.currentTimeMillis());
+            return level;
+        } catch (IOException e) {
+            log.warn("Problem reading overview " + file + ".  It will be rebuilt", e);
+            deleteFromDisk(file);
+            return null;
+        }
+    }
+
+    private void putLevel(String sliceKey, int factor, float[] level) {
+        String key = sliceKey + "|" + factor;
+        putInMemory(key, level);
+        if (cacheDir == null || level.length * 4L > maxDiskBytes) {
+            return;
+        }
+        File file = getCacheFile(key);
+        File tempFile = new File(file.getPath() + ".tmp");
+        ByteBuffer buffer = ByteBuffer.allocate(level.length * 4);
+        buffer.asFloatBuffer().put(level);
+        try (FileChannel channel = new FileOutputStream(tempFile).getChannel()) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            log.warn("Problem writing overview " + file, e);
+            tempFile.delete();
+            return;
+        }
+        deleteFromDisk(file);
+        if (tempFile.renameTo(file)) {
+            if (diskBytes.addAndGet(file.length()) > maxDiskBytes) {
+                pruneDisk();
+            }
+        } else {
+            log.warn("Could not move overview to " + file);
+            tempFile.delete();
+        }
+    }
+
+    private void deleteFromDisk(File file) {
+        long length = file.length();
+        if (file.delete()) {
+            diskBytes.addAndGet(-length);
+        }
+    }
+
+    /**
+     * Removes the least recently used overviews from disk until they are
+     * comfortably within the size limit, so that this does not need to happen
+     * on every write
+     */
+    private synchronized void pruneDisk() {
+        if (diskBytes.get() <= maxDiskBytes) {
+            return;
+        }
+        List<File> files = listCacheFiles();
+        Collections.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                return Long.compare(f1.lastModified(), f2.lastModified());
+            }
+        });
+        long target = maxDiskBytes - maxDiskBytes / 10;
+        for (File file : files) {
+            if (diskBytes.get() <= target) {
+                break;
+            }
+            deleteFromDisk(file);
+        }
+    }
+
+    private List<File> listCacheFiles() {
+        File[] files = cacheDir.listFiles();
+        List<File> ret = new ArrayList<>();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(FILE_SUFFIX)) {
+                    ret.add(file);
+                }
+            }
+        }
+        return ret;
+    }
+
+    private void putInMemory(String key, float[] level) {
+        long size = level.length * 4L;
+        if (size > maxMemoryBytes) {
+            return;
+        }
+        synchronized (memoryCache) {
+            float[] previous = memoryCache.put(key, level);
+            if (previous != null) {
+                memoryBytes -= previous.length * 4L;
+            }
+            memoryBytes += size;
+            Iterator<float[]> iterator = memoryCache.values().iterator();
+            while (memoryBytes > maxMemoryBytes && iterator.hasNext()) {
+                memoryBytes -= iterator.next().length * 4L;
+                iterator.remove();
+            }
+        }
+    }
+
+    private void scheduleBuild(final GridVariableMetadata metadata, final int tIndex,
+            final int zIndex, final String sliceKey) {
+        if (!building.add(sliceKey)) {
+            return;
+        }
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    buildOverviews(metadata, tIndex, zIndex, sliceKey);
+                } catch (Exception e) {
+                    log.warn("Problem building overviews for " + metadata.getId() + " in "
+                            + dataset.getId(), e);
+                } finally {
+                    building.remove(sliceKey);
+                }
+            }
+        };
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            /*
+             * The shared threads have been shut down. Maps will continue to
+             * be read from the source data.
+             */
+            building.remove(sliceKey);
+        }
+    }
+
+    private void buildOverviews(GridVariableMetadata metadata, int tIndex, int zIndex,
+            String sliceKey) {
+        HorizontalGrid grid = metadata.getHorizontalDomain();
+        int xSize = grid.getXSize();
+        int ySize = grid.getYSize();
+        List<Integer> factors = new ArrayList<>();
+        List<float[]> levels = new ArrayList<>();
+        for (int factor = 2; getLevelSize(xSize, factor) >= MIN_OVERVIEW_SIZE
+                && getLevelSize(ySize, factor) >= MIN_OVERVIEW_SIZE; factor *= 2) {
+            factors.add(factor);
+            levels.add(new float[getLevelSize(xSize, factor) * getLevelSize(ySize, factor)]);
+        }
+        if (factors.isEmpty()) {
+            return;
+        }
+
+        /*
+         * Read the whole slice once, a strip at a time, picking out the cells
+         * needed for every level
+         */
+        for (int ymin = 0; ymin < ySize; ymin += STRIP_ROWS) {
+            int ymax = Math.min(ySize, ymin + STRIP_ROWS) - 1;
+            Array2D<Number> data = dataset.readSourceData(metadata.getId(), tIndex, zIndex, ymin,
+                    ymax, 0, xSize - 1);
+            for (int l = 0; l < factors.size(); l++) {
+                int factor = factors.get(l);
+                float[] level = levels.get(l);
+                int levelXSize = getLevelSize(xSize, factor);
+                int levelYSize = getLevelSize(ySize, factor);
+                for (int j = 0; j < levelYSize; j++) {
+                    int y = Math.min(j * factor + factor / 2, ySize - 1);
+                    if (y < ymin || y > ymax) {
+                        continue;
+                    }
+                    for (int i = 0; i < levelXSize; i++) {
+                        int x = Math.min(i * factor + factor / 2, xSize - 1);
+                        Number value = data.get(y - ymin, x);
+                        level[j * levelXSize + i] = value == null ? Float.NaN : value
+                                .floatValue();
+                    }
+                }
+            }
+        }
+
+        for (int l = 0; l < factors.size(); l++) {
+            putLevel(sliceKey, factors.get(l), levels.get(l));
+        }
+        log.debug("Built " + factors.size() + " overview levels for " + sliceKey + " in "
+                + dataset.getId());
+    }
+
+    /**
+     * Stops the threads which build overviews for all datasets. This should be
+     * called when the application is shutting down - no more overviews will be
+     * built afterwards.
+     */
+    public static void shutdown() {
+        SHARED_EXECUTOR.shutdownNow();
+    }
+
+    /**
+     * Removes all overviews from memory and disk
+     */
+    public void clear() {
+        synchronized (memoryCache) {
+            memoryCache.clear();
+            memoryBytes = 0L;
+        }
+        if (cacheDir != null) {
+            for (File file : listCacheFiles()) {
+                deleteFromDisk(file);
+            }
+        }
+    }
+
+    private File getCacheFile(String key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder();
+            for (byte b : hash) {
+                name.append(String.format("%02x", b));
+            }
+            return new File(cacheDir, name.append(FILE_SUFFIX).toString());
+        } catch (NoSuchAlgorithmException e) {
+            /*
+             * SHA-1 is always available
+             */
+            throw new IllegalStateException(e);
+        }
+    }
+}
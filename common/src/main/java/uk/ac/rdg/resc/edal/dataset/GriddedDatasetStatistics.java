@@ -0,0 +1,679 @@
+/*******************************************************************************
+ * Copyright (c) 2017 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.dataset;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.rdg.resc.edal.domain.Extent;
+import uk.ac.rdg.resc.edal.exceptions.EdalException;
+import uk.ac.rdg.resc.edal.exceptions.IncorrectDomainException;
+import uk.ac.rdg.resc.edal.exceptions.VariableNotFoundException;
+import uk.ac.rdg.resc.edal.geometry.BoundingBox;
+import uk.ac.rdg.resc.edal.grid.HorizontalGrid;
+import uk.ac.rdg.resc.edal.grid.RectilinearGrid;
+import uk.ac.rdg.resc.edal.grid.ReferenceableAxis;
+import uk.ac.rdg.resc.edal.metadata.GridVariableMetadata;
+import uk.ac.rdg.resc.edal.util.Array2D;
+import uk.ac.rdg.resc.edal.util.Extents;
+import uk.ac.rdg.resc.edal.util.GISUtils;
+import uk.ac.rdg.resc.edal.util.ValueStatistics;
+
+/**
+ * An index of the {@link ValueStatistics} of each scalar variable in a
+ * {@link GriddedDataset}, calculated at native resolution for each (t,z)
+ * slice. Each slice also stores the minimum and maximum of square chunks of
+ * the horizontal grid, so that the value range within a bounding box can be
+ * found by reading only the chunks at its edges.
+ * 
+ * The index is populated in the background by a shared pool of low-priority
+ * threads once {@link GriddedDatasetStatistics#start()} has been called.
+ * Slices are calculated in parallel and queries can be made at any time - they
+ * return <code>null</code> for slices which have not yet been calculated, so
+ * callers should fall back to reading the data directly.
+ * 
+ * If {@link DatasetFactory#setWorkingDirectory(File)} has been called, the
+ * index is periodically written to disk and is read back when the dataset is
+ * next loaded, so that only new slices need calculating. Slices are identified
+ * by their time and depth values, and are discarded if the horizontal grid of
+ * their variable or the signature of the data files (see
+ * {@link DatasetSnapshot#getLocationSignature(String)}) has changed. If no
+ * signature is available, previously-calculated slices are never reused.
+ */
+public class GriddedDatasetStatistics {
+    private static final Logger log = LoggerFactory.getLogger(GriddedDatasetStatistics.class);
+
+    /** The default size (in source grid cells) of the chunks in each slice */
+    public static final int DEFAULT_CHUNK_SIZE = 128;
+    /*
+     * The number of slices to calculate between writes of the index to disk
+     */
+    private static final int SAVE_INTERVAL = 50;
+
+    private static final ExecutorService SHARED_EXECUTOR = Executors.newFixedThreadPool(
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2), new ThreadFactory() {
+                private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r,
+                            "dataset-statistics-" + threadNumber.getAndIncrement());
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+
+    private final GriddedDataset dataset;
+    /* Runs the calculation of each slice */
+    private final Executor executor;
+    private final int chunkSize;
+    private final File persistenceFile;
+    private final String dataSignature;
+    /*
+     * Maps variable IDs to a description of their horizontal grid. Only
+     * variables in this map have statistics calculated.
+     */
+    private final Map<String, String> signatures = new HashMap<>();
+    private final Map<String, SliceStatistics> slices = new ConcurrentHashMap<>();
+    /* Keys of slices which have been submitted for calculation */
+    private final Set<String> queued = Collections
+            .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final AtomicInteger pending = new AtomicInteger(0);
+    private final AtomicInteger unsaved = new AtomicInteger(0);
+    private volatile boolean stopped = false;
+
+    /**
+     * Creates a new {@link GriddedDatasetStatistics} with the default chunk
+     * size, persisted to the {@link DatasetFactory} working directory (if
+     * set).
+     * 
+     * @param dataset
+     *            The {@link GriddedDataset} to calculate statistics for
+     * @param dataSignature
+     *            A signature of the data files (see
+     *            {@link DatasetSnapshot#getLocationSignature(String)}). If this
+     *            is <code>null</code>, no previously-calculated slices are used
+     * @param previous
+     *            The statistics for a previously-loaded version of the same
+     *            dataset. Any valid slices will be reused. May be
+     *            <code>null</code>
+     */
+    public GriddedDatasetStatistics(GriddedDataset dataset, String dataSignature,
+            GriddedDatasetStatistics previous) {
+        this(dataset, DEFAULT_CHUNK_SIZE, DatasetFactory.workingDir == null ? null : new File(
+                DatasetFactory.workingDir, dataset.getId() + ".stats.ser"), dataSignature,
+                previous);
+    }
+
+    /**
+     * Creates a new {@link GriddedDatasetStatistics}
+     * 
+     * @param dataset
+     *            The {@link GriddedDataset} to calculate statistics for
+     * @param chunkSize
+     *            The size (in source grid cells) of the square chunks for which
+     *            value ranges are stored
+     * @param persistenceFile
+     *            The file to store the index in. May be <code>null</code>, in
+     *            which case the index is only held in memory
+     * @param dataSignature
+     *            A signature of the data files (see
+     *            {@link DatasetSnapshot#getLocationSignature(String)}). If this
+     *            is <code>null</code>, no previously-calculated slices are used
+     * @param previous
+     *            The statistics for a previously-loaded version of the same
+     *            dataset. Any valid slices will be reused. May be
+     *            <code>null</code>
+     */
+    public GriddedDatasetStatistics(GriddedDataset dataset, int chunkSize, File persistenceFile,
+            String dataSignature, GriddedDatasetStatistics previous) {
+        this(dataset, chunkSize, persistenceFile, dataSignature, previous, SHARED_EXECUTOR);
+    }
+
+    /*
+     * Allows tests to calculate slices on the calling thread
+     */
+    GriddedDatasetStatistics(GriddedDataset dataset, int chunkSize, File persistenceFile,
+            String dataSignature, GriddedDatasetStatistics previous, Executor executor) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Chunk size must be positive");
+        }
+        this.dataset = dataset;
+        this.executor = executor;
+        this.chunkSize = chunkSize;
+        this.persistenceFile = persistenceFile;
+        this.dataSignature = dataSignature;
+
+        for (String varId : dataset.getVariableIds()) {
+            try {
+                GridVariableMetadata metadata = dataset.getVariableMetadata(varId);
+                if (metadata.isScalar()) {
+                    signatures.put(varId, getSignature(metadata.getHorizontalDomain()));
+                }
+            } catch (VariableNotFoundException e) {
+                /*
+                 * Can't happen - we're iterating over the variable IDs
+                 */
+                log.error("Variable " + varId + " not found in its own dataset", e);
+            }
+        }
+
+        /*
+         * Without a signature of the data files we can't tell whether their
+         * values have changed, so start from scratch
+         */
+        if (dataSignature != null) {
+            if (persistenceFile != null && persistenceFile.exists()) {
+                addValidSlices(readSlices(persistenceFile));
+            }
+            if (previous != null) {
+                addValidSlices(previous.slices);
+            }
+        }
+    }
+
+    private String getSignature(HorizontalGrid hGrid) {
+        BoundingBox bbox = hGrid.getBoundingBox();
+        return hGrid.getXSize() + "x" + hGrid.getYSize() + "," + bbox.getMinX() + ","
+                + bbox.getMinY() + "," + bbox.getMaxX() + "," + bbox.getMaxY() + "," + chunkSize
+                + "|" + dataSignature;
+    }
+
+    private void addValidSlices(Map<String, SliceStatistics> candidates) {
+        for (Entry<String, SliceStatistics> entry : candidates.entrySet()) {
+            SliceStatistics slice = entry.getValue();
+            if (slice.signature.equals(signatures.get(slice.varId))) {
+                slices.put(entry.getKey(), slice);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, SliceStatistics> readSlices(File file) {
+        try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(file))) {
+            return (Map<String, SliceStatistics>) in.readObject();
+        } catch (ClassNotFoundException | IOException | ClassCastException e) {
+            /*
+             * Not a big problem - we will just recalculate the statistics
+             */
+            log.warn("Problem reading statistics index " + file, e);
+            return new HashMap<>();
+        }
+    }
+
+    /**
+     * Writes the current state of the index to disk, if a persistence file
+     * was specified
+     */
+    public synchronized void save() {
+        if (persistenceFile == null) {
+            return;
+        }
+        unsaved.set(0);
+        File tempFile = new File(persistenceFile.getPath() + ".tmp");
+        try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(tempFile))) {
+            out.writeObject(new HashMap<>(slices));
+        } catch (IOException e) {
+            log.warn("Problem writing statistics index " + persistenceFile, e);
+            return;
+        }
+        if (!tempFile.renameTo(persistenceFile)) {
+            persistenceFile.delete();
+            if (!tempFile.renameTo(persistenceFile)) {
+                log.warn("Could not move statistics index to " + persistenceFile);
+            }
+        }
+    }
+
+    /**
+     * Starts calculating statistics for all slices which are not already in
+     * the index. The slices which are used for default plots (closest to the
+     * current time and to the surface) of each variable are calculated first.
+     */
+    public void start() {
+        for (String varId : signatures.keySet()) {
+            try {
+                GridVariableMetadata metadata = dataset.getVariableMetadata(varId);
+                int[] tz = getTZIndices(metadata, null, null);
+                submit(metadata, tz[0], tz[1]);
+            } catch (VariableNotFoundException | IncorrectDomainException e) {
+                /*
+                 * No default slice - it will be calculated with the others
+                 */
+            }
+        }
+        for (String varId : signatures.keySet()) {
+            GridVariableMetadata metadata;
+            try {
+                metadata = dataset.getVariableMetadata(varId);
+            } catch (VariableNotFoundException e) {
+                continue;
+            }
+            int tSize = metadata.getTemporalDomain() == null ? 1
+                    : metadata.getTemporalDomain().size();
+            int zSize = metadata.getVerticalDomain() == null ? 1
+                    : metadata.getVerticalDomain().size();
+            for (int t = 0; t < tSize; t++) {
+                for (int z = 0; z < zSize; z++) {
+                    submit(metadata, t, z);
+                }
+            }
+        }
+    }
+
+    private void submit(final GridVariableMetadata metadata, final int t, final int z) {
+        final String key = GriddedDataset.getSliceKey(metadata, t, z);
+        if (stopped || slices.containsKey(key) || !queued.add(key)) {
+            return;
+        }
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (stopped) {
+                        return;
+                    }
+                    slices.put(key, calculateSlice(metadata, t, z));
+                    if (unsaved.incrementAndGet() >= SAVE_INTERVAL) {
+                        save();
+                    }
+                } catch (Exception e) {
+                    /*
+                     * Queries for this slice will fall back to reading data
+                     */
+                    log.warn("Problem calculating statistics for " + metadata.getId() + " in "
+                            + dataset.getId(), e);
+                } finally {
+                    queued.remove(key);
+                    if (pending.decrementAndGet() == 0 && !stopped) {
+                        save();
+                        log.debug("Finished calculating statistics for " + dataset.getId());
+                    }
+                }
+            }
+        };
+        pending.incrementAndGet();
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            /*
+             * The shared threads have been shut down
+             */
+            queued.remove(key);
+            pending.decrementAndGet();
+        }
+    }
+
+    private SliceStatistics calculateSlice(GridVariableMetadata metadata, int t, int z)
+            throws EdalException {
+        String varId = metadata.getId();
+        HorizontalGrid hGrid = metadata.getHorizontalDomain();
+        int xSize = hGrid.getXSize();
+        int ySize = hGrid.getYSize();
+        int xChunks = (xSize + chunkSize - 1) / chunkSize;
+        int yChunks = (ySize + chunkSize - 1) / chunkSize;
+        float[] chunkMins = new float[xChunks * yChunks];
+        float[] chunkMaxes = new float[xChunks * yChunks];
+        List<ValueStatistics> stripStatistics = new ArrayList<>();
+        /*
+         * Read one row of chunks at a time to limit memory use
+         */
+        for (int yChunk = 0; yChunk < yChunks; yChunk++) {
+            if (stopped) {
+                throw new EdalException("Statistics calculation stopped");
+            }
+            int ymin = yChunk * chunkSize;
+            int ymax = Math.min(ySize, ymin + chunkSize) - 1;
+            Array2D<Number> data = dataset.readSourceData(varId, t, z, ymin, ymax, 0, xSize - 1);
+            stripStatistics.add(ValueStatistics.fromValues(data));
+            for (int xChunk = 0; xChunk < xChunks; xChunk++) {
+                int xmin = xChunk * chunkSize;
+                int xmax = Math.min(xSize, xmin + chunkSize) - 1;
+                float[] range = findRange(data, 0, ymax - ymin, xmin, xmax);
+                chunkMins[yChunk * xChunks + xChunk] = range[0];
+                chunkMaxes[yChunk * xChunks + xChunk] = range[1];
+            }
+        }
+        return new SliceStatistics(varId, getSignature(hGrid),
+                ValueStatistics.merge(stripStatistics), xChunks, chunkMins, chunkMaxes);
+    }
+
+    /*
+     * Returns the min and max of a region of an array, or NaNs if there is no
+     * data.
+     */
+    private static float[] findRange(Array2D<Number> data, int ymin, int ymax, int xmin,
+            int xmax) {
+        float min = Float.NaN;
+        float max = Float.NaN;
+        for (int y = ymin; y <= ymax; y++) {
+            for (int x = xmin; x <= xmax; x++) {
+                Number value = data.get(y, x);
+                if (value != null && !Float.isNaN(value.floatValue())) {
+                    float v = value.floatValue();
+                    if (Float.isNaN(min) || v < min) {
+                        min = v;
+                    }
+                    if (Float.isNaN(max) || v > max) {
+                        max = v;
+                    }
+                }
+            }
+        }
+        return new float[] { min, max };
+    }
+
+    /**
+     * Stops any outstanding calculations. Slices which have already been
+     * calculated remain available.
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * Stops the threads which calculate statistics for all datasets. This
+     * should be called when the application is shutting down - no more
+     * statistics will be calculated afterwards.
+     */
+    public static void shutdown() {
+        SHARED_EXECUTOR.shutdownNow();
+    }
+
+    /**
+     * Removes all slices from the index (including the copy on disk). Calling
+     * {@link GriddedDatasetStatistics#start()} again will recalculate them.
+     */
+    public synchronized void clear() {
+        slices.clear();
+        if (persistenceFile != null) {
+            persistenceFile.delete();
+        }
+    }
+
+    /**
+     * @param varId
+     *            The ID of the variable
+     * @return <code>true</code> if statistics have been calculated for every
+     *         slice of the given variable
+     */
+    public boolean isComplete(String varId) {
+        try {
+            GridVariableMetadata metadata = dataset.getVariableMetadata(varId);
+            if (!signatures.containsKey(varId)) {
+                return false;
+            }
+            int tSize = metadata.getTemporalDomain() == null ? 1
+                    : metadata.getTemporalDomain().size();
+            int zSize = metadata.getVerticalDomain() == null ? 1
+                    : metadata.getVerticalDomain().size();
+            for (int t = 0; t < tSize; t++) {
+                for (int z = 0; z < zSize; z++) {
+                    if (!slices.containsKey(GriddedDataset.getSliceKey(metadata, t, z))) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        } catch (VariableNotFoundException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Gets the statistics of a single horizontal slice of a variable
+     * 
+     * @param varId
+     *            The ID of the variable
+     * @param time
+     *            The time of the slice. If <code>null</code>, the time closest
+     *            to the current time is used
+     * @param z
+     *            The elevation of the slice. If <code>null</code>, the
+     *            elevation closest to the surface is used
+     * @return The {@link ValueStatistics} of the slice, or <code>null</code>
+     *         if they have not been calculated
+     */
+    public ValueStatistics getStatistics(String varId, DateTime time, Double z) {
+        SliceStatistics slice = getSlice(varId, time, z);
+        return slice == null ? null : slice.statistics;
+    }
+
+    /**
+     * Gets the statistics of all slices of a variable which have so far been
+     * calculated.
+     * 
+     * @param varId
+     *            The ID of the variable
+     * @return The merged {@link ValueStatistics}, or <code>null</code> if no
+     *         slices of this variable have been calculated. Use
+     *         {@link GriddedDatasetStatistics#isComplete(String)} to determine
+     *         whether these cover the entire variable.
+     */
+    public ValueStatistics getStatistics(String varId) {
+        List<ValueStatistics> varStatistics = new ArrayList<>();
+        for (SliceStatistics slice : slices.values()) {
+            if (slice.varId.equals(varId)) {
+                varStatistics.add(slice.statistics);
+            }
+        }
+        return varStatistics.isEmpty() ? null : ValueStatistics.merge(varStatistics);
+    }
+
+    /**
+     * Gets the range of values of a horizontal slice of a variable within a
+     * bounding box. This uses the stored chunk ranges for chunks which are
+     * entirely within the bounding box, and reads data only for chunks which
+     * straddle its edges. Grid cells are included if their centres are within
+     * the bounding box.
+     * 
+     * @param varId
+     *            The ID of the variable
+     * @param time
+     *            The time of the slice. If <code>null</code>, the time closest
+     *            to the current time is used
+     * @param z
+     *            The elevation of the slice. If <code>null</code>, the
+     *            elevation closest to the surface is used
+     * @param bbox
+     *            The {@link BoundingBox} to find the range within. If
+     *            <code>null</code>, the range of the whole slice is returned
+     * @return The range of values, which will be empty if there is no data in
+     *         the bounding box, or <code>null</code> if the range could not be
+     *         found from the index. This is the case if the slice has not yet
+     *         been calculated, the variable is not on a rectilinear grid, or
+     *         the bounding box is not in the same CRS as the grid.
+     * @throws EdalException
+     *             If there is a problem reading data at the edges of the
+     *             bounding box
+     */
+    public Extent<Float> getValueRange(String varId, DateTime time, Double z, BoundingBox bbox)
+            throws EdalException {
+        SliceStatistics slice = getSlice(varId, time, z);
+        if (slice == null) {
+            return null;
+        }
+        if (bbox == null) {
+            return slice.statistics.getValueRange();
+        }
+        GridVariableMetadata metadata = dataset.getVariableMetadata(varId);
+        HorizontalGrid hGrid = metadata.getHorizontalDomain();
+        if (!(hGrid instanceof RectilinearGrid) || !GISUtils.crsMatch(
+                bbox.getCoordinateReferenceSystem(), hGrid.getCoordinateReferenceSystem())) {
+            return null;
+        }
+        RectilinearGrid grid = (RectilinearGrid) hGrid;
+        boolean longitude = GISUtils.isWgs84LonLat(grid.getCoordinateReferenceSystem());
+        List<int[]> xRuns = getIndexRuns(grid.getXAxis(), bbox.getMinX(), bbox.getMaxX(),
+                longitude);
+        List<int[]> yRuns = getIndexRuns(grid.getYAxis(), bbox.getMinY(), bbox.getMaxY(), false);
+
+        int[] tz = getTZIndices(metadata, time, z);
+        float min = Float.NaN;
+        float max = Float.NaN;
+        for (int[] yRun : yRuns) {
+            for (int[] xRun : xRuns) {
+                for (int yChunk = yRun[0] / chunkSize; yChunk <= yRun[1] / chunkSize; yChunk++) {
+                    for (int xChunk = xRun[0] / chunkSize; xChunk <= xRun[1]
+                            / chunkSize; xChunk++) {
+                        int ymin = Math.max(yRun[0], yChunk * chunkSize);
+                        int ymax = Math.min(yRun[1], (yChunk + 1) * chunkSize - 1);
+                        int xmin = Math.max(xRun[0], xChunk * chunkSize);
+                        int xmax = Math.min(xRun[1], (xChunk + 1) * chunkSize - 1);
+                        float[] range;
+                        if (ymin == yChunk * chunkSize && xmin == xChunk * chunkSize
+                                && (ymax == (yChunk + 1) * chunkSize - 1
+                                        || ymax == grid.getYSize() - 1)
+                                && (xmax == (xChunk + 1) * chunkSize - 1
+                                        || xmax == grid.getXSize() - 1)) {
+                            /*
+                             * The whole chunk is within the bounding box
+                             */
+                            int index = yChunk * slice.xChunks + xChunk;
+                            range = new float[] { slice.chunkMins[index],
+                                    slice.chunkMaxes[index] };
+                        } else {
+                            Array2D<Number> data = dataset.readSourceData(varId, tz[0], tz[1],
+                                    ymin, ymax, xmin, xmax);
+                            range = findRange(data, 0, ymax - ymin, 0, xmax - xmin);
+                        }
+                        if (!Float.isNaN(range[0])) {
+                            min = Float.isNaN(min) ? range[0] : Math.min(min, range[0]);
+                            max = Float.isNaN(max) ? range[1] : Math.max(max, range[1]);
+                        }
+                    }
+                }
+            }
+        }
+        if (Float.isNaN(min)) {
+            return Extents.emptyExtent();
+        }
+        return Extents.newExtent(min, max);
+    }
+
+    /*
+     * Finds the contiguous runs of axis indices whose values lie within the
+     * given range. For longitude axes, there may be more than one.
+     */
+    private static List<int[]> getIndexRuns(ReferenceableAxis<Double> axis, double low,
+            double high, boolean longitude) {
+        List<int[]> runs = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i < axis.size(); i++) {
+            double value = axis.getCoordinateValue(i);
+            if (longitude) {
+                value = GISUtils.getNextEquivalentLongitude(low, value);
+            }
+            boolean inside = value >= low && value <= high;
+            if (inside && start < 0) {
+                start = i;
+            } else if (!inside && start >= 0) {
+                runs.add(new int[] { start, i - 1 });
+                start = -1;
+            }
+        }
+        if (start >= 0) {
+            runs.add(new int[] { start, axis.size() - 1 });
+        }
+        return runs;
+    }
+
+    private SliceStatistics getSlice(String varId, DateTime time, Double z) {
+        if (!signatures.containsKey(varId)) {
+            return null;
+        }
+        try {
+            GridVariableMetadata metadata = dataset.getVariableMetadata(varId);
+            int[] tz = getTZIndices(metadata, time, z);
+            return slices.get(GriddedDataset.getSliceKey(metadata, tz[0], tz[1]));
+        } catch (VariableNotFoundException | IncorrectDomainException e) {
+            return null;
+        }
+    }
+
+    private static int[] getTZIndices(GridVariableMetadata metadata, DateTime time, Double z) {
+        return new int[] {
+                HorizontallyDiscreteDataset.getTimeIndex(time, metadata.getTemporalDomain(),
+                        metadata.getId()),
+                HorizontallyDiscreteDataset.getVerticalIndex(z, metadata.getVerticalDomain(),
+                        metadata.getId()) };
+    }
+
+    /**
+     * The statistics of a single (t,z) slice of a variable
+     */
+    private static final class SliceStatistics implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String varId;
+        private final String signature;
+        private final ValueStatistics statistics;
+        private final int xChunks;
+        /*
+         * The ranges of each chunk, in row-major order. NaN where a chunk has
+         * no data.
+         */
+        private final float[] chunkMins;
+        private final float[] chunkMaxes;
+
+        private SliceStatistics(String varId, String signature, ValueStatistics statistics,
+                int xChunks, float[] chunkMins, float[] chunkMaxes) {
+            this.varId = varId;
+            this.signature = signature;
+            this.statistics = statistics;
+            this.xChunks = xChunks;
+            this.chunkMins = chunkMins;
+            this.chunkMaxes = chunkMaxes;
+        }
+    }
+}
@@ -43,13 +43,15 @@ import net.sf.ehcache.config.Configuration;
 import net.sf.ehcache.config.PersistenceConfiguration;
 import net.sf.ehcache.config.PersistenceConfiguration.Strategy;
 import net.sf.ehcache.store.MemoryStoreEvictionPolicy;
+
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
 import uk.ac.rdg.resc.edal.dataset.HZTDataSource.MeshCoordinates3D;
 import uk.ac.rdg.resc.edal.exceptions.DataReadingException;
 import uk.ac.rdg.resc.edal.exceptions.VariableNotFoundException;
 import uk.ac.rdg.resc.edal.feature.DiscreteFeature;
 import uk.ac.rdg.resc.edal.feature.Feature;
 import uk.ac.rdg.resc.edal.feature.GridFeature;
-import uk.ac.rdg.resc.edal.grid.GridCell2D;
 import uk.ac.rdg.resc.edal.grid.HorizontalGrid;
 import uk.ac.rdg.resc.edal.grid.HorizontalMesh;
 import uk.ac.rdg.resc.edal.metadata.HorizontalMesh4dVariableMetadata;
@@ -114,15 +116,26 @@ public abstract class HorizontalMesh4dDataset extends
             outputCoords = meshDatasetCacheElement.getOutputCoords();
             coordsToRead = meshDatasetCacheElement.getCoordsToRead();
         } else {
-            outputCoords = new ArrayList<>();
-            coordsToRead = new ArrayList<>();
-            for (GridCell2D cell : targetGrid.getDomainObjects()) {
-                HorizontalPosition centre = cell.getCentre();
-                GridCoordinates2D coordinates = cell.getGridCoordinates();
-                int hIndex = grid.findIndexOf(centre);
-                MeshCoordinates3D meshCoords = new MeshCoordinates3D(hIndex, zIndex, tIndex);
-                outputCoords.add(coordinates);
-                coordsToRead.add(meshCoords);
+            int xSize = targetGrid.getXSize();
+            int ySize = targetGrid.getYSize();
+            outputCoords = new ArrayList<>(xSize * ySize);
+            coordsToRead = new ArrayList<>(xSize * ySize);
+            /*
+             * We only need the cell centres, so read them as coordinates
+             * rather than creating a GridCell2D for each cell
+             */
+            double[] xs = new double[xSize * ySize];
+            double[] ys = new double[xSize * ySize];
+            targetGrid.fillCentres(xs, ys);
+            CoordinateReferenceSystem targetCrs = targetGrid.getCoordinateReferenceSystem();
+            int k = 0;
+            for (int j = 0; j < ySize; j++) {
+                for (int i = 0; i < xSize; i++) {
+                    int hIndex = grid.findIndexOf(new HorizontalPosition(xs[k], ys[k], targetCrs));
+                    outputCoords.add(new GridCoordinates2D(i, j));
+                    coordsToRead.add(new MeshCoordinates3D(hIndex, zIndex, tIndex));
+                    k++;
+                }
             }
             meshDatasetCacheElement = new MeshDatasetCacheElement(outputCoords, coordsToRead);
             meshDatasetCache.put(new Element(targetGrid, meshDatasetCacheElement));
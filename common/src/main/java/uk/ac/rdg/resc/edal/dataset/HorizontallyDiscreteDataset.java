@@ -81,6 +81,7 @@ import uk.ac.rdg.resc.edal.util.Array1D;
 import uk.ac.rdg.resc.edal.util.Array2D;
 import uk.ac.rdg.resc.edal.util.Extents;
 import uk.ac.rdg.resc.edal.util.GISUtils;
+import uk.ac.rdg.resc.edal.util.Metrics;
 import uk.ac.rdg.resc.edal.util.ValuesArray1D;
 
 /**
@@ -215,7 +216,7 @@ public abstract class HorizontallyDiscreteDataset<DS extends DataSource> extends
         }
     }
 
-    private String generateId(Set<String> varIds, BoundingBox bbox, Extent<Double> zExtent,
+    protected String generateId(Set<String> varIds, BoundingBox bbox, Extent<Double> zExtent,
             Extent<DateTime> tExtent, HorizontalPosition targetPos, Double targetZ,
             DateTime targetTime) {
         StringBuilder id = new StringBuilder("uk.ac.rdg.resc.edal.feature.");
@@ -245,7 +246,7 @@ public abstract class HorizontallyDiscreteDataset<DS extends DataSource> extends
         return UUID.nameUUIDFromBytes(id.toString().getBytes()).toString();
     }
 
-    private Map<String, Parameter> getParameters(Set<String> varIds)
+    protected Map<String, Parameter> getParameters(Set<String> varIds)
             throws VariableNotFoundException {
         Map<String, Parameter> parameters = new LinkedHashMap<String, Parameter>();
         for (String varId : varIds) {
@@ -254,7 +255,7 @@ public abstract class HorizontallyDiscreteDataset<DS extends DataSource> extends
         return parameters;
     }
 
-    private String generateDescription(String featureType, Set<String> varIds) {
+    protected String generateDescription(String featureType, Set<String> varIds) {
         StringBuilder description = new StringBuilder(featureType + " from variables:\n");
         for (String varId : varIds) {
             description.append(varId + "\n");
@@ -302,20 +303,14 @@ public abstract class HorizontallyDiscreteDataset<DS extends DataSource> extends
                 pluginSourceMetadata[i] = getVariableMetadata(pluginSourceVarId);
             }
 
-            return plugin.generateArray2D(varId, new Array2D<HorizontalPosition>(domain.getYSize(),
-                    domain.getXSize()) {
-                private static final long serialVersionUID = 1L;
-
-                @Override
-                public HorizontalPosition get(int... coords) {
-                    return domain.getDomainObjects().get(coords).getCentre();
-                }
-
-                @Override
-                public void set(HorizontalPosition value, int... coords) {
-                    throw new UnsupportedOperationException("This array is immutable");
-                }
-            }, pluginSourceData);
+            /*
+             * Compute the derived values once, rather than every time they are
+             * accessed
+             */
+            long start = Metrics.start();
+            Array2D<Number> field = plugin.generateField(varId, domain, pluginSourceData);
+            Metrics.stop(start, "edal_plugin_evaluation_seconds", "dataset", getId());
+            return field;
         }
     }
 
@@ -1318,6 +1313,13 @@ public abstract class HorizontallyDiscreteDataset<DS extends DataSource> extends
     private final Array1D<Number> readMultiplePointData(String variableId,
             List<GeoPosition> positions, DS dataSource) throws DataReadingException,
             VariableNotFoundException {
+        if (isDerivedVariable(variableId) == null) {
+            /*
+             * Non-derived variables can be read in bulk, which allows
+             * subclasses to minimise the number of read operations
+             */
+            return readUnderlyingMultiplePointData(variableId, positions, dataSource);
+        }
         Array1D<Number> data = new ValuesArray1D(positions.size());
         for (int i = 0; i < positions.size(); i++) {
             GeoPosition position = positions.get(i);
@@ -1515,6 +1517,45 @@ public abstract class HorizontallyDiscreteDataset<DS extends DataSource> extends
             HorizontalPosition position, Double zVal, DateTime time, DS dataSource)
             throws DataReadingException, VariableNotFoundException;
 
+    /**
+     * Reads a number of points for a non-derived variable. This is used for
+     * extracting transects, point collections and trajectories.
+     *
+     * The default implementation calls
+     * {@link #readUnderlyingPointData(String, HorizontalPosition, Double, DateTime, DataSource)}
+     * once for each position. Subclasses should override this if they can
+     * read multiple points more efficiently.
+     *
+     * @param variableId
+     *            The ID of the variable to read
+     * @param positions
+     *            The {@link GeoPosition}s at which to read data
+     * @param dataSource
+     *            The {@link DataSource} to read from
+     * @return An {@link Array1D} containing one value for each of the supplied
+     *         positions, with <code>null</code> where there is no data
+     * @throws DataReadingException
+     *             If there is a problem reading the data
+     * @throws VariableNotFoundException
+     *             If the requested variable is not present in the
+     *             {@link Dataset}
+     */
+    protected Array1D<Number> readUnderlyingMultiplePointData(String variableId,
+            List<GeoPosition> positions, DS dataSource) throws DataReadingException,
+            VariableNotFoundException {
+        Array1D<Number> data = new ValuesArray1D(positions.size());
+        for (int i = 0; i < positions.size(); i++) {
+            GeoPosition position = positions.get(i);
+            Double z = null;
+            if (position.getVerticalPosition() != null) {
+                z = position.getVerticalPosition().getZ();
+            }
+            data.set(readUnderlyingPointData(variableId, position.getHorizontalPosition(), z,
+                    position.getTime(), dataSource), i);
+        }
+        return data;
+    }
+
     /**
      * Reads horizontal data for a non-derived variable
      * 
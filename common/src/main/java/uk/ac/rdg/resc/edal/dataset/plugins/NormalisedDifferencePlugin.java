@@ -28,6 +28,8 @@
 
 package uk.ac.rdg.resc.edal.dataset.plugins;
 
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
 import uk.ac.rdg.resc.edal.exceptions.EdalException;
 import uk.ac.rdg.resc.edal.metadata.GridVariableMetadata;
 import uk.ac.rdg.resc.edal.metadata.Parameter;
@@ -63,4 +65,24 @@ public class NormalisedDifferencePlugin extends VariablePlugin {
         return (sourceValues[0].doubleValue() - sourceValues[1].doubleValue())
                 / (sourceValues[0].doubleValue() + sourceValues[1].doubleValue());
     }
-}
\ No newline at end of file
+
+    @Override
+    protected boolean supportsFieldComputation(String varSuffix) {
+        return true;
+    }
+
+    @Override
+    protected void computeField(String varSuffix, float[][] sources, double[] xs, double[] ys,
+            CoordinateReferenceSystem crs, float[] out) {
+        float[] x = sources[0];
+        float[] y = sources[1];
+        /*
+         * Calculate in double precision, as generateValue does
+         */
+        for (int i = 0; i < out.length; i++) {
+            double a = x[i];
+            double b = y[i];
+            out[i] = (float) ((a - b) / (a + b));
+        }
+    }
+}
@@ -28,6 +28,8 @@
 
 package uk.ac.rdg.resc.edal.dataset.plugins;
 
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
 import uk.ac.rdg.resc.edal.metadata.Parameter;
 import uk.ac.rdg.resc.edal.metadata.VariableMetadata;
 import uk.ac.rdg.resc.edal.position.HorizontalPosition;
@@ -154,4 +156,24 @@ public class ValueErrorPlugin extends VariablePlugin {
         return null;
     }
 
+    @Override
+    protected boolean supportsFieldComputation(String varSuffix) {
+        return UPPER_ROLE.equals(varSuffix) || LOWER_ROLE.equals(varSuffix);
+    }
+
+    @Override
+    protected void computeField(String varSuffix, float[][] sources, double[] xs, double[] ys,
+            CoordinateReferenceSystem crs, float[] out) {
+        float[] means = sources[0];
+        float[] sds = sources[1];
+        if (UPPER_ROLE.equals(varSuffix)) {
+            for (int i = 0; i < out.length; i++) {
+                out[i] = means[i] + sds[i];
+            }
+        } else {
+            for (int i = 0; i < out.length; i++) {
+                out[i] = means[i] - sds[i];
+            }
+        }
+    }
 }
@@ -28,12 +28,16 @@
 
 package uk.ac.rdg.resc.edal.dataset.plugins;
 
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.stream.IntStream;
+
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
 import uk.ac.rdg.resc.edal.domain.HorizontalDomain;
 import uk.ac.rdg.resc.edal.domain.SimpleHorizontalDomain;
@@ -56,6 +60,7 @@ import uk.ac.rdg.resc.edal.metadata.VariableMetadata;
 import uk.ac.rdg.resc.edal.position.HorizontalPosition;
 import uk.ac.rdg.resc.edal.util.Array1D;
 import uk.ac.rdg.resc.edal.util.Array2D;
+import uk.ac.rdg.resc.edal.util.FloatArray2D;
 import uk.ac.rdg.resc.edal.util.GISUtils;
 
 /**
@@ -70,14 +75,26 @@ import uk.ac.rdg.resc.edal.util.GISUtils;
  * The plugin must then override the two abstract methods
  * {@link VariablePlugin#doProcessVariableMetadata(VariableMetadata...)} and
  * {@link VariablePlugin#generateValue(String, HorizontalPosition, Number...)}
- * to generate appropriate metadata and values respectively.
+ * to generate appropriate metadata and values respectively. Plugins may also
+ * override {@link VariablePlugin#supportsFieldComputation(String)} and
+ * {@link VariablePlugin#computeField(String, float[][], double[], double[], CoordinateReferenceSystem, float[])}
+ * to compute entire map fields at once.
  * 
  * For an example of usage, see {@link VectorPlugin}, which groups vector
  * components and generates magnitude and direction variables.
  * 
  * @author Guy Griffiths
  */
-public abstract class VariablePlugin {
+public abstract class VariablePlugin implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /*
+     * The (approximate) number of values in each band of rows computed by
+     * generateField, and the field size above which bands are computed in
+     * parallel
+     */
+    private static final int FIELD_BAND_SIZE = 16384;
+    private static final int FIELD_PARALLEL_THRESHOLD = 65536;
 
     protected String[] uses;
     private String[] provides;
@@ -195,6 +212,93 @@ public abstract class VariablePlugin {
         };
     }
 
+    /**
+     * Generates a materialised {@link Array2D} for a derived variable on a
+     * {@link RectilinearGrid}.
+     * 
+     * If this plugin supports bulk computation of the variable (see
+     * {@link VariablePlugin#supportsFieldComputation(String)}), all values are
+     * computed once, using
+     * {@link VariablePlugin#computeField(String, float[][], double[], double[], CoordinateReferenceSystem, float[])}
+     * . Large fields are computed in parallel, in bands of rows. Otherwise,
+     * this returns the lazily-evaluated result of
+     * {@link VariablePlugin#generateArray2D(String, Array2D, Array2D...)}.
+     * 
+     * @param varId
+     *            The ID of the variable to generate
+     * @param grid
+     *            The {@link RectilinearGrid} on which the source values are
+     *            defined
+     * @param sourceArrays
+     *            {@link Array2D}s containing the source values
+     * @return An {@link Array2D} containing the generated values
+     */
+    public Array2D<Number> generateField(final String varId, final RectilinearGrid grid,
+            @SuppressWarnings("unchecked") final Array2D<Number>... sourceArrays) {
+        final String varSuffix = varId.substring(prefixLength);
+        if (!supportsFieldComputation(varSuffix)) {
+            final CoordinateReferenceSystem crs = grid.getCoordinateReferenceSystem();
+            return generateArray2D(varId, new Array2D<HorizontalPosition>(grid.getYSize(),
+                    grid.getXSize()) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                public HorizontalPosition get(int... coords) {
+                    return new HorizontalPosition(grid.getCentreX(coords[1]),
+                            grid.getCentreY(coords[0]), crs);
+                }
+
+                @Override
+                public void set(HorizontalPosition value, int... coords) {
+                    throw new UnsupportedOperationException("This array is immutable");
+                }
+            }, sourceArrays);
+        }
+        if (sourceArrays.length != uses.length) {
+            throw new IllegalArgumentException("This plugin needs " + uses.length
+                    + " data sources, but you have supplied " + sourceArrays.length);
+        }
+
+        final int xSize = grid.getXSize();
+        final int ySize = grid.getYSize();
+        final double[] xs = new double[xSize];
+        for (int i = 0; i < xSize; i++) {
+            xs[i] = grid.getXAxis().getCoordinateValue(i);
+        }
+        final double[] ys = new double[ySize];
+        for (int j = 0; j < ySize; j++) {
+            ys[j] = grid.getYAxis().getCoordinateValue(j);
+        }
+        final CoordinateReferenceSystem crs = grid.getCoordinateReferenceSystem();
+        final float[] out = new float[xSize * ySize];
+
+        final int rowsPerBand = Math.max(1, FIELD_BAND_SIZE / xSize);
+        int nBands = (ySize + rowsPerBand - 1) / rowsPerBand;
+        IntStream bands = IntStream.range(0, nBands);
+        if (out.length > FIELD_PARALLEL_THRESHOLD) {
+            bands = bands.parallel();
+        }
+        bands.forEach(band -> {
+            int yMin = band * rowsPerBand;
+            int yMax = Math.min(ySize, yMin + rowsPerBand);
+            int n = (yMax - yMin) * xSize;
+            float[][] sources = new float[sourceArrays.length][n];
+            for (int s = 0; s < sourceArrays.length; s++) {
+                int k = 0;
+                for (int y = yMin; y < yMax; y++) {
+                    for (int x = 0; x < xSize; x++) {
+                        Number value = sourceArrays[s].get(y, x);
+                        sources[s][k++] = value == null ? Float.NaN : value.floatValue();
+                    }
+                }
+            }
+            float[] bandOut = new float[n];
+            computeField(varSuffix, sources, xs, Arrays.copyOfRange(ys, yMin, yMax), crs, bandOut);
+            System.arraycopy(bandOut, 0, out, yMin * xSize, n);
+        });
+        return new FloatArray2D(ySize, xSize, out);
+    }
+
     private boolean metadataProcessed = false;
 
     /**
@@ -292,6 +396,72 @@ public abstract class VariablePlugin {
     protected abstract Number generateValue(String varSuffix, HorizontalPosition pos,
             Number... sourceValues);
 
+    /**
+     * Subclasses should override this method to return <code>true</code> for
+     * any variable whose values can be computed in bulk by
+     * {@link VariablePlugin#computeField(String, float[][], double[], double[], CoordinateReferenceSystem, float[])}
+     * . By default, no variables are supported.
+     * 
+     * @param varSuffix
+     *            The suffix ID of the variable to generate
+     * @return Whether
+     *         {@link VariablePlugin#computeField(String, float[][], double[], double[], CoordinateReferenceSystem, float[])}
+     *         can be used to compute values for the given variable
+     */
+    protected boolean supportsFieldComputation(String varSuffix) {
+        return false;
+    }
+
+    /**
+     * Computes the values of a derived variable for a block of rows of a
+     * rectilinear grid. This will only be called for variables for which
+     * {@link VariablePlugin#supportsFieldComputation(String)} returns
+     * <code>true</code>, and should produce the same values as
+     * {@link VariablePlugin#generateValue(String, HorizontalPosition, Number...)}
+     * .
+     * 
+     * Implementations must be thread-safe, since separate blocks of the same
+     * field may be computed concurrently.
+     * 
+     * By default, this calls
+     * {@link VariablePlugin#generateValue(String, HorizontalPosition, Number...)}
+     * for each cell. Subclasses should override it with a loop over the
+     * primitive arrays where possible.
+     * 
+     * @param varSuffix
+     *            The suffix ID of the variable to generate
+     * @param sources
+     *            The source values, one array per source variable in the order
+     *            they were supplied to the constructor. Each array is in
+     *            row-major order (i.e. the value at (y,x) is at index
+     *            <code>y * xs.length + x</code>), and missing values are NaN
+     * @param xs
+     *            The x-coordinates of the columns of the grid
+     * @param ys
+     *            The y-coordinates of the rows of the grid
+     * @param crs
+     *            The {@link CoordinateReferenceSystem} of the coordinates
+     * @param out
+     *            The array to write the derived values to, in the same order
+     *            as the sources. Missing values should be written as NaN.
+     */
+    protected void computeField(String varSuffix, float[][] sources, double[] xs, double[] ys,
+            CoordinateReferenceSystem crs, float[] out) {
+        Number[] sourceValues = new Number[sources.length];
+        int i = 0;
+        for (int y = 0; y < ys.length; y++) {
+            for (int x = 0; x < xs.length; x++) {
+                for (int s = 0; s < sources.length; s++) {
+                    float value = sources[s][i];
+                    sourceValues[s] = Float.isNaN(value) ? null : value;
+                }
+                Number value = generateValue(varSuffix, new HorizontalPosition(xs[x], ys[y], crs),
+                        sourceValues);
+                out[i++] = value == null ? Float.NaN : value.floatValue();
+            }
+        }
+    }
+
     private String combinedName = null;
 
     /**
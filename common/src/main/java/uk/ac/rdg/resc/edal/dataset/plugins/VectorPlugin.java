@@ -28,6 +28,11 @@
 
 package uk.ac.rdg.resc.edal.dataset.plugins;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.Arrays;
+import java.util.BitSet;
+
 import org.geotoolkit.geometry.DirectPosition2D;
 import org.geotoolkit.referencing.CRS;
 import org.opengis.geometry.DirectPosition;
@@ -42,10 +47,15 @@ import org.slf4j.LoggerFactory;
 import uk.ac.rdg.resc.edal.domain.HorizontalDomain;
 import uk.ac.rdg.resc.edal.exceptions.EdalException;
 import uk.ac.rdg.resc.edal.grid.AbstractTransformedGrid;
+import uk.ac.rdg.resc.edal.grid.GridCell2D;
+import uk.ac.rdg.resc.edal.grid.HorizontalGrid;
+import uk.ac.rdg.resc.edal.grid.RectilinearGrid;
 import uk.ac.rdg.resc.edal.metadata.Parameter;
 import uk.ac.rdg.resc.edal.metadata.VariableMetadata;
 import uk.ac.rdg.resc.edal.position.HorizontalPosition;
+import uk.ac.rdg.resc.edal.util.Array2D;
 import uk.ac.rdg.resc.edal.util.GISUtils;
+import uk.ac.rdg.resc.edal.util.GridCoordinates2D;
 
 /**
  * A plugin to generate magnitude and direction fields from x- and y-components,
@@ -57,6 +67,7 @@ import uk.ac.rdg.resc.edal.util.GISUtils;
  * @author Guy Griffiths
  */
 public class VectorPlugin extends VariablePlugin {
+    private static final long serialVersionUID = 1L;
     private static final Logger log = LoggerFactory.getLogger(VectorPlugin.class);
 
     public final static String MAG_ROLE = "mag";
@@ -69,14 +80,26 @@ public class VectorPlugin extends VariablePlugin {
      */
     private boolean eastNorthComps;
     /*
-     * Used to transform positions when we have a recognised different CRS
+     * Used to transform positions when we have a recognised different CRS.
+     * This is not serialised - it is recreated from the source CRS when the
+     * plugin is deserialised
      */
-    private MathTransform trans = null;
+    private transient MathTransform trans = null;
+    private CoordinateReferenceSystem sourceCrs = null;
     /*
      * Used to transform positions when we have an AbstractTransformedGrid which
      * reports WGS84 and does transformations behind the scenes
      */
     private AbstractTransformedGrid gridTransform = null;
+    /*
+     * The grid on which the components are defined, and the derivatives of
+     * WGS84 co-ordinates with respect to native co-ordinates across it. These
+     * are stored at a coarse grid of nodes, and only depend on the source
+     * grid, so they are calculated once, on first use, and reused for every
+     * direction subsequently generated.
+     */
+    private HorizontalGrid sourceGrid = null;
+    private transient volatile DerivativeNodes derivativeNodes = null;
 
     /**
      * Construct a new {@link VectorPlugin}
@@ -171,7 +194,7 @@ public class VectorPlugin extends VariablePlugin {
                     "Cannot generate vectors from two components with different co-ordinate reference systems");
         }
         if (!eastNorthComps) {
-            CoordinateReferenceSystem sourceCrs = xDomain.getCoordinateReferenceSystem();
+            sourceCrs = xDomain.getCoordinateReferenceSystem();
             try {
                 trans = CRS.findMathTransform(sourceCrs, GISUtils.defaultGeographicCRS());
             } catch (FactoryException e) {
@@ -194,6 +217,7 @@ public class VectorPlugin extends VariablePlugin {
                  * Whichever, we don't need the transform object any more.
                  */
                 trans = null;
+                sourceCrs = null;
                 if (xDomain instanceof AbstractTransformedGrid) {
                     /*
                      * We have a transformed grid. Save the domain object so
@@ -226,8 +250,12 @@ public class VectorPlugin extends VariablePlugin {
              */
             eastNorthComps = true;
             trans = null;
+            sourceCrs = null;
             gridTransform = null;
         }
+        if (!eastNorthComps && xDomain instanceof HorizontalGrid) {
+            sourceGrid = (HorizontalGrid) xDomain;
+        }
 
         /*
          * Return the newly-added VariableMetadata objects, as required
@@ -294,6 +322,18 @@ public class VectorPlugin extends VariablePlugin {
                  * necessary since we always want to return the direction as a
                  * heading in WGS84-space
                  */
+                int cell = findCellIndex(position);
+                if (cell >= 0) {
+                    double heading = headingInCell(xVal, yVal, cell);
+                    if (!Double.isNaN(heading)) {
+                        return heading;
+                    }
+                }
+                /*
+                 * The position is not within the source grid (or the
+                 * derivatives could not be calculated there), so calculate
+                 * the heading directly.
+                 */
                 position = GISUtils.transformPosition(position, GISUtils.defaultGeographicCRS());
                 double lon = position.getX();
                 double lat = position.getY();
@@ -308,15 +348,7 @@ public class VectorPlugin extends VariablePlugin {
                         MathTransform ll2Native = trans.inverse();
                         DirectPosition centre = ll2Native.transform(new DirectPosition2D(lon, lat),
                                 null);
-
-                        Matrix derivative = trans.derivative(centre);
-
-                        double newX = xVal * derivative.getElement(0, 0) + yVal
-                                * derivative.getElement(0, 1);
-                        double newY = xVal * derivative.getElement(1, 0) + yVal
-                                * derivative.getElement(1, 1);
-
-                        return GISUtils.RAD2DEG * Math.atan2(newX, newY);
+                        return headingAtNativePosition(xVal, yVal, centre);
                     } catch (TransformException e) {
                         log.error("Problem generating vector heading for non lat-lon native grid",
                                 e);
@@ -344,4 +376,431 @@ public class VectorPlugin extends VariablePlugin {
             return null;
         }
     }
+
+    /**
+     * Calculates the WGS84 heading of a vector whose components are defined on
+     * a native grid which is transformed by {@link VectorPlugin#trans}
+     */
+    private double headingAtNativePosition(double xVal, double yVal, DirectPosition centre)
+            throws TransformException {
+        Matrix derivative = trans.derivative(centre);
+
+        double newX = xVal * derivative.getElement(0, 0) + yVal * derivative.getElement(0, 1);
+        double newY = xVal * derivative.getElement(1, 0) + yVal * derivative.getElement(1, 1);
+
+        return GISUtils.RAD2DEG * Math.atan2(newX, newY);
+    }
+
+    /**
+     * Finds the index of the source grid cell containing a position
+     *
+     * @param position
+     *            The {@link HorizontalPosition} to find. This can be in any
+     *            CRS
+     * @return The index of the cell, as used by
+     *         {@link VectorPlugin#headingInCell(double, double, int)}, or -1 if
+     *         there is no source grid or the position is outside it
+     */
+    private int findCellIndex(HorizontalPosition position) {
+        if (sourceGrid == null) {
+            return -1;
+        }
+        GridCoordinates2D coords = sourceGrid.findIndexOf(position);
+        if (coords == null) {
+            return -1;
+        }
+        return coords.getY() * sourceGrid.getXSize() + coords.getX();
+    }
+
+    /**
+     * Finds the index of the source grid cell containing a position given in
+     * the native CRS of the source grid
+     *
+     * @return The index of the cell, or -1 if there is no source grid or the
+     *         position is outside it
+     */
+    private int findNativeCellIndex(double x, double y) {
+        if (sourceGrid instanceof RectilinearGrid) {
+            int xIndex = ((RectilinearGrid) sourceGrid).getXAxis().findIndexOf(x);
+            int yIndex = ((RectilinearGrid) sourceGrid).getYAxis().findIndexOf(y);
+            if (xIndex < 0 || yIndex < 0) {
+                return -1;
+            }
+            return yIndex * sourceGrid.getXSize() + xIndex;
+        } else if (sourceGrid != null) {
+            return findCellIndex(new HorizontalPosition(x, y,
+                    sourceGrid.getCoordinateReferenceSystem()));
+        }
+        return -1;
+    }
+
+    /**
+     * Calculates the WGS84 heading of a vector using the derivatives of a
+     * source grid cell, interpolated from the surrounding nodes.
+     *
+     * @return The heading, or NaN if the derivatives cannot be accurately
+     *         interpolated for the given cell
+     */
+    private double headingInCell(double xVal, double yVal, int cell) {
+        int xSize = sourceGrid.getXSize();
+        return getDerivativeNodes().heading(xVal, yVal, cell % xSize, cell / xSize);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (sourceCrs != null) {
+            try {
+                trans = CRS.findMathTransform(sourceCrs, GISUtils.defaultGeographicCRS());
+            } catch (FactoryException e) {
+                throw new IOException("Cannot recalculate transform between 2 CRSs", e);
+            }
+        }
+    }
+
+    /**
+     * @return The {@link DerivativeNodes} for the source grid, calculating
+     *         them if this has not yet been done
+     */
+    private DerivativeNodes getDerivativeNodes() {
+        DerivativeNodes nodes = derivativeNodes;
+        if (nodes == null) {
+            synchronized (this) {
+                nodes = derivativeNodes;
+                if (nodes == null) {
+                    nodes = new DerivativeNodes();
+                    derivativeNodes = nodes;
+                }
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * Calculates the derivatives of WGS84 co-ordinates with respect to native
+     * co-ordinates at the centre of a source grid cell
+     *
+     * @param cells
+     *            The domain objects of the grid, or <code>null</code> if the
+     *            grid is rectilinear
+     * @param derivs
+     *            An array to hold the 4 derivatives
+     * @return <code>false</code> if the derivatives could not be calculated
+     */
+    private boolean cellDerivatives(HorizontalGrid grid, Array2D<GridCell2D> cells, int i, int j,
+            double[] derivs) {
+        double x;
+        double y;
+        if (cells == null) {
+            x = ((RectilinearGrid) grid).getCentreX(i);
+            y = ((RectilinearGrid) grid).getCentreY(j);
+        } else {
+            HorizontalPosition centre = cells.get(j, i).getCentre();
+            x = centre.getX();
+            y = centre.getY();
+        }
+        if (trans != null) {
+            try {
+                Matrix derivative = trans.derivative(new DirectPosition2D(x, y));
+                derivs[0] = derivative.getElement(0, 0);
+                derivs[1] = derivative.getElement(0, 1);
+                derivs[2] = derivative.getElement(1, 0);
+                derivs[3] = derivative.getElement(1, 1);
+            } catch (TransformException e) {
+                return false;
+            }
+        } else {
+            System.arraycopy(gridTransform.getNativeToWgs84Derivatives(x, y), 0, derivs, 0, 4);
+        }
+        for (int d = 0; d < 4; d++) {
+            if (Double.isNaN(derivs[d]) || Double.isInfinite(derivs[d])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The derivatives of WGS84 co-ordinates with respect to native
+     * co-ordinates at a coarse grid of nodes across the source grid. Nodes
+     * are placed every {@link DerivativeNodes#NODE_SPACING} cells along each
+     * axis, and the derivatives at each cell are bilinearly interpolated
+     * between them. This uses a fraction of the memory needed to store the
+     * derivatives of every cell.
+     *
+     * Interpolation is checked at the centre of each quad of nodes. Where it
+     * is not accurate (e.g. near a pole), or the derivatives cannot be
+     * calculated at one of the nodes, the quad is marked so that headings
+     * within it are calculated exactly.
+     */
+    private final class DerivativeNodes {
+        private static final int NODE_SPACING = 4;
+        /*
+         * The maximum error of interpolated derivatives, relative to the size
+         * of the derivatives of the same WGS84 axis
+         */
+        private static final double TOLERANCE = 2e-4;
+
+        private final int xSize;
+        private final int ySize;
+        private final int nx;
+        private final int ny;
+        /* 4 values per node, x varying fastest */
+        private final float[] derivatives;
+        /* The quads of nodes which cannot be interpolated accurately */
+        private final BitSet inaccurate = new BitSet();
+
+        private DerivativeNodes() {
+            xSize = sourceGrid.getXSize();
+            ySize = sourceGrid.getYSize();
+            nx = nNodes(xSize);
+            ny = nNodes(ySize);
+            derivatives = new float[4 * nx * ny];
+
+            /*
+             * Grids which do their own transformations report their cell
+             * centres in WGS84
+             */
+            HorizontalGrid centresGrid = trans != null ? sourceGrid : gridTransform;
+            Array2D<GridCell2D> cells = null;
+            if (!(centresGrid instanceof RectilinearGrid)) {
+                cells = centresGrid.getDomainObjects();
+            }
+            double[] derivs = new double[4];
+            for (int nj = 0; nj < ny; nj++) {
+                for (int ni = 0; ni < nx; ni++) {
+                    int offset = 4 * (nj * nx + ni);
+                    if (cellDerivatives(centresGrid, cells, nodeCell(ni, xSize), nodeCell(nj,
+                            ySize), derivs)) {
+                        for (int d = 0; d < 4; d++) {
+                            derivatives[offset + d] = (float) derivs[d];
+                        }
+                    } else {
+                        Arrays.fill(derivatives, offset, offset + 4, Float.NaN);
+                    }
+                }
+            }
+
+            /*
+             * Check the interpolation within each quad of nodes against the
+             * exact derivatives at its quarter points. Quads which fail are
+             * calculated exactly when needed.
+             */
+            double[] interpolated = new double[4];
+            for (int qj = 0; qj < Math.max(1, ny - 1); qj++) {
+                int j0 = nodeCell(qj, ySize);
+                int j1 = nodeCell(Math.min(qj + 1, ny - 1), ySize);
+                for (int qi = 0; qi < Math.max(1, nx - 1); qi++) {
+                    int i0 = nodeCell(qi, xSize);
+                    int i1 = nodeCell(Math.min(qi + 1, nx - 1), xSize);
+                    checkQuad: for (int j : new int[] { (3 * j0 + j1) / 4, (j0 + j1) / 2,
+                            (j0 + 3 * j1) / 4 }) {
+                        for (int i : new int[] { (3 * i0 + i1) / 4, (i0 + i1) / 2,
+                                (i0 + 3 * i1) / 4 }) {
+                            if (!interpolate(i, j, interpolated)
+                                    || !cellDerivatives(centresGrid, cells, i, j, derivs)
+                                    || !isAccurate(interpolated, derivs)) {
+                                inaccurate.set(quad(qi, qj));
+                                break checkQuad;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        /*
+         * Each row of derivatives gives the rate of change of one WGS84 axis,
+         * so is compared separately - this bounds the error in the heading
+         */
+        private boolean isAccurate(double[] interpolated, double[] exact) {
+            for (int row = 0; row < 4; row += 2) {
+                double scale = Math.hypot(exact[row], exact[row + 1]);
+                double error = Math.hypot(interpolated[row] - exact[row], interpolated[row + 1]
+                        - exact[row + 1]);
+                if (error > TOLERANCE * scale) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private int quad(int qi, int qj) {
+            return qj * Math.max(1, nx - 1) + qi;
+        }
+
+        /**
+         * Interpolates the derivatives at a cell from the surrounding nodes
+         *
+         * @return <code>false</code> if the derivatives are not available at
+         *         any of the surrounding nodes
+         */
+        private boolean interpolate(int i, int j, double[] derivs) {
+            int i0 = Math.min(i / NODE_SPACING, Math.max(0, nx - 2));
+            int i1 = Math.min(i0 + 1, nx - 1);
+            int j0 = Math.min(j / NODE_SPACING, Math.max(0, ny - 2));
+            int j1 = Math.min(j0 + 1, ny - 1);
+            double fx = nodeFraction(i, i0, i1, xSize);
+            double fy = nodeFraction(j, j0, j1, ySize);
+
+            int k00 = 4 * (j0 * nx + i0);
+            int k10 = 4 * (j0 * nx + i1);
+            int k01 = 4 * (j1 * nx + i0);
+            int k11 = 4 * (j1 * nx + i1);
+            if (Float.isNaN(derivatives[k00]) || Float.isNaN(derivatives[k10])
+                    || Float.isNaN(derivatives[k01]) || Float.isNaN(derivatives[k11])) {
+                return false;
+            }
+            double w00 = (1 - fx) * (1 - fy);
+            double w10 = fx * (1 - fy);
+            double w01 = (1 - fx) * fy;
+            double w11 = fx * fy;
+            for (int d = 0; d < 4; d++) {
+                derivs[d] = w00 * derivatives[k00 + d] + w10 * derivatives[k10 + d] + w01
+                        * derivatives[k01 + d] + w11 * derivatives[k11 + d];
+            }
+            return true;
+        }
+
+        /**
+         * @return The WGS84 heading of a vector in the given cell, or NaN if
+         *         the derivatives there cannot be accurately interpolated
+         */
+        private double heading(double xVal, double yVal, int i, int j) {
+            int qi = Math.min(i / NODE_SPACING, Math.max(0, nx - 2));
+            int qj = Math.min(j / NODE_SPACING, Math.max(0, ny - 2));
+            double[] derivs = new double[4];
+            if (inaccurate.get(quad(qi, qj)) || !interpolate(i, j, derivs)) {
+                return Double.NaN;
+            }
+            double newX = xVal * derivs[0] + yVal * derivs[1];
+            double newY = xVal * derivs[2] + yVal * derivs[3];
+
+            return GISUtils.RAD2DEG * Math.atan2(newX, newY);
+        }
+
+        /*
+         * The number of nodes along an axis with the given number of cells
+         */
+        private int nNodes(int size) {
+            return (size - 1 + NODE_SPACING - 1) / NODE_SPACING + 1;
+        }
+
+        /*
+         * The index of the cell at which the given node lies. The final node
+         * is always at the final cell.
+         */
+        private int nodeCell(int node, int size) {
+            return Math.min(node * NODE_SPACING, size - 1);
+        }
+
+        /*
+         * How far the given cell lies between 2 nodes, as a fraction
+         */
+        private double nodeFraction(int cell, int node0, int node1, int size) {
+            if (node0 == node1) {
+                return 0.0;
+            }
+            int cell0 = nodeCell(node0, size);
+            return (double) (cell - cell0) / (nodeCell(node1, size) - cell0);
+        }
+    }
+
+    @Override
+    protected boolean supportsFieldComputation(String varSuffix) {
+        return MAG_ROLE.equals(varSuffix) || DIR_ROLE.equals(varSuffix);
+    }
+
+    @Override
+    protected void computeField(String varSuffix, float[][] sources, double[] xs, double[] ys,
+            CoordinateReferenceSystem crs, float[] out) {
+        float[] xVals = sources[0];
+        float[] yVals = sources[1];
+        if (MAG_ROLE.equals(varSuffix)) {
+            for (int i = 0; i < out.length; i++) {
+                out[i] = (float) Math.sqrt(xVals[i] * xVals[i] + yVals[i] * yVals[i]);
+            }
+        } else if (eastNorthComps) {
+            for (int i = 0; i < out.length; i++) {
+                out[i] = (float) (Math.atan2(xVals[i], yVals[i]) * GISUtils.RAD2DEG);
+            }
+        } else {
+            /*
+             * We need the WGS84 position of every point. Transform them all at
+             * once, rather than one at a time.
+             */
+            double[] lonLats = new double[2 * out.length];
+            int k = 0;
+            for (int j = 0; j < ys.length; j++) {
+                for (int i = 0; i < xs.length; i++) {
+                    lonLats[k++] = xs[i];
+                    lonLats[k++] = ys[j];
+                }
+            }
+            try {
+                if (crs != null) {
+                    GISUtils.transformCoordinates(crs, GISUtils.defaultGeographicCRS(), lonLats,
+                            out.length);
+                }
+                if (trans != null) {
+                    double[] natives = new double[lonLats.length];
+                    trans.inverse().transform(lonLats, 0, natives, 0, out.length);
+                    for (int i = 0; i < out.length; i++) {
+                        if (Float.isNaN(xVals[i]) || Float.isNaN(yVals[i])) {
+                            out[i] = Float.NaN;
+                        } else {
+                            double heading = Double.NaN;
+                            int cell = findNativeCellIndex(natives[2 * i], natives[2 * i + 1]);
+                            if (cell >= 0) {
+                                heading = headingInCell(xVals[i], yVals[i], cell);
+                            }
+                            if (Double.isNaN(heading)) {
+                                heading = headingAtNativePosition(xVals[i], yVals[i],
+                                        new DirectPosition2D(natives[2 * i], natives[2 * i + 1]));
+                            }
+                            out[i] = (float) heading;
+                        }
+                    }
+                } else if (gridTransform != null) {
+                    for (int i = 0; i < out.length; i++) {
+                        if (Float.isNaN(xVals[i]) || Float.isNaN(yVals[i])) {
+                            out[i] = Float.NaN;
+                        } else {
+                            double heading = Double.NaN;
+                            int cell = findCellIndex(new HorizontalPosition(lonLats[2 * i],
+                                    lonLats[2 * i + 1], GISUtils.defaultGeographicCRS()));
+                            if (cell >= 0) {
+                                heading = headingInCell(xVals[i], yVals[i], cell);
+                            }
+                            if (Double.isNaN(heading)) {
+                                heading = gridTransform.transformNativeHeadingToWgs84(xVals[i],
+                                        yVals[i], lonLats[2 * i], lonLats[2 * i + 1]);
+                            }
+                            out[i] = (float) heading;
+                        }
+                    }
+                } else {
+                    /*
+                     * Should never get here.
+                     */
+                    Arrays.fill(out, Float.NaN);
+                }
+            } catch (TransformException e) {
+                /*
+                 * Fall back to calculating each value individually, so that
+                 * only the values which cannot be transformed are missing
+                 */
+                k = 0;
+                for (int j = 0; j < ys.length; j++) {
+                    for (int i = 0; i < xs.length; i++) {
+                        Number value = null;
+                        if (!Float.isNaN(xVals[k]) && !Float.isNaN(yVals[k])) {
+                            value = generateValue(varSuffix, new HorizontalPosition(xs[i], ys[j],
+                                    crs), xVals[k], yVals[k]);
+                        }
+                        out[k++] = value == null ? Float.NaN : value.floatValue();
+                    }
+                }
+            }
+        }
+    }
 }
@@ -161,6 +161,21 @@ public class MapDomain implements RectilinearGrid, Serializable {
         return hGrid.getYAxis();
     }
 
+    @Override
+    public double getCentreX(int i) {
+        return hGrid.getCentreX(i);
+    }
+
+    @Override
+    public double getCentreY(int j) {
+        return hGrid.getCentreY(j);
+    }
+
+    @Override
+    public void fillCentres(double[] xs, double[] ys) {
+        hGrid.fillCentres(xs, ys);
+    }
+
     @Override
     public GridCoordinates2D findIndexOf(HorizontalPosition position) {
         return hGrid.findIndexOf(position);
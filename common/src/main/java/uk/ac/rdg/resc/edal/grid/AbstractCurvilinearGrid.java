@@ -59,23 +59,8 @@ public abstract class AbstractCurvilinearGrid extends AbstractTransformedGrid {
         this.latLonBbox = curvCoords.getBoundingBox();
     }
 
-    /**
-     * Transforms a heading in native grid co-ordinates (degrees clockwise from
-     * positive y-direction) into a heading in WGS84 (degrees clockwise from
-     * north).
-     *
-     * @param xComp
-     *            The x-component of the heading
-     * @param yComp
-     *            The y-component of the heading
-     * @param lon
-     *            The longitude of the given components
-     * @param lat
-     *            The latitude of the given components
-     * @return The transformed heading
-     */
     @Override
-    public double transformNativeHeadingToWgs84(double xComp, double yComp, double lon, double lat) {
+    public double[] getNativeToWgs84Derivatives(double lon, double lat) {
         /*
          * We have a curvilinear grid. There is no analytical way of calculating
          * derivatives, so we use adjacent grid points. This is not very
@@ -126,13 +111,7 @@ public abstract class AbstractCurvilinearGrid extends AbstractTransformedGrid {
         dXddYs = (plusYPos.getX() - centrePos.getX());
         dYddYs = (plusYPos.getY() - centrePos.getY());
 
-        /*
-         * Get the new components
-         */
-        float newX = (float) (dXddXs * xComp + dXddYs * yComp);
-        float newY = (float) (dYddXs * xComp + dYddYs * yComp);
-
-        return GISUtils.RAD2DEG * Math.atan2(newX, newY);
+        return new double[] { dXddXs, dXddYs, dYddXs, dYddYs };
     }
 
     @Override
@@ -156,6 +135,11 @@ public abstract class AbstractCurvilinearGrid extends AbstractTransformedGrid {
         return domainObjects;
     }
 
+    @Override
+    public void fillCentres(double[] xs, double[] ys) {
+        curvCoords.fillMidpoints(xs, ys);
+    }
+
     @Override
     public boolean contains(HorizontalPosition position) {
         GridCoordinates2D coords = findIndexOf(position);
@@ -61,8 +61,30 @@ public abstract class AbstractTransformedGrid implements HorizontalGrid {
      *            The latitude of the given components
      * @return The transformed heading
      */
-    public abstract double transformNativeHeadingToWgs84(double xComp, double yComp, double lon,
-            double lat);
+    public double transformNativeHeadingToWgs84(double xComp, double yComp, double lon,
+            double lat) {
+        double[] derivs = getNativeToWgs84Derivatives(lon, lat);
+        float newX = (float) (derivs[0] * xComp + derivs[1] * yComp);
+        float newY = (float) (derivs[2] * xComp + derivs[3] * yComp);
+
+        return GISUtils.RAD2DEG * Math.atan2(newX, newY);
+    }
+
+    /**
+     * Calculates the partial derivatives of WGS84 co-ordinates with respect to
+     * native grid co-ordinates at a given point. These fully describe the
+     * local rotation (and scaling) between the native grid and WGS84, and so
+     * can be calculated once per grid cell and reused to transform any number
+     * of headings.
+     *
+     * @param lon
+     *            The longitude at which to calculate the derivatives
+     * @param lat
+     *            The latitude at which to calculate the derivatives
+     * @return An array containing, in order: d(lon)/d(x), d(lon)/d(y),
+     *         d(lat)/d(x), d(lat)/d(y), where x and y are native co-ordinates
+     */
+    public abstract double[] getNativeToWgs84Derivatives(double lon, double lat);
 
     /**
      * Always returns {@link DefaultGeographicCRS#WGS84}. Transformations
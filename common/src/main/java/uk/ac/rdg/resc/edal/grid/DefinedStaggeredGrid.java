@@ -76,6 +76,11 @@ public class DefinedStaggeredGrid implements StaggeredHorizontalGrid, Serializab
         return staggeredGrid.getDomainObjects();
     }
 
+    @Override
+    public void fillCentres(double[] xs, double[] ys) {
+        staggeredGrid.fillCentres(xs, ys);
+    }
+
     @Override
     public long size() {
         return staggeredGrid.size();
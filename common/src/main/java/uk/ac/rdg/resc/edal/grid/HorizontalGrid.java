@@ -76,6 +76,51 @@ public interface HorizontalGrid extends DiscreteHorizontalDomain<GridCell2D>, Se
      */
     public GridCoordinates2D findIndexOf(HorizontalPosition position);
 
+    /**
+     * Fills the supplied arrays with the coordinates of the centres of every
+     * cell in this grid, in the {@link #getCoordinateReferenceSystem() CRS of
+     * the grid}. The centre of the cell with x-index <code>i</code> and
+     * y-index <code>j</code> is stored at index
+     * <code>j * getXSize() + i</code>.
+     * 
+     * This should be used in preference to {@link #getDomainObjects()} when
+     * only the cell centres are required, since it does not create a
+     * {@link GridCell2D} for every cell. This default implementation does use
+     * {@link #getDomainObjects()}, and implementing classes should override it
+     * where they can calculate cell centres directly.
+     * 
+     * @param xs
+     *            The array to store the x-coordinates in. Must contain at least
+     *            {@link #size()} elements.
+     * @param ys
+     *            The array to store the y-coordinates in. Must contain at least
+     *            {@link #size()} elements.
+     */
+    public default void fillCentres(double[] xs, double[] ys) {
+        int xSize = getXSize();
+        int ySize = getYSize();
+        if (xs.length < (long) xSize * ySize || ys.length < (long) xSize * ySize) {
+            throw new IllegalArgumentException("Arrays must contain at least " + size()
+                    + " elements to hold the centres of this grid");
+        }
+        Array2D<GridCell2D> domainObjects = getDomainObjects();
+        int k = 0;
+        for (int j = 0; j < ySize; j++) {
+            for (int i = 0; i < xSize; i++) {
+                GridCell2D cell = domainObjects.get(j, i);
+                HorizontalPosition centre = cell == null ? null : cell.getCentre();
+                if (centre == null) {
+                    xs[k] = Double.NaN;
+                    ys[k] = Double.NaN;
+                } else {
+                    xs[k] = centre.getX();
+                    ys[k] = centre.getY();
+                }
+                k++;
+            }
+        }
+    }
+
     @Override
     public boolean equals(Object obj);
     
@@ -27,16 +27,30 @@
  *******************************************************************************/
 package uk.ac.rdg.resc.edal.grid;
 
-import java.util.HashMap;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import uk.ac.rdg.resc.edal.position.HorizontalPosition;
 import uk.ac.rdg.resc.edal.util.Array2D;
 import uk.ac.rdg.resc.edal.util.CurvilinearCoords;
 import uk.ac.rdg.resc.edal.util.GISUtils;
 import uk.ac.rdg.resc.edal.util.CurvilinearCoords.Cell;
+import uk.ac.rdg.resc.edal.util.FloatArray2D;
 import uk.ac.rdg.resc.edal.util.GridCoordinates2D;
 import uk.ac.rdg.resc.edal.util.LookUpTable;
 
@@ -54,58 +68,260 @@ import uk.ac.rdg.resc.edal.util.LookUpTable;
  * @author Jon Blower
  */
 public final class LookUpTableGrid extends AbstractCurvilinearGrid {
+    private static final Logger log = LoggerFactory.getLogger(LookUpTableGrid.class);
+
     /**
      * In-memory cache of LookUpTableGrid objects to save expensive
-     * re-generation of same object
-     *
-     * @todo The CurvilinearGrid objects can be very big. Really we only need to
-     *       key on the arrays of lon and lat: all other quantities can be
-     *       calculated from these. This means that we could make other large
-     *       objects available for garbage collection.
+     * re-generation of same object. This is keyed on a hash of the arrays of
+     * lon and lat, and bounded by the (approximate) number of bytes of heap
+     * which the cached grids occupy. The least recently used grids are
+     * evicted first.
+     */
+    private static final Map<String, CacheEntry> CACHE = new LinkedHashMap<>(16, 0.75f, true);
+    private static long cacheBytes = 0L;
+    private static long maxCacheBytes = Runtime.getRuntime().maxMemory() / 4;
+    /* Held whilst the grid with a given key is being generated */
+    private static final Map<String, Object> BUILD_LOCKS = new ConcurrentHashMap<>();
+    /*
+     * Where look-up tables are persisted. If null, they are held on the heap
+     * and are not persisted.
      */
-    private static final Map<CurvilinearCoords, LookUpTableGrid> CACHE = new HashMap<CurvilinearCoords, LookUpTableGrid>();
+    private static File lutDirectory = null;
+
     private static final long serialVersionUID = 1L;
 
+    private final String key;
     private final LookUpTable lut;
 
     /**
      * The passed-in coordSys must have 2D horizontal coordinate axes.
      */
     public static LookUpTableGrid generate(Array2D<Number> lonVals, Array2D<Number> latVals) {
-        CurvilinearCoords curvCoords = new CurvilinearCoords(lonVals, latVals);
+        return generate(getKey(lonVals, latVals), lonVals, latVals);
+    }
 
+    private static LookUpTableGrid generate(String key, Array2D<Number> lonVals,
+            Array2D<Number> latVals) {
+        LookUpTableGrid lutGrid = getCachedGrid(key);
+        if (lutGrid != null) {
+            return lutGrid;
+        }
         /*
-         * We calculate the required resolution of the look-up tables. We want
-         * this to be around 3 times the resolution of the grid.
+         * Generating a look-up table can take a long time, so this is done
+         * outside the cache lock. Only one thread generates each grid - any
+         * others requiring it wait and then take it from the cache.
          */
-        double minLutResolution = Math.sqrt(curvCoords.getMeanCellArea()) / 3.0;
+        Object lock = BUILD_LOCKS.computeIfAbsent(key, k -> new Object());
+        try {
+            synchronized (lock) {
+                lutGrid = getCachedGrid(key);
+                if (lutGrid != null) {
+                    return lutGrid;
+                }
+                File directory;
+                synchronized (CACHE) {
+                    directory = lutDirectory;
+                }
+
+                CurvilinearCoords curvCoords = new CurvilinearCoords(lonVals, latVals);
+                /*
+                 * We calculate the required resolution of the look-up tables.
+                 * We want this to be around 3 times the resolution of the grid.
+                 */
+                double minLutResolution = Math.sqrt(curvCoords.getMeanCellArea()) / 3.0;
 
-        synchronized (CACHE) {
-            LookUpTableGrid lutGrid = CACHE.get(curvCoords);
-            if (lutGrid == null) {
                 /* Create a look-up table for this coord sys */
-                LookUpTable lut = new LookUpTable(curvCoords, minLutResolution);
+                LookUpTable lut = null;
+                if (directory != null) {
+                    File lutFile = new File(directory, key + ".lut");
+                    try {
+                        if (lutFile.exists()) {
+                            lut = LookUpTable.load(lutFile);
+                        }
+                        if (lut == null) {
+                            lut = LookUpTable.create(curvCoords, minLutResolution, lutFile);
+                        }
+                    } catch (IOException e) {
+                        log.warn("Could not use persisted look-up table " + lutFile
+                                + ".  It will be held in memory instead.", e);
+                    }
+                }
+                if (lut == null) {
+                    lut = new LookUpTable(curvCoords, minLutResolution);
+                }
                 /* Create the LookUpTableGrid */
-                lutGrid = new LookUpTableGrid(curvCoords, lut);
+                lutGrid = new LookUpTableGrid(key, curvCoords, lut);
+
                 /* Now put this in the cache */
-                CACHE.put(curvCoords, lutGrid);
+                putInCache(key, new CacheEntry(lutGrid, getWeight(curvCoords, lut)));
+                return lutGrid;
+            }
+        } finally {
+            BUILD_LOCKS.remove(key, lock);
+        }
+    }
+
+    private static LookUpTableGrid getCachedGrid(String key) {
+        synchronized (CACHE) {
+            CacheEntry entry = CACHE.get(key);
+            return entry == null ? null : entry.grid;
+        }
+    }
+
+    private static void putInCache(String key, CacheEntry entry) {
+        synchronized (CACHE) {
+            CACHE.put(key, entry);
+            cacheBytes += entry.weight;
+            Iterator<CacheEntry> iterator = CACHE.values().iterator();
+            while (cacheBytes > maxCacheBytes && CACHE.size() > 1 && iterator.hasNext()) {
+                /*
+                 * Evict the least recently used grids, but always keep the one
+                 * we have just created
+                 */
+                CacheEntry evicted = iterator.next();
+                if (evicted != entry) {
+                    cacheBytes -= evicted.weight;
+                    iterator.remove();
+                }
             }
-            return lutGrid;
         }
     }
 
     public static void clearCache() {
         synchronized (CACHE) {
             CACHE.clear();
+            cacheBytes = 0L;
+        }
+    }
+
+    /**
+     * @param maxBytes
+     *            The approximate maximum number of bytes of heap to use for
+     *            cached {@link LookUpTableGrid}s
+     */
+    public static void setMaxCacheSize(long maxBytes) {
+        synchronized (CACHE) {
+            maxCacheBytes = maxBytes;
+        }
+    }
+
+    /**
+     * @param directory
+     *            The directory in which to persist look-up tables, or
+     *            <code>null</code> to hold them on the heap. Persisted tables
+     *            are memory-mapped, and re-used across restarts.
+     */
+    public static void setLookUpTableDirectory(File directory) {
+        synchronized (CACHE) {
+            lutDirectory = directory;
+        }
+    }
+
+    /*
+     * Calculates a SHA-1 hash of the shape and contents of the coordinate
+     * arrays
+     */
+    private static String getKey(Array2D<Number> lonVals, Array2D<Number> latVals) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            /* All JVMs are required to support SHA-1 */
+            throw new IllegalStateException(e);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        for (Array2D<Number> vals : Arrays.asList(lonVals, latVals)) {
+            int ySize = vals.getYSize();
+            int xSize = vals.getXSize();
+            buffer.putInt(ySize).putInt(xSize);
+            for (int j = 0; j < ySize; j++) {
+                for (int i = 0; i < xSize; i++) {
+                    if (buffer.remaining() < 8) {
+                        digest.update(buffer.array(), 0, buffer.position());
+                        buffer.clear();
+                    }
+                    Number val = vals.get(j, i);
+                    buffer.putDouble(val == null ? Double.NaN : val.doubleValue());
+                }
+            }
+        }
+        digest.update(buffer.array(), 0, buffer.position());
+        StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest()) {
+            key.append(String.format("%02x", b));
+        }
+        return key.toString();
+    }
+
+    /*
+     * Estimates the heap used by a grid. The CurvilinearCoords hold the cell
+     * centres as floats, and the corners as Number objects.
+     */
+    private static long getWeight(CurvilinearCoords curvCoords, LookUpTable lut) {
+        long nCorners = (long) (curvCoords.getNi() + 1) * (curvCoords.getNj() + 1);
+        return 8L * curvCoords.size() + 2 * 24L * nCorners + lut.getHeapSize();
+    }
+
+    private static final class CacheEntry {
+        private final LookUpTableGrid grid;
+        private final long weight;
+
+        public CacheEntry(LookUpTableGrid grid, long weight) {
+            this.grid = grid;
+            this.weight = weight;
         }
     }
 
     /** Private constructor to prevent direct instantiation */
-    private LookUpTableGrid(CurvilinearCoords curvGrid, LookUpTable lut) {
+    private LookUpTableGrid(String key, CurvilinearCoords curvGrid, LookUpTable lut) {
         super(curvGrid);
+        this.key = key;
         this.lut = lut;
     }
 
+    /*
+     * Look-up tables can be very large, and are not serialised. Instead we
+     * serialise the cell centres, and regenerate the grid (via the cache, or
+     * from the persisted look-up table if there is one) on deserialisation.
+     */
+    private Object writeReplace() throws ObjectStreamException {
+        int ni = curvCoords.getNi();
+        int nj = curvCoords.getNj();
+        float[] lons = new float[ni * nj];
+        float[] lats = new float[ni * nj];
+        int index = 0;
+        for (int j = 0; j < nj; j++) {
+            for (int i = 0; i < ni; i++) {
+                HorizontalPosition midpoint = curvCoords.getMidpoint(i, j);
+                lons[index] = (float) midpoint.getX();
+                lats[index] = (float) midpoint.getY();
+                index++;
+            }
+        }
+        return new SerialForm(key, ni, nj, lons, lats);
+    }
+
+    private static final class SerialForm implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final String key;
+        private final int ni;
+        private final int nj;
+        private final float[] lons;
+        private final float[] lats;
+
+        public SerialForm(String key, int ni, int nj, float[] lons, float[] lats) {
+            this.key = key;
+            this.ni = ni;
+            this.nj = nj;
+            this.lons = lons;
+            this.lats = lats;
+        }
+
+        private Object readResolve() throws ObjectStreamException {
+            return generate(key, new FloatArray2D(nj, ni, lons), new FloatArray2D(nj, ni, lats));
+        }
+    }
+
     @Override
     public GridCoordinates2D findIndexOf(HorizontalPosition position) {
         if(!GISUtils.isWgs84LonLat(position.getCoordinateReferenceSystem())) {
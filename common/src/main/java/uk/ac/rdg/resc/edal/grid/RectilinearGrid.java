@@ -48,4 +48,30 @@ public interface RectilinearGrid extends HorizontalGrid, Serializable {
      * Gets the y axis of the grid.
      */
     public ReferenceableAxis<Double> getYAxis();
+
+    /**
+     * Gets the x-coordinate of the centres of the cells with the given x-index.
+     * This is equivalent to <code>getXAxis().getCoordinateValue(i)</code>, and
+     * avoids creating a {@link GridCell2D} where only the cell centre is
+     * needed.
+     * 
+     * @param i
+     *            The x-index of the cell
+     * @return The x-coordinate of the cell centre, in the
+     *         {@link #getCoordinateReferenceSystem() CRS of the grid}
+     */
+    public double getCentreX(int i);
+
+    /**
+     * Gets the y-coordinate of the centres of the cells with the given y-index.
+     * This is equivalent to <code>getYAxis().getCoordinateValue(j)</code>, and
+     * avoids creating a {@link GridCell2D} where only the cell centre is
+     * needed.
+     * 
+     * @param j
+     *            The y-index of the cell
+     * @return The y-coordinate of the cell centre, in the
+     *         {@link #getCoordinateReferenceSystem() CRS of the grid}
+     */
+    public double getCentreY(int j);
 }
@@ -39,6 +39,7 @@ import uk.ac.rdg.resc.edal.util.GISUtils;
 import uk.ac.rdg.resc.edal.util.GridCoordinates2D;
 
 import java.io.Serializable;
+import java.util.Arrays;
 
 /**
  * Immutable implementation of a {@link RectilinearGrid} using {@link Double}s.
@@ -99,6 +100,39 @@ public class RectilinearGridImpl extends AbstractHorizontalGrid implements Recti
         return domainObjects;
     }
 
+    @Override
+    public double getCentreX(int i) {
+        return xAxis.getCoordinateValue(i);
+    }
+
+    @Override
+    public double getCentreY(int j) {
+        return yAxis.getCoordinateValue(j);
+    }
+
+    @Override
+    public void fillCentres(double[] xs, double[] ys) {
+        int xSize = xAxis.size();
+        int ySize = yAxis.size();
+        if (xs.length < (long) xSize * ySize || ys.length < (long) xSize * ySize) {
+            throw new IllegalArgumentException("Arrays must contain at least " + size()
+                    + " elements to hold the centres of this grid");
+        }
+        /*
+         * Each row has the same x-coordinates, so we only calculate them once
+         */
+        for (int i = 0; i < xSize; i++) {
+            xs[i] = xAxis.getCoordinateValue(i);
+        }
+        for (int j = 0; j < ySize; j++) {
+            int rowStart = j * xSize;
+            if (j > 0) {
+                System.arraycopy(xs, 0, xs, rowStart, xSize);
+            }
+            Arrays.fill(ys, rowStart, rowStart + xSize, yAxis.getCoordinateValue(j));
+        }
+    }
+
     @Override
     public boolean contains(HorizontalPosition position) {
         if (position == null)
@@ -197,6 +197,29 @@ public final class CurvilinearCoords {
         return new HorizontalPosition(longitudes[index], latitudes[index]);
     }
 
+    /**
+     * Copies the locations of the midpoints of all cells into the supplied
+     * arrays. The midpoint of the cell at indices i, j is stored at index
+     * <code>j * ni + i</code>. The longitudes will be in the range [-180,180].
+     * 
+     * @param lons
+     *            The array to store the longitudes in. Must contain at least
+     *            {@link #size()} elements.
+     * @param lats
+     *            The array to store the latitudes in. Must contain at least
+     *            {@link #size()} elements.
+     */
+    public void fillMidpoints(double[] lons, double[] lats) {
+        if (lons.length < longitudes.length || lats.length < latitudes.length) {
+            throw new IllegalArgumentException("Arrays must contain at least " + size()
+                    + " elements to hold the midpoints of this grid");
+        }
+        for (int index = 0; index < longitudes.length; index++) {
+            lons[index] = longitudes[index];
+            lats[index] = latitudes[index];
+        }
+    }
+
     private int getIndex(int i, int j) {
         return j * ni + i;
     }
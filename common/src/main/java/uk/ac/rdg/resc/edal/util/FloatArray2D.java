@@ -0,0 +1,75 @@
+/*******************************************************************************
+ * Copyright (c) 2017 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.util;
+
+/**
+ * Implementation of an {@link Array2D} which uses a single primitive float
+ * array for storage. Missing values are stored as NaN, and returned as
+ * <code>null</code>.
+ */
+public class FloatArray2D extends Array2D<Number> {
+    private static final long serialVersionUID = 1L;
+    private final float[] data;
+
+    public FloatArray2D(int ySize, int xSize) {
+        this(ySize, xSize, new float[ySize * xSize]);
+    }
+
+    /**
+     * Wraps an existing array of data.
+     * 
+     * @param ySize
+     *            The size of the y-dimension
+     * @param xSize
+     *            The size of the x-dimension
+     * @param data
+     *            The data, in row-major order (i.e. the value at (y,x) is at
+     *            index <code>y * xSize + x</code>). This is not copied.
+     */
+    public FloatArray2D(int ySize, int xSize, float[] data) {
+        super(ySize, xSize);
+        if (data.length != ySize * xSize) {
+            throw new IllegalArgumentException("Data array has size " + data.length
+                    + ", but should have size " + (ySize * xSize));
+        }
+        this.data = data;
+    }
+
+    @Override
+    public Number get(int... coords) {
+        float value = data[coords[Y_IND] * getXSize() + coords[X_IND]];
+        return Float.isNaN(value) ? null : value;
+    }
+
+    @Override
+    public void set(Number value, int... coords) {
+        data[coords[Y_IND] * getXSize() + coords[X_IND]] = value == null ? Float.NaN : value
+                .floatValue();
+    }
+}
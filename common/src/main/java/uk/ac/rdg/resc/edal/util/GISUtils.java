@@ -36,7 +36,10 @@ import java.util.Comparator;
 import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
 
 import javax.naming.Context;
 import javax.naming.Name;
@@ -56,6 +59,7 @@ import org.opengis.referencing.ReferenceIdentifier;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 import org.opengis.referencing.operation.MathTransform;
 import org.opengis.referencing.operation.Matrix;
+import org.opengis.referencing.operation.TransformException;
 import org.opengis.util.FactoryException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -95,6 +99,21 @@ public final class GISUtils implements ObjectFactory {
     public final static double DEG2RAD = Math.PI / 180.0;
     private static final Logger log = LoggerFactory.getLogger(GISUtils.class);
 
+    /*
+     * The number of points transformed in each call to the MathTransform by
+     * transformCoordinates, and the number of points above which blocks are
+     * transformed in parallel
+     */
+    private static final int TRANSFORM_BLOCK_SIZE = 4096;
+    private static final int TRANSFORM_PARALLEL_THRESHOLD = 65536;
+    /*
+     * The maximum number of CRS pairs to keep transforms for. Only a few pairs
+     * are in use at any one time (e.g. between the CRSs of datasets and the CRS
+     * of a WMS client), so this can be small.
+     */
+    private static final int MAX_CACHED_TRANSFORMS = 32;
+    private static final Map<CrsPair, MathTransform> transformCache = new ConcurrentHashMap<>();
+
     /**
      * Returns the default Lon-Lat geographic CRS. This method guarantees that
      * the returned CRS complies to the following conditions:
@@ -144,7 +163,7 @@ public final class GISUtils implements ObjectFactory {
      */
     public static boolean isWgs84LonLat(CoordinateReferenceSystem coordinateReferenceSystem) {
         try {
-            return CRS.findMathTransform(coordinateReferenceSystem, DefaultGeographicCRS.WGS84)
+            return getTransform(coordinateReferenceSystem, DefaultGeographicCRS.WGS84)
                     .isIdentity();
         } catch (Exception e) {
             return false;
@@ -267,12 +286,8 @@ public final class GISUtils implements ObjectFactory {
         if (targetCrs == null) {
             throw new NullPointerException("Target CRS cannot be null");
         }
-        /*
-         * CRS.findMathTransform() caches recently-used transform objects so we
-         * should incur no large penalty for multiple invocations
-         */
         try {
-            MathTransform transform = CRS.findMathTransform(sourceCrs, targetCrs, true);
+            MathTransform transform = getTransform(sourceCrs, targetCrs);
             if (transform.isIdentity())
                 return pos;
             double[] point = new double[] { pos.getX(), pos.getY() };
@@ -283,6 +298,145 @@ public final class GISUtils implements ObjectFactory {
         }
     }
 
+    /**
+     * Transforms a set of coordinates from one coordinate reference system to
+     * another, in place. This should be used in preference to
+     * {@link #transformPosition(HorizontalPosition, CoordinateReferenceSystem)}
+     * when transforming many points between the same pair of CRSs, since it
+     * looks up the transform once and creates no objects per point. Large
+     * arrays are transformed in parallel.
+     * 
+     * Any points which cannot be transformed are set to {@link Double#NaN}.
+     * 
+     * @param sourceCrs
+     *            The {@link CoordinateReferenceSystem} of the supplied
+     *            coordinates
+     * @param targetCrs
+     *            The {@link CoordinateReferenceSystem} to transform the
+     *            coordinates to
+     * @param xy
+     *            The coordinates to transform, as (x,y) pairs - i.e.
+     *            <code>{x0, y0, x1, y1, ...}</code>. These are overwritten by
+     *            the transformed coordinates.
+     * @param n
+     *            The number of points to transform
+     * @throws NullPointerException
+     *             if either CRS is null
+     */
+    public static void transformCoordinates(CoordinateReferenceSystem sourceCrs,
+            CoordinateReferenceSystem targetCrs, final double[] xy, final int n) {
+        if (sourceCrs == null || targetCrs == null) {
+            throw new NullPointerException("CRSs cannot be null");
+        }
+        if (xy.length < 2 * n) {
+            throw new IllegalArgumentException("Array must contain at least " + (2 * n)
+                    + " values to hold " + n + " points");
+        }
+        final MathTransform transform;
+        try {
+            transform = getTransform(sourceCrs, targetCrs);
+        } catch (FactoryException e) {
+            throw new RuntimeException(e);
+        }
+        if (transform.isIdentity()) {
+            return;
+        }
+        int nBlocks = (n + TRANSFORM_BLOCK_SIZE - 1) / TRANSFORM_BLOCK_SIZE;
+        IntStream blocks = IntStream.range(0, nBlocks);
+        if (n > TRANSFORM_PARALLEL_THRESHOLD) {
+            blocks = blocks.parallel();
+        }
+        blocks.forEach(block -> {
+            int start = block * TRANSFORM_BLOCK_SIZE;
+            int nPoints = Math.min(TRANSFORM_BLOCK_SIZE, n - start);
+            /*
+             * Transform into a separate buffer, so that the original values
+             * are still available if the transformation fails part-way
+             */
+            double[] transformed = new double[2 * nPoints];
+            try {
+                transform.transform(xy, 2 * start, transformed, 0, nPoints);
+                System.arraycopy(transformed, 0, xy, 2 * start, 2 * nPoints);
+            } catch (TransformException e) {
+                /*
+                 * At least one point in this block could not be transformed.
+                 * Transform them individually so that only those points are
+                 * lost.
+                 */
+                double[] point = new double[2];
+                for (int i = start; i < start + nPoints; i++) {
+                    point[0] = xy[2 * i];
+                    point[1] = xy[2 * i + 1];
+                    try {
+                        transform.transform(point, 0, point, 0, 1);
+                        xy[2 * i] = point[0];
+                        xy[2 * i + 1] = point[1];
+                    } catch (TransformException e1) {
+                        xy[2 * i] = Double.NaN;
+                        xy[2 * i + 1] = Double.NaN;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Gets the (lenient) {@link MathTransform} between 2
+     * {@link CoordinateReferenceSystem}s.
+     * 
+     * {@link CRS#findMathTransform(CoordinateReferenceSystem, CoordinateReferenceSystem, boolean)}
+     * caches transforms itself, but looking them up compares the CRSs in
+     * detail. Callers transforming large numbers of points tend to use the
+     * same CRS objects, so we keep the most recent transforms in a cache keyed
+     * on CRS identity, which can be checked cheaply.
+     */
+    private static MathTransform getTransform(CoordinateReferenceSystem sourceCrs,
+            CoordinateReferenceSystem targetCrs) throws FactoryException {
+        CrsPair key = new CrsPair(sourceCrs, targetCrs);
+        MathTransform transform = transformCache.get(key);
+        if (transform == null) {
+            transform = CRS.findMathTransform(sourceCrs, targetCrs, true);
+            if (transformCache.size() >= MAX_CACHED_TRANSFORMS) {
+                /*
+                 * The set of CRSs in use has changed. Start again rather than
+                 * tracking which entries are least recently used.
+                 */
+                transformCache.clear();
+            }
+            transformCache.put(key, transform);
+        }
+        return transform;
+    }
+
+    /**
+     * A key for a pair of {@link CoordinateReferenceSystem}s, compared by
+     * identity
+     */
+    private static final class CrsPair {
+        private final CoordinateReferenceSystem source;
+        private final CoordinateReferenceSystem target;
+
+        public CrsPair(CoordinateReferenceSystem source, CoordinateReferenceSystem target) {
+            this.source = source;
+            this.target = target;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(source) + System.identityHashCode(target);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof CrsPair))
+                return false;
+            CrsPair other = (CrsPair) obj;
+            return source == other.source && target == other.target;
+        }
+    }
+
     /**
      * Transforms the given lat-lon heading to a different
      * {@link CoordinateReferenceSystem}
@@ -0,0 +1,454 @@
+/*******************************************************************************
+ * Copyright (c) 2017 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.geotoolkit.geometry.DirectPosition2D;
+import org.geotoolkit.referencing.CRS;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.MathTransform;
+import org.opengis.referencing.operation.Matrix;
+import org.opengis.referencing.operation.TransformException;
+import org.opengis.util.FactoryException;
+
+import uk.ac.rdg.resc.edal.geometry.BoundingBox;
+import uk.ac.rdg.resc.edal.position.HorizontalPosition;
+
+/**
+ * Transforms WGS84 headings into headings on an image, for every pixel of the
+ * image. This gives the same results as calling
+ * {@link GISUtils#transformWgs84Heading(Number, HorizontalPosition)} at each
+ * pixel, but the derivatives of the transform are only calculated on a coarse
+ * grid of points and bilinearly interpolated between them. This makes it
+ * suitable for layers which draw many glyphs in a projected CRS.
+ * 
+ * Where interpolation is not accurate enough (e.g. close to the pole of a
+ * polar stereographic projection, where headings change quickly), or where
+ * the transform cannot be evaluated, the exact transform is used instead.
+ * 
+ * Fields are cached, so that tiles which are requested repeatedly (e.g. by a
+ * WMS client) reuse the same field.
+ */
+public final class HeadingCorrectionField {
+    /*
+     * The spacing, in pixels, of the points at which derivatives are
+     * calculated
+     */
+    private static final int NODE_SPACING = 4;
+    /*
+     * The largest error allowed in the interpolated derivatives at the centre
+     * of a cell of nodes, relative to the magnitude of the exact derivatives,
+     * before the exact transform is used for the cell. This keeps heading
+     * errors below about 0.1 degrees.
+     */
+    private static final double TOLERANCE = 1e-3;
+    /* The maximum number of fields to cache */
+    private static final int MAX_CACHED_FIELDS = 64;
+    private static final Map<Key, HeadingCorrectionField> CACHE =
+            new LinkedHashMap<Key, HeadingCorrectionField>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, HeadingCorrectionField> eldest) {
+            return size() > MAX_CACHED_FIELDS;
+        }
+    };
+
+    private final int width;
+    private final int height;
+    /* The number of nodes in each direction */
+    private final int nx;
+    private final int ny;
+    /*
+     * The derivatives of the transform from WGS84 to the image CRS at each
+     * node, in the order d00, d01, d10, d11, or null if the transform is the
+     * identity
+     */
+    private final float[] derivatives;
+    /*
+     * Whether the exact transform must be used within each cell of nodes, or
+     * null if the transform is the identity
+     */
+    private final boolean[] exactCells;
+    /* The latitude of each node */
+    private final float[] latitudes;
+    /* Used to find the position of pixels for the exact transform */
+    private final CoordinateReferenceSystem crs;
+    private final double minX;
+    private final double maxY;
+    private final double xSpacing;
+    private final double ySpacing;
+
+    /**
+     * Gets the {@link HeadingCorrectionField} for an image
+     * 
+     * @param bbox
+     *            The {@link BoundingBox} of the image. Its
+     *            {@link CoordinateReferenceSystem} is the one which headings
+     *            will be transformed to.
+     * @param width
+     *            The width of the image, in pixels
+     * @param height
+     *            The height of the image, in pixels
+     * @return The {@link HeadingCorrectionField}
+     */
+    public static HeadingCorrectionField get(BoundingBox bbox, int width, int height) {
+        Key key = new Key(bbox, width, height);
+        synchronized (CACHE) {
+            HeadingCorrectionField field = CACHE.get(key);
+            if (field != null) {
+                return field;
+            }
+        }
+        /*
+         * Calculate outside of the lock. Two threads may occasionally calculate
+         * the same field, but the results are identical.
+         */
+        HeadingCorrectionField field = new HeadingCorrectionField(bbox, width, height);
+        synchronized (CACHE) {
+            CACHE.put(key, field);
+        }
+        return field;
+    }
+
+    private HeadingCorrectionField(BoundingBox bbox, int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.nx = Math.max(2, (width - 1 + NODE_SPACING - 1) / NODE_SPACING + 1);
+        this.ny = Math.max(2, (height - 1 + NODE_SPACING - 1) / NODE_SPACING + 1);
+
+        this.crs = bbox.getCoordinateReferenceSystem();
+        this.minX = bbox.getMinX();
+        this.maxY = bbox.getMaxY();
+        this.xSpacing = (bbox.getMaxX() - bbox.getMinX()) / width;
+        this.ySpacing = (bbox.getMaxY() - bbox.getMinY()) / height;
+        MathTransform wgs2crs = null;
+        if (crs != null) {
+            try {
+                wgs2crs = CRS.findMathTransform(GISUtils.defaultGeographicCRS(), crs, true);
+            } catch (FactoryException e) {
+                throw new IllegalArgumentException("Cannot transform headings to the CRS "
+                        + crs.getName(), e);
+            }
+        }
+
+        /*
+         * Find the position of each node in the image CRS, and then in WGS84.
+         * Image rows go downwards, so the first row of nodes is at the maximum
+         * y-value.
+         */
+        int n = nx * ny;
+        double[] lonLats = new double[2 * n];
+        for (int j = 0; j < ny; j++) {
+            for (int i = 0; i < nx; i++) {
+                int k = j * nx + i;
+                lonLats[2 * k] = getX(nodePosition(i, nx, width));
+                lonLats[2 * k + 1] = getY(nodePosition(j, ny, height));
+            }
+        }
+        if (crs != null) {
+            GISUtils.transformCoordinates(crs, GISUtils.defaultGeographicCRS(), lonLats, n);
+        }
+        latitudes = new float[n];
+        for (int k = 0; k < n; k++) {
+            latitudes[k] = (float) lonLats[2 * k + 1];
+        }
+
+        if (wgs2crs == null || wgs2crs.isIdentity()) {
+            derivatives = null;
+            exactCells = null;
+        } else {
+            derivatives = new float[4 * n];
+            for (int k = 0; k < n; k++) {
+                calculateDerivatives(wgs2crs, lonLats[2 * k], lonLats[2 * k + 1], derivatives,
+                        4 * k);
+            }
+
+            /*
+             * Check the interpolation at the centre of each cell of nodes
+             * against the exact derivatives there
+             */
+            int nCells = (nx - 1) * (ny - 1);
+            double[] centreLonLats = new double[2 * nCells];
+            for (int j = 0; j < ny - 1; j++) {
+                double y = getY((nodePosition(j, ny, height) + nodePosition(j + 1, ny,
+                        height)) / 2);
+                for (int i = 0; i < nx - 1; i++) {
+                    int c = j * (nx - 1) + i;
+                    centreLonLats[2 * c] = getX((nodePosition(i, nx, width) + nodePosition(i + 1,
+                            nx, width)) / 2);
+                    centreLonLats[2 * c + 1] = y;
+                }
+            }
+            GISUtils.transformCoordinates(crs, GISUtils.defaultGeographicCRS(), centreLonLats,
+                    nCells);
+            exactCells = new boolean[nCells];
+            float[] exact = new float[4];
+            for (int j = 0; j < ny - 1; j++) {
+                for (int i = 0; i < nx - 1; i++) {
+                    int c = j * (nx - 1) + i;
+                    calculateDerivatives(wgs2crs, centreLonLats[2 * c], centreLonLats[2 * c + 1],
+                            exact, 0);
+                    exactCells[c] = !isAccurate(j * nx + i, exact);
+                }
+            }
+        }
+    }
+
+    /*
+     * Calculates the derivatives of the transform at a point, and stores them
+     * in an array at the given offset. They are NaN if they cannot be
+     * calculated.
+     */
+    private static void calculateDerivatives(MathTransform wgs2crs, double lon, double lat,
+            float[] dest, int offset) {
+        try {
+            Matrix derivative = wgs2crs.derivative(new DirectPosition2D(lon, lat));
+            dest[offset] = (float) derivative.getElement(0, 0);
+            dest[offset + 1] = (float) derivative.getElement(0, 1);
+            dest[offset + 2] = (float) derivative.getElement(1, 0);
+            dest[offset + 3] = (float) derivative.getElement(1, 1);
+        } catch (TransformException | RuntimeException e) {
+            for (int d = 0; d < 4; d++) {
+                dest[offset + d] = Float.NaN;
+            }
+        }
+    }
+
+    /*
+     * Whether interpolating the derivatives at the centre of the cell with the
+     * given first node is close enough to the exact derivatives there. Each
+     * row of the derivative matrix is compared separately, since the rows may
+     * have very different magnitudes in non-conformal projections. Any NaN
+     * makes the cell inaccurate.
+     */
+    private boolean isAccurate(int k00, float[] exact) {
+        int k10 = k00 + 1;
+        int k01 = k00 + nx;
+        int k11 = k01 + 1;
+        for (int row = 0; row < 2; row++) {
+            double errorX = interpolate(2 * row, k00, k10, k01, k11, 0.25, 0.25, 0.25, 0.25)
+                    - exact[2 * row];
+            double errorY = interpolate(2 * row + 1, k00, k10, k01, k11, 0.25, 0.25, 0.25, 0.25)
+                    - exact[2 * row + 1];
+            if (!(Math.hypot(errorX, errorY) <= TOLERANCE
+                    * Math.hypot(exact[2 * row], exact[2 * row + 1]))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * The x-coordinate, in the image CRS, of the centre of the given
+     * (fractional) pixel
+     */
+    private double getX(double i) {
+        return minX + (i + 0.5) * xSpacing;
+    }
+
+    /*
+     * The y-coordinate, in the image CRS, of the centre of the given
+     * (fractional) pixel. Image rows go downwards.
+     */
+    private double getY(double j) {
+        return maxY - (j + 0.5) * ySpacing;
+    }
+
+    /*
+     * The pixel position of the given node along an axis with the given number
+     * of nodes and pixels
+     */
+    private static double nodePosition(int node, int nNodes, int nPixels) {
+        return (double) node * (nPixels - 1) / (nNodes - 1);
+    }
+
+    /**
+     * Transforms a WGS84 heading into a heading on the image
+     * 
+     * @param heading
+     *            The heading in degrees clockwise from north
+     * @param i
+     *            The x-pixel of the image
+     * @param j
+     *            The y-pixel of the image, increasing downwards
+     * @return The heading, in degrees clockwise from "upwards" on the image,
+     *         or <code>null</code> if the heading is missing
+     */
+    public Double transformHeading(Number heading, int i, int j) {
+        if (heading == null || Double.isNaN(heading.doubleValue())) {
+            return null;
+        }
+        if (derivatives == null) {
+            return heading.doubleValue();
+        }
+        /*
+         * Find the cell of nodes containing the pixel, and the bilinear
+         * interpolation weights
+         */
+        double x = (double) i * (nx - 1) / Math.max(1, width - 1);
+        double y = (double) j * (ny - 1) / Math.max(1, height - 1);
+        int i0 = Math.max(0, Math.min(nx - 2, (int) x));
+        int j0 = Math.max(0, Math.min(ny - 2, (int) y));
+        if (exactCells[j0 * (nx - 1) + i0]) {
+            try {
+                return GISUtils.transformWgs84Heading(heading, new HorizontalPosition(getX(i),
+                        getY(j), crs));
+            } catch (RuntimeException e) {
+                /* The heading cannot be transformed at this point */
+                return null;
+            }
+        }
+        double fx = x - i0;
+        double fy = y - j0;
+        int k00 = j0 * nx + i0;
+        int k10 = k00 + 1;
+        int k01 = k00 + nx;
+        int k11 = k01 + 1;
+        double w00 = (1 - fx) * (1 - fy);
+        double w10 = fx * (1 - fy);
+        double w01 = (1 - fx) * fy;
+        double w11 = fx * fy;
+
+        double d00 = interpolate(0, k00, k10, k01, k11, w00, w10, w01, w11);
+        double d01 = interpolate(1, k00, k10, k01, k11, w00, w10, w01, w11);
+        double d10 = interpolate(2, k00, k10, k01, k11, w00, w10, w01, w11);
+        double d11 = interpolate(3, k00, k10, k01, k11, w00, w10, w01, w11);
+
+        double radians = heading.doubleValue() * GISUtils.DEG2RAD;
+        double hx = Math.sin(radians);
+        double hy = Math.cos(radians);
+        double newX = d00 * hx + d01 * hy;
+        double newY = d10 * hx + d11 * hy;
+        return GISUtils.RAD2DEG * Math.atan2(newX, newY);
+    }
+
+    private double interpolate(int component, int k00, int k10, int k01, int k11, double w00,
+            double w10, double w01, double w11) {
+        return w00 * derivatives[4 * k00 + component] + w10 * derivatives[4 * k10 + component]
+                + w01 * derivatives[4 * k01 + component] + w11
+                * derivatives[4 * k11 + component];
+    }
+
+    /**
+     * @param i
+     *            The x-pixel of the image
+     * @param j
+     *            The y-pixel of the image, increasing downwards
+     * @return The (approximate) latitude of the given pixel
+     */
+    public double getLatitude(int i, int j) {
+        int nodeI = (int) Math.round((double) i * (nx - 1) / Math.max(1, width - 1));
+        int nodeJ = (int) Math.round((double) j * (ny - 1) / Math.max(1, height - 1));
+        nodeI = Math.max(0, Math.min(nx - 1, nodeI));
+        nodeJ = Math.max(0, Math.min(ny - 1, nodeJ));
+        return latitudes[nodeJ * nx + nodeI];
+    }
+
+    /**
+     * Removes all cached {@link HeadingCorrectionField}s
+     */
+    public static void clearCache() {
+        synchronized (CACHE) {
+            CACHE.clear();
+        }
+    }
+
+    /*
+     * The key for cached fields. The CRS is compared by equality, since the
+     * same CRS is generally requested many times.
+     */
+    private static final class Key {
+        private final double minX;
+        private final double minY;
+        private final double maxX;
+        private final double maxY;
+        private final CoordinateReferenceSystem crs;
+        private final int width;
+        private final int height;
+
+        public Key(BoundingBox bbox, int width, int height) {
+            this.minX = bbox.getMinX();
+            this.minY = bbox.getMinY();
+            this.maxX = bbox.getMaxX();
+            this.maxY = bbox.getMaxY();
+            this.crs = bbox.getCoordinateReferenceSystem();
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        public int hashCode() {
+            final int prime = 31;
+            int result = 1;
+            long temp;
+            temp = Double.doubleToLongBits(minX);
+            result = prime * result + (int) (temp ^ (temp >>> 32));
+            temp = Double.doubleToLongBits(minY);
+            result = prime * result + (int) (temp ^ (temp >>> 32));
+            temp = Double.doubleToLongBits(maxX);
+            result = prime * result + (int) (temp ^ (temp >>> 32));
+            temp = Double.doubleToLongBits(maxY);
+            result = prime * result + (int) (temp ^ (temp >>> 32));
+            result = prime * result + ((crs == null) ? 0 : crs.hashCode());
+            result = prime * result + width;
+            result = prime * result + height;
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (obj == null)
+                return false;
+            if (getClass() != obj.getClass())
+                return false;
+            Key other = (Key) obj;
+            if (Double.doubleToLongBits(minX) != Double.doubleToLongBits(other.minX))
+                return false;
+            if (Double.doubleToLongBits(minY) != Double.doubleToLongBits(other.minY))
+                return false;
+            if (Double.doubleToLongBits(maxX) != Double.doubleToLongBits(other.maxX))
+                return false;
+            if (Double.doubleToLongBits(maxY) != Double.doubleToLongBits(other.maxY))
+                return false;
+            if (width != other.width || height != other.height)
+                return false;
+            if (crs == null) {
+                if (other.crs != null)
+                    return false;
+            } else if (!crs.equals(other.crs))
+                return false;
+            return true;
+        }
+    }
+}
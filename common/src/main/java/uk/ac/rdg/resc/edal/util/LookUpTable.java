@@ -28,16 +28,22 @@
 
 package uk.ac.rdg.resc.edal.util;
 
-import java.awt.Color;
-import java.awt.Graphics2D;
-import java.awt.geom.AffineTransform;
-import java.awt.geom.Path2D;
 import java.awt.geom.Point2D;
-import java.awt.image.BufferedImage;
-import java.awt.image.ColorModel;
-import java.awt.image.DataBuffer;
-import java.awt.image.DirectColorModel;
-import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import uk.ac.rdg.resc.edal.geometry.BoundingBox;
 import uk.ac.rdg.resc.edal.util.CurvilinearCoords.Cell;
@@ -47,41 +53,46 @@ import uk.ac.rdg.resc.edal.util.CurvilinearCoords.Cell;
  * longitude-latitude coordinates to i and j index coordinates in a curvilinear
  * grid.
  * 
+ * The look-up table is built by rasterising the boundary of every cell of the
+ * grid, in parallel horizontal bands. It can either be held on the heap, or in
+ * a memory-mapped file which can later be re-used with {@link #load(File)}.
+ * 
  * @author Guy Griffiths
  * @author Jon
  */
 public final class LookUpTable {
     /*
      * The contents of the look-up table: i.e. the i and j indices of each
-     * lon-lat point in the LUT. These are flattened from a 2D to a 1D array. We
-     * store these as shorts to save disk space. The LUT would need to be
-     * extremely large before we would have to worry about overflows. Each array
-     * has the size nLon * nLat
+     * lon-lat point in the LUT. These are flattened from a 2D to a 1D array.
+     * Each has the size nLon * nLat
      */
-    private DataBuffer iIndices;
-    private DataBuffer jIndices;
-
-    private int nLon;
-    private int nLat;
+    private final IntBuffer iIndices;
+    private final IntBuffer jIndices;
 
-    // Converts from lat-lon coordinates to index space in the LUT.
-    private final AffineTransform transform = new AffineTransform();
+    private final int nLon;
+    private final int nLat;
 
-    /**
-     * A {@link DirectColorModel} that holds data as unsigned shorts, ignoring
-     * the red and alpha components. (int value = green &lt;&lt; 8 | blue)
+    /*
+     * These convert from lat-lon coordinates to index space in the LUT
      */
-    private static final ColorModel COLOR_MODEL = new DirectColorModel(16, 0x00000000, 0x0000ff00,
-            0x000000ff, 0x00000000);
+    private final double minLon;
+    private final double minLat;
+    private final double lonStride;
+    private final double latStride;
 
     /** This value in the look-up table means "missing value" */
-    private static final int MISSING_VALUE = 65535;
+    private static final int MISSING_VALUE = -1;
 
-    /** This is the maximum index that can be stored in the LUT */
-    private static final int MAX_INDEX = 65534;
+    /*
+     * Look-up table files consist of a header (magic number, nLon, nLat,
+     * padding, minLon, minLat, lonStride, latStride) followed by the i indices
+     * and then the j indices
+     */
+    private static final int FILE_MAGIC = 0x4c555432;
+    private static final int FILE_HEADER_SIZE = 48;
 
     /**
-     * Creates an empty look-up table (with all indices set to -1).
+     * Creates a look-up table held on the heap
      * 
      * @param curvCoords
      *            The {@link CurvilinearCoords} which this LUT will approximate
@@ -89,17 +100,167 @@ public final class LookUpTable {
      *            The minimum resolution of the LUT in degrees
      */
     public LookUpTable(CurvilinearCoords curvCoords, double minResolution) {
+        this(curvCoords, getSize(curvCoords, minResolution), null, null);
+    }
+
+    /*
+     * Sets up the transform and populates the given buffers (or new heap
+     * buffers if they are null)
+     */
+    private LookUpTable(CurvilinearCoords curvCoords, int[] size, IntBuffer iIndices,
+            IntBuffer jIndices) {
         BoundingBox bbox = curvCoords.getBoundingBox();
+        nLon = size[0];
+        nLat = size[1];
+        minLon = bbox.getMinX();
+        minLat = bbox.getMinY();
+        /*
+         * This ensures that the highest value of longitude (corresponding with
+         * nLon - 1) is getLonMax()
+         */
+        lonStride = (bbox.getMaxX() - bbox.getMinX()) / (nLon - 1);
+        latStride = (bbox.getMaxY() - bbox.getMinY()) / (nLat - 1);
 
-        double lonDiff = bbox.getMaxX() - bbox.getMinX();
-        double latDiff = bbox.getMaxY() - bbox.getMinY();
+        this.iIndices = iIndices == null ? IntBuffer.allocate(nLon * nLat) : iIndices;
+        this.jIndices = jIndices == null ? IntBuffer.allocate(nLon * nLat) : jIndices;
 
+        /* Populate the look-up tables */
+        makeLuts(curvCoords);
+    }
+
+    private LookUpTable(int nLon, int nLat, double minLon, double minLat, double lonStride,
+            double latStride, IntBuffer iIndices, IntBuffer jIndices) {
+        this.nLon = nLon;
+        this.nLat = nLat;
+        this.minLon = minLon;
+        this.minLat = minLat;
+        this.lonStride = lonStride;
+        this.latStride = latStride;
+        this.iIndices = iIndices;
+        this.jIndices = jIndices;
+    }
+
+    /**
+     * Creates a look-up table in a memory-mapped file, so that it does not
+     * occupy space on the heap and can be re-used with {@link #load(File)}.
+     * Any existing file is replaced.
+     * 
+     * @param curvCoords
+     *            The {@link CurvilinearCoords} which this LUT will approximate
+     * @param minResolution
+     *            The minimum resolution of the LUT in degrees
+     * @param file
+     *            The file to store the LUT in
+     * @return The new {@link LookUpTable}
+     * @throws IOException
+     *             If there is a problem writing the file
+     */
+    public static LookUpTable create(CurvilinearCoords curvCoords, double minResolution,
+            File file) throws IOException {
+        int[] size = getSize(curvCoords, minResolution);
+        long n = (long) size[0] * size[1];
+
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
         /*
-         * Now calculate the number of points in the LUT along the longitude and
-         * latitude directions
+         * Write to a temporary file first, so that an incomplete file is never
+         * loaded
          */
-        nLon = (int) Math.ceil(lonDiff / minResolution);
-        nLat = (int) Math.ceil(latDiff / minResolution);
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try (RandomAccessFile raf = new RandomAccessFile(tmpFile, "rw");
+                FileChannel channel = raf.getChannel()) {
+            raf.setLength(FILE_HEADER_SIZE + 8L * n);
+            /*
+             * The i and j indices are mapped separately, since a single mapping
+             * cannot exceed 2GB
+             */
+            MappedByteBuffer iBuffer = channel.map(MapMode.READ_WRITE, FILE_HEADER_SIZE, 4L * n);
+            MappedByteBuffer jBuffer = channel.map(MapMode.READ_WRITE, FILE_HEADER_SIZE + 4L * n,
+                    4L * n);
+            LookUpTable lut = new LookUpTable(curvCoords, size, iBuffer.asIntBuffer(),
+                    jBuffer.asIntBuffer());
+            iBuffer.force();
+            jBuffer.force();
+
+            MappedByteBuffer header = channel.map(MapMode.READ_WRITE, 0, FILE_HEADER_SIZE);
+            header.putInt(FILE_MAGIC);
+            header.putInt(lut.nLon);
+            header.putInt(lut.nLat);
+            header.putInt(0);
+            header.putDouble(lut.minLon);
+            header.putDouble(lut.minLat);
+            header.putDouble(lut.lonStride);
+            header.putDouble(lut.latStride);
+            header.force();
+        }
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        LookUpTable lut = load(file);
+        if (lut == null) {
+            throw new IOException("Could not read back look-up table from " + file);
+        }
+        return lut;
+    }
+
+    /**
+     * Loads a look-up table which was previously written by
+     * {@link #create(CurvilinearCoords, double, File)}. The file is memory
+     * mapped, rather than being read onto the heap.
+     * 
+     * @param file
+     *            The file containing the look-up table
+     * @return The {@link LookUpTable}, or <code>null</code> if the file does
+     *         not contain a valid look-up table
+     * @throws IOException
+     *             If there is a problem reading the file
+     */
+    public static LookUpTable load(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+                FileChannel channel = raf.getChannel()) {
+            if (channel.size() < FILE_HEADER_SIZE) {
+                return null;
+            }
+            MappedByteBuffer header = channel.map(MapMode.READ_ONLY, 0, FILE_HEADER_SIZE);
+            if (header.getInt() != FILE_MAGIC) {
+                return null;
+            }
+            int nLon = header.getInt();
+            int nLat = header.getInt();
+            header.getInt();
+            double minLon = header.getDouble();
+            double minLat = header.getDouble();
+            double lonStride = header.getDouble();
+            double latStride = header.getDouble();
+            long n = (long) nLon * nLat;
+            if (nLon <= 0 || nLat <= 0 || channel.size() != FILE_HEADER_SIZE + 8L * n) {
+                return null;
+            }
+            /*
+             * The mappings remain valid after the channel is closed
+             */
+            IntBuffer iIndices = channel.map(MapMode.READ_ONLY, FILE_HEADER_SIZE, 4L * n)
+                    .asIntBuffer();
+            IntBuffer jIndices = channel.map(MapMode.READ_ONLY, FILE_HEADER_SIZE + 4L * n, 4L * n)
+                    .asIntBuffer();
+            return new LookUpTable(nLon, nLat, minLon, minLat, lonStride, latStride, iIndices,
+                    jIndices);
+        }
+    }
+
+    /**
+     * Calculates the number of points in the LUT along the longitude and
+     * latitude directions
+     */
+    private static int[] getSize(CurvilinearCoords curvCoords, double minResolution) {
+        BoundingBox bbox = curvCoords.getBoundingBox();
+
+        double lonDiff = bbox.getMaxX() - bbox.getMinX();
+        double latDiff = bbox.getMaxY() - bbox.getMinY();
+
+        int nLon = (int) Math.ceil(lonDiff / minResolution);
+        int nLat = (int) Math.ceil(latDiff / minResolution);
 
         /*
          * If datasets get too big, we get integer overflow issues (when
@@ -116,6 +277,9 @@ public final class LookUpTable {
          * doesn't seem to actually be an issue performance-wise, which is one
          * of those things which is slightly weird, but that I'm happy to just
          * accept.
+         * 
+         * This also keeps each table of indices below the 2GB limit of a
+         * single memory-mapped region.
          */
         while (((long) nLon * (long) nLat) > Integer.MAX_VALUE * 0.2) {
             nLon *= 0.9;
@@ -127,93 +291,172 @@ public final class LookUpTable {
                     nLat);
             throw new IllegalStateException(msg);
         }
-
-        /*
-         * This ensures that the highest value of longitude (corresponding with
-         * nLon - 1) is getLonMax()
-         */
-        double lonStride = lonDiff / (nLon - 1);
-        double latStride = latDiff / (nLat - 1);
-
-        /* Create the transform. We scale by the inverse of the stride length */
-        transform.scale(1.0 / lonStride, 1.0 / latStride);
-        /* Then we translate by the minimum coordinate values */
-        transform.translate(-bbox.getMinX(), -bbox.getMinY());
-
-        /* Populate the look-up tables */
-        makeLuts(curvCoords);
+        return new int[] { nLon, nLat };
     }
 
     /**
-     * Generates the data for the look-up tables
+     * Generates the data for the look-up tables.
+     * 
+     * The LUT is divided into horizontal bands, each of which is filled by a
+     * separate thread. Each band paints the cells which overlap it in the
+     * order of {@link CurvilinearCoords#getCells()}, so where cells overlap
+     * the result is the same as painting all cells in order on a single
+     * thread.
      */
-    private void makeLuts(CurvilinearCoords curvCoords) {
+    private void makeLuts(final CurvilinearCoords curvCoords) {
+        int nThreads = Runtime.getRuntime().availableProcessors();
+        int nBands = Math.min(nLat, nThreads * 4);
+        final int bandHeight = (nLat + nBands - 1) / nBands;
+        nBands = (nLat + bandHeight - 1) / bandHeight;
+
         /*
-         * Create BufferedImages on which we will paint the i and j indices of
-         * cells
+         * Find which cells overlap each band
          */
-        BufferedImage iIm = createBufferedImage();
-        BufferedImage jIm = createBufferedImage();
-
-        /* Get graphics contexts onto which we'll paint */
-        Graphics2D ig2d = iIm.createGraphics();
-        Graphics2D jg2d = jIm.createGraphics();
-
-        /* Apply a transform so that we can paint in lat-lon coordinates */
-        ig2d.setTransform(transform);
-        jg2d.setTransform(transform);
+        final List<Cell> cells = curvCoords.getCells();
+        final RUIntArray[] bandCells = new RUIntArray[nBands];
+        int chunkSize = Math.max(16, cells.size() / nBands);
+        for (int b = 0; b < nBands; b++) {
+            bandCells[b] = new RUIntArray(chunkSize);
+        }
+        double[] xs = new double[4];
+        double[] ys = new double[4];
+        for (int c = 0; c < cells.size(); c++) {
+            if (!getCellCorners(cells.get(c), xs, ys)) {
+                continue;
+            }
+            double yMin = Math.min(Math.min(ys[0], ys[1]), Math.min(ys[2], ys[3]));
+            double yMax = Math.max(Math.max(ys[0], ys[1]), Math.max(ys[2], ys[3]));
+            int rowMin = Math.max(0, (int) Math.ceil(yMin));
+            int rowMax = Math.min(nLat - 1, (int) Math.ceil(yMax) - 1);
+            if (rowMin > rowMax) {
+                continue;
+            }
+            for (int b = rowMin / bandHeight; b <= rowMax / bandHeight; b++) {
+                bandCells[b].append(c);
+            }
+        }
 
         /*
-         * Populate the BufferedImages using the information from the
-         * curvilinear grid Iterate over all the cells in the grid, painting the
-         * i and j indices of the cell onto the BufferedImage
+         * Now paint each band
          */
-        for (Cell cell : curvCoords.getCells()) {
-            /* Get a Path representing the boundary of the cell */
-            Path2D path = cell.getBoundaryPath();
-            /*
-             * Paint the path onto the BufferedImages as polygons Use the i and
-             * j indices of the cell as the colours
-             */
-            if (cell.getI() > MAX_INDEX || cell.getJ() > MAX_INDEX) {
-                /* Very unlikely to happen! */
-                throw new IllegalStateException("Can't store indices greater than " + MAX_INDEX);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(nThreads, nBands));
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int b = 0; b < nBands; b++) {
+                final int band = b;
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        int rowMin = band * bandHeight;
+                        int rowMax = Math.min(nLat, rowMin + bandHeight) - 1;
+                        paintBand(cells, bandCells[band], rowMin, rowMax);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
             }
-            ig2d.setPaint(new Color(cell.getI()));
-            jg2d.setPaint(new Color(cell.getJ()));
-            ig2d.fill(path);
-            jg2d.fill(path);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted whilst building look-up table", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Problem building look-up table", e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private void paintBand(List<Cell> cells, RUIntArray cellIndices, int rowMin, int rowMax) {
+        for (int index = rowMin * nLon; index < (rowMax + 1) * nLon; index++) {
+            iIndices.put(index, MISSING_VALUE);
+            jIndices.put(index, MISSING_VALUE);
+        }
+
+        double[] xs = new double[4];
+        double[] ys = new double[4];
+        double[] intersections = new double[4];
+        for (int k = 0; k < cellIndices.size(); k++) {
+            Cell cell = cells.get(cellIndices.getInt(k));
+            getCellCorners(cell, xs, ys);
+            fillPolygon(xs, ys, intersections, rowMin, rowMax, cell.getI(), cell.getJ());
 
             /*
              * We paint a second copy of the cell, shifted by 360 degrees, to
              * handle the anti-meridian
              */
-            double shiftLon = cell.getCentre().getX() > 0.0 ? -360.0 : 360.0;
-            path.transform(AffineTransform.getTranslateInstance(shiftLon, 0.0));
-            ig2d.fill(path);
-            jg2d.fill(path);
+            double shift = (cell.getCentre().getX() > 0.0 ? -360.0 : 360.0) / lonStride;
+            for (int c = 0; c < 4; c++) {
+                xs[c] += shift;
+            }
+            fillPolygon(xs, ys, intersections, rowMin, rowMax, cell.getI(), cell.getJ());
         }
+    }
 
-        /* We only need to store the data buffers, not the whole BufferedImages */
-        iIndices = iIm.getRaster().getDataBuffer();
-        jIndices = jIm.getRaster().getDataBuffer();
+    /*
+     * Gets the corners of a cell in the index space of this LUT. Returns false
+     * if any of the corners are undefined.
+     */
+    private boolean getCellCorners(Cell cell, double[] xs, double[] ys) {
+        List<Point2D> corners = cell.getCorners();
+        for (int c = 0; c < 4; c++) {
+            Point2D corner = corners.get(c);
+            xs[c] = (corner.getX() - minLon) / lonStride;
+            ys[c] = (corner.getY() - minLat) / latStride;
+            if (Double.isNaN(xs[c]) || Double.isNaN(ys[c])) {
+                return false;
+            }
+        }
+        return true;
     }
 
-    /**
-     * Creates and returns a new {@link BufferedImage} that stores pixel data as
-     * unsigned shorts. Initializes all pixel values to {@link #MISSING_VALUE}.
-     * 
-     * @return
+    /*
+     * Fills a quadrilateral in the rows rowMin to rowMax of the LUT, using
+     * the even-odd rule. A LUT point (x, y) is filled if it lies inside the
+     * polygon, with points on the left and bottom edges counting as inside.
      */
-    private BufferedImage createBufferedImage() {
-        WritableRaster raster = COLOR_MODEL.createCompatibleWritableRaster(nLon, nLat);
-        BufferedImage im = new BufferedImage(COLOR_MODEL, raster, true, null);
-        for (int y = 0; y < im.getHeight(); y++) {
-            for (int x = 0; x < im.getWidth(); x++) {
-                im.setRGB(x, y, MISSING_VALUE);
+    private void fillPolygon(double[] xs, double[] ys, double[] intersections, int rowMin,
+            int rowMax, int i, int j) {
+        double yMin = Math.min(Math.min(ys[0], ys[1]), Math.min(ys[2], ys[3]));
+        double yMax = Math.max(Math.max(ys[0], ys[1]), Math.max(ys[2], ys[3]));
+        double xMin = Math.min(Math.min(xs[0], xs[1]), Math.min(xs[2], xs[3]));
+        double xMax = Math.max(Math.max(xs[0], xs[1]), Math.max(xs[2], xs[3]));
+        if (xMax < 0 || xMin >= nLon) {
+            return;
+        }
+        int firstRow = Math.max(rowMin, (int) Math.ceil(yMin));
+        int lastRow = Math.min(rowMax, (int) Math.ceil(yMax) - 1);
+        for (int row = firstRow; row <= lastRow; row++) {
+            /*
+             * Find where this row crosses the edges of the polygon
+             */
+            int nIntersections = 0;
+            for (int c = 0; c < 4; c++) {
+                double x0 = xs[c];
+                double y0 = ys[c];
+                double x1 = xs[(c + 1) % 4];
+                double y1 = ys[(c + 1) % 4];
+                if ((y0 <= row && row < y1) || (y1 <= row && row < y0)) {
+                    double x = x0 + (row - y0) * (x1 - x0) / (y1 - y0);
+                    /* Insertion sort: there are at most 4 intersections */
+                    int pos = nIntersections++;
+                    while (pos > 0 && intersections[pos - 1] > x) {
+                        intersections[pos] = intersections[pos - 1];
+                        pos--;
+                    }
+                    intersections[pos] = x;
+                }
+            }
+            for (int k = 0; k + 1 < nIntersections; k += 2) {
+                int colMin = Math.max(0, (int) Math.ceil(intersections[k]));
+                int colMax = Math.min(nLon - 1, (int) Math.ceil(intersections[k + 1]) - 1);
+                int index = row * nLon + colMin;
+                for (int col = colMin; col <= colMax; col++) {
+                    iIndices.put(index, i);
+                    jIndices.put(index, j);
+                    index++;
+                }
             }
         }
-        return im;
     }
 
     /**
@@ -232,9 +475,8 @@ public final class LookUpTable {
      */
     public int[] getGridCoordinates(double longitude, double latitude) {
         /* Convert from longitude-latitude to index space in this LUT */
-        Point2D indexPoint = transform.transform(new Point2D.Double(longitude, latitude), null);
-        int iLon = (int) Math.round(indexPoint.getX());
-        int iLat = (int) Math.round(indexPoint.getY());
+        int iLon = (int) Math.round((longitude - minLon) / lonStride);
+        int iLat = (int) Math.round((latitude - minLat) / latStride);
 
         if (iLon < 0 || iLat < 0 || iLon >= nLon || iLat >= nLat) {
             return null;
@@ -243,8 +485,8 @@ public final class LookUpTable {
         /* Find the index within the LUT */
         int index = iLon + (iLat * nLon);
         /* Extract the i and j indices of the nearest grid point */
-        int iIndex = iIndices.getElem(index);
-        int jIndex = jIndices.getElem(index);
+        int iIndex = iIndices.get(index);
+        int jIndex = jIndices.get(index);
 
         /* Check for missing values */
         if (iIndex == MISSING_VALUE || jIndex == MISSING_VALUE) {
@@ -267,15 +509,34 @@ public final class LookUpTable {
         return nLat;
     }
 
+    /**
+     * @return The number of bytes of heap memory used by the tables of this
+     *         LUT. This is 0 if they are held in a memory-mapped file.
+     */
+    public long getHeapSize() {
+        return iIndices.isDirect() ? 0L : 8L * nLon * nLat;
+    }
+
     @Override
     public int hashCode() {
+        /*
+         * The contents of the tables are not included: they are potentially
+         * very large, and are determined by the other fields for all practical
+         * purposes
+         */
         final int prime = 31;
         int result = 1;
-        result = prime * result + ((iIndices == null) ? 0 : iIndices.hashCode());
-        result = prime * result + ((jIndices == null) ? 0 : jIndices.hashCode());
+        long temp;
         result = prime * result + nLat;
         result = prime * result + nLon;
-        result = prime * result + ((transform == null) ? 0 : transform.hashCode());
+        temp = Double.doubleToLongBits(minLon);
+        result = prime * result + (int) (temp ^ (temp >>> 32));
+        temp = Double.doubleToLongBits(minLat);
+        result = prime * result + (int) (temp ^ (temp >>> 32));
+        temp = Double.doubleToLongBits(lonStride);
+        result = prime * result + (int) (temp ^ (temp >>> 32));
+        temp = Double.doubleToLongBits(latStride);
+        result = prime * result + (int) (temp ^ (temp >>> 32));
         return result;
     }
 
@@ -288,36 +549,25 @@ public final class LookUpTable {
         if (getClass() != obj.getClass())
             return false;
         LookUpTable other = (LookUpTable) obj;
-        if (iIndices == null) {
-            if (other.iIndices != null)
-                return false;
-        } else {
-            for (int i = 0; i < iIndices.getSize(); i++) {
-                if (iIndices.getElem(i) != other.iIndices.getElem(i)) {
-                    return false;
-                }
-            }
-        }
-        if (jIndices == null) {
-            if (other.jIndices != null)
-                return false;
-        } else {
-            for (int i = 0; i < jIndices.getSize(); i++) {
-                if (jIndices.getElem(i) != other.jIndices.getElem(i)) {
-                    return false;
-                }
-            }
-        }
         if (nLat != other.nLat)
             return false;
         if (nLon != other.nLon)
             return false;
-        if (transform == null) {
-            if (other.transform != null)
-                return false;
-        } else if (!transform.equals(other.transform))
+        if (Double.doubleToLongBits(minLon) != Double.doubleToLongBits(other.minLon))
+            return false;
+        if (Double.doubleToLongBits(minLat) != Double.doubleToLongBits(other.minLat))
+            return false;
+        if (Double.doubleToLongBits(lonStride) != Double.doubleToLongBits(other.lonStride))
+            return false;
+        if (Double.doubleToLongBits(latStride) != Double.doubleToLongBits(other.latStride))
+            return false;
+        /*
+         * IntBuffer equality compares the contents
+         */
+        if (!iIndices.equals(other.iIndices))
+            return false;
+        if (!jIndices.equals(other.jIndices))
             return false;
         return true;
     }
-
 }
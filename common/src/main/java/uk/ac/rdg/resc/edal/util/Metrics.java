@@ -0,0 +1,601 @@
+/*******************************************************************************
+ * Copyright (c) 2017 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.util;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A lightweight registry of counters and timers, used to find where the time
+ * goes when serving requests (reading data, mapping domains, evaluating
+ * plugins, rendering and encoding images etc.)
+ * 
+ * Metrics are identified by a name and optional labels, given as alternating
+ * label names and values (e.g. <code>"dataset", "foam"</code>). Names should
+ * follow the Prometheus conventions - counters end in <code>_total</code> and
+ * timers in <code>_seconds</code>.
+ * 
+ * Timings are recorded as histograms, and everything can be read through JMX
+ * (see {@link Metrics#registerMBean()}) or as text in the Prometheus
+ * exposition format (see {@link Metrics#writeText(Writer)}).
+ * 
+ * Metrics are enabled unless the system property <code>edal.metrics</code> is
+ * set to <code>false</code>. When they are disabled, every method returns
+ * immediately without recording anything.
+ * 
+ * Timing a section of code looks like:
+ * 
+ * <pre>
+ * long start = Metrics.start();
+ * ...
+ * Metrics.stop(start, "edal_something_seconds", "dataset", datasetId);
+ * </pre>
+ * 
+ * Where a counter is incremented very frequently (e.g. for every read call,
+ * which may be once per pixel), its labels can be formatted once in advance
+ * with {@link Metrics#counter(String, String...)}.
+ */
+public final class Metrics {
+    private static final Logger log = LoggerFactory.getLogger(Metrics.class);
+
+    /** The name under which metrics are registered with JMX */
+    public static final String OBJECT_NAME = "uk.ac.rdg.resc.edal:type=Metrics";
+
+    /** The counter of cache hits, labelled by cache */
+    public static final String CACHE_HITS = "edal_cache_hits_total";
+    /** The counter of cache misses, labelled by cache */
+    public static final String CACHE_MISSES = "edal_cache_misses_total";
+    /**
+     * The counter of map reads by the data reading strategy used, labelled by
+     * strategy and dataset
+     */
+    public static final String READ_STRATEGY = "edal_read_strategy_total";
+
+    /*
+     * The upper bounds (in seconds) of the histogram buckets used for timers
+     */
+    private static final double[] BUCKETS = new double[] { 0.001, 0.0025, 0.005, 0.01, 0.025,
+            0.05, 0.1, 0.25, 0.5, 1.0, 2.5, 5.0, 10.0, 30.0 };
+    /*
+     * The maximum number of distinct metrics. This guards against unbounded
+     * memory use if labels take many different values.
+     */
+    private static final int MAX_METRICS = 4096;
+    /* The value returned by start() when metrics are disabled */
+    private static final long DISABLED = Long.MIN_VALUE;
+
+    private static volatile boolean enabled = !"false".equalsIgnoreCase(System
+            .getProperty("edal.metrics"));
+
+    private static final Map<String, Counter> counters = new ConcurrentHashMap<>();
+    private static final Map<String, Timer> timers = new ConcurrentHashMap<>();
+    private static final LongAdder dropped = new LongAdder();
+
+    /**
+     * The management interface of the metrics registry
+     */
+    public static interface MetricsMXBean {
+        public boolean isEnabled();
+
+        public void setEnabled(boolean enabled);
+
+        /**
+         * @return The value of every counter, keyed by name and labels
+         */
+        public Map<String, Long> getCounters();
+
+        /**
+         * @return The number of timings recorded by every timer, keyed by name
+         *         and labels
+         */
+        public Map<String, Long> getTimerCounts();
+
+        /**
+         * @return The mean time recorded by every timer, in milliseconds, keyed
+         *         by name and labels
+         */
+        public Map<String, Double> getTimerMeanMillis();
+
+        /**
+         * @return The fraction of lookups which were hits, for every cache
+         *         which has been used
+         */
+        public Map<String, Double> getCacheHitRatios();
+
+        /**
+         * @return All metrics, in the Prometheus text exposition format
+         */
+        public String getText();
+
+        /**
+         * Discards all recorded metrics
+         */
+        public void reset();
+    }
+
+    private Metrics() {
+    }
+
+    /**
+     * @return Whether metrics are currently being recorded
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @param enabled
+     *            Whether metrics should be recorded
+     */
+    public static void setEnabled(boolean enabled) {
+        Metrics.enabled = enabled;
+    }
+
+    /**
+     * Increments a counter by 1
+     * 
+     * @param name
+     *            The name of the counter
+     * @param labels
+     *            Alternating label names and values
+     */
+    public static void increment(String name, String... labels) {
+        add(name, 1L, labels);
+    }
+
+    /**
+     * Adds an amount to a counter
+     * 
+     * @param name
+     *            The name of the counter
+     * @param amount
+     *            The amount to add
+     * @param labels
+     *            Alternating label names and values
+     */
+    public static void add(String name, long amount, String... labels) {
+        if (!enabled) {
+            return;
+        }
+        add(getKey(name, labels), name, labels, amount);
+    }
+
+    /**
+     * Gets a counter whose labels are formatted once, rather than every time
+     * it is incremented
+     * 
+     * @param name
+     *            The name of the counter
+     * @param labels
+     *            Alternating label names and values
+     * @return The {@link LabelledCounter}
+     */
+    public static LabelledCounter counter(String name, String... labels) {
+        return new LabelledCounter(name, labels.clone());
+    }
+
+    private static void add(String key, String name, String[] labels, long amount) {
+        Counter counter = counters.get(key);
+        if (counter == null) {
+            if (isFull()) {
+                dropped.increment();
+                return;
+            }
+            counter = counters.computeIfAbsent(key, k -> new Counter(name, labels));
+        }
+        counter.value.add(amount);
+    }
+
+    /**
+     * Records a cache lookup
+     * 
+     * @param cache
+     *            The name of the cache
+     * @param hit
+     *            Whether the lookup was a hit
+     */
+    public static void cacheLookup(String cache, boolean hit) {
+        increment(hit ? CACHE_HITS : CACHE_MISSES, "cache", cache);
+    }
+
+    /**
+     * Starts timing something
+     * 
+     * @return A start time to pass to
+     *         {@link Metrics#stop(long, String, String...)}
+     */
+    public static long start() {
+        return enabled ? System.nanoTime() : DISABLED;
+    }
+
+    /**
+     * Stops timing something, and records the elapsed time
+     * 
+     * @param start
+     *            The value returned by {@link Metrics#start()}
+     * @param name
+     *            The name of the timer
+     * @param labels
+     *            Alternating label names and values
+     */
+    public static void stop(long start, String name, String... labels) {
+        if (start == DISABLED) {
+            return;
+        }
+        record(name, System.nanoTime() - start, labels);
+    }
+
+    /**
+     * Records a timing
+     * 
+     * @param name
+     *            The name of the timer
+     * @param nanos
+     *            The time to record, in nanoseconds
+     * @param labels
+     *            Alternating label names and values
+     */
+    public static void record(String name, long nanos, String... labels) {
+        if (!enabled) {
+            return;
+        }
+        String key = getKey(name, labels);
+        Timer timer = timers.get(key);
+        if (timer == null) {
+            if (isFull()) {
+                dropped.increment();
+                return;
+            }
+            timer = timers.computeIfAbsent(key, k -> new Timer(name, labels));
+        }
+        timer.record(nanos);
+    }
+
+    /**
+     * @param name
+     *            The name of the counter
+     * @param labels
+     *            Alternating label names and values
+     * @return The current value of the counter
+     */
+    public static long getCount(String name, String... labels) {
+        Counter counter = counters.get(getKey(name, labels));
+        return counter == null ? 0L : counter.value.sum();
+    }
+
+    /**
+     * @param name
+     *            The name of the timer
+     * @param labels
+     *            Alternating label names and values
+     * @return The number of timings recorded by the timer
+     */
+    public static long getTimerCount(String name, String... labels) {
+        Timer timer = timers.get(getKey(name, labels));
+        return timer == null ? 0L : timer.count.sum();
+    }
+
+    /**
+     * Discards all recorded metrics
+     */
+    public static void reset() {
+        counters.clear();
+        timers.clear();
+        dropped.reset();
+    }
+
+    /**
+     * Writes all metrics in the Prometheus text exposition format
+     * 
+     * @param writer
+     *            The {@link Writer} to write to
+     * @throws IOException
+     *             If there is a problem writing the metrics
+     */
+    public static void writeText(Writer writer) throws IOException {
+        String lastName = null;
+        for (Counter counter : sorted(counters.values())) {
+            if (!counter.name.equals(lastName)) {
+                writer.write("# TYPE " + counter.name + " counter\n");
+                lastName = counter.name;
+            }
+            writer.write(counter.name + braces(counter.labels) + " " + counter.value.sum()
+                    + "\n");
+        }
+        for (Timer timer : sorted(timers.values())) {
+            if (!timer.name.equals(lastName)) {
+                writer.write("# TYPE " + timer.name + " histogram\n");
+                lastName = timer.name;
+            }
+            String separator = timer.labels.isEmpty() ? "" : ",";
+            long cumulative = 0L;
+            for (int i = 0; i < BUCKETS.length; i++) {
+                cumulative += timer.buckets[i].sum();
+                writer.write(timer.name + "_bucket{" + timer.labels + separator + "le=\""
+                        + BUCKETS[i] + "\"} " + cumulative + "\n");
+            }
+            long count = timer.count.sum();
+            writer.write(timer.name + "_bucket{" + timer.labels + separator + "le=\"+Inf\"} "
+                    + count + "\n");
+            writer.write(timer.name + "_sum" + braces(timer.labels) + " "
+                    + (timer.totalNanos.sum() / 1e9) + "\n");
+            writer.write(timer.name + "_count" + braces(timer.labels) + " " + count + "\n");
+        }
+        writer.write("# TYPE edal_metrics_dropped_total counter\n");
+        writer.write("edal_metrics_dropped_total " + dropped.sum() + "\n");
+        writer.flush();
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server, under
+     * {@link Metrics#OBJECT_NAME}. If they are already registered, this does
+     * nothing.
+     */
+    public static void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(new MBean(), name);
+            }
+        } catch (JMException e) {
+            log.warn("Could not register metrics with JMX", e);
+        }
+    }
+
+    /**
+     * Removes the metrics from the platform MBean server, if they are
+     * registered
+     */
+    public static void unregisterMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException e) {
+            log.warn("Could not unregister metrics from JMX", e);
+        }
+    }
+
+    private static boolean isFull() {
+        return counters.size() + timers.size() >= MAX_METRICS;
+    }
+
+    private static String getKey(String name, String[] labels) {
+        if (labels.length == 0) {
+            return name;
+        }
+        return name + braces(formatLabels(labels));
+    }
+
+    private static String braces(String labels) {
+        return labels.isEmpty() ? "" : "{" + labels + "}";
+    }
+
+    /*
+     * Formats labels as name="value" pairs, escaped as the Prometheus format
+     * requires
+     */
+    private static String formatLabels(String[] labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels must be given as name-value pairs");
+        }
+        StringBuilder formatted = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                formatted.append(',');
+            }
+            String value = labels[i + 1] == null ? "" : labels[i + 1];
+            formatted.append(labels[i]).append("=\"")
+                    .append(value.replace("\\", "\\\\").replace("\"", "\\\"")
+                            .replace("\n", "\\n")).append('"');
+        }
+        return formatted.toString();
+    }
+
+    private static <M extends Metric> List<M> sorted(Collection<M> metrics) {
+        List<M> ret = new ArrayList<>(metrics);
+        ret.sort(Comparator.comparing((M metric) -> metric.name).thenComparing(
+                metric -> metric.labels));
+        return ret;
+    }
+
+    /**
+     * A counter with a fixed name and labels. Incrementing it only needs a
+     * lookup of its pre-formatted key. It remains valid if the metrics are
+     * reset.
+     */
+    public static final class LabelledCounter {
+        private final String name;
+        private final String[] labels;
+        private final String key;
+
+        private LabelledCounter(String name, String[] labels) {
+            this.name = name;
+            this.labels = labels;
+            this.key = getKey(name, labels);
+        }
+
+        /**
+         * Increments this counter by 1
+         */
+        public void increment() {
+            add(1L);
+        }
+
+        /**
+         * Adds an amount to this counter
+         * 
+         * @param amount
+         *            The amount to add
+         */
+        public void add(long amount) {
+            if (enabled) {
+                Metrics.add(key, name, labels, amount);
+            }
+        }
+    }
+
+    private static abstract class Metric {
+        final String name;
+        /* The formatted labels, without braces */
+        final String labels;
+
+        Metric(String name, String[] labels) {
+            this.name = name;
+            this.labels = formatLabels(labels);
+        }
+    }
+
+    private static final class Counter extends Metric {
+        final LongAdder value = new LongAdder();
+
+        Counter(String name, String[] labels) {
+            super(name, labels);
+        }
+    }
+
+    private static final class Timer extends Metric {
+        final LongAdder count = new LongAdder();
+        final LongAdder totalNanos = new LongAdder();
+        /* The number of timings in each bucket (i.e. not cumulative) */
+        final LongAdder[] buckets = new LongAdder[BUCKETS.length];
+
+        Timer(String name, String[] labels) {
+            super(name, labels);
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long nanos) {
+            count.increment();
+            totalNanos.add(nanos);
+            double seconds = nanos / 1e9;
+            for (int i = 0; i < BUCKETS.length; i++) {
+                if (seconds <= BUCKETS[i]) {
+                    buckets[i].increment();
+                    break;
+                }
+            }
+        }
+    }
+
+    private static final class MBean implements MetricsMXBean {
+        @Override
+        public boolean isEnabled() {
+            return Metrics.isEnabled();
+        }
+
+        @Override
+        public void setEnabled(boolean enabled) {
+            Metrics.setEnabled(enabled);
+        }
+
+        @Override
+        public Map<String, Long> getCounters() {
+            Map<String, Long> ret = new TreeMap<>();
+            for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+                ret.put(entry.getKey(), entry.getValue().value.sum());
+            }
+            return ret;
+        }
+
+        @Override
+        public Map<String, Long> getTimerCounts() {
+            Map<String, Long> ret = new TreeMap<>();
+            for (Map.Entry<String, Timer> entry : timers.entrySet()) {
+                ret.put(entry.getKey(), entry.getValue().count.sum());
+            }
+            return ret;
+        }
+
+        @Override
+        public Map<String, Double> getTimerMeanMillis() {
+            Map<String, Double> ret = new TreeMap<>();
+            for (Map.Entry<String, Timer> entry : timers.entrySet()) {
+                Timer timer = entry.getValue();
+                long count = timer.count.sum();
+                ret.put(entry.getKey(), count == 0 ? 0.0 : timer.totalNanos.sum() / 1e6
+                        / count);
+            }
+            return ret;
+        }
+
+        @Override
+        public Map<String, Double> getCacheHitRatios() {
+            Map<String, Double> ret = new TreeMap<>();
+            for (Counter counter : counters.values()) {
+                if (counter.name.equals(CACHE_HITS) || counter.name.equals(CACHE_MISSES)) {
+                    String cache = braces(counter.labels);
+                    long hits = getCount(CACHE_HITS + cache);
+                    long misses = getCount(CACHE_MISSES + cache);
+                    ret.put(counter.labels, hits + misses == 0 ? 0.0 : (double) hits
+                            / (hits + misses));
+                }
+            }
+            return ret;
+        }
+
+        @Override
+        public String getText() {
+            StringWriter writer = new StringWriter();
+            try {
+                writeText(writer);
+            } catch (IOException e) {
+                /* StringWriter doesn't throw IOExceptions */
+            }
+            return writer.toString();
+        }
+
+        @Override
+        public void reset() {
+            Metrics.reset();
+        }
+    }
+}
@@ -0,0 +1,311 @@
+/*******************************************************************************
+ * Copyright (c) 2017 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.util;
+
+import java.io.Serializable;
+import java.util.Collection;
+
+import uk.ac.rdg.resc.edal.domain.Extent;
+
+/**
+ * An immutable summary of a set of numerical values: the number of (non-null,
+ * non-NaN) values, their minimum, maximum and mean, and a histogram with a
+ * fixed number of equal-width bins spanning the minimum to the maximum.
+ * 
+ * Summaries of separate sets of values can be combined with
+ * {@link ValueStatistics#merge(Collection)}, so that statistics for (e.g.)
+ * individual slices of a dataset can be combined into statistics for the
+ * whole dataset without re-reading any data.
+ */
+public class ValueStatistics implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /** The default number of histogram bins */
+    public static final int DEFAULT_NUM_BINS = 100;
+
+    private final long count;
+    private final double min;
+    private final double max;
+    private final double sum;
+    /*
+     * Counts in each bin. These are doubles because merging histograms with
+     * different bin edges distributes counts between bins proportionally
+     */
+    private final double[] histogram;
+
+    private ValueStatistics(long count, double min, double max, double sum, double[] histogram) {
+        this.count = count;
+        this.min = min;
+        this.max = max;
+        this.sum = sum;
+        this.histogram = histogram;
+    }
+
+    /**
+     * Calculates the statistics of a set of values, using the default number
+     * of histogram bins
+     * 
+     * @param values
+     *            The values to summarise. <code>null</code> values and NaNs are
+     *            ignored
+     * @return The {@link ValueStatistics} of the values
+     */
+    public static ValueStatistics fromValues(Iterable<? extends Number> values) {
+        return fromValues(values, DEFAULT_NUM_BINS);
+    }
+
+    /**
+     * Calculates the statistics of a set of values
+     * 
+     * @param values
+     *            The values to summarise. <code>null</code> values and NaNs are
+     *            ignored
+     * @param numBins
+     *            The number of bins to use in the histogram
+     * @return The {@link ValueStatistics} of the values
+     */
+    public static ValueStatistics fromValues(Iterable<? extends Number> values, int numBins) {
+        if (numBins < 1) {
+            throw new IllegalArgumentException("Histograms must have at least one bin");
+        }
+        long count = 0;
+        double min = Double.MAX_VALUE;
+        double max = -Double.MAX_VALUE;
+        double sum = 0.0;
+        for (Number value : values) {
+            if (value != null) {
+                double v = value.doubleValue();
+                if (!Double.isNaN(v)) {
+                    count++;
+                    sum += v;
+                    min = Math.min(min, v);
+                    max = Math.max(max, v);
+                }
+            }
+        }
+        double[] histogram = new double[numBins];
+        if (count == 0) {
+            return new ValueStatistics(0, Double.NaN, Double.NaN, 0.0, histogram);
+        }
+        /*
+         * Second pass to populate the histogram, now that we know its range
+         */
+        for (Number value : values) {
+            if (value != null) {
+                double v = value.doubleValue();
+                if (!Double.isNaN(v)) {
+                    histogram[getBin(v, min, max, numBins)]++;
+                }
+            }
+        }
+        return new ValueStatistics(count, min, max, sum, histogram);
+    }
+
+    /**
+     * Combines a number of {@link ValueStatistics} into a single summary, as
+     * though it had been calculated from all of their values at once. The
+     * count, minimum, maximum and mean are exact. The histogram is
+     * approximate, since the counts in each source bin are assumed to be
+     * evenly distributed across that bin.
+     * 
+     * @param statistics
+     *            The {@link ValueStatistics} to merge
+     * @return The merged {@link ValueStatistics}, with the same number of bins
+     *         as the first of the supplied statistics (or
+     *         {@link ValueStatistics#DEFAULT_NUM_BINS} if none were supplied)
+     */
+    public static ValueStatistics merge(Collection<ValueStatistics> statistics) {
+        int numBins = DEFAULT_NUM_BINS;
+        long count = 0;
+        double min = Double.MAX_VALUE;
+        double max = -Double.MAX_VALUE;
+        double sum = 0.0;
+        boolean first = true;
+        for (ValueStatistics stats : statistics) {
+            if (first) {
+                numBins = stats.histogram.length;
+                first = false;
+            }
+            if (stats.count > 0) {
+                count += stats.count;
+                sum += stats.sum;
+                min = Math.min(min, stats.min);
+                max = Math.max(max, stats.max);
+            }
+        }
+        double[] histogram = new double[numBins];
+        if (count == 0) {
+            return new ValueStatistics(0, Double.NaN, Double.NaN, 0.0, histogram);
+        }
+        for (ValueStatistics stats : statistics) {
+            if (stats.count == 0) {
+                continue;
+            }
+            int sourceBins = stats.histogram.length;
+            double sourceWidth = (stats.max - stats.min) / sourceBins;
+            for (int i = 0; i < sourceBins; i++) {
+                double binCount = stats.histogram[i];
+                if (binCount == 0) {
+                    continue;
+                }
+                if (sourceWidth == 0.0 || max == min) {
+                    histogram[getBin(stats.min, min, max, numBins)] += binCount;
+                    continue;
+                }
+                /*
+                 * Spread this bin's count over the target bins it overlaps
+                 */
+                double low = stats.min + i * sourceWidth;
+                double high = low + sourceWidth;
+                int lowBin = getBin(low, min, max, numBins);
+                int highBin = getBin(high, min, max, numBins);
+                double targetWidth = (max - min) / numBins;
+                for (int j = lowBin; j <= highBin; j++) {
+                    double overlap = Math.min(high, min + (j + 1) * targetWidth)
+                            - Math.max(low, min + j * targetWidth);
+                    if (overlap > 0) {
+                        histogram[j] += binCount * overlap / sourceWidth;
+                    }
+                }
+            }
+        }
+        return new ValueStatistics(count, min, max, sum, histogram);
+    }
+
+    private static int getBin(double value, double min, double max, int numBins) {
+        if (max <= min) {
+            return 0;
+        }
+        int bin = (int) ((value - min) / (max - min) * numBins);
+        return Math.max(0, Math.min(numBins - 1, bin));
+    }
+
+    /**
+     * @return The number of values which were summarised
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return The minimum value, or NaN if there were no values
+     */
+    public double getMin() {
+        return min;
+    }
+
+    /**
+     * @return The maximum value, or NaN if there were no values
+     */
+    public double getMax() {
+        return max;
+    }
+
+    /**
+     * @return The mean value, or NaN if there were no values
+     */
+    public double getMean() {
+        return count == 0 ? Double.NaN : sum / count;
+    }
+
+    /**
+     * @return The range of values, or an empty {@link Extent} if there were
+     *         no values
+     */
+    public Extent<Float> getValueRange() {
+        if (count == 0) {
+            return Extents.emptyExtent();
+        }
+        return Extents.newExtent((float) min, (float) max);
+    }
+
+    /**
+     * @return A copy of the histogram. This has equal-width bins spanning
+     *         {@link ValueStatistics#getMin()} to
+     *         {@link ValueStatistics#getMax()}
+     */
+    public double[] getHistogram() {
+        return histogram.clone();
+    }
+
+    /**
+     * Estimates a percentile of the values from the histogram, assuming that
+     * values are evenly distributed within each bin.
+     * 
+     * @param percentile
+     *            The percentile to find, between 0 and 100
+     * @return The estimated value at the given percentile, or NaN if there
+     *         were no values
+     */
+    public double getPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("Percentile must be between 0 and 100");
+        }
+        if (count == 0) {
+            return Double.NaN;
+        }
+        if (max == min) {
+            return min;
+        }
+        double target = count * percentile / 100.0;
+        double binWidth = (max - min) / histogram.length;
+        double cumulative = 0.0;
+        for (int i = 0; i < histogram.length; i++) {
+            if (histogram[i] > 0 && cumulative + histogram[i] >= target) {
+                double fraction = (target - cumulative) / histogram[i];
+                return min + (i + fraction) * binWidth;
+            }
+            cumulative += histogram[i];
+        }
+        return max;
+    }
+
+    /**
+     * Estimates the range of values between two percentiles
+     * 
+     * @param lowPercentile
+     *            The lower percentile, between 0 and 100
+     * @param highPercentile
+     *            The upper percentile, between 0 and 100
+     * @return An {@link Extent} spanning the two percentiles, or an empty
+     *         {@link Extent} if there were no values
+     */
+    public Extent<Float> getPercentileRange(double lowPercentile, double highPercentile) {
+        if (count == 0) {
+            return Extents.emptyExtent();
+        }
+        return Extents.newExtent((float) getPercentile(lowPercentile),
+                (float) getPercentile(highPercentile));
+    }
+
+    @Override
+    public String toString() {
+        return "count: " + count + ", min: " + min + ", max: " + max + ", mean: " + getMean();
+    }
+}
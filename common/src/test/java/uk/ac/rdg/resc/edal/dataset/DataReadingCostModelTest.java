@@ -0,0 +1,171 @@
+/*******************************************************************************
+ * Copyright (c) 2017 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.dataset;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.rdg.resc.edal.grid.RegularGridImpl;
+import uk.ac.rdg.resc.edal.util.Array4D;
+import uk.ac.rdg.resc.edal.util.GISUtils;
+import uk.ac.rdg.resc.edal.util.Metrics;
+import uk.ac.rdg.resc.edal.util.ValuesArray4D;
+
+/**
+ * Tests the estimates, choices and learning of a {@link DataReadingCostModel}
+ */
+public class DataReadingCostModelTest {
+    private RegularGridImpl sourceGrid;
+    private Domain2DMapper denseMapper;
+    private Domain2DMapper sparseMapper;
+
+    @Before
+    public void setUp() {
+        sourceGrid = new RegularGridImpl(-100, -50, 100, 50, GISUtils.defaultGeographicCRS(),
+                1000, 500);
+        /*
+         * Every 5th source cell in each direction
+         */
+        denseMapper = Domain2DMapper.forGrid(sourceGrid, new RegularGridImpl(-100, -50, 100, 50,
+                GISUtils.defaultGeographicCRS(), 200, 100));
+        /*
+         * A handful of cells spread across the whole source grid
+         */
+        sparseMapper = Domain2DMapper.forGrid(sourceGrid, new RegularGridImpl(-100, -50, 100, 50,
+                GISUtils.defaultGeographicCRS(), 3, 3));
+    }
+
+    @Test
+    public void testEstimates() {
+        assertEquals(20000, denseMapper.getNumUniqueIJPairs());
+        assertEquals(100, denseMapper.getNumUniqueJIndices());
+        assertEquals(true, denseMapper.hasExactStrides());
+        assertEquals(996 * 496, denseMapper.getBoundingBoxSize());
+
+        assertArrayEquals(new long[] { 1, 996 * 496 }, DataReadingCostModel.estimateReads(
+                DataReadingStrategy.BOUNDING_BOX, denseMapper, null));
+        assertArrayEquals(new long[] { 1, 20000 }, DataReadingCostModel.estimateReads(
+                DataReadingStrategy.STRIDED, denseMapper, null));
+        assertArrayEquals(new long[] { 100, 100 * 996 }, DataReadingCostModel.estimateReads(
+                DataReadingStrategy.SCANLINE, denseMapper, null));
+        assertArrayEquals(new long[] { 20000, 20000 }, DataReadingCostModel.estimateReads(
+                DataReadingStrategy.PIXEL_BY_PIXEL, denseMapper, null));
+
+        /*
+         * With 100x100 chunks, whole chunks are read every time
+         */
+        int[] chunks = new int[] { 100, 100 };
+        assertArrayEquals(new long[] { 1, 500000 }, DataReadingCostModel.estimateReads(
+                DataReadingStrategy.BOUNDING_BOX, denseMapper, chunks));
+        assertArrayEquals(new long[] { 1, 500000 }, DataReadingCostModel.estimateReads(
+                DataReadingStrategy.STRIDED, denseMapper, chunks));
+        assertArrayEquals(new long[] { 100, 10000000 }, DataReadingCostModel.estimateReads(
+                DataReadingStrategy.SCANLINE, denseMapper, chunks));
+        assertArrayEquals(new long[] { 50, 500000 }, DataReadingCostModel.estimateReads(
+                DataReadingStrategy.CHUNKED, denseMapper, chunks));
+        /*
+         * Each of the sparse points is in its own chunk
+         */
+        assertArrayEquals(new long[] { 9, 90000 }, DataReadingCostModel.estimateReads(
+                DataReadingStrategy.CHUNKED, sparseMapper, chunks));
+    }
+
+    @Test
+    public void testChoice() {
+        /*
+         * Expensive calls: a single read is always best
+         */
+        DataReadingCostModel remote = new DataReadingCostModel(100.0, 1.0);
+        assertEquals(DataReadingStrategy.STRIDED, remote.chooseStrategy(denseMapper, null));
+        assertEquals(DataReadingStrategy.BOUNDING_BOX, remote.chooseStrategy(sparseMapper, null));
+        assertEquals(Long.valueOf(1L),
+                remote.getDecisionCounts().get(DataReadingStrategy.BOUNDING_BOX));
+
+        /*
+         * Cheap calls: sparse requests are best read pixel-by-pixel
+         */
+        DataReadingCostModel local = new DataReadingCostModel(0.001, 5.0);
+        assertEquals(DataReadingStrategy.PIXEL_BY_PIXEL, local.chooseStrategy(sparseMapper, null));
+    }
+
+    @Test
+    public void testStrategyCounted() throws Exception {
+        Metrics.setEnabled(true);
+        Metrics.reset();
+        /* Returns zeroes of the requested size */
+        GridDataSource dataSource = new GridDataSource() {
+            @Override
+            public Array4D<Number> read(String variableId, int tmin, int tmax, int zmin,
+                    int zmax, int ymin, int ymax, int xmin, int xmax) {
+                return new ValuesArray4D(tmax - tmin + 1, zmax - zmin + 1, ymax - ymin + 1, xmax
+                        - xmin + 1);
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        DataReadingCostModel model = new DataReadingCostModel(50.0, 1.0);
+        DataReadingStrategy strategy = model.chooseStrategy(denseMapper, null);
+        model.readMapData(dataSource, "var", 0, 0, denseMapper, "test-dataset");
+        model.readMapData(dataSource, "var", 0, 0, denseMapper, "test-dataset");
+        assertEquals(2L, Metrics.getCount(Metrics.READ_STRATEGY, "strategy", strategy.name(),
+                "dataset", "test-dataset"));
+        Metrics.reset();
+    }
+
+    @Test
+    public void testLearning() {
+        DataReadingCostModel model = new DataReadingCostModel(1.0, 1.0);
+
+        /*
+         * All reads are the same shape, so only the overall scale can be learnt
+         */
+        for (int i = 0; i < 10; i++) {
+            model.observe(1, 1000, 2.002);
+        }
+        assertEquals(2.0, model.getCallCostMillis(), 1e-6);
+        assertEquals(2.0, model.getCellCostNanos(), 1e-6);
+
+        /*
+         * Now reads of different shapes take 10ms per call and 100ns per cell
+         */
+        for (int i = 0; i < 100; i++) {
+            long calls = 1 + (i % 7) * 20;
+            long cells = 1000 + (i % 5) * 100000;
+            model.observe(calls, cells, 10.0 * calls + 1e-4 * cells);
+        }
+        assertEquals(10.0, model.getCallCostMillis(), 1e-3);
+        assertEquals(100.0, model.getCellCostNanos(), 1e-3);
+        assertEquals(110, model.getNumTimedReads());
+    }
+}
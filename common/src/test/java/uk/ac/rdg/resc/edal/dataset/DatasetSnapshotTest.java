@@ -0,0 +1,247 @@
+/*******************************************************************************
+ * Copyright (c) 2017 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.dataset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.rdg.resc.edal.dataset.plugins.VectorPlugin;
+import uk.ac.rdg.resc.edal.exceptions.DataReadingException;
+import uk.ac.rdg.resc.edal.exceptions.EdalException;
+import uk.ac.rdg.resc.edal.grid.HorizontalGrid;
+import uk.ac.rdg.resc.edal.grid.LookUpTableGrid;
+import uk.ac.rdg.resc.edal.grid.RegularGridImpl;
+import uk.ac.rdg.resc.edal.metadata.GridVariableMetadata;
+import uk.ac.rdg.resc.edal.metadata.Parameter;
+import uk.ac.rdg.resc.edal.util.Array2D;
+import uk.ac.rdg.resc.edal.util.GISUtils;
+import uk.ac.rdg.resc.edal.util.ValuesArray2D;
+
+/**
+ * Tests the saving and loading of {@link DatasetSnapshot}s, and the
+ * signatures of dataset locations
+ */
+public class DatasetSnapshotTest {
+    private static final String FACTORY_NAME = "uk.ac.rdg.resc.edal.TestFactory";
+
+    private File dir;
+    private File dataFile;
+    private SnapshotTestDataset dataset;
+
+    @Before
+    public void setUp() throws IOException, EdalException {
+        dir = Files.createTempDirectory("snapshottest").toFile();
+        DatasetFactory.setWorkingDirectory(dir);
+        dataFile = new File(dir, "data.nc");
+        try (FileOutputStream out = new FileOutputStream(dataFile)) {
+            out.write(new byte[100]);
+        }
+
+        HorizontalGrid grid = new RegularGridImpl(-180, -90, 180, 90,
+                GISUtils.defaultGeographicCRS(), 36, 18);
+        int ni = 20;
+        int nj = 10;
+        Array2D<Number> lons = new ValuesArray2D(nj, ni);
+        Array2D<Number> lats = new ValuesArray2D(nj, ni);
+        for (int j = 0; j < nj; j++) {
+            for (int i = 0; i < ni; i++) {
+                lons.set(-30.0f + i + 0.3f * j, j, i);
+                lats.set(-20.0f + j - 0.2f * i, j, i);
+            }
+        }
+        HorizontalGrid curvGrid = LookUpTableGrid.generate(lons, lats);
+
+        List<GridVariableMetadata> vars = Arrays.asList(
+                new GridVariableMetadata(new Parameter("u", "Eastward wind", "", "m/s", null),
+                        grid, null, null, true),
+                new GridVariableMetadata(new Parameter("v", "Northward wind", "", "m/s", null),
+                        grid, null, null, true),
+                new GridVariableMetadata(new Parameter("c", "Curvilinear", "", "none", null),
+                        curvGrid, null, null, true));
+        dataset = new SnapshotTestDataset(vars);
+        dataset.addVariablePlugin(new VectorPlugin("u", "v", "wind", false));
+    }
+
+    @After
+    public void tearDown() {
+        DatasetFactory.setWorkingDirectory(null);
+        LookUpTableGrid.clearCache();
+        deleteAll(dir);
+    }
+
+    @Test
+    public void testSaveAndLoad() {
+        String location = dataFile.getPath();
+        String signature = DatasetSnapshot.getLocationSignature(location);
+        assertTrue(DatasetSnapshot.save(dataset, location, FACTORY_NAME, signature));
+
+        /*
+         * Ensure that the curvilinear grid is regenerated, rather than taken
+         * from the cache
+         */
+        LookUpTableGrid.clearCache();
+
+        DatasetSnapshot snapshot = DatasetSnapshot.load("test", location, FACTORY_NAME);
+        assertNotNull(snapshot);
+        assertEquals(signature, snapshot.getSignature());
+        Dataset loaded = snapshot.getDataset();
+        assertEquals(dataset.getId(), loaded.getId());
+        assertEquals(dataset.getVariableIds(), loaded.getVariableIds());
+        for (String varId : dataset.getVariableIds()) {
+            assertEquals(dataset.getVariableMetadata(varId).getHorizontalDomain(), loaded
+                    .getVariableMetadata(varId).getHorizontalDomain());
+            assertEquals(dataset.getVariableMetadata(varId).getParameter(), loaded
+                    .getVariableMetadata(varId).getParameter());
+        }
+
+        /*
+         * Snapshots from different locations or factories should be ignored
+         */
+        assertNull(DatasetSnapshot.load("test", location + "x", FACTORY_NAME));
+        assertNull(DatasetSnapshot.load("test", location, FACTORY_NAME + "x"));
+        assertNull(DatasetSnapshot.load("missing", location, FACTORY_NAME));
+    }
+
+    @Test
+    public void testCostModelSurvives() {
+        /*
+         * Expensive calls, so a strided read is best for dense maps
+         */
+        dataset.setDataReadingCostModel(new DataReadingCostModel(100.0, 1.0));
+        String location = dataFile.getPath();
+        assertTrue(DatasetSnapshot.save(dataset, location, FACTORY_NAME,
+                DatasetSnapshot.getLocationSignature(location)));
+
+        GriddedDataset loaded = (GriddedDataset) DatasetSnapshot.load("test", location,
+                FACTORY_NAME).getDataset();
+        assertNotNull(loaded.getDataReadingCostModel());
+        RegularGridImpl sourceGrid = new RegularGridImpl(-100, -50, 100, 50,
+                GISUtils.defaultGeographicCRS(), 1000, 500);
+        Domain2DMapper mapper = Domain2DMapper.forGrid(sourceGrid, new RegularGridImpl(-100,
+                -50, 100, 50, GISUtils.defaultGeographicCRS(), 200, 100));
+        assertEquals(DataReadingStrategy.STRIDED,
+                loaded.getDataReadingCostModel().chooseStrategy(mapper, null));
+    }
+
+    @Test
+    public void testCorruptSnapshot() throws IOException {
+        try (FileOutputStream out = new FileOutputStream(new File(dir, "test.snapshot"))) {
+            out.write(new byte[100]);
+        }
+        assertNull(DatasetSnapshot.load("test", dataFile.getPath(), FACTORY_NAME));
+    }
+
+    @Test
+    public void testNoWorkingDirectory() {
+        DatasetFactory.setWorkingDirectory(null);
+        assertFalse(DatasetSnapshot.save(dataset, dataFile.getPath(), FACTORY_NAME, null));
+        assertNull(DatasetSnapshot.load("test", dataFile.getPath(), FACTORY_NAME));
+    }
+
+    @Test
+    public void testLocationSignature() throws IOException {
+        String signature = DatasetSnapshot.getLocationSignature(dataFile.getPath());
+        assertNotNull(signature);
+        assertEquals(signature, DatasetSnapshot.getLocationSignature(dataFile.getPath()));
+        assertEquals(signature, DatasetSnapshot.getLocationSignature("file:" + dataFile.getPath()));
+
+        /*
+         * Glob expressions and directories should include all matching files
+         */
+        String globLocation = dir.getPath() + "/*.nc";
+        String globSignature = DatasetSnapshot.getLocationSignature(globLocation);
+        assertNotNull(globSignature);
+        String dirSignature = DatasetSnapshot.getLocationSignature(dir.getPath());
+        assertNotNull(dirSignature);
+
+        File otherFile = new File(dir, "other.nc");
+        try (FileOutputStream out = new FileOutputStream(otherFile)) {
+            out.write(new byte[10]);
+        }
+        assertFalse(globSignature.equals(DatasetSnapshot.getLocationSignature(globLocation)));
+        assertFalse(dirSignature.equals(DatasetSnapshot.getLocationSignature(dir.getPath())));
+        assertEquals(signature, DatasetSnapshot.getLocationSignature(dataFile.getPath()));
+
+        /*
+         * Modifying a file should change the signature
+         */
+        assertTrue(dataFile.setLastModified(dataFile.lastModified() - 10000L));
+        assertFalse(signature.equals(DatasetSnapshot.getLocationSignature(dataFile.getPath())));
+
+        /*
+         * Remote and missing locations have no signature
+         */
+        assertNull(DatasetSnapshot.getLocationSignature("http://example.com/data.nc"));
+        assertNull(DatasetSnapshot.getLocationSignature("dods://example.com/data.nc"));
+        assertNull(DatasetSnapshot.getLocationSignature(dir.getPath() + "/missing.nc"));
+        assertNull(DatasetSnapshot.getLocationSignature(dir.getPath() + "/*.missing"));
+    }
+
+    private static void deleteAll(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteAll(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static class SnapshotTestDataset extends GriddedDataset {
+        private static final long serialVersionUID = 1L;
+
+        public SnapshotTestDataset(List<GridVariableMetadata> vars) {
+            super("test", vars);
+        }
+
+        @Override
+        protected GridDataSource openDataSource() throws DataReadingException {
+            throw new DataReadingException("This dataset has no data");
+        }
+
+        @Override
+        protected DataReadingStrategy getDataReadingStrategy() {
+            return DataReadingStrategy.BOUNDING_BOX;
+        }
+    }
+}
@@ -0,0 +1,538 @@
+/*******************************************************************************
+ * Copyright (c) 2016 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.dataset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.rdg.resc.edal.domain.Extent;
+import uk.ac.rdg.resc.edal.domain.MapDomain;
+import uk.ac.rdg.resc.edal.domain.PointCollectionDomain;
+import uk.ac.rdg.resc.edal.exceptions.DataReadingException;
+import uk.ac.rdg.resc.edal.exceptions.EdalException;
+import uk.ac.rdg.resc.edal.feature.GridFeature;
+import uk.ac.rdg.resc.edal.feature.PointCollectionFeature;
+import uk.ac.rdg.resc.edal.feature.ProfileFeature;
+import uk.ac.rdg.resc.edal.geometry.BoundingBoxImpl;
+import uk.ac.rdg.resc.edal.grid.HorizontalGrid;
+import uk.ac.rdg.resc.edal.grid.RegularGridImpl;
+import uk.ac.rdg.resc.edal.grid.VerticalAxisImpl;
+import uk.ac.rdg.resc.edal.metadata.GridVariableMetadata;
+import uk.ac.rdg.resc.edal.metadata.Parameter;
+import uk.ac.rdg.resc.edal.position.HorizontalPosition;
+import uk.ac.rdg.resc.edal.position.VerticalCrsImpl;
+import uk.ac.rdg.resc.edal.util.Array1D;
+import uk.ac.rdg.resc.edal.util.Array2D;
+import uk.ac.rdg.resc.edal.util.Array4D;
+import uk.ac.rdg.resc.edal.util.CollectionUtils;
+import uk.ac.rdg.resc.edal.util.GISUtils;
+import uk.ac.rdg.resc.edal.util.GridCoordinates2D;
+import uk.ac.rdg.resc.edal.util.ValueStatistics;
+
+/**
+ * Tests the bulk extraction of points, vertical sections and features from a
+ * {@link GriddedDataset}, and the calculation of its statistics and overviews
+ */
+public class GriddedDatasetTest {
+    private static final int X_SIZE = 1000;
+    private static final int Y_SIZE = 500;
+    private static final int Z_SIZE = 5;
+    /*
+     * 100 source cells per target pixel, so overviews decimated by 8 can be
+     * used
+     */
+    private static final RegularGridImpl OVERVIEW_TEST_GRID = new RegularGridImpl(-100, -50,
+            100, 50, GISUtils.defaultGeographicCRS(), 100, 50);
+
+    /* Runs background tasks on the calling thread */
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+    /* Never runs background tasks */
+    private static final Executor NO_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+        }
+    };
+
+    private HorizontalGrid grid;
+    private TestDataset dataset;
+    private List<HorizontalPosition> transect;
+
+    @Before
+    public void setUp() throws EdalException {
+        grid = new RegularGridImpl(-100, -50, 100, 50, GISUtils.defaultGeographicCRS(), X_SIZE,
+                Y_SIZE);
+        List<Double> zValues = new ArrayList<>();
+        for (int i = 0; i < Z_SIZE; i++) {
+            zValues.add(10.0 * i);
+        }
+        VerticalAxisImpl zAxis = new VerticalAxisImpl("depth", zValues, new VerticalCrsImpl("m",
+                false, false, false));
+        GridVariableMetadata metadata = new GridVariableMetadata(new Parameter("var", "Variable",
+                "A test variable", "none", null), grid, zAxis, null, true);
+        dataset = new TestDataset(Arrays.asList(metadata));
+
+        /*
+         * A diagonal transect crossing most of the grid, plus a point outside
+         * it
+         */
+        transect = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            transect.add(new HorizontalPosition(-95 + 0.38 * i, -45 + 0.18 * i));
+        }
+        transect.add(new HorizontalPosition(150, 0));
+    }
+
+    @Test
+    public void testExtractPointCollection() throws EdalException {
+        PointCollectionFeature feature = dataset.extractPointCollection(
+                CollectionUtils.setOf("var"), new PointCollectionDomain(transect, null, null));
+        Array1D<Number> values = feature.getValues("var");
+        for (int i = 0; i < transect.size() - 1; i++) {
+            assertEquals(expectedValue(transect.get(i), 0), values.get(i));
+        }
+        assertNull(values.get(transect.size() - 1));
+
+        /*
+         * The transect should have been read in a small number of tiles, and
+         * certainly not one read per point, or one read of the whole bounding
+         * box
+         */
+        assertTrue(dataset.nReads > 1);
+        assertTrue(dataset.nReads < transect.size() / 10);
+        assertTrue(dataset.nCellsRead < (long) X_SIZE * Y_SIZE / 10);
+    }
+
+    @Test
+    public void testExtractProfileSection() throws EdalException {
+        List<ProfileFeature> section = dataset.extractProfileSection("var", transect, null);
+        assertEquals(transect.size() - 1, section.size());
+        for (int i = 0; i < section.size(); i++) {
+            ProfileFeature profile = section.get(i);
+            assertEquals(transect.get(i), profile.getHorizontalPosition());
+            Array1D<Number> values = profile.getValues("var");
+            assertEquals(Z_SIZE, values.size());
+            for (int z = 0; z < Z_SIZE; z++) {
+                assertEquals(expectedValue(transect.get(i), z), values.get(z));
+            }
+        }
+        assertTrue(dataset.nReads < transect.size() / 10);
+    }
+
+    @Test
+    public void testReadFeatureBySlab() throws EdalException {
+        GridFeature feature = dataset.readFeature("var");
+        /*
+         * Nothing should be read until the values are accessed
+         */
+        assertEquals(0, dataset.nReads);
+
+        Array4D<Number> values = feature.getValues("var");
+        assertEquals(Z_SIZE, values.getZSize());
+        int n = 0;
+        for (Number value : values) {
+            assertEquals((float) n++, value);
+        }
+        assertEquals((long) X_SIZE * Y_SIZE * Z_SIZE, n);
+
+        /*
+         * Iterating over the values should read each horizontal slab once
+         */
+        assertEquals(Z_SIZE, dataset.nReads);
+        assertEquals((long) X_SIZE * Y_SIZE * Z_SIZE, dataset.nCellsRead);
+
+        /*
+         * A single data source should have been used for all of the slabs,
+         * and closed once the final slab was read
+         */
+        assertEquals(1, dataset.nOpened);
+        assertEquals(0, dataset.nOpen);
+    }
+
+    @Test
+    public void testReadFeatureClose() throws EdalException, IOException {
+        GridFeature feature = dataset.readFeature("var");
+        /*
+         * The data source is only opened when the first slab is read
+         */
+        assertEquals(0, dataset.nOpen);
+
+        Array4D<Number> values = feature.getValues("var");
+        assertEquals(0f, values.get(0, 0, 0, 0));
+        assertEquals((float) X_SIZE * Y_SIZE, values.get(0, 1, 0, 0));
+        assertEquals(2, dataset.nReads);
+        assertEquals(1, dataset.nOpen);
+
+        /*
+         * Closing the values part-way through should release the data source
+         */
+        assertTrue(values instanceof Closeable);
+        ((Closeable) values).close();
+        assertEquals(1, dataset.nOpened);
+        assertEquals(0, dataset.nOpen);
+    }
+
+    @Test(expected = DataReadingException.class)
+    public void testReadFeatureError() throws EdalException {
+        GridFeature feature = dataset.readFeature("var");
+        dataset.failReads = true;
+        feature.getValues("var").get(0, 0, 0, 0);
+    }
+
+    @Test
+    public void testStatistics() throws EdalException {
+        /*
+         * Calculate the slices on this thread, so that they are all complete
+         * once start() returns
+         */
+        GriddedDatasetStatistics statistics = new GriddedDatasetStatistics(dataset, 100, null,
+                null, null, DIRECT_EXECUTOR);
+        statistics.start();
+        assertTrue(statistics.isComplete("var"));
+
+        ValueStatistics surface = statistics.getStatistics("var", null, 0.0);
+        assertEquals(X_SIZE * Y_SIZE, surface.getCount());
+        assertEquals(0.0, surface.getMin(), 1e-6);
+        assertEquals(X_SIZE * Y_SIZE - 1, surface.getMax(), 1e-6);
+        assertEquals((X_SIZE * Y_SIZE - 1) / 2.0, surface.getMean(), 1e-3);
+
+        ValueStatistics all = statistics.getStatistics("var");
+        assertEquals((long) X_SIZE * Y_SIZE * Z_SIZE, all.getCount());
+        assertEquals(X_SIZE * Y_SIZE * Z_SIZE - 1, all.getMax(), 1e-6);
+
+        /*
+         * Cell centres within this box run from x=250 to 749 and y=125 to
+         * 374. Only the chunks at its edges should need reading.
+         */
+        dataset.nReads = 0;
+        dataset.nCellsRead = 0;
+        Extent<Float> range = statistics.getValueRange("var", null, 20.0, new BoundingBoxImpl(
+                -50, -25, 50, 25, GISUtils.defaultGeographicCRS()));
+        int offset = 2 * X_SIZE * Y_SIZE;
+        assertEquals(offset + 125 * X_SIZE + 250, range.getLow(), 1e-6);
+        assertEquals(offset + 374 * X_SIZE + 749, range.getHigh(), 1e-6);
+        assertTrue(dataset.nReads > 0);
+        assertTrue(dataset.nCellsRead < 500 * 250);
+    }
+
+    @Test
+    public void testStatisticsReuse() throws EdalException {
+        GriddedDatasetStatistics statistics = new GriddedDatasetStatistics(dataset, 100, null,
+                "signature1", null, DIRECT_EXECUTOR);
+        statistics.start();
+        assertTrue(statistics.isComplete("var"));
+
+        /*
+         * Slices are only reused if the data files have the same signature
+         */
+        GriddedDatasetStatistics reused = new GriddedDatasetStatistics(dataset, 100, null,
+                "signature1", statistics, NO_EXECUTOR);
+        assertTrue(reused.isComplete("var"));
+        GriddedDatasetStatistics changed = new GriddedDatasetStatistics(dataset, 100, null,
+                "signature2", statistics, NO_EXECUTOR);
+        assertFalse(changed.isComplete("var"));
+        GriddedDatasetStatistics unknown = new GriddedDatasetStatistics(dataset, 100, null,
+                null, statistics, NO_EXECUTOR);
+        assertFalse(unknown.isComplete("var"));
+    }
+
+    @Test
+    public void testOverviews() throws EdalException {
+        dataset.setOverviews(new GriddedDatasetOverviews(dataset, null, null, 1024 * 1024, 0L,
+                DIRECT_EXECUTOR));
+        /*
+         * The first extraction reads the source data, and then builds the
+         * overviews
+         */
+        Array2D<Number> values = extractOverviewTestMap();
+        assertEquals(expectedValue(OVERVIEW_TEST_GRID.getDomainObjects().get(10, 20).getCentre(),
+                0), values.get(10, 20));
+        assertTrue(dataset.nReads > 0);
+
+        dataset.nReads = 0;
+        values = extractOverviewTestMap();
+        assertEquals(0, dataset.nReads);
+        checkOverviewValues(values);
+    }
+
+    @Test
+    public void testOverviewsOnDisk() throws EdalException, IOException {
+        File cacheDir = Files.createTempDirectory("overviews").toFile();
+        try {
+            dataset.setOverviews(new GriddedDatasetOverviews(dataset, cacheDir, "signature1",
+                    1024 * 1024, 1024 * 1024, DIRECT_EXECUTOR));
+            extractOverviewTestMap();
+            long totalSize = 0L;
+            for (File file : cacheDir.listFiles()) {
+                totalSize += file.length();
+            }
+            assertTrue(totalSize > 0);
+
+            /*
+             * A new instance (e.g. after a restart) with the same data uses
+             * the overviews on disk, without building them
+             */
+            dataset.setOverviews(new GriddedDatasetOverviews(dataset, cacheDir, "signature1",
+                    1024 * 1024, 1024 * 1024, NO_EXECUTOR));
+            dataset.nReads = 0;
+            checkOverviewValues(extractOverviewTestMap());
+            assertEquals(0, dataset.nReads);
+
+            /*
+             * Once the data has changed they are not used
+             */
+            dataset.setOverviews(new GriddedDatasetOverviews(dataset, cacheDir, "signature2",
+                    1024 * 1024, 1024 * 1024, NO_EXECUTOR));
+            extractOverviewTestMap();
+            assertTrue(dataset.nReads > 0);
+
+            /*
+             * And are removed when the disk limit is reached
+             */
+            new GriddedDatasetOverviews(dataset, cacheDir, "signature2", 1024 * 1024,
+                    totalSize / 2, NO_EXECUTOR);
+            long prunedSize = 0L;
+            for (File file : cacheDir.listFiles()) {
+                prunedSize += file.length();
+            }
+            assertTrue(prunedSize <= totalSize / 2);
+        } finally {
+            for (File file : cacheDir.listFiles()) {
+                file.delete();
+            }
+            cacheDir.delete();
+        }
+    }
+
+    private Array2D<Number> extractOverviewTestMap() throws EdalException {
+        return dataset.extractMapFeatures(CollectionUtils.setOf("var"),
+                new MapDomain(OVERVIEW_TEST_GRID, 0.0, null)).get(0).getValues("var");
+    }
+
+    private void checkOverviewValues(Array2D<Number> values) {
+        for (int y = 0; y < 50; y++) {
+            for (int x = 0; x < 100; x++) {
+                GridCoordinates2D source = grid.findIndexOf(OVERVIEW_TEST_GRID.getDomainObjects()
+                        .get(y, x).getCentre());
+                int sourceX = (source.getX() / 8) * 8 + 4;
+                int sourceY = (source.getY() / 8) * 8 + 4;
+                assertEquals((float) (sourceY * X_SIZE + sourceX), values.get(y, x));
+            }
+        }
+    }
+
+    @Test
+    public void testStridedRead() throws EdalException, IOException {
+        GridDataSource dataSource = dataset.openDataSource();
+
+        /*
+         * Each target pixel covers exactly 5x5 source cells and its centre
+         * falls on the centre of a source cell, so the strided read should give
+         * exactly the same result as reading the bounding box
+         */
+        RegularGridImpl targetGrid = new RegularGridImpl(-100, -50, 100, 50,
+                GISUtils.defaultGeographicCRS(), 200, 100);
+        Domain2DMapper mapper = Domain2DMapper.forGrid(grid, targetGrid);
+        assertEquals(5, mapper.getIStride());
+        assertEquals(5, mapper.getJStride());
+        Array2D<Number> expected = DataReadingStrategy.BOUNDING_BOX.readMapData(dataSource, "var",
+                0, 0, mapper);
+        dataset.nReads = 0;
+        dataset.nCellsRead = 0;
+        Array2D<Number> strided = DataReadingStrategy.STRIDED.readMapData(dataSource, "var", 0, 0,
+                mapper);
+        for (int y = 0; y < 100; y++) {
+            for (int x = 0; x < 200; x++) {
+                assertEquals(expected.get(y, x), strided.get(y, x));
+            }
+        }
+        /*
+         * Only roughly as many cells as there are target pixels should be read
+         */
+        assertEquals(1, dataset.nReads);
+        assertTrue(dataset.nCellsRead < 2 * 200 * 100);
+
+        /*
+         * Here the source indices are not evenly spaced, so a strided read
+         * would be approximate. The bounding box should be read instead.
+         */
+        targetGrid = new RegularGridImpl(-100, -50, 100, 50, GISUtils.defaultGeographicCRS(), 300,
+                150);
+        mapper = Domain2DMapper.forGrid(grid, targetGrid);
+        assertFalse(mapper.hasExactStrides());
+        expected = DataReadingStrategy.BOUNDING_BOX.readMapData(dataSource, "var", 0, 0, mapper);
+        strided = DataReadingStrategy.STRIDED.readMapData(dataSource, "var", 0, 0, mapper);
+        for (int y = 0; y < 150; y++) {
+            for (int x = 0; x < 300; x++) {
+                assertEquals(expected.get(y, x), strided.get(y, x));
+            }
+        }
+        dataSource.close();
+    }
+
+    @Test
+    public void testChunkedRead() throws EdalException, IOException {
+        final GridDataSource source = dataset.openDataSource();
+        GridDataSource chunkedSource = new GridDataSource() {
+            @Override
+            public Array4D<Number> read(String variableId, int tmin, int tmax, int zmin,
+                    int zmax, int ymin, int ymax, int xmin, int xmax) throws IOException,
+                    DataReadingException {
+                return source.read(variableId, tmin, tmax, zmin, zmax, ymin, ymax, xmin, xmax);
+            }
+
+            @Override
+            public int[] getHorizontalChunkShape(String variableId) {
+                return new int[] { 100, 100 };
+            }
+
+            @Override
+            public void close() throws DataReadingException {
+                source.close();
+            }
+        };
+
+        /*
+         * This covers a 100x100 block of source cells which straddles 4 chunks
+         */
+        RegularGridImpl targetGrid = new RegularGridImpl(-10, -15, 10, 5,
+                GISUtils.defaultGeographicCRS(), 37, 23);
+        Domain2DMapper mapper = Domain2DMapper.forGrid(grid, targetGrid);
+        assertEquals(4, mapper.getNumDistinctBlocks(100, 100));
+        Array2D<Number> expected = DataReadingStrategy.BOUNDING_BOX.readMapData(source, "var", 0,
+                2, mapper);
+        dataset.nReads = 0;
+        Array2D<Number> chunked = DataReadingStrategy.CHUNKED.readMapData(chunkedSource, "var",
+                0, 2, mapper);
+        assertEquals(4, dataset.nReads);
+        for (int y = 0; y < 23; y++) {
+            for (int x = 0; x < 37; x++) {
+                assertEquals(expected.get(y, x), chunked.get(y, x));
+            }
+        }
+
+        /*
+         * Without chunking, the bounding box is read in one go
+         */
+        dataset.nReads = 0;
+        chunked = DataReadingStrategy.CHUNKED.readMapData(source, "var", 0, 2, mapper);
+        assertEquals(1, dataset.nReads);
+        chunkedSource.close();
+    }
+
+    private Number expectedValue(HorizontalPosition pos, int z) {
+        int i = grid.findIndexOf(pos).getX();
+        int j = grid.findIndexOf(pos).getY();
+        return (float) (z * X_SIZE * Y_SIZE + j * X_SIZE + i);
+    }
+
+    private static class TestDataset extends GriddedDataset {
+        private static final long serialVersionUID = 1L;
+        private int nReads = 0;
+        private long nCellsRead = 0;
+        private int nOpened = 0;
+        private int nOpen = 0;
+        private boolean failReads = false;
+
+        public TestDataset(List<GridVariableMetadata> vars) {
+            super("test", vars);
+        }
+
+        @Override
+        protected GridDataSource openDataSource() throws DataReadingException {
+            nOpened++;
+            nOpen++;
+            return new GridDataSource() {
+                @Override
+                public Array4D<Number> read(String variableId, int tmin, int tmax, int zmin,
+                        int zmax, int ymin, int ymax, int xmin, int xmax) throws IOException,
+                        DataReadingException {
+                    return read(variableId, tmin, tmax, zmin, zmax, ymin, ymax, 1, xmin, xmax, 1);
+                }
+
+                @Override
+                public Array4D<Number> read(String variableId, int tmin, int tmax,
+                        final int zmin, int zmax, final int ymin, int ymax, final int yStride,
+                        final int xmin, int xmax, final int xStride) throws IOException,
+                        DataReadingException {
+                    if (failReads) {
+                        throw new IOException("Test read failure");
+                    }
+                    int ySize = (ymax - ymin) / yStride + 1;
+                    int xSize = (xmax - xmin) / xStride + 1;
+                    nReads++;
+                    nCellsRead += (long) (zmax - zmin + 1) * ySize * xSize;
+                    return new Array4D<Number>(tmax - tmin + 1, zmax - zmin + 1, ySize, xSize) {
+                        private static final long serialVersionUID = 1L;
+
+                        @Override
+                        public Number get(int... coords) {
+                            return (float) ((coords[1] + zmin) * X_SIZE * Y_SIZE
+                                    + (coords[2] * yStride + ymin) * X_SIZE + coords[3]
+                                    * xStride + xmin);
+                        }
+
+                        @Override
+                        public void set(Number value, int... coords) {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+
+                @Override
+                public void close() throws DataReadingException {
+                    nOpen--;
+                }
+            };
+        }
+
+        @Override
+        protected DataReadingStrategy getDataReadingStrategy() {
+            return DataReadingStrategy.BOUNDING_BOX;
+        }
+    }
+}
@@ -0,0 +1,255 @@
+/*******************************************************************************
+ * Copyright (c) 2016 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.dataset.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.geotoolkit.geometry.DirectPosition2D;
+import org.geotoolkit.referencing.CRS;
+import org.junit.Before;
+import org.junit.Test;
+import org.opengis.referencing.operation.MathTransform;
+import org.opengis.referencing.operation.Matrix;
+import org.opengis.referencing.operation.TransformException;
+import org.opengis.util.FactoryException;
+
+import uk.ac.rdg.resc.edal.domain.MapDomain;
+import uk.ac.rdg.resc.edal.exceptions.EdalException;
+import uk.ac.rdg.resc.edal.geometry.BoundingBoxImpl;
+import uk.ac.rdg.resc.edal.grid.HorizontalGrid;
+import uk.ac.rdg.resc.edal.grid.RegularGridImpl;
+import uk.ac.rdg.resc.edal.metadata.GridVariableMetadata;
+import uk.ac.rdg.resc.edal.metadata.Parameter;
+import uk.ac.rdg.resc.edal.metadata.VariableMetadata;
+import uk.ac.rdg.resc.edal.position.HorizontalPosition;
+import uk.ac.rdg.resc.edal.util.Array2D;
+import uk.ac.rdg.resc.edal.util.GISUtils;
+import uk.ac.rdg.resc.edal.util.ValuesArray2D;
+
+/**
+ * Tests that the bulk computation of derived fields matches the values
+ * generated one at a time
+ */
+public class VariablePluginTest {
+    /* Large enough that the field is computed in parallel */
+    private static final int X_SIZE = 400;
+    private static final int Y_SIZE = 300;
+
+    private MapDomain domain;
+    private Array2D<Number> xComps;
+    private Array2D<Number> yComps;
+
+    @Before
+    public void setUp() {
+        domain = new MapDomain(new BoundingBoxImpl(-180, -90, 180, 90,
+                GISUtils.defaultGeographicCRS()), X_SIZE, Y_SIZE, null, null);
+        xComps = new ValuesArray2D(Y_SIZE, X_SIZE);
+        yComps = new ValuesArray2D(Y_SIZE, X_SIZE);
+        for (int j = 0; j < Y_SIZE; j++) {
+            for (int i = 0; i < X_SIZE; i++) {
+                xComps.set((float) Math.sin(i * 0.1), j, i);
+                yComps.set((float) Math.cos(j * 0.1), j, i);
+            }
+        }
+        /*
+         * Some missing values
+         */
+        xComps.set(null, 10, 20);
+        yComps.set(null, Y_SIZE - 1, X_SIZE - 1);
+    }
+
+    @Test
+    public void testVectorField() {
+        VectorPlugin plugin = new VectorPlugin("u", "v", "Test Vector Field", true);
+        checkField(plugin, plugin.getFullId(VectorPlugin.MAG_ROLE));
+        checkField(plugin, plugin.getFullId(VectorPlugin.DIR_ROLE));
+    }
+
+    @Test
+    public void testProjectedVectorDirection() throws EdalException {
+        HorizontalGrid grid = new RegularGridImpl(-4350000, -4350000, 8350000, 8350000,
+                GISUtils.getCrs("EPSG:32661"), 101, 101);
+        VectorPlugin plugin = new VectorPlugin("u", "v", "Test Vector Field", false);
+        plugin.processVariableMetadata(new GridVariableMetadata(new Parameter("u", "u", "...",
+                "none", null), grid, null, null, true), new GridVariableMetadata(new Parameter(
+                "v", "v", "...", "none", null), grid, null, null, true));
+        String dirId = plugin.getFullId(VectorPlugin.DIR_ROLE);
+        /*
+         * The positive y-direction points north along the Greenwich meridian,
+         * east along 90E and west along 90W. Headings are calculated at the
+         * centre of the containing grid cell, but with an odd number of cells
+         * these meridians pass through the cell centres.
+         */
+        assertEquals(0.0, plugin.getValue(dirId, new HorizontalPosition(0, 70), 0f, 1f)
+                .doubleValue(), 1e-3);
+        assertEquals(90.0, plugin.getValue(dirId, new HorizontalPosition(90, 70), 0f, 1f)
+                .doubleValue(), 1e-3);
+        assertEquals(-90.0, plugin.getValue(dirId, new HorizontalPosition(-90, 70), 0f, 1f)
+                .doubleValue(), 1e-3);
+
+        /*
+         * Field computation uses the same per-cell rotations
+         */
+        MapDomain arctic = new MapDomain(new BoundingBoxImpl(-180, 60, 180, 90,
+                GISUtils.defaultGeographicCRS()), 36, 6, null, null);
+        Array2D<Number> comps = new ValuesArray2D(6, 36);
+        for (int j = 0; j < 6; j++) {
+            for (int i = 0; i < 36; i++) {
+                comps.set(1f, j, i);
+            }
+        }
+        Array2D<Number> field = plugin.generateField(dirId, arctic, comps, comps);
+        for (int j = 0; j < 6; j++) {
+            for (int i = 0; i < 36; i++) {
+                HorizontalPosition pos = arctic.getDomainObjects().get(j, i).getCentre();
+                assertEquals(plugin.getValue(dirId, pos, 1f, 1f).floatValue(), field.get(j, i)
+                        .floatValue(), 1e-3);
+            }
+        }
+    }
+
+    @Test
+    public void testInterpolatedVectorDirection() throws EdalException, FactoryException,
+            TransformException {
+        HorizontalGrid grid = new RegularGridImpl(-4350000, -4350000, 8350000, 8350000,
+                GISUtils.getCrs("EPSG:32661"), 1001, 1001);
+        VectorPlugin plugin = new VectorPlugin("u", "v", "Test Vector Field", false);
+        plugin.processVariableMetadata(new GridVariableMetadata(new Parameter("u", "u", "...",
+                "none", null), grid, null, null, true), new GridVariableMetadata(new Parameter(
+                "v", "v", "...", "none", null), grid, null, null, true));
+        String dirId = plugin.getFullId(VectorPlugin.DIR_ROLE);
+        MathTransform trans = CRS.findMathTransform(grid.getCoordinateReferenceSystem(),
+                GISUtils.defaultGeographicCRS());
+        /*
+         * Derivatives are only calculated at every 4th cell and interpolated
+         * between, so the headings should match those calculated from the
+         * exact derivatives everywhere, including around the pole (at the
+         * centre of cell 500,500)
+         */
+        for (int j = 0; j < 1001; j += 29) {
+            for (int i = 0; i < 1001; i += 31) {
+                HorizontalPosition centre = grid.getDomainObjects().get(j, i).getCentre();
+                Matrix derivative = trans.derivative(new DirectPosition2D(centre.getX(), centre
+                        .getY()));
+                double expected = GISUtils.RAD2DEG
+                        * Math.atan2(derivative.getElement(0, 1), derivative.getElement(1, 1));
+                double heading = plugin.getValue(dirId,
+                        GISUtils.transformPosition(centre, GISUtils.defaultGeographicCRS()), 0f,
+                        1f).doubleValue();
+                assertEquals(0.0, GISUtils.constrainLongitude180(heading - expected), 0.05);
+            }
+        }
+    }
+
+    @Test
+    public void testDifferenceField() {
+        DifferencePlugin plugin = new DifferencePlugin("u", "v");
+        String varId = plugin.providesVariables()[0];
+        Array2D<Number> field = plugin.generateField(varId, domain, xComps, yComps);
+        assertEquals(xComps.get(5, 5).floatValue() - yComps.get(5, 5).floatValue(), field.get(
+                5, 5).floatValue(), 1e-6);
+        assertNull(field.get(10, 20));
+    }
+
+    @Test
+    public void testDifferencePrecision() {
+        /*
+         * Near 3e7, floats are 2 apart, so calculating these in single
+         * precision gives exactly 1
+         */
+        Array2D<Number> xs = new ValuesArray2D(1, 1);
+        Array2D<Number> ys = new ValuesArray2D(1, 1);
+        xs.set(3e7f, 0, 0);
+        ys.set(1f, 0, 0);
+        MapDomain pointDomain = new MapDomain(new BoundingBoxImpl(0, 0, 1, 1,
+                GISUtils.defaultGeographicCRS()), 1, 1, null, null);
+        HorizontalPosition pos = pointDomain.getDomainObjects().get(0, 0).getCentre();
+
+        NormalisedDifferencePlugin normalised = new NormalisedDifferencePlugin("u", "v");
+        String varId = normalised.providesVariables()[0];
+        float expected = normalised.getValue(varId, pos, 3e7f, 1f).floatValue();
+        assertTrue(expected < 1f);
+        assertEquals(expected, normalised.generateField(varId, pointDomain, xs, ys).get(0, 0)
+                .floatValue(), 0f);
+
+        DifferencePlugin difference = new DifferencePlugin("u", "v");
+        varId = difference.providesVariables()[0];
+        assertEquals(difference.getValue(varId, pos, 3e7f, 1f).floatValue(), difference
+                .generateField(varId, pointDomain, xs, ys).get(0, 0).floatValue(), 0f);
+    }
+
+    @Test
+    public void testDefaultFieldComputation() {
+        /*
+         * A plugin which does not override computeField
+         */
+        VariablePlugin plugin = new VariablePlugin(new String[] { "u", "v" },
+                new String[] { "weighted" }) {
+            @Override
+            protected VariableMetadata[] doProcessVariableMetadata(VariableMetadata... metadata) {
+                return new VariableMetadata[0];
+            }
+
+            @Override
+            protected Number generateValue(String varSuffix, HorizontalPosition pos,
+                    Number... sourceValues) {
+                if (sourceValues[0] == null || sourceValues[1] == null) {
+                    return null;
+                }
+                return sourceValues[0].doubleValue() * pos.getX() + sourceValues[1].doubleValue()
+                        * pos.getY();
+            }
+
+            @Override
+            protected boolean supportsFieldComputation(String varSuffix) {
+                return true;
+            }
+        };
+        checkField(plugin, plugin.providesVariables()[0]);
+    }
+
+    private void checkField(VariablePlugin plugin, String varId) {
+        Array2D<Number> field = plugin.generateField(varId, domain, xComps, yComps);
+        for (int j = 0; j < Y_SIZE; j++) {
+            for (int i = 0; i < X_SIZE; i++) {
+                Number x = xComps.get(j, i);
+                Number y = yComps.get(j, i);
+                if (x == null || y == null) {
+                    assertNull(field.get(j, i));
+                } else {
+                    HorizontalPosition pos = domain.getDomainObjects().get(j, i).getCentre();
+                    assertEquals(plugin.getValue(varId, pos, x, y).floatValue(), field.get(j, i)
+                            .floatValue(), 1e-4);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*******************************************************************************
+ * Copyright (c) 2017 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.grid;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+
+import uk.ac.rdg.resc.edal.geometry.BoundingBoxImpl;
+import uk.ac.rdg.resc.edal.position.HorizontalPosition;
+import uk.ac.rdg.resc.edal.util.Array2D;
+import uk.ac.rdg.resc.edal.util.GISUtils;
+
+/**
+ * This class is not part of the test suite, but may be run to compare the
+ * time taken, memory allocated, and garbage collections caused by reading all
+ * of the cell centres of a 2048x2048 map grid via
+ * {@link HorizontalGrid#getDomainObjects()}, compared with
+ * {@link RectilinearGrid#getCentreX(int)}/{@link RectilinearGrid#getCentreY(int)}
+ * and {@link HorizontalGrid#fillCentres(double[], double[])}.
+ */
+public class GridCentresBenchmark {
+    private static final int SIZE = 2048;
+    private static final int REPEATS = 10;
+
+    public static void main(String[] args) {
+        final RegularGridImpl grid = new RegularGridImpl(new BoundingBoxImpl(-180, -90, 180, 90,
+                GISUtils.defaultGeographicCRS()), SIZE, SIZE);
+
+        /* Run each method once before timing, so that the JIT has warmed up */
+        for (int pass = 0; pass < 2; pass++) {
+            boolean print = pass > 0;
+            run("getDomainObjects()", print, new Runnable() {
+                @Override
+                public void run() {
+                    Array2D<GridCell2D> domainObjects = grid.getDomainObjects();
+                    double sum = 0.0;
+                    for (int j = 0; j < SIZE; j++) {
+                        for (int i = 0; i < SIZE; i++) {
+                            HorizontalPosition centre = domainObjects.get(j, i).getCentre();
+                            sum += centre.getX() + centre.getY();
+                        }
+                    }
+                    consume(sum);
+                }
+            });
+            run("getCentreX()/getCentreY()", print, new Runnable() {
+                @Override
+                public void run() {
+                    double sum = 0.0;
+                    for (int j = 0; j < SIZE; j++) {
+                        double y = grid.getCentreY(j);
+                        for (int i = 0; i < SIZE; i++) {
+                            sum += grid.getCentreX(i) + y;
+                        }
+                    }
+                    consume(sum);
+                }
+            });
+            run("fillCentres()", print, new Runnable() {
+                @Override
+                public void run() {
+                    double[] xs = new double[SIZE * SIZE];
+                    double[] ys = new double[SIZE * SIZE];
+                    grid.fillCentres(xs, ys);
+                    double sum = 0.0;
+                    for (int k = 0; k < SIZE * SIZE; k++) {
+                        sum += xs[k] + ys[k];
+                    }
+                    consume(sum);
+                }
+            });
+        }
+    }
+
+    private static void run(String name, boolean print, Runnable method) {
+        System.gc();
+        long gcCount = 0;
+        long gcTime = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcCount -= gc.getCollectionCount();
+            gcTime -= gc.getCollectionTime();
+        }
+        long allocated = -allocatedBytes();
+        long start = System.nanoTime();
+        for (int r = 0; r < REPEATS; r++) {
+            method.run();
+        }
+        long elapsed = System.nanoTime() - start;
+        allocated += allocatedBytes();
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcCount += gc.getCollectionCount();
+            gcTime += gc.getCollectionTime();
+        }
+        if (print) {
+            System.out.println(String.format(
+                    "%-28s %8.1f ms/map %10.1f MB/map %6d GCs (%d ms)", name, elapsed
+                            / (1e6 * REPEATS), allocated / (1048576.0 * REPEATS), gcCount,
+                    gcTime));
+        }
+    }
+
+    /*
+     * The number of bytes allocated by this thread so far, if the JVM can
+     * tell us
+     */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread
+                    .currentThread().getId());
+        }
+        return 0L;
+    }
+
+    private static double sink;
+
+    /*
+     * Stops the JIT from optimising away the loops being timed
+     */
+    private static void consume(double value) {
+        sink += value;
+    }
+}
@@ -113,6 +113,37 @@ public class RectilinearGridImplTest {
         }
     }
 
+    /**
+     * Test that the primitive cell centre accessors agree with the centres of
+     * the domain objects
+     */
+    @Test
+    public void testCentres() {
+        double[] xs = new double[xSize * ySize];
+        double[] ys = new double[xSize * ySize];
+        rGrid.fillCentres(xs, ys);
+
+        Array<GridCell2D> cells = rGrid.getDomainObjects();
+        for (GridCell2D cell : cells) {
+            int xIndex = cell.getGridCoordinates().getX();
+            int yIndex = cell.getGridCoordinates().getY();
+            HorizontalPosition centre = cell.getCentre();
+            assertEquals(centre.getX(), rGrid.getCentreX(xIndex), 0.0);
+            assertEquals(centre.getY(), rGrid.getCentreY(yIndex), 0.0);
+            assertEquals(centre.getX(), xs[xIndex + yIndex * xSize], 0.0);
+            assertEquals(centre.getY(), ys[xIndex + yIndex * xSize], 0.0);
+        }
+    }
+
+    /**
+     * Test that {@link RectilinearGridImpl#fillCentres(double[], double[])}
+     * rejects arrays which are too small to hold all of the centres
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testFillCentresTooSmall() {
+        rGrid.fillCentres(new double[xSize * ySize - 1], new double[xSize * ySize]);
+    }
+
     /**
      * Test {@link RectilinearGridImpl#contains}. Pick up positions inside or
      * outside the grid.
@@ -30,6 +30,7 @@ package uk.ac.rdg.resc.edal.util;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -37,6 +38,7 @@ import java.util.List;
 
 import org.joda.time.DateTime;
 import org.junit.Test;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
 import uk.ac.rdg.resc.edal.exceptions.EdalException;
 import uk.ac.rdg.resc.edal.geometry.BoundingBox;
@@ -44,6 +46,7 @@ import uk.ac.rdg.resc.edal.geometry.BoundingBoxImpl;
 import uk.ac.rdg.resc.edal.grid.TimeAxis;
 import uk.ac.rdg.resc.edal.grid.TimeAxisImpl;
 import uk.ac.rdg.resc.edal.grid.VerticalAxisImpl;
+import uk.ac.rdg.resc.edal.position.HorizontalPosition;
 import uk.ac.rdg.resc.edal.position.VerticalCrs;
 import uk.ac.rdg.resc.edal.position.VerticalCrsImpl;
 
@@ -234,4 +237,34 @@ public class GISUtilsTest {
         verticalAxis = new VerticalAxisImpl("z-axis", values, vCrs);
         assertEquals(-5.0, GISUtils.getClosestElevationToSurface(verticalAxis), 1e-8);
     }
+
+    /**
+     * Test that {@link GISUtils#transformCoordinates} gives the same results as
+     * transforming each point with {@link GISUtils#transformPosition}, for an
+     * array large enough to be transformed in parallel blocks
+     */
+    @Test
+    public void testTransformCoordinates() throws EdalException {
+        CoordinateReferenceSystem wgs84 = GISUtils.defaultGeographicCRS();
+        CoordinateReferenceSystem polarStereographic = GISUtils.getCrs("EPSG:32661");
+        int n = 100000;
+        double[] xy = new double[2 * n];
+        for (int i = 0; i < n; i++) {
+            xy[2 * i] = -180.0 + 360.0 * (i % 1000) / 1000.0;
+            xy[2 * i + 1] = 60.0 + 30.0 * (i / 1000) / 100.0;
+        }
+        double[] original = xy.clone();
+
+        /* Transforming to the same CRS should leave the values unchanged */
+        GISUtils.transformCoordinates(wgs84, wgs84, xy, n);
+        assertTrue(Arrays.equals(original, xy));
+
+        GISUtils.transformCoordinates(wgs84, polarStereographic, xy, n);
+        for (int i = 0; i < n; i++) {
+            HorizontalPosition expected = GISUtils.transformPosition(new HorizontalPosition(
+                    original[2 * i], original[2 * i + 1], wgs84), polarStereographic);
+            assertEquals(expected.getX(), xy[2 * i], 1e-6);
+            assertEquals(expected.getY(), xy[2 * i + 1], 1e-6);
+        }
+    }
 }
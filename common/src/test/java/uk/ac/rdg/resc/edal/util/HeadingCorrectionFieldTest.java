@@ -0,0 +1,128 @@
+/*******************************************************************************
+ * Copyright (c) 2017 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import uk.ac.rdg.resc.edal.exceptions.EdalException;
+import uk.ac.rdg.resc.edal.geometry.BoundingBox;
+import uk.ac.rdg.resc.edal.geometry.BoundingBoxImpl;
+import uk.ac.rdg.resc.edal.position.HorizontalPosition;
+
+/**
+ * Test class for {@link HeadingCorrectionField}
+ */
+public class HeadingCorrectionFieldTest {
+    private static final int WIDTH = 256;
+    private static final int HEIGHT = 256;
+
+    @Test
+    public void testWgs84() {
+        BoundingBox bbox = new BoundingBoxImpl(-180, -90, 180, 90,
+                GISUtils.defaultGeographicCRS());
+        HeadingCorrectionField field = HeadingCorrectionField.get(bbox, WIDTH, HEIGHT);
+        assertEquals(45.0, field.transformHeading(45.0, 10, 200), 0.0);
+        assertNull(field.transformHeading(Double.NaN, 10, 200));
+        assertNull(field.transformHeading(null, 10, 200));
+        /* The first row of pixels is at the top of the image */
+        assertEquals(90.0, field.getLatitude(0, 0), 1.0);
+        assertEquals(-90.0, field.getLatitude(0, HEIGHT - 1), 1.0);
+
+        assertSame(field, HeadingCorrectionField.get(new BoundingBoxImpl(-180, -90, 180, 90,
+                GISUtils.defaultGeographicCRS()), WIDTH, HEIGHT));
+    }
+
+    /**
+     * Compares the headings from the field with those from
+     * {@link GISUtils#transformWgs84Heading(Number, HorizontalPosition)} in a
+     * polar stereographic projection, across the whole image
+     */
+    @Test
+    public void testPolarStereographic() throws EdalException {
+        CoordinateReferenceSystem crs = GISUtils.getCrs("EPSG:32661");
+        BoundingBox bbox = new BoundingBoxImpl(-4000000, -4000000, 8000000, 8000000, crs);
+        checkHeadings(bbox, 5);
+    }
+
+    /**
+     * Checks every pixel close to the pole, where headings change most
+     * quickly, including the pixel which the pole is at the centre of
+     */
+    @Test
+    public void testPole() throws EdalException {
+        CoordinateReferenceSystem crs = GISUtils.getCrs("EPSG:32661");
+        BoundingBox bbox = new BoundingBoxImpl(-4000000, -4000000, 8000000, 8000000, crs);
+        checkHeadings(bbox, 1);
+        /* Shift the image so that the pole is in the centre of a pixel */
+        double halfPixel = bbox.getWidth() / WIDTH / 2;
+        checkHeadings(new BoundingBoxImpl(-4000000 + halfPixel, -4000000 + halfPixel,
+                8000000 + halfPixel, 8000000 + halfPixel, crs), 1);
+    }
+
+    /*
+     * Checks headings every "step" pixels across the image, and at every pixel
+     * within 10 pixels of the pole
+     */
+    private static void checkHeadings(BoundingBox bbox, int step) {
+        CoordinateReferenceSystem crs = bbox.getCoordinateReferenceSystem();
+        HeadingCorrectionField field = HeadingCorrectionField.get(bbox, WIDTH, HEIGHT);
+        double xSpacing = bbox.getWidth() / WIDTH;
+        double ySpacing = bbox.getHeight() / HEIGHT;
+        HorizontalPosition pole = new HorizontalPosition(2000000, 2000000, crs);
+        for (int j = 0; j < HEIGHT; j++) {
+            for (int i = 0; i < WIDTH; i++) {
+                HorizontalPosition position = new HorizontalPosition(bbox.getMinX() + (i + 0.5)
+                        * xSpacing, bbox.getMaxY() - (j + 0.5) * ySpacing, crs);
+                boolean nearPole = GISUtils.getDistSquared(position, pole) < 100 * xSpacing
+                        * xSpacing;
+                if (!nearPole && (i % step != 0 || j % step != 0)) {
+                    continue;
+                }
+                for (double heading = -180; heading < 180; heading += 45) {
+                    double expected = GISUtils.transformWgs84Heading(heading, position);
+                    double actual = field.transformHeading(heading, i, j);
+                    if (Double.isNaN(expected)) {
+                        /* At the pole itself, north is undefined */
+                        assertTrue(Double.isNaN(actual));
+                        continue;
+                    }
+                    /* Compare the angles in the range [-180,180) */
+                    double difference = ((actual - expected) % 360 + 540) % 360 - 180;
+                    assertEquals(0.0, difference, 0.1);
+                }
+            }
+        }
+    }
+}
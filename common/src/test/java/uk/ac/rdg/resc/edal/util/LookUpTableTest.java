@@ -0,0 +1,197 @@
+/*******************************************************************************
+ * Copyright (c) 2017 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.rdg.resc.edal.grid.LookUpTableGrid;
+import uk.ac.rdg.resc.edal.util.CurvilinearCoords.Cell;
+
+/**
+ * Tests the building, persistence and lookups of {@link LookUpTable}s
+ */
+public class LookUpTableTest {
+    private CurvilinearCoords curvCoords;
+    private double resolution;
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        /*
+         * A sheared grid
+         */
+        int ni = 60;
+        int nj = 40;
+        Array2D<Number> lons = new ValuesArray2D(nj, ni);
+        Array2D<Number> lats = new ValuesArray2D(nj, ni);
+        for (int j = 0; j < nj; j++) {
+            for (int i = 0; i < ni; i++) {
+                lons.set(-30.0f + i + 0.3f * j, j, i);
+                lats.set(-20.0f + j - 0.2f * i, j, i);
+            }
+        }
+        curvCoords = new CurvilinearCoords(lons, lats);
+        resolution = Math.sqrt(curvCoords.getMeanCellArea()) / 3.0;
+        dir = Files.createTempDirectory("luttest").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testLookup() {
+        LookUpTable lut = new LookUpTable(curvCoords, resolution);
+        /*
+         * The LUT has 3 times the resolution of the grid, so the centres of
+         * all cells away from the edges should be found exactly
+         */
+        for (Cell cell : curvCoords.getCells()) {
+            if (cell.getI() > 0 && cell.getJ() > 0 && cell.getI() < curvCoords.getNi() - 1
+                    && cell.getJ() < curvCoords.getNj() - 1) {
+                assertArrayEquals(new int[] { cell.getI(), cell.getJ() },
+                        lut.getGridCoordinates(cell.getCentre().getX(), cell.getCentre().getY()));
+            }
+        }
+        /*
+         * Outside the grid, but inside the bounding box
+         */
+        assertNull(lut.getGridCoordinates(-30.0, 19.0));
+        /*
+         * Outside the bounding box
+         */
+        assertNull(lut.getGridCoordinates(100.0, 0.0));
+    }
+
+    @Test
+    public void testPersistence() throws IOException {
+        LookUpTable lut = new LookUpTable(curvCoords, resolution);
+        File file = new File(dir, "test.lut");
+        LookUpTable mapped = LookUpTable.create(curvCoords, resolution, file);
+        assertEquals(lut, mapped);
+        assertEquals(0L, mapped.getHeapSize());
+        LookUpTable loaded = LookUpTable.load(file);
+        assertEquals(lut, loaded);
+        /*
+         * The persisted tables must give the same results as the heap table
+         * everywhere, including outside the grid
+         */
+        for (double lat = -35.0; lat <= 25.0; lat += 0.29) {
+            for (double lon = -45.0; lon <= 45.0; lon += 0.37) {
+                int[] expected = lut.getGridCoordinates(lon, lat);
+                assertArrayEquals(expected, mapped.getGridCoordinates(lon, lat));
+                assertArrayEquals(expected, loaded.getGridCoordinates(lon, lat));
+            }
+        }
+
+        File badFile = new File(dir, "bad.lut");
+        try (FileOutputStream out = new FileOutputStream(badFile)) {
+            out.write(new byte[100]);
+        }
+        assertNull(LookUpTable.load(badFile));
+    }
+
+    @Test
+    public void testConcurrentGridGeneration() throws Exception {
+        LookUpTableGrid.clearCache();
+        final Array2D<Number> lons = new ValuesArray2D(40, 60);
+        final Array2D<Number> lats = new ValuesArray2D(40, 60);
+        for (Cell cell : curvCoords.getCells()) {
+            lons.set(cell.getCentre().getX(), cell.getJ(), cell.getI());
+            lats.set(cell.getCentre().getY(), cell.getJ(), cell.getI());
+        }
+        /*
+         * Each grid should only be generated once, however many threads
+         * request it at the same time
+         */
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<LookUpTableGrid>> grids = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                grids.add(executor.submit(new Callable<LookUpTableGrid>() {
+                    @Override
+                    public LookUpTableGrid call() {
+                        return LookUpTableGrid.generate(lons, lats);
+                    }
+                }));
+            }
+            for (Future<LookUpTableGrid> grid : grids) {
+                assertSame(grids.get(0).get(), grid.get());
+            }
+        } finally {
+            executor.shutdown();
+            LookUpTableGrid.clearCache();
+        }
+    }
+
+    @Test
+    public void testLargeIndices() {
+        /*
+         * Too wide for indices to be stored in 16 bits
+         */
+        int ni = 70000;
+        int nj = 3;
+        Array2D<Number> lons = new ValuesArray2D(nj, ni);
+        Array2D<Number> lats = new ValuesArray2D(nj, ni);
+        for (int j = 0; j < nj; j++) {
+            for (int i = 0; i < ni; i++) {
+                lons.set(-175.0f + i * 0.005f, j, i);
+                lats.set(j * 0.005f, j, i);
+            }
+        }
+        CurvilinearCoords wideCoords = new CurvilinearCoords(lons, lats);
+        LookUpTable lut = new LookUpTable(wideCoords,
+                Math.sqrt(wideCoords.getMeanCellArea()) / 3.0);
+        Cell cell = wideCoords.getCell(69000, 1);
+        assertArrayEquals(new int[] { 69000, 1 },
+                lut.getGridCoordinates(cell.getCentre().getX(), cell.getCentre().getY()));
+    }
+}
@@ -0,0 +1,189 @@
+/*******************************************************************************
+ * Copyright (c) 2017 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MetricsTest {
+    @Before
+    public void setUp() {
+        Metrics.setEnabled(true);
+        Metrics.reset();
+    }
+
+    @After
+    public void tearDown() {
+        Metrics.setEnabled(true);
+        Metrics.reset();
+    }
+
+    private static String getText() throws IOException {
+        StringWriter writer = new StringWriter();
+        Metrics.writeText(writer);
+        return writer.toString();
+    }
+
+    @Test
+    public void testCounters() throws IOException {
+        Metrics.increment("test_total", "dataset", "a");
+        Metrics.add("test_total", 4, "dataset", "a");
+        Metrics.increment("test_total", "dataset", "b");
+        assertEquals(5, Metrics.getCount("test_total", "dataset", "a"));
+        assertEquals(1, Metrics.getCount("test_total", "dataset", "b"));
+        assertEquals(0, Metrics.getCount("test_total"));
+
+        String text = getText();
+        assertTrue(text.contains("# TYPE test_total counter\n"));
+        assertTrue(text.contains("test_total{dataset=\"a\"} 5\n"));
+        assertTrue(text.contains("test_total{dataset=\"b\"} 1\n"));
+    }
+
+    @Test
+    public void testTimers() throws IOException {
+        Metrics.record("test_seconds", 2000000L, "request", "GetMap");
+        Metrics.record("test_seconds", 200000000L, "request", "GetMap");
+        Metrics.record("test_seconds", 60000000000L, "request", "GetMap");
+        assertEquals(3, Metrics.getTimerCount("test_seconds", "request", "GetMap"));
+
+        String text = getText();
+        assertTrue(text.contains("# TYPE test_seconds histogram\n"));
+        /* Buckets are cumulative */
+        assertTrue(text.contains("test_seconds_bucket{request=\"GetMap\",le=\"0.001\"} 0\n"));
+        assertTrue(text.contains("test_seconds_bucket{request=\"GetMap\",le=\"0.0025\"} 1\n"));
+        assertTrue(text.contains("test_seconds_bucket{request=\"GetMap\",le=\"0.25\"} 2\n"));
+        assertTrue(text.contains("test_seconds_bucket{request=\"GetMap\",le=\"30.0\"} 2\n"));
+        assertTrue(text.contains("test_seconds_bucket{request=\"GetMap\",le=\"+Inf\"} 3\n"));
+        assertTrue(text.contains("test_seconds_sum{request=\"GetMap\"} 60.202\n"));
+        assertTrue(text.contains("test_seconds_count{request=\"GetMap\"} 3\n"));
+
+        long start = Metrics.start();
+        Metrics.stop(start, "test_seconds");
+        assertEquals(1, Metrics.getTimerCount("test_seconds"));
+    }
+
+    @Test
+    public void testLabelledCounter() throws IOException {
+        Metrics.LabelledCounter counter = Metrics.counter("test_total", "dataset", "a");
+        counter.increment();
+        counter.add(4);
+        Metrics.increment("test_total", "dataset", "a");
+        assertEquals(6, Metrics.getCount("test_total", "dataset", "a"));
+        assertTrue(getText().contains("test_total{dataset=\"a\"} 6\n"));
+
+        /* The counter still works after a reset, but not while disabled */
+        Metrics.reset();
+        counter.increment();
+        Metrics.setEnabled(false);
+        counter.increment();
+        assertEquals(1, Metrics.getCount("test_total", "dataset", "a"));
+    }
+
+    @Test
+    public void testDisabled() throws IOException {
+        Metrics.setEnabled(false);
+        long start = Metrics.start();
+        Metrics.increment("test_total");
+        Metrics.record("test_seconds", 1000L);
+        Metrics.stop(start, "test_seconds");
+        /* Timers started while disabled are ignored */
+        Metrics.setEnabled(true);
+        Metrics.stop(start, "test_seconds");
+        assertEquals(0, Metrics.getCount("test_total"));
+        assertEquals(0, Metrics.getTimerCount("test_seconds"));
+        assertFalse(getText().contains("test_"));
+    }
+
+    @Test
+    public void testLabelEscaping() throws IOException {
+        Metrics.increment("test_total", "dataset", "a \"quoted\"\\name\n");
+        assertTrue(getText().contains("test_total{dataset=\"a \\\"quoted\\\"\\\\name\\n\"} 1\n"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnpairedLabels() {
+        Metrics.increment("test_total", "dataset");
+    }
+
+    @Test
+    public void testJmx() throws Exception {
+        Metrics.cacheLookup("test", true);
+        Metrics.cacheLookup("test", true);
+        Metrics.cacheLookup("test", true);
+        Metrics.cacheLookup("test", false);
+        Metrics.cacheLookup("missing", false);
+        Metrics.record("test_seconds", 3000000L);
+        Metrics.record("test_seconds", 1000000L);
+
+        Metrics.registerMBean();
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(Metrics.OBJECT_NAME);
+            assertTrue(server.isRegistered(name));
+            assertEquals(Boolean.TRUE, server.getAttribute(name, "Enabled"));
+
+            TabularData ratios = (TabularData) server.getAttribute(name, "CacheHitRatios");
+            assertEquals(2, ratios.size());
+            for (Object row : ratios.values()) {
+                CompositeData entry = (CompositeData) row;
+                if (entry.get("key").equals("cache=\"test\"")) {
+                    assertEquals(0.75, (Double) entry.get("value"), 1e-10);
+                } else {
+                    assertEquals(0.0, (Double) entry.get("value"), 1e-10);
+                }
+            }
+
+            TabularData means = (TabularData) server.getAttribute(name, "TimerMeanMillis");
+            CompositeData mean = (CompositeData) means.values().iterator().next();
+            assertEquals("test_seconds", mean.get("key"));
+            assertEquals(2.0, (Double) mean.get("value"), 1e-10);
+
+            server.invoke(name, "reset", null, null);
+            assertEquals(0, Metrics.getCount(Metrics.CACHE_HITS, "cache", "test"));
+        } finally {
+            Metrics.unregisterMBean();
+        }
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(
+                new ObjectName(Metrics.OBJECT_NAME)));
+    }
+}
@@ -0,0 +1,105 @@
+/*******************************************************************************
+ * Copyright (c) 2017 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Test class for {@link ValueStatistics}
+ */
+public class ValueStatisticsTest {
+    @Test
+    public void testFromValues() {
+        List<Number> values = new ArrayList<>();
+        for (int i = 0; i <= 1000; i++) {
+            values.add(i);
+        }
+        values.add(null);
+        values.add(Float.NaN);
+        ValueStatistics stats = ValueStatistics.fromValues(values, 10);
+        assertEquals(1001, stats.getCount());
+        assertEquals(0.0, stats.getMin(), 1e-10);
+        assertEquals(1000.0, stats.getMax(), 1e-10);
+        assertEquals(500.0, stats.getMean(), 1e-10);
+
+        double[] histogram = stats.getHistogram();
+        assertEquals(10, histogram.length);
+        double total = 0;
+        for (double count : histogram) {
+            total += count;
+        }
+        assertEquals(1001, total, 1e-10);
+
+        assertEquals(0.0, stats.getPercentile(0), 1.0);
+        assertEquals(500.0, stats.getPercentile(50), 1.0);
+        assertEquals(990.0, stats.getPercentile(99), 1.0);
+        assertEquals(1000.0, stats.getPercentile(100), 1.0);
+    }
+
+    @Test
+    public void testNoValues() {
+        ValueStatistics stats = ValueStatistics.fromValues(Arrays.asList((Number) null));
+        assertEquals(0, stats.getCount());
+        assertTrue(Double.isNaN(stats.getMean()));
+        assertTrue(Double.isNaN(stats.getPercentile(50)));
+        assertTrue(stats.getValueRange().isEmpty());
+    }
+
+    @Test
+    public void testMerge() {
+        List<Number> low = new ArrayList<>();
+        List<Number> high = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            low.add(i);
+            high.add(i + 500);
+        }
+        ValueStatistics merged = ValueStatistics.merge(Arrays.asList(
+                ValueStatistics.fromValues(low), ValueStatistics.fromValues(high),
+                ValueStatistics.fromValues(Arrays.asList(250, 250, 250, 250))));
+        assertEquals(1004, merged.getCount());
+        assertEquals(0.0, merged.getMin(), 1e-10);
+        assertEquals(999.0, merged.getMax(), 1e-10);
+        assertEquals((999.0 * 500 + 1000.0) / 1004, merged.getMean(), 1e-10);
+
+        double total = 0;
+        for (double count : merged.getHistogram()) {
+            total += count;
+        }
+        assertEquals(1004, total, 1e-6);
+        assertEquals(250.0, merged.getPercentile(25), 10.0);
+        assertEquals(750.0, merged.getPercentile(75), 10.0);
+    }
+}
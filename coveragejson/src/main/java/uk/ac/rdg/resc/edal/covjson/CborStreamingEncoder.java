@@ -0,0 +1,658 @@
+/*******************************************************************************
+ * Copyright (c) 2016 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.covjson;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+
+/**
+ * A {@link StreamingEncoder} which writes binary CBOR (RFC 7049).
+ * 
+ * Maps and arrays of unknown size are written with indefinite lengths.
+ * Arrays whose {@link ArrayHints} give both a size and a floating point type
+ * are streamed as big-endian RFC 8746 typed arrays, in chunks of
+ * {@value #CHUNK_SIZE} bytes, so that large ranges are never held in memory.
+ * Missing values in these arrays are written as NaN.
+ * 
+ * Small arrays whose size is given but whose type is not are buffered in a
+ * primitive array and, if they contain only numbers of a single type, are
+ * also written as typed arrays. Any other content makes them fall back to a
+ * plain CBOR array. Larger arrays of unknown type are written directly as
+ * plain CBOR arrays.
+ */
+public class CborStreamingEncoder implements StreamingEncoder {
+	/* Major types */
+	private static final int UNSIGNED_INT = 0;
+	private static final int NEGATIVE_INT = 1;
+	private static final int BYTE_STRING = 2;
+	private static final int TEXT_STRING = 3;
+	private static final int ARRAY = 4;
+	private static final int MAP = 5;
+	private static final int TAG = 6;
+
+	/* Simple values and other single-byte items */
+	private static final int FALSE = 0xf4;
+	private static final int TRUE = 0xf5;
+	private static final int NULL = 0xf6;
+	private static final int FLOAT32 = 0xfa;
+	private static final int FLOAT64 = 0xfb;
+	private static final int INDEFINITE_ARRAY = 0x9f;
+	private static final int INDEFINITE_MAP = 0xbf;
+	private static final int BREAK = 0xff;
+
+	/* RFC 8746 typed array tags (big-endian) */
+	private static final int TAG_SINT32_BE = 74;
+	private static final int TAG_SINT64_BE = 75;
+	private static final int TAG_FLOAT32_BE = 81;
+	private static final int TAG_FLOAT64_BE = 82;
+
+	/* The size of the buffer used to write typed arrays */
+	private static final int CHUNK_SIZE = 8192;
+	/*
+	 * The maximum number of values of an untyped array to buffer while
+	 * deciding whether it can be written as a typed array
+	 */
+	private static final int MAX_BUFFERED_VALUES = CHUNK_SIZE / 8;
+
+	private final OutputStream os;
+	private final ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+
+	public CborStreamingEncoder(OutputStream os) {
+		this.os = new BufferedOutputStream(os, CHUNK_SIZE);
+	}
+
+	@Override
+	public MapEncoder<StreamingEncoder> startMap() throws IOException {
+		os.write(INDEFINITE_MAP);
+		return new CborMapEncoder<StreamingEncoder>(this);
+	}
+
+	@Override
+	public void end() throws IOException {
+		os.flush();
+	}
+
+	private void writeHeader(int majorType, long length) throws IOException {
+		int mt = majorType << 5;
+		if (length < 24) {
+			os.write(mt | (int) length);
+		} else if (length < 0x100) {
+			os.write(mt | 24);
+			os.write((int) length);
+		} else if (length < 0x10000) {
+			os.write(mt | 25);
+			os.write((int) (length >> 8));
+			os.write((int) length);
+		} else if (length < 0x100000000L) {
+			os.write(mt | 26);
+			for (int shift = 24; shift >= 0; shift -= 8) {
+				os.write((int) (length >> shift));
+			}
+		} else {
+			os.write(mt | 27);
+			for (int shift = 56; shift >= 0; shift -= 8) {
+				os.write((int) (length >> shift));
+			}
+		}
+	}
+
+	private void writeString(String value) throws IOException {
+		if (value == null) {
+			os.write(NULL);
+		} else {
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			writeHeader(TEXT_STRING, bytes.length);
+			os.write(bytes);
+		}
+	}
+
+	private void writeBoolean(boolean value) throws IOException {
+		os.write(value ? TRUE : FALSE);
+	}
+
+	private void writeLong(long value) throws IOException {
+		if (value >= 0) {
+			writeHeader(UNSIGNED_INT, value);
+		} else {
+			/* -1 - value, without overflow */
+			writeHeader(NEGATIVE_INT, ~value);
+		}
+	}
+
+	private void writeFloat(float value) throws IOException {
+		os.write(FLOAT32);
+		int bits = Float.floatToIntBits(value);
+		for (int shift = 24; shift >= 0; shift -= 8) {
+			os.write(bits >> shift);
+		}
+	}
+
+	private void writeDouble(double value) throws IOException {
+		os.write(FLOAT64);
+		long bits = Double.doubleToLongBits(value);
+		for (int shift = 56; shift >= 0; shift -= 8) {
+			os.write((int) (bits >> shift));
+		}
+	}
+
+	private void flushBuffer() throws IOException {
+		os.write(buffer.array(), 0, buffer.position());
+		buffer.clear();
+	}
+
+	class CborMapEncoder<T> implements MapEncoder<T> {
+		private final T parent;
+
+		public CborMapEncoder(T parent) {
+			this.parent = parent;
+		}
+
+		@Override
+		public MapEncoder<T> put(String key, String value) throws IOException {
+			writeString(key);
+			writeString(value);
+			return this;
+		}
+
+		@Override
+		public MapEncoder<T> put(String key, boolean value) throws IOException {
+			writeString(key);
+			writeBoolean(value);
+			return this;
+		}
+
+		@Override
+		public MapEncoder<T> put(String key, int value) throws IOException {
+			writeString(key);
+			writeLong(value);
+			return this;
+		}
+
+		@Override
+		public MapEncoder<T> put(String key, long value) throws IOException {
+			writeString(key);
+			writeLong(value);
+			return this;
+		}
+
+		@Override
+		public MapEncoder<T> put(String key, float value) throws IOException {
+			writeString(key);
+			writeFloat(value);
+			return this;
+		}
+
+		@Override
+		public MapEncoder<T> put(String key, double value) throws IOException {
+			writeString(key);
+			writeDouble(value);
+			return this;
+		}
+
+		@Override
+		public ArrayEncoder<MapEncoder<T>> startArray(String key) throws IOException {
+			return startArray(key, null);
+		}
+
+		@Override
+		public ArrayEncoder<MapEncoder<T>> startArray(String key, ArrayHints hints)
+				throws IOException {
+			writeString(key);
+			return new CborArrayEncoder<MapEncoder<T>>(this, hints);
+		}
+
+		@Override
+		public MapEncoder<MapEncoder<T>> startMap(String key) throws IOException {
+			writeString(key);
+			os.write(INDEFINITE_MAP);
+			return new CborMapEncoder<MapEncoder<T>>(this);
+		}
+
+		@Override
+		public T end() throws IOException {
+			os.write(BREAK);
+			return parent;
+		}
+	}
+
+	/**
+	 * The type of the values held by a buffered {@link CborArrayEncoder}
+	 */
+	private enum BufferType {
+		NONE, INT, LONG, FLOAT, DOUBLE
+	}
+
+	class CborArrayEncoder<T> implements ArrayEncoder<T> {
+		private final T parent;
+
+		/*
+		 * Whether values are currently being buffered so that they can be
+		 * written as a typed array
+		 */
+		private boolean buffering;
+		private final int capacity;
+		private BufferType type = BufferType.NONE;
+		private int[] intValues;
+		private long[] longValues;
+		private float[] floatValues;
+		private double[] doubleValues;
+		private final BitSet nulls = new BitSet();
+		private int n = 0;
+
+		/*
+		 * Whether values are being streamed directly into a typed array of
+		 * the given type
+		 */
+		private boolean streaming = false;
+		/*
+		 * The total size of the array, if this has already been written as
+		 * part of the array header, or -1 otherwise
+		 */
+		private long size = -1;
+		private long nWritten = 0;
+
+		public CborArrayEncoder(T parent, ArrayHints hints) throws IOException {
+			this.parent = parent;
+			if (hints != null && hints.hasSize() && hints.hasType()
+					&& (hints.getType() == Float.class || hints.getType() == Double.class)) {
+				/*
+				 * Floating point arrays of a known size can be streamed
+				 * straight into a typed array
+				 */
+				buffering = false;
+				capacity = 0;
+				streaming = true;
+				size = hints.getSize();
+				if (hints.getType() == Float.class) {
+					type = BufferType.FLOAT;
+					writeHeader(TAG, TAG_FLOAT32_BE);
+					writeHeader(BYTE_STRING, size * 4);
+				} else {
+					type = BufferType.DOUBLE;
+					writeHeader(TAG, TAG_FLOAT64_BE);
+					writeHeader(BYTE_STRING, size * 8);
+				}
+				buffer.clear();
+			} else if (hints != null && hints.hasSize()
+					&& hints.getSize() <= MAX_BUFFERED_VALUES) {
+				buffering = true;
+				capacity = (int) hints.getSize();
+			} else if (hints != null && hints.hasSize()) {
+				/*
+				 * Too large to buffer, so we write a plain array
+				 */
+				buffering = false;
+				capacity = 0;
+				size = hints.getSize();
+				writeHeader(ARRAY, size);
+			} else {
+				buffering = false;
+				capacity = 0;
+				os.write(INDEFINITE_ARRAY);
+			}
+		}
+
+		/**
+		 * Counts a value written directly to a sized array
+		 */
+		private void count() {
+			if (size >= 0 && ++nWritten > size) {
+				throw new IllegalStateException("More than " + size
+						+ " values were written to an array of fixed size");
+			}
+		}
+
+		/**
+		 * Writes a value to a streamed typed array
+		 */
+		private void stream(double value) throws IOException {
+			count();
+			if (type == BufferType.FLOAT) {
+				if (buffer.remaining() < 4) {
+					flushBuffer();
+				}
+				buffer.putFloat((float) value);
+			} else {
+				if (buffer.remaining() < 8) {
+					flushBuffer();
+				}
+				buffer.putDouble(value);
+			}
+		}
+
+		private void checkNotStreaming() {
+			if (streaming) {
+				throw new IllegalStateException(
+						"Only numbers can be written to a typed array");
+			}
+		}
+
+		/**
+		 * Prepares the buffer to receive a value of the given type.
+		 * 
+		 * @return <code>true</code> if the value should be buffered,
+		 *         <code>false</code> if it should be written directly
+		 */
+		private boolean buffer(BufferType valueType) throws IOException {
+			return buffer(valueType, 1);
+		}
+
+		/**
+		 * Prepares the buffer to receive a number of values of the given type.
+		 * 
+		 * @return <code>true</code> if the values should be buffered,
+		 *         <code>false</code> if they should be written directly
+		 */
+		private boolean buffer(BufferType valueType, int count) throws IOException {
+			if (!buffering) {
+				return false;
+			}
+			if (n + count > capacity || (type != BufferType.NONE && type != valueType)) {
+				stopBuffering();
+				return false;
+			}
+			if (type == BufferType.NONE) {
+				type = valueType;
+				switch (type) {
+				case INT:
+					intValues = new int[capacity];
+					break;
+				case LONG:
+					longValues = new long[capacity];
+					break;
+				case FLOAT:
+					floatValues = new float[capacity];
+					break;
+				case DOUBLE:
+					doubleValues = new double[capacity];
+					break;
+				default:
+					break;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Writes out everything buffered so far as the start of a plain,
+		 * indefinite-length CBOR array. All subsequent values are written
+		 * directly.
+		 */
+		private void stopBuffering() throws IOException {
+			buffering = false;
+			os.write(INDEFINITE_ARRAY);
+			writeBufferedItems();
+			intValues = null;
+			longValues = null;
+			floatValues = null;
+			doubleValues = null;
+		}
+
+		private void writeBufferedItems() throws IOException {
+			for (int i = 0; i < n; i++) {
+				if (nulls.get(i)) {
+					os.write(NULL);
+					continue;
+				}
+				switch (type) {
+				case INT:
+					writeLong(intValues[i]);
+					break;
+				case LONG:
+					writeLong(longValues[i]);
+					break;
+				case FLOAT:
+					if (Float.isNaN(floatValues[i])) {
+						os.write(NULL);
+					} else {
+						writeFloat(floatValues[i]);
+					}
+					break;
+				case DOUBLE:
+					writeDouble(doubleValues[i]);
+					break;
+				default:
+					break;
+				}
+			}
+		}
+
+		private void writeTypedArray() throws IOException {
+			int tag;
+			int width;
+			switch (type) {
+			case INT:
+				tag = TAG_SINT32_BE;
+				width = 4;
+				break;
+			case LONG:
+				tag = TAG_SINT64_BE;
+				width = 8;
+				break;
+			case FLOAT:
+				tag = TAG_FLOAT32_BE;
+				width = 4;
+				break;
+			case DOUBLE:
+			default:
+				tag = TAG_FLOAT64_BE;
+				width = 8;
+				break;
+			}
+			writeHeader(TAG, tag);
+			writeHeader(BYTE_STRING, (long) n * width);
+			buffer.clear();
+			for (int i = 0; i < n; i++) {
+				if (buffer.remaining() < width) {
+					flushBuffer();
+				}
+				switch (type) {
+				case INT:
+					buffer.putInt(intValues[i]);
+					break;
+				case LONG:
+					buffer.putLong(longValues[i]);
+					break;
+				case FLOAT:
+					buffer.putFloat(nulls.get(i) ? Float.NaN : floatValues[i]);
+					break;
+				case DOUBLE:
+				default:
+					buffer.putDouble(nulls.get(i) ? Double.NaN : doubleValues[i]);
+					break;
+				}
+			}
+			flushBuffer();
+		}
+
+		@Override
+		public ArrayEncoder<T> add(String value) throws IOException {
+			if (value == null && streaming) {
+				stream(Double.NaN);
+				return this;
+			}
+			checkNotStreaming();
+			if (value == null && buffering && n < capacity) {
+				nulls.set(n++);
+				return this;
+			}
+			if (buffering) {
+				stopBuffering();
+			}
+			count();
+			writeString(value);
+			return this;
+		}
+
+		@Override
+		public ArrayEncoder<T> add(boolean value) throws IOException {
+			checkNotStreaming();
+			if (buffering) {
+				stopBuffering();
+			}
+			count();
+			writeBoolean(value);
+			return this;
+		}
+
+		@Override
+		public ArrayEncoder<T> add(int value) throws IOException {
+			if (streaming) {
+				stream(value);
+			} else if (buffer(BufferType.INT)) {
+				intValues[n++] = value;
+			} else {
+				count();
+				writeLong(value);
+			}
+			return this;
+		}
+
+		@Override
+		public ArrayEncoder<T> add(long value) throws IOException {
+			if (streaming) {
+				stream(value);
+			} else if (buffer(BufferType.LONG)) {
+				longValues[n++] = value;
+			} else {
+				count();
+				writeLong(value);
+			}
+			return this;
+		}
+
+		@Override
+		public ArrayEncoder<T> add(float value) throws IOException {
+			if (streaming) {
+				stream(value);
+			} else if (buffer(BufferType.FLOAT)) {
+				floatValues[n++] = value;
+			} else {
+				count();
+				writeFloat(value);
+			}
+			return this;
+		}
+
+		@Override
+		public ArrayEncoder<T> add(double value) throws IOException {
+			if (streaming) {
+				stream(value);
+			} else if (buffer(BufferType.DOUBLE)) {
+				doubleValues[n++] = value;
+			} else {
+				count();
+				writeDouble(value);
+			}
+			return this;
+		}
+
+		@Override
+		public ArrayEncoder<T> addFloats(float[] buf, int off, int len) throws IOException {
+			if (streaming) {
+				for (int i = off; i < off + len; i++) {
+					stream(buf[i]);
+				}
+			} else if (buffer(BufferType.FLOAT, len)) {
+				/*
+				 * NaNs are written as NaN in a typed array, so there is no
+				 * need to record them as nulls
+				 */
+				System.arraycopy(buf, off, floatValues, n, len);
+				n += len;
+			} else {
+				for (int i = off; i < off + len; i++) {
+					count();
+					if (Float.isNaN(buf[i])) {
+						os.write(NULL);
+					} else {
+						writeFloat(buf[i]);
+					}
+				}
+			}
+			return this;
+		}
+
+		@Override
+		public ArrayEncoder<ArrayEncoder<T>> startArray() throws IOException {
+			return startArray(null);
+		}
+
+		@Override
+		public ArrayEncoder<ArrayEncoder<T>> startArray(ArrayHints hints) throws IOException {
+			checkNotStreaming();
+			if (buffering) {
+				stopBuffering();
+			}
+			count();
+			return new CborArrayEncoder<ArrayEncoder<T>>(this, hints);
+		}
+
+		@Override
+		public MapEncoder<ArrayEncoder<T>> startMap() throws IOException {
+			checkNotStreaming();
+			if (buffering) {
+				stopBuffering();
+			}
+			count();
+			os.write(INDEFINITE_MAP);
+			return new CborMapEncoder<ArrayEncoder<T>>(this);
+		}
+
+		@Override
+		public T end() throws IOException {
+			if (size >= 0) {
+				if (nWritten != size) {
+					throw new IllegalStateException("An array of size " + size + " had "
+							+ nWritten + " values written to it");
+				}
+				if (streaming) {
+					flushBuffer();
+				}
+			} else if (!buffering) {
+				os.write(BREAK);
+			} else if (type == BufferType.NONE
+					|| (!nulls.isEmpty() && (type == BufferType.INT || type == BufferType.LONG))) {
+				/*
+				 * Empty, all-null, or integer arrays with missing values
+				 * cannot be written as typed arrays
+				 */
+				writeHeader(ARRAY, n);
+				writeBufferedItems();
+			} else {
+				writeTypedArray();
+			}
+			return parent;
+		}
+	}
+}
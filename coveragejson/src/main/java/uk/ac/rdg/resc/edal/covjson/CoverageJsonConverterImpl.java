@@ -42,12 +42,49 @@ import uk.ac.rdg.resc.edal.feature.Feature;
  *
  */
 public class CoverageJsonConverterImpl implements CoverageJsonConverter {
+	/** The media type of CoverageJSON documents */
+	public static final String COVJSON_MEDIA_TYPE = "application/prs.coverage+json";
+	/** The media type of CBOR-encoded CoverageJSON documents */
+	public static final String COVCBOR_MEDIA_TYPE = "application/prs.coverage+cbor";
+
+	private final boolean cbor;
+
+	/**
+	 * Creates a converter which writes CoverageJSON as JSON text
+	 */
+	public CoverageJsonConverterImpl() {
+		this(false);
+	}
+
+	/**
+	 * @param cbor
+	 *            Whether to write binary CBOR (with numerical ranges as typed
+	 *            arrays) rather than JSON text
+	 */
+	public CoverageJsonConverterImpl(boolean cbor) {
+		this.cbor = cbor;
+	}
+
+	/**
+	 * @return The media type of the documents written by this converter
+	 */
+	public String getMediaType() {
+		return cbor ? COVCBOR_MEDIA_TYPE : COVJSON_MEDIA_TYPE;
+	}
+
+	private StreamingEncoder createEncoder(OutputStream os) throws IOException {
+		if (cbor) {
+			return new CborStreamingEncoder(os);
+		} else {
+			return new JsonStreamingEncoder(os);
+		}
+	}
 
 	@Override
 	public void convertFeatureToJson(OutputStream os, Feature<?> feature) {
 		StreamingEncoder encoder;
 		try {
-			encoder = new JsonStreamingEncoder(os);
+			encoder = createEncoder(os);
 			CoverageJsonWriter writer = new CoverageJsonWriter(encoder);
 			writer.write(feature);
 		} catch (IOException e) {
@@ -59,7 +96,7 @@ public class CoverageJsonConverterImpl implements CoverageJsonConverter {
 	public void convertFeaturesToJson(OutputStream os, Collection<Feature<?>> features) {
 		StreamingEncoder encoder;
 		try {
-			encoder = new JsonStreamingEncoder(os);
+			encoder = createEncoder(os);
 			CoverageJsonWriter writer = new CoverageJsonWriter(encoder);
 			writer.write(features);
 		} catch (IOException e) {
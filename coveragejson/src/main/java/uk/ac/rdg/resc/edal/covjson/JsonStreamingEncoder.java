@@ -179,6 +179,19 @@ public class JsonStreamingEncoder implements StreamingEncoder {
 			return this;
 		}
 
+		@Override
+		public ArrayEncoder<T> addFloats(float[] buf, int off, int len) throws IOException {
+			for (int i = off; i < off + len; i++) {
+				float value = buf[i];
+				if (Float.isNaN(value)) {
+					generator.writeNull();
+				} else {
+					generator.writeNumber(value);
+				}
+			}
+			return this;
+		}
+
 		@Override
 		public ArrayEncoder<ArrayEncoder<T>> startArray() throws IOException {
 			generator.writeStartArray();
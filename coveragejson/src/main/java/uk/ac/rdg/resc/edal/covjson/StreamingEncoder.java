@@ -74,6 +74,27 @@ public interface StreamingEncoder {
 		ArrayEncoder<T> add(long value) throws IOException;
 		ArrayEncoder<T> add(float value) throws IOException;
 		ArrayEncoder<T> add(double value) throws IOException;
+		/**
+		 * Adds a block of float values. NaN values are treated as missing
+		 * (i.e. they are equivalent to adding <code>null</code>).
+		 * 
+		 * The default implementation adds each value in turn. Encoders which
+		 * can write blocks of values more efficiently should override it.
+		 * 
+		 * @param buf The buffer containing the values
+		 * @param off The offset of the first value in the buffer
+		 * @param len The number of values to add
+		 */
+		default ArrayEncoder<T> addFloats(float[] buf, int off, int len) throws IOException {
+			for (int i = off; i < off + len; i++) {
+				if (Float.isNaN(buf[i])) {
+					add((String) null);
+				} else {
+					add(buf[i]);
+				}
+			}
+			return this;
+		}
 		ArrayEncoder<ArrayEncoder<T>> startArray() throws IOException;
 		ArrayEncoder<ArrayEncoder<T>> startArray(ArrayHints hints) throws IOException;
 		MapEncoder<ArrayEncoder<T>> startMap() throws IOException;
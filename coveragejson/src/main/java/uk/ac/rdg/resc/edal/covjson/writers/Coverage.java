@@ -117,8 +117,8 @@ public class Coverage {
 	static class NdArray implements Iterable<Number> {
 		static final List<String> axisOrder = Arrays.asList(Keys.T, Keys.Z, Keys.Y, Keys.X, Keys.COMPOSITE);
 		
-		List<String> axisNames = new LinkedList<>();
-		List<Integer> shape = new LinkedList<>();
+		List<String> axisNames = new ArrayList<>(axisOrder.size());
+		int[] shape;
 		int size = 0;
 		DataType dataType;
 		private Array<Number> values;
@@ -128,11 +128,13 @@ public class Coverage {
 			for (String axisKey : axisOrder) {
 				if (domain.axes.containsKey(axisKey)) {
 					axisNames.add(axisKey);
-					int size = domain.axes.get(axisKey).size();
-					shape.add(size);
-					totalSize *= size;
+					totalSize *= domain.axes.get(axisKey).size();
 				}
 			}
+			this.shape = new int[axisNames.size()];
+			for (int i = 0; i < shape.length; i++) {
+				shape[i] = domain.axes.get(axisNames.get(i)).size();
+			}
 			this.size = totalSize;
 			
 			Parameter param = feature.getParameter(paramId);
@@ -148,6 +150,27 @@ public class Coverage {
 			// TODO add unit test to check that the order is not changed in some new release
 			return this.values.iterator();
 		}
+		
+		/**
+		 * Reads values in the same order as {@link #iterator()} into a
+		 * primitive buffer, so that they can be passed to an encoder in bulk.
+		 * Missing values are stored as NaN.
+		 * 
+		 * @param it
+		 *            An iterator obtained from {@link #iterator()}
+		 * @param buf
+		 *            The buffer to fill
+		 * @return The number of values read. This is less than the size of
+		 *         the buffer only once the iterator is exhausted.
+		 */
+		static int readFloats(Iterator<Number> it, float[] buf) {
+			int n = 0;
+			while (n < buf.length && it.hasNext()) {
+				Number val = it.next();
+				buf[n++] = val == null ? Float.NaN : val.floatValue();
+			}
+			return n;
+		}
 	}
 	
 	enum DataType {
@@ -29,6 +29,7 @@
 package uk.ac.rdg.resc.edal.covjson.writers;
 
 import java.io.IOException;
+import java.util.Iterator;
 
 import uk.ac.rdg.resc.edal.covjson.StreamingEncoder.ArrayEncoder;
 import uk.ac.rdg.resc.edal.covjson.StreamingEncoder.ArrayHints;
@@ -44,6 +45,9 @@ import uk.ac.rdg.resc.edal.covjson.writers.Coverage.NdArray;
  */
 public class RangeWriter <T> {
 
+	/* The number of float values passed to the encoder at once */
+	private static final int BUFFER_SIZE = 4096;
+
 	private final MapEncoder<T> map;
 
 	public RangeWriter(MapEncoder<T> map) {
@@ -67,23 +71,40 @@ public class RangeWriter <T> {
 		}
 		shape.end();
 		
-		ArrayEncoder<?> vals = map.startArray(Keys.VALUES, new ArrayHints((long) ndarray.size, null));
+		boolean isInt = ndarray.dataType.equals(DataType.Integer);
+		
+		/*
+		 * Declaring float values allows binary encoders to stream them
+		 */
+		ArrayEncoder<?> vals = map.startArray(Keys.VALUES, new ArrayHints((long) ndarray.size,
+				isInt ? null : Float.class));
 		
 		float validMin = Float.MAX_VALUE;
 		float validMax = Float.MIN_VALUE;
 		
-		boolean isInt = ndarray.dataType.equals(DataType.Integer);
-		
-		for (Number val : ndarray) {
-			writeValue(vals, val, isInt);
-			if (!isInt && val != null) {
-				float fval = val.floatValue();
-				if (fval < validMin) {
-					validMin = fval;
-				}
-				if (fval > validMax) {
-					validMax = fval;
+		if (isInt) {
+			for (Number val : ndarray) {
+				writeValue(vals, val);
+			}
+		} else {
+			/*
+			 * Float values are passed to the encoder in blocks, rather than
+			 * one at a time
+			 */
+			float[] buf = new float[Math.max(1, Math.min(ndarray.size, BUFFER_SIZE))];
+			Iterator<Number> it = ndarray.iterator();
+			int n;
+			while ((n = NdArray.readFloats(it, buf)) > 0) {
+				for (int i = 0; i < n; i++) {
+					float fval = buf[i];
+					if (fval < validMin) {
+						validMin = fval;
+					}
+					if (fval > validMax) {
+						validMax = fval;
+					}
 				}
+				vals.addFloats(buf, 0, n);
 			}
 		}
 		
@@ -107,15 +128,11 @@ public class RangeWriter <T> {
 //			}
 	}
 	
-	private void writeValue(ArrayEncoder<?> vals, Number val, boolean isInt) throws IOException {
+	private void writeValue(ArrayEncoder<?> vals, Number val) throws IOException {
 		if (val == null) {
 			vals.add(null);
-		} else if (isInt) {
-			vals.add(val.intValue());
-		} else if (val instanceof Float) {
-			vals.add((float) val);
 		} else {
-			vals.add(val.floatValue());
+			vals.add(val.intValue());
 		}
 	}
 }
@@ -0,0 +1,239 @@
+/*******************************************************************************
+ * Copyright (c) 2017 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.covjson;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import uk.ac.rdg.resc.edal.covjson.StreamingEncoder.ArrayEncoder;
+import uk.ac.rdg.resc.edal.covjson.StreamingEncoder.ArrayHints;
+import uk.ac.rdg.resc.edal.covjson.StreamingEncoder.MapEncoder;
+
+/**
+ * Tests the bytes written by the {@link CborStreamingEncoder}
+ */
+public class CborStreamingEncoderTest {
+	@Test
+	public void testMapAndScalars() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		CborStreamingEncoder encoder = new CborStreamingEncoder(out);
+		encoder.startMap().put("a", 1).put("b", -500).put("c", true).put("d", (String) null)
+				.end();
+		encoder.end();
+		assertArrayEquals(bytes(0xbf, 0x61, 'a', 0x01, 0x61, 'b', 0x39, 0x01, 0xf3, 0x61, 'c',
+				0xf5, 0x61, 'd', 0xf6, 0xff), out.toByteArray());
+	}
+
+	@Test
+	public void testUnsizedArray() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		CborStreamingEncoder encoder = new CborStreamingEncoder(out);
+		MapEncoder<StreamingEncoder> map = encoder.startMap();
+		map.startArray("x").add("y").add(2).end();
+		map.end();
+		encoder.end();
+		assertArrayEquals(bytes(0xbf, 0x61, 'x', 0x9f, 0x61, 'y', 0x02, 0xff, 0xff),
+				out.toByteArray());
+	}
+
+	@Test
+	public void testFloatTypedArray() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		CborStreamingEncoder encoder = new CborStreamingEncoder(out);
+		MapEncoder<StreamingEncoder> map = encoder.startMap();
+		ArrayEncoder<?> values = map.startArray("v", new ArrayHints(3L, null));
+		values.add(1.0f).add((String) null).add(-2.0f);
+		values.end();
+		map.end();
+		encoder.end();
+		/*
+		 * Tag 81 (float32 big-endian), then a 12-byte string. The missing
+		 * value is written as NaN.
+		 */
+		assertArrayEquals(bytes(0xbf, 0x61, 'v', 0xd8, 81, 0x4c, 0x3f, 0x80, 0x00, 0x00, 0x7f,
+				0xc0, 0x00, 0x00, 0xc0, 0x00, 0x00, 0x00, 0xff), out.toByteArray());
+	}
+
+	@Test
+	public void testAddFloats() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		CborStreamingEncoder encoder = new CborStreamingEncoder(out);
+		MapEncoder<StreamingEncoder> map = encoder.startMap();
+		ArrayEncoder<?> values = map.startArray("v", new ArrayHints(3L, null));
+		values.addFloats(new float[] { 0.0f, 1.0f, Float.NaN }, 1, 2);
+		values.add(-2.0f);
+		values.end();
+		map.end();
+		encoder.end();
+		assertArrayEquals(bytes(0xbf, 0x61, 'v', 0xd8, 81, 0x4c, 0x3f, 0x80, 0x00, 0x00, 0x7f,
+				0xc0, 0x00, 0x00, 0xc0, 0x00, 0x00, 0x00, 0xff), out.toByteArray());
+	}
+
+	@Test
+	public void testAddFloatsUnsized() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		CborStreamingEncoder encoder = new CborStreamingEncoder(out);
+		MapEncoder<StreamingEncoder> map = encoder.startMap();
+		map.startArray("v").addFloats(new float[] { 1.0f, Float.NaN }, 0, 2).end();
+		map.end();
+		encoder.end();
+		assertArrayEquals(bytes(0xbf, 0x61, 'v', 0x9f, 0xfa, 0x3f, 0x80, 0x00, 0x00, 0xf6, 0xff,
+				0xff), out.toByteArray());
+	}
+
+	@Test
+	public void testIntArrayWithNulls() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		CborStreamingEncoder encoder = new CborStreamingEncoder(out);
+		MapEncoder<StreamingEncoder> map = encoder.startMap();
+		ArrayEncoder<?> values = map.startArray("v", new ArrayHints(2L, null));
+		values.add(7).add((String) null);
+		values.end();
+		map.end();
+		encoder.end();
+		/*
+		 * Integer arrays with missing values are written as plain arrays
+		 */
+		assertArrayEquals(bytes(0xbf, 0x61, 'v', 0x82, 0x07, 0xf6, 0xff), out.toByteArray());
+	}
+
+	@Test
+	public void testIntTypedArray() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		CborStreamingEncoder encoder = new CborStreamingEncoder(out);
+		MapEncoder<StreamingEncoder> map = encoder.startMap();
+		ArrayEncoder<?> values = map.startArray("v", new ArrayHints(2L, null));
+		values.add(1).add(-1);
+		values.end();
+		map.end();
+		encoder.end();
+		assertArrayEquals(bytes(0xbf, 0x61, 'v', 0xd8, 74, 0x48, 0x00, 0x00, 0x00, 0x01, 0xff,
+				0xff, 0xff, 0xff, 0xff), out.toByteArray());
+	}
+
+	@Test
+	public void testStreamedFloatArray() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		CborStreamingEncoder encoder = new CborStreamingEncoder(out);
+		MapEncoder<StreamingEncoder> map = encoder.startMap();
+		int size = 5000;
+		ArrayEncoder<?> values = map.startArray("v", new ArrayHints((long) size, Float.class));
+		float[] buf = new float[1000];
+		for (int i = 0; i < size; i += buf.length) {
+			for (int j = 0; j < buf.length; j++) {
+				buf[j] = i + j;
+			}
+			values.addFloats(buf, 0, buf.length);
+		}
+		values.end();
+		map.end();
+		encoder.end();
+
+		/*
+		 * Tag 81 (float32 big-endian), then a byte string with a 2-byte
+		 * length, written in chunks larger than the encoder's buffer
+		 */
+		byte[] bytes = out.toByteArray();
+		int start = 8;
+		assertEquals(start + 4 * size + 1, bytes.length);
+		assertArrayEquals(bytes(0xbf, 0x61, 'v', 0xd8, 81, 0x59, (4 * size) >> 8),
+				Arrays.copyOf(bytes, start - 1));
+		assertEquals((byte) (4 * size), bytes[start - 1]);
+		ByteBuffer data = ByteBuffer.wrap(bytes, start, 4 * size);
+		for (int i = 0; i < size; i++) {
+			assertEquals(i, data.getFloat(), 0f);
+		}
+		assertEquals((byte) 0xff, bytes[bytes.length - 1]);
+	}
+
+	@Test
+	public void testStreamedDoubleArrayWithNulls() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		CborStreamingEncoder encoder = new CborStreamingEncoder(out);
+		MapEncoder<StreamingEncoder> map = encoder.startMap();
+		ArrayEncoder<?> values = map.startArray("v", new ArrayHints(2L, Double.class));
+		values.add(1.0).add((String) null);
+		values.end();
+		map.end();
+		encoder.end();
+		/*
+		 * Tag 82 (float64 big-endian), then a 16-byte string
+		 */
+		assertArrayEquals(bytes(0xbf, 0x61, 'v', 0xd8, 82, 0x50, 0x3f, 0xf0, 0, 0, 0, 0, 0, 0,
+				0x7f, 0xf8, 0, 0, 0, 0, 0, 0, 0xff), out.toByteArray());
+	}
+
+	@Test
+	public void testLargeUntypedArray() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		CborStreamingEncoder encoder = new CborStreamingEncoder(out);
+		MapEncoder<StreamingEncoder> map = encoder.startMap();
+		ArrayEncoder<?> values = map.startArray("v", new ArrayHints(2000L, null));
+		for (int i = 0; i < 2000; i++) {
+			if (i % 2 == 0) {
+				values.add(1);
+			} else {
+				values.add((String) null);
+			}
+		}
+		values.end();
+		map.end();
+		encoder.end();
+		/*
+		 * Too large to buffer, so this is written directly as a plain array
+		 * of 2000 items
+		 */
+		byte[] bytes = out.toByteArray();
+		assertArrayEquals(bytes(0xbf, 0x61, 'v', 0x99, 0x07, 0xd0, 0x01, 0xf6),
+				Arrays.copyOf(bytes, 8));
+		assertEquals(6 + 2000 + 1, bytes.length);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testStreamedArrayWrongSize() throws IOException {
+		CborStreamingEncoder encoder = new CborStreamingEncoder(new ByteArrayOutputStream());
+		MapEncoder<StreamingEncoder> map = encoder.startMap();
+		map.startArray("v", new ArrayHints(3L, Float.class)).add(1.0f).end();
+	}
+
+	private static byte[] bytes(int... values) {
+		byte[] ret = new byte[values.length];
+		for (int i = 0; i < values.length; i++) {
+			ret[i] = (byte) values[i];
+		}
+		return ret;
+	}
+}
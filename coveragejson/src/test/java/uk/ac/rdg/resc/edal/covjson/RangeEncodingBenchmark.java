@@ -0,0 +1,215 @@
+/*******************************************************************************
+ * Copyright (c) 2017 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.covjson;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+
+import uk.ac.rdg.resc.edal.covjson.StreamingEncoder.ArrayEncoder;
+import uk.ac.rdg.resc.edal.covjson.StreamingEncoder.ArrayHints;
+import uk.ac.rdg.resc.edal.covjson.StreamingEncoder.MapEncoder;
+import uk.ac.rdg.resc.edal.domain.MapDomain;
+import uk.ac.rdg.resc.edal.feature.MapFeature;
+import uk.ac.rdg.resc.edal.geometry.BoundingBoxImpl;
+import uk.ac.rdg.resc.edal.metadata.Parameter;
+import uk.ac.rdg.resc.edal.util.Array2D;
+import uk.ac.rdg.resc.edal.util.GISUtils;
+import uk.ac.rdg.resc.edal.util.ValuesArray2D;
+
+/**
+ * This class is not part of the test suite, but may be run to compare the
+ * time taken, memory allocated, and garbage collections caused by encoding a
+ * 2000x2000 float range. Both encoders are timed writing the values one at a
+ * time with {@link ArrayEncoder#add(float)} and in blocks with
+ * {@link ArrayEncoder#addFloats(float[], int, int)}, and converting a whole
+ * {@link MapFeature} through the {@link CoverageJsonConverterImpl}.
+ */
+public class RangeEncodingBenchmark {
+	private static final int SIZE = 2000;
+	private static final int BLOCK_SIZE = 4096;
+	private static final int REPEATS = 5;
+
+	public static void main(String[] args) throws IOException {
+		final float[] values = new float[SIZE * SIZE];
+		Array2D<Number> array = new ValuesArray2D(SIZE, SIZE);
+		for (int j = 0; j < SIZE; j++) {
+			for (int i = 0; i < SIZE; i++) {
+				/* Every 100th value is missing */
+				int k = j * SIZE + i;
+				values[k] = k % 100 == 0 ? Float.NaN : (float) Math.sin(k * 1e-3) * 100f;
+				array.set(Float.isNaN(values[k]) ? null : values[k], j, i);
+			}
+		}
+		Map<String, Parameter> parameters = new HashMap<>();
+		parameters.put("var", new Parameter("var", "Variable", "A test variable", "none", null));
+		Map<String, Array2D<Number>> valuesMap = new HashMap<>();
+		valuesMap.put("var", array);
+		final MapFeature feature = new MapFeature("test", "Test feature", "A test feature",
+				new MapDomain(new BoundingBoxImpl(-180, -90, 180, 90,
+						GISUtils.defaultGeographicCRS()), SIZE, SIZE, null, null), parameters,
+				valuesMap);
+
+		/* Run each method once before timing, so that the JIT has warmed up */
+		for (int pass = 0; pass < 2; pass++) {
+			boolean print = pass > 0;
+			for (final boolean cbor : new boolean[] { false, true }) {
+				String format = cbor ? "CBOR" : "JSON";
+				run(format + " add(float)", print, new RangeEncoding(cbor) {
+					@Override
+					void addValues(ArrayEncoder<?> encoder) throws IOException {
+						for (float value : values) {
+							if (Float.isNaN(value)) {
+								encoder.add((String) null);
+							} else {
+								encoder.add(value);
+							}
+						}
+					}
+				});
+				run(format + " addFloats()", print, new RangeEncoding(cbor) {
+					@Override
+					void addValues(ArrayEncoder<?> encoder) throws IOException {
+						for (int off = 0; off < values.length; off += BLOCK_SIZE) {
+							encoder.addFloats(values, off, Math.min(BLOCK_SIZE, values.length
+									- off));
+						}
+					}
+				});
+				run(format + " MapFeature", print, new Encoding() {
+					@Override
+					public long encode() {
+						CountingOutputStream out = new CountingOutputStream();
+						new CoverageJsonConverterImpl(cbor).convertFeatureToJson(out, feature);
+						return out.count;
+					}
+				});
+			}
+		}
+	}
+
+	private static void run(String name, boolean print, Encoding encoding) throws IOException {
+		System.gc();
+		long gcCount = 0;
+		long gcTime = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			gcCount -= gc.getCollectionCount();
+			gcTime -= gc.getCollectionTime();
+		}
+		long allocated = -allocatedBytes();
+		long bytes = 0;
+		long start = System.nanoTime();
+		for (int r = 0; r < REPEATS; r++) {
+			bytes = encoding.encode();
+		}
+		long elapsed = System.nanoTime() - start;
+		allocated += allocatedBytes();
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			gcCount += gc.getCollectionCount();
+			gcTime += gc.getCollectionTime();
+		}
+		if (print) {
+			System.out.println(String.format(
+					"%-22s %8.1f ms/range %8.1f MB output %10.1f MB/range %6d GCs (%d ms)",
+					name, elapsed / (1e6 * REPEATS), bytes / 1048576.0, allocated
+							/ (1048576.0 * REPEATS), gcCount, gcTime));
+		}
+	}
+
+	private interface Encoding {
+		/**
+		 * Encodes the test data
+		 * 
+		 * @return The number of bytes written
+		 */
+		long encode() throws IOException;
+	}
+
+	/**
+	 * Writes the test range as the values of a map, without the rest of a
+	 * CoverageJSON document
+	 */
+	private static abstract class RangeEncoding implements Encoding {
+		private final boolean cbor;
+
+		RangeEncoding(boolean cbor) {
+			this.cbor = cbor;
+		}
+
+		abstract void addValues(ArrayEncoder<?> encoder) throws IOException;
+
+		@Override
+		public long encode() throws IOException {
+			CountingOutputStream out = new CountingOutputStream();
+			StreamingEncoder encoder = cbor ? new CborStreamingEncoder(out)
+					: new JsonStreamingEncoder(out);
+			MapEncoder<StreamingEncoder> map = encoder.startMap();
+			ArrayEncoder<?> array = map.startArray("values", new ArrayHints((long) SIZE * SIZE,
+					Float.class));
+			addValues(array);
+			array.end();
+			map.end();
+			encoder.end();
+			return out.count;
+		}
+	}
+
+	/**
+	 * Discards everything written to it, counting the bytes
+	 */
+	private static class CountingOutputStream extends OutputStream {
+		private long count = 0;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+
+	/*
+	 * The number of bytes allocated by this thread so far, if the JVM can
+	 * tell us
+	 */
+	private static long allocatedBytes() {
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread
+					.currentThread().getId());
+		}
+		return 0L;
+	}
+}
@@ -38,11 +38,10 @@ import java.util.Set;
 import uk.ac.rdg.resc.edal.exceptions.EdalException;
 import uk.ac.rdg.resc.edal.graphics.utils.VectorFactory;
 import uk.ac.rdg.resc.edal.metadata.VariableMetadata;
-import uk.ac.rdg.resc.edal.position.HorizontalPosition;
-import uk.ac.rdg.resc.edal.util.Array;
 import uk.ac.rdg.resc.edal.util.Array2D;
 import uk.ac.rdg.resc.edal.util.Extents;
 import uk.ac.rdg.resc.edal.util.GISUtils;
+import uk.ac.rdg.resc.edal.util.HeadingCorrectionField;
 
 public class ArrowLayer extends GriddedImageLayer {
     private String directionFieldName;
@@ -92,6 +91,11 @@ public class ArrowLayer extends GriddedImageLayer {
     @Override
     protected void drawIntoImage(BufferedImage image, MapFeatureDataReader dataReader)
             throws EdalException {
+        /*
+         * We only need data at the positions where arrows are drawn
+         */
+        dataReader = dataReader.getGlyphReader(image.getWidth() / (arrowSize * 2),
+                image.getHeight() / (arrowSize * 2));
         Array2D<Number> values = dataReader.getDataForLayerName(directionFieldName);
 
         Graphics2D g = image.createGraphics();
@@ -115,8 +119,11 @@ public class ArrowLayer extends GriddedImageLayer {
         double xLoc = xPixelsPerArrow / 2;
         double yLoc = yPixelsPerArrow / 2;
 
-        Array<HorizontalPosition> domainObjects = dataReader
-                .getMapDomainObjects(directionFieldName);
+        /*
+         * Transforming each heading individually is slow in projected CRSs, so
+         * we use a field of corrections for the whole image
+         */
+        HeadingCorrectionField headingCorrections = dataReader.getHeadingCorrections();
 
         for (int j = 0; j < height; j++) {
             if (yLoc > yPixelsPerArrow) {
@@ -128,8 +135,8 @@ public class ArrowLayer extends GriddedImageLayer {
                         /*
                          * We are at a point where we need to draw an arrow
                          */
-                        Double angle = GISUtils.transformWgs84Heading(values.get(j, i),
-                                domainObjects.get(j, i));
+                        Double angle = headingCorrections.transformHeading(values.get(j, i), i,
+                                j);
                         if (angle != null && !Float.isNaN(angle.floatValue())) {
                             switch (arrowStyle) {
                             case UPSTREAM:
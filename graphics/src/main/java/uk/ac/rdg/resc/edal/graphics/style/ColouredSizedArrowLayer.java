@@ -52,6 +52,7 @@ public class ColouredSizedArrowLayer extends SizedArrowLayer {
     @Override
     protected void drawIntoImage(BufferedImage image, MapFeatureDataReader dataReader)
             throws EdalException {
+        dataReader = getArrowDataReader(image, dataReader);
         Array2D<Number> directions = dataReader.getDataForLayerName(directionFieldName);
         Array2D<Number> sizes = dataReader.getDataForLayerName(arrowSizeFieldName);
         Array2D<Number> colours = dataReader.getDataForLayerName(arrowColourField);
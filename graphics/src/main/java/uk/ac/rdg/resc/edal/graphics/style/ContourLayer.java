@@ -28,28 +28,25 @@
 
 package uk.ac.rdg.resc.edal.graphics.style;
 
-import gov.noaa.pmel.sgt.CartesianGraph;
-import gov.noaa.pmel.sgt.CartesianRenderer;
-import gov.noaa.pmel.sgt.ContourLevels;
-import gov.noaa.pmel.sgt.ContourLineAttribute;
-import gov.noaa.pmel.sgt.GridAttribute;
-import gov.noaa.pmel.sgt.JPane;
-import gov.noaa.pmel.sgt.Layer;
-import gov.noaa.pmel.sgt.LinearTransform;
-import gov.noaa.pmel.sgt.dm.SGTData;
-import gov.noaa.pmel.sgt.dm.SGTGrid;
-import gov.noaa.pmel.sgt.dm.SimpleGrid;
-import gov.noaa.pmel.util.Dimension2D;
-import gov.noaa.pmel.util.Range2D;
-
+import java.awt.BasicStroke;
 import java.awt.Color;
-import java.awt.Dimension;
-import java.awt.Graphics;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.Shape;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Area;
+import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import uk.ac.rdg.resc.edal.exceptions.EdalException;
+import uk.ac.rdg.resc.edal.graphics.utils.Contours;
+import uk.ac.rdg.resc.edal.graphics.utils.Contours.Label;
 import uk.ac.rdg.resc.edal.metadata.VariableMetadata;
 import uk.ac.rdg.resc.edal.util.Array2D;
 import uk.ac.rdg.resc.edal.util.Extents;
@@ -62,30 +59,76 @@ import uk.ac.rdg.resc.edal.util.Extents;
  */
 public class ContourLayer extends GriddedImageLayer {
     public enum ContourLineStyle {
+        /**
+         * A solid line of the specified width
+         */
         HEAVY {
             @Override
-            public int getLineStyleInteger() {
-                return ContourLineAttribute.HEAVY;
+            public void draw(Graphics2D g, Shape line, Color colour, int width) {
+                g.setColor(colour);
+                g.setStroke(new BasicStroke(width, BasicStroke.CAP_ROUND,
+                        BasicStroke.JOIN_ROUND));
+                g.draw(line);
             }
         },
 
+        /**
+         * A thin line surrounded by a contrasting colour. The line width is
+         * ignored.
+         */
         HIGHLIGHT {
             @Override
-            public int getLineStyleInteger() {
-                return ContourLineAttribute.HIGHLIGHT;
+            public void draw(Graphics2D g, Shape line, Color colour, int width) {
+                /*
+                 * Use white or black, whichever contrasts more with the line
+                 */
+                int brightness = (299 * colour.getRed() + 587 * colour.getGreen() + 114 * colour
+                        .getBlue()) / 1000;
+                g.setColor(new Color(brightness < 128 ? 0xffffff : 0x000000));
+                g.setStroke(new BasicStroke(3, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+                g.draw(line);
+                g.setColor(colour);
+                g.setStroke(new BasicStroke(1, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+                g.draw(line);
             }
         },
 
+        /**
+         * A dashed line of the specified width
+         */
         STROKE {
             @Override
-            public int getLineStyleInteger() {
-                return ContourLineAttribute.STROKE;
+            public void draw(Graphics2D g, Shape line, Color colour, int width) {
+                g.setColor(colour);
+                g.setStroke(new BasicStroke(width, BasicStroke.CAP_BUTT, BasicStroke.JOIN_ROUND,
+                        10f, new float[] { 4f * width, 3f * width }, 0f));
+                g.draw(line);
             }
         };
 
-        public abstract int getLineStyleInteger();
+        /**
+         * Draws a contour line in this style
+         * 
+         * @param g
+         *            The {@link Graphics2D} to draw onto
+         * @param line
+         *            The {@link Shape} of the contour line
+         * @param colour
+         *            The colour of the line
+         * @param width
+         *            The width of the line, in pixels
+         */
+        public abstract void draw(Graphics2D g, Shape line, Color colour, int width);
     }
 
+    /*
+     * The distance between labels on the same contour line, and the minimum
+     * length of a contour line to label, in pixels
+     */
+    private static final double LABEL_SPACING = 250.0;
+    private static final double MIN_LABELLED_LENGTH = 60.0;
+    private static final float LABEL_FONT_SIZE = 10f;
+
     private String dataFieldName;
     private ScaleRange scale;
 
@@ -142,19 +185,7 @@ public class ContourLayer extends GriddedImageLayer {
             throws EdalException {
         int width = image.getWidth();
         int height = image.getHeight();
-        double[] values = new double[width * height];
-        double[] xAxis = new double[width];
-        double[] yAxis = new double[height];
-
-        int count = 0;
-        for (int i = 0; i < width; i++) {
-            xAxis[i] = i;
-            for (int j = 0; j < height; j++) {
-                yAxis[j] = height - j - 1;
-                values[count] = Double.NaN;
-                count++;
-            }
-        }
+        float[] values = new float[width * height];
 
         Float scaleMin = null;
         Float scaleMax = null;
@@ -176,11 +207,7 @@ public class ContourLayer extends GriddedImageLayer {
                 } else {
                     val = value.floatValue();
                 }
-                /*
-                 * SGT goes against the grain somewhat by specifying that the
-                 * y-axis values vary fastest.
-                 */
-                values[j + i * height] = val;
+                values[j * width + i] = val;
                 if (autoscaleEnabled) {
                     if (val < scaleMin)
                         scaleMin = val;
@@ -190,78 +217,94 @@ public class ContourLayer extends GriddedImageLayer {
             }
         }
 
-        SGTGrid sgtGrid = new SimpleGrid(values, xAxis, yAxis, null);
+        double contourSpacing = (scaleMax - scaleMin) / numberOfContours;
+        if (!(contourSpacing > 0.0) || Double.isInfinite(contourSpacing)) {
+            /*
+             * No data, or a constant field - there are no contours to draw
+             */
+            return;
+        }
+        List<Double> levelList = new ArrayList<>();
+        for (double val = scaleMin; val <= scaleMax; val += contourSpacing) {
+            levelList.add(val);
+        }
+        double[] levels = new double[levelList.size()];
+        for (int l = 0; l < levels.length; l++) {
+            levels[l] = levelList.get(l);
+        }
 
-        CartesianGraph cg = getCartesianGraph(sgtGrid, width, height);
+        /*
+         * The geometry is cached, so requests for the same data which only
+         * differ in styling don't need to trace the contours again
+         */
+        Contours contours = Contours.get(values, width, height, levels);
 
-        double contourSpacing = (scaleMax - scaleMin) / numberOfContours;
+        Graphics2D g = image.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,
+                RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+        g.setFont(g.getFont().deriveFont(Font.PLAIN, LABEL_FONT_SIZE));
+        FontMetrics metrics = g.getFontMetrics();
+        ContourLineStyle lineStyle = contourLineStyle == null ? ContourLineStyle.HEAVY
+                : contourLineStyle;
+        String labelFormat = "%." + getLabelDecimalPlaces(contourSpacing) + "f";
 
-        ContourLevels levels = new ContourLevels();
-        for (double val = scaleMin; val <= scaleMax; val += contourSpacing) {
-            ContourLineAttribute lineStyle = new ContourLineAttribute();
+        for (int l = 0; l < levels.length; l++) {
+            Color colour;
             if (colourScheme != null) {
-                lineStyle.setColor(colourScheme.getColor(val));
+                colour = colourScheme.getColor(levels[l]);
             } else {
-                lineStyle.setColor(contourLineColour);
+                colour = contourLineColour;
             }
-            if (contourLineStyle != null) {
-                lineStyle.setStyle(contourLineStyle.getLineStyleInteger());
+
+            List<Label> labels = new ArrayList<>();
+            String labelText = null;
+            if (labelEnabled) {
+                labels = contours.getLabels(l, LABEL_SPACING, MIN_LABELLED_LENGTH);
+                labelText = String.format(labelFormat, levels[l]);
             }
-            lineStyle.setWidth(contourLineWidth);
-            if (!labelEnabled) {
+
+            if (labels.isEmpty()) {
+                lineStyle.draw(g, contours.getPath(l), colour, contourLineWidth);
+            } else {
                 /*
-                 * The lineStyle.setLabelEnabled() method doesn't work. It
-                 * always leaves labels present. Setting this height to zero
-                 * gets rid of them though.
+                 * Leave gaps in the contour lines for the labels
                  */
-                lineStyle.setLabelHeightP(0);
+                double textWidth = metrics.stringWidth(labelText);
+                double textHeight = metrics.getAscent();
+                Rectangle2D labelBox = new Rectangle2D.Double(-textWidth / 2 - 2,
+                        -textHeight / 2 - 1, textWidth + 4, textHeight + 2);
+                Area clip = new Area(new Rectangle2D.Double(0, 0, width, height));
+                for (Label label : labels) {
+                    AffineTransform transform = AffineTransform.getTranslateInstance(
+                            label.getX(), label.getY());
+                    transform.rotate(label.getAngle());
+                    clip.subtract(new Area(transform.createTransformedShape(labelBox)));
+                }
+                g.setClip(clip);
+                lineStyle.draw(g, contours.getPath(l), colour, contourLineWidth);
+                g.setClip(null);
+
+                g.setColor(colour);
+                AffineTransform original = g.getTransform();
+                for (Label label : labels) {
+                    g.translate(label.getX(), label.getY());
+                    g.rotate(label.getAngle());
+                    g.drawString(labelText, (float) (-textWidth / 2), (float) (textHeight / 2));
+                    g.setTransform(original);
+                }
             }
-            levels.addLevel(val, lineStyle);
         }
-
-        GridAttribute attr = new GridAttribute(levels);
-        attr.setStyle(GridAttribute.CONTOUR);
-
-        CartesianRenderer renderer = CartesianRenderer.getRenderer(cg, sgtGrid, attr);
-
-        Graphics g = image.getGraphics();
-        renderer.draw(g);
+        g.dispose();
     }
 
-    private static CartesianGraph getCartesianGraph(SGTData data, int width, int height) {
-        /*
-         * To get fixed size labels we need to set a physical size much smaller
-         * than the pixel size (since pixels can't represent physical size).
-         * Since the SGT code is so heavily tied into the display mechanism, and
-         * a factor of around 100 seems to produce decent results, it's almost
-         * certainly measured in inches (96dpi being a fairly reasonable monitor
-         * resolution).
-         * 
-         * Anyway, setting the physical size as a constant factor of the pixel
-         * size gives good results.
-         * 
-         * Font size seems to be ignored.
-         */
-        double factor = 96;
-        double physWidth = width / factor;
-        double physHeight = height / factor;
-
-        Layer layer = new Layer("", new Dimension2D(physWidth, physHeight));
-        JPane pane = new JPane("id", new Dimension(width, height));
-        layer.setPane(pane);
-        layer.setBounds(0, 0, width, height);
-
-        CartesianGraph graph = new CartesianGraph();
-        // Create Ranges representing the size of the image
-        Range2D physXRange = new Range2D(0, physWidth);
-        Range2D physYRange = new Range2D(0, physHeight);
-        // These transforms convert x and y coordinates to pixel indices
-        LinearTransform xt = new LinearTransform(physXRange, data.getXRange());
-        LinearTransform yt = new LinearTransform(physYRange, data.getYRange());
-        graph.setXTransform(xt);
-        graph.setYTransform(yt);
-        layer.setGraph(graph);
-        return graph;
+    /*
+     * The number of decimal places needed to distinguish the labels of
+     * contours with the given spacing
+     */
+    private static int getLabelDecimalPlaces(double contourSpacing) {
+        int decimalPlaces = 1 - (int) Math.floor(Math.log10(contourSpacing));
+        return Math.max(0, Math.min(6, decimalPlaces));
     }
 
     @Override
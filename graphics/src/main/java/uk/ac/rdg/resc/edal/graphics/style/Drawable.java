@@ -35,6 +35,7 @@ import uk.ac.rdg.resc.edal.domain.Extent;
 import uk.ac.rdg.resc.edal.exceptions.EdalException;
 import uk.ac.rdg.resc.edal.graphics.utils.FeatureCatalogue;
 import uk.ac.rdg.resc.edal.graphics.utils.PlottingDomainParams;
+import uk.ac.rdg.resc.edal.graphics.utils.RasterBuffers;
 
 public abstract class Drawable {
     public static class NameAndRange {
@@ -66,6 +67,21 @@ public abstract class Drawable {
         this.opacityTransform = opacityTransform;
     }
 
+    /**
+     * Draws this {@link Drawable}
+     * 
+     * @param params
+     *            The {@link PlottingDomainParams} defining the image
+     * @param featureCatalogue
+     *            The {@link FeatureCatalogue} to read features from
+     * @return A new image of type {@link BufferedImage#TYPE_INT_ARGB}. This
+     *         belongs to the caller, which may return it to the pool with
+     *         {@link RasterBuffers#release(BufferedImage)} once it is finished
+     *         with. Implementations must therefore never return an image which
+     *         they keep a reference to.
+     * @throws EdalException
+     *             If there is a problem drawing the image
+     */
     public abstract BufferedImage drawImage(PlottingDomainParams params,
             FeatureCatalogue featureCatalogue) throws EdalException;
 
@@ -32,6 +32,8 @@ import java.awt.image.BufferedImage;
 import java.util.Collections;
 import java.util.Set;
 
+import uk.ac.rdg.resc.edal.graphics.utils.RasterBuffers;
+
 public class FlatOpacity extends OpacityTransform {
     private Float opacity = 1.0f;
 
@@ -45,13 +47,17 @@ public class FlatOpacity extends OpacityTransform {
         int width = image.getWidth();
         int height = image.getHeight();
 
-        int[] imagePixels = image.getRGB(0, 0, width, height, null, 0, width);
+        boolean direct = RasterBuffers.hasDirectPixels(image);
+        int[] imagePixels = direct ? RasterBuffers.getPixels(image) : image.getRGB(0, 0, width,
+                height, null, 0, width);
 
         int alpha = (int) (opacity * 255);
         for (int i=0; i < imagePixels.length; i++) {
             imagePixels[i] = blendPixel(imagePixels[i], alpha);
         }
-        image.setRGB(0, 0, width, height, imagePixels, 0, width);
+        if (!direct) {
+            image.setRGB(0, 0, width, height, imagePixels, 0, width);
+        }
     }
 
     @Override
@@ -30,11 +30,14 @@ package uk.ac.rdg.resc.edal.graphics.style;
 
 import java.awt.image.BufferedImage;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
 import uk.ac.rdg.resc.edal.domain.MapDomain;
 import uk.ac.rdg.resc.edal.exceptions.EdalException;
 import uk.ac.rdg.resc.edal.feature.DiscreteFeature;
@@ -44,11 +47,10 @@ import uk.ac.rdg.resc.edal.feature.MapFeature;
 import uk.ac.rdg.resc.edal.graphics.utils.FeatureCatalogue;
 import uk.ac.rdg.resc.edal.graphics.utils.PlottingDomainParams;
 import uk.ac.rdg.resc.edal.graphics.utils.FeatureCatalogue.FeaturesAndMemberName;
-import uk.ac.rdg.resc.edal.grid.GridCell2D;
 import uk.ac.rdg.resc.edal.metadata.Parameter;
 import uk.ac.rdg.resc.edal.position.HorizontalPosition;
-import uk.ac.rdg.resc.edal.util.Array;
 import uk.ac.rdg.resc.edal.util.Array2D;
+import uk.ac.rdg.resc.edal.util.HeadingCorrectionField;
 
 /**
  * An {@link ImageLayer} which handles a single {@link GridFeature} for every
@@ -64,9 +66,76 @@ public abstract class GriddedImageLayer extends ImageLayer {
         private Map<String, FeaturesAndMemberName> extractedFeatures = new HashMap<>();
         private Map<String, String> extractedUnits = new HashMap<>();
 
+        /*
+         * The parameters used to extract features. For a glyph reader, these
+         * describe a coarser grid than the image.
+         */
+        private final PlottingDomainParams extractionParams;
+        private Map<List<Integer>, MapFeatureDataReader> glyphReaders = new HashMap<>();
+
         public MapFeatureDataReader(PlottingDomainParams params, FeatureCatalogue catalogue) {
             this.params = params;
             this.catalogue = catalogue;
+            this.extractionParams = params;
+        }
+
+        private MapFeatureDataReader(PlottingDomainParams params, FeatureCatalogue catalogue,
+                int xGlyphs, int yGlyphs) {
+            this.params = params;
+            this.catalogue = catalogue;
+            this.extractionParams = new PlottingDomainParams(xGlyphs, yGlyphs, params.getBbox(),
+                    params.getZExtent(), params.getTExtent(),
+                    params.getTargetHorizontalPosition(), params.getTargetZ(),
+                    params.getTargetT());
+        }
+
+        /**
+         * Gets a {@link MapFeatureDataReader} for layers which draw glyphs
+         * (e.g. arrows) at regular intervals, rather than using every pixel.
+         * The image is divided into a grid of xGlyphs x yGlyphs equally-sized
+         * cells, and data is only extracted at the centre of each cell. The
+         * returned {@link Array2D}s are still indexed by image pixel, and
+         * return the value for the cell containing that pixel.
+         * 
+         * @param xGlyphs
+         *            The number of glyphs across the image
+         * @param yGlyphs
+         *            The number of glyphs down the image
+         * @return A {@link MapFeatureDataReader} which extracts data only at
+         *         glyph positions
+         */
+        public MapFeatureDataReader getGlyphReader(int xGlyphs, int yGlyphs) {
+            xGlyphs = Math.max(1, Math.min(xGlyphs, params.getWidth()));
+            yGlyphs = Math.max(1, Math.min(yGlyphs, params.getHeight()));
+            if (xGlyphs == params.getWidth() && yGlyphs == params.getHeight()) {
+                return this;
+            }
+            List<Integer> key = Arrays.asList(xGlyphs, yGlyphs);
+            MapFeatureDataReader glyphReader = glyphReaders.get(key);
+            if (glyphReader == null) {
+                glyphReader = new MapFeatureDataReader(params, catalogue, xGlyphs, yGlyphs);
+                glyphReaders.put(key, glyphReader);
+            }
+            return glyphReader;
+        }
+
+        /**
+         * @return The y-index in an extracted feature of the given y-size
+         *         corresponding to the given image row. This flips the y-axis,
+         *         since {@link BufferedImage}s have the y-axis increasing
+         *         downwards
+         */
+        private int featureY(int j, int ySize) {
+            int cell = Math.min(ySize - 1, (int) ((long) j * ySize / params.getHeight()));
+            return ySize - cell - 1;
+        }
+
+        /**
+         * @return The x-index in an extracted feature of the given x-size
+         *         corresponding to the given image column
+         */
+        private int featureX(int i, int xSize) {
+            return Math.min(xSize - 1, (int) ((long) i * xSize / params.getWidth()));
         }
 
         private MapFeature getFeature(String layerId) throws EdalException {
@@ -84,7 +153,7 @@ public abstract class GriddedImageLayer extends ImageLayer {
         private FeaturesAndMemberName extractFeature(String layerId) throws EdalException {
             if (!extractedFeatures.containsKey(layerId)) {
                 FeaturesAndMemberName featureAndMemberName = catalogue.getFeaturesForLayer(layerId,
-                        params);
+                        extractionParams);
                 Collection<? extends DiscreteFeature<?, ?>> features = featureAndMemberName
                         .getFeatures();
                 MapFeature mapFeature = null;
@@ -115,6 +184,15 @@ public abstract class GriddedImageLayer extends ImageLayer {
             return extractedFeatures.get(layerId);
         }
 
+        /**
+         * @return A {@link HeadingCorrectionField} which transforms WGS84
+         *         headings into headings on the image, indexed by image pixel
+         */
+        public HeadingCorrectionField getHeadingCorrections() {
+            return HeadingCorrectionField.get(params.getBbox(), params.getWidth(),
+                    params.getHeight());
+        }
+
         public String getUnitsForLayerName(String layerId) {
             if (!extractedUnits.containsKey(layerId)) {
                 extractFeature(layerId);
@@ -123,18 +201,13 @@ public abstract class GriddedImageLayer extends ImageLayer {
         }
 
         public Array2D<Number> getDataForLayerName(String layerId) throws EdalException {
-            /*
-             * TODO We could add different data reading strategies here - e.g.
-             * subsampling of layers so that gridded features can be plotted as
-             * spaced glyphs...
-             */
             MapFeature mapFeature = getFeature(layerId);
             final Array2D<Number> values = mapFeature.getValues(getVariableName(layerId));
             /*
              * Since BufferedImages have the y-axis increasing downwards, wrap
              * the returned values in an Array2D with a flipped y-axis
              */
-            return new Array2D<Number>(values.getYSize(), values.getXSize()) {
+            return new Array2D<Number>(params.getHeight(), params.getWidth()) {
                 private static final long serialVersionUID = 1L;
 
                 @Override
@@ -144,26 +217,31 @@ public abstract class GriddedImageLayer extends ImageLayer {
 
                 @Override
                 public Number get(int... coords) {
-                    return values.get(params.getHeight() - coords[0] - 1, coords[1]);
+                    return values.get(featureY(coords[0], values.getYSize()),
+                            featureX(coords[1], values.getXSize()));
                 }
             };
         }
 
         public Array2D<HorizontalPosition> getMapDomainObjects(String layerId) throws EdalException {
             MapFeature mapFeature = getFeature(layerId);
-            final Array<GridCell2D> domainObjects = mapFeature.getDomain().getDomainObjects();
+            final MapDomain domain = mapFeature.getDomain();
+            final CoordinateReferenceSystem crs = domain.getCoordinateReferenceSystem();
             /*
              * Since BufferedImages have the y-axis increasing downwards, wrap
-             * the returned values in an Array2D with a flipped y-axis
+             * the returned values in an Array2D with a flipped y-axis.
+             * 
+             * Only the cell centres are needed, so we take them straight from
+             * the domain rather than creating a GridCell2D for each pixel.
              */
-            return new Array2D<HorizontalPosition>(domainObjects.getShape()[0],
-                    domainObjects.getShape()[1]) {
+            return new Array2D<HorizontalPosition>(params.getHeight(), params.getWidth()) {
                 private static final long serialVersionUID = 1L;
 
                 @Override
                 public HorizontalPosition get(int... coords) {
-                    return domainObjects.get(params.getHeight() - coords[0] - 1, coords[1])
-                            .getCentre();
+                    return new HorizontalPosition(domain.getCentreX(featureX(coords[1],
+                            domain.getXSize())), domain.getCentreY(featureY(coords[0],
+                            domain.getYSize())), crs);
                 }
 
                 @Override
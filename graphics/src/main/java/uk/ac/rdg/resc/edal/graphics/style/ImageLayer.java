@@ -35,6 +35,7 @@ import uk.ac.rdg.resc.edal.exceptions.EdalException;
 import uk.ac.rdg.resc.edal.feature.Feature;
 import uk.ac.rdg.resc.edal.graphics.utils.FeatureCatalogue;
 import uk.ac.rdg.resc.edal.graphics.utils.PlottingDomainParams;
+import uk.ac.rdg.resc.edal.graphics.utils.RasterBuffers;
 import uk.ac.rdg.resc.edal.metadata.VariableMetadata;
 
 /**
@@ -46,14 +47,16 @@ public abstract class ImageLayer extends Drawable {
     @Override
     public BufferedImage drawImage(final PlottingDomainParams params,
             final FeatureCatalogue catalogue) throws EdalException {
-        BufferedImage image = new BufferedImage(params.getWidth(), params.getHeight(),
-                BufferedImage.TYPE_INT_ARGB);
+        BufferedImage image = RasterBuffers.acquire(params.getWidth(), params.getHeight());
         drawIntoImage(image, params, catalogue);
         return image;
     }
 
     /**
-     * Draw the data into a supplied {@link BufferedImage}
+     * Draw the data into a supplied {@link BufferedImage}. This is a
+     * transparent image of type {@link BufferedImage#TYPE_INT_ARGB}, whose
+     * pixels can be written directly using
+     * {@link RasterBuffers#getPixels(BufferedImage)}
      * 
      * @param image
      * @param params
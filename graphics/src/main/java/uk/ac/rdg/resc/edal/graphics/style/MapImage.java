@@ -48,6 +48,8 @@ import uk.ac.rdg.resc.edal.exceptions.EdalException;
 import uk.ac.rdg.resc.edal.graphics.utils.FeatureCatalogue;
 import uk.ac.rdg.resc.edal.graphics.utils.LegendDataGenerator;
 import uk.ac.rdg.resc.edal.graphics.utils.PlottingDomainParams;
+import uk.ac.rdg.resc.edal.graphics.utils.RasterBuffers;
+import uk.ac.rdg.resc.edal.util.Metrics;
 
 public class MapImage extends Drawable {
     private List<Drawable> layers = new ArrayList<Drawable>();
@@ -59,9 +61,8 @@ public class MapImage extends Drawable {
     @Override
     public BufferedImage drawImage(PlottingDomainParams params, FeatureCatalogue catalogue)
             throws EdalException {
-        BufferedImage finalImage = new BufferedImage(params.getWidth(), params.getHeight(),
-                BufferedImage.TYPE_INT_ARGB);
-        Graphics2D graphics = finalImage.createGraphics();
+        long start = Metrics.start();
+        BufferedImage finalImage = RasterBuffers.acquire(params.getWidth(), params.getHeight());
 
         for (Drawable drawable : layers) {
             if (drawable != null) {
@@ -70,12 +71,18 @@ public class MapImage extends Drawable {
                 if (opacityTransform != null) {
                     opacityTransform.drawIntoImage(drawnImage, params, catalogue);
                 }
-                graphics.drawImage(drawnImage, 0, 0, null);
+                /*
+                 * Composite the layer directly into the final image, and
+                 * return its buffer to the pool for the next layer
+                 */
+                RasterBuffers.compositeOver(finalImage, drawnImage);
+                RasterBuffers.release(drawnImage);
             }
         }
         if (getOpacityTransform() != null) {
             getOpacityTransform().drawIntoImage(finalImage, params, catalogue);
         }
+        Metrics.stop(start, "edal_render_seconds");
         return finalImage;
     }
 
@@ -316,6 +323,7 @@ public class MapImage extends Drawable {
             graphics.fill(new Rectangle(finalImage.getWidth(), finalImage.getHeight()));
             graphics.drawImage(colourbar, 0, 0, null);
             graphics.drawImage(labels, componentWidth, 0, null);
+            RasterBuffers.release(colourbar);
         } else {
             /*
              * General case, where we need to generate each possible combination
@@ -386,6 +394,7 @@ public class MapImage extends Drawable {
                             - 2, borderSize + colourbar2d.getHeight() - 2);
                     graphics.drawRect(xStart - 1, yStart - 1, borderSize + colourbar2d.getWidth()
                             - 2, borderSize + colourbar2d.getHeight() - 2);
+                    RasterBuffers.release(colourbar2d);
                     /*
                      * Now draw the labels
                      */
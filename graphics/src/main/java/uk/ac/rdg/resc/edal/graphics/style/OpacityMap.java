@@ -36,6 +36,7 @@ import java.util.Set;
 import javax.naming.OperationNotSupportedException;
 
 import uk.ac.rdg.resc.edal.exceptions.EdalException;
+import uk.ac.rdg.resc.edal.graphics.utils.RasterBuffers;
 import uk.ac.rdg.resc.edal.util.Array2D;
 import uk.ac.rdg.resc.edal.util.Extents;
 
@@ -59,7 +60,9 @@ public class OpacityMap extends OpacityTransform {
     	int width = image.getWidth();
         int height = image.getHeight();
 
-        int[] imagePixels = image.getRGB(0, 0, width, height, null, 0, width);
+        boolean direct = RasterBuffers.hasDirectPixels(image);
+        int[] imagePixels = direct ? RasterBuffers.getPixels(image) : image.getRGB(0, 0, width,
+                height, null, 0, width);
 
         Array2D<Number> values = dataReader.getDataForLayerName(dataFieldName);
         
@@ -70,7 +73,9 @@ public class OpacityMap extends OpacityTransform {
             imagePixels[index] = blendPixel(imagePixels[index], alpha);
             index++;
         }
-        image.setRGB(0, 0, width, height, imagePixels, 0, width);
+        if (!direct) {
+            image.setRGB(0, 0, width, height, imagePixels, 0, width);
+        }
         } catch (OperationNotSupportedException onse) {
         	throw new EdalException("Problem applying opacity transform", onse);
         }
@@ -34,6 +34,7 @@ import java.util.LinkedHashSet;
 import java.util.Set;
 
 import uk.ac.rdg.resc.edal.exceptions.EdalException;
+import uk.ac.rdg.resc.edal.graphics.utils.RasterBuffers;
 import uk.ac.rdg.resc.edal.util.Array2D;
 import uk.ac.rdg.resc.edal.util.Extents;
 
@@ -60,7 +61,7 @@ public class Raster2DLayer extends GriddedImageLayer {
         Iterator<Number> xIterator = xValues.iterator();
         Iterator<Number> yIterator = yValues.iterator();
         int index = 0;
-        int[] pixels = new int[image.getWidth() * image.getHeight()];
+        int[] pixels = RasterBuffers.getPixels(image);
         /*
          * Could have done check on either iterator - they should be the same size
          * 
@@ -69,7 +70,6 @@ public class Raster2DLayer extends GriddedImageLayer {
         while(xIterator.hasNext()) {
             pixels[index++] = colourScheme.getColor(xIterator.next(), yIterator.next()).getRGB();
         }
-        image.setRGB(0, 0, image.getWidth(), image.getHeight(), pixels, 0, image.getWidth());
     }
 
     @Override
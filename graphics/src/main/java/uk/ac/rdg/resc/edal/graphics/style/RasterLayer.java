@@ -33,6 +33,7 @@ import java.util.HashSet;
 import java.util.Set;
 
 import uk.ac.rdg.resc.edal.exceptions.EdalException;
+import uk.ac.rdg.resc.edal.graphics.utils.RasterBuffers;
 import uk.ac.rdg.resc.edal.metadata.VariableMetadata;
 import uk.ac.rdg.resc.edal.util.Array2D;
 import uk.ac.rdg.resc.edal.util.Extents;
@@ -65,7 +66,7 @@ public class RasterLayer extends GriddedImageLayer {
         /*
          * Initialise the array to store colour values
          */
-        int[] pixels = new int[image.getWidth() * image.getHeight()];
+        int[] pixels = RasterBuffers.getPixels(image);
 
         /*
          * Extract the data from the catalogue
@@ -74,14 +75,12 @@ public class RasterLayer extends GriddedImageLayer {
 
         /*
          * The iterator iterates over the x-dimension first, which is the same
-         * convention as expected for the colour-values array in image.setRGB
-         * below
+         * order as the pixels of the image
          */
         int index = 0;
         for (Number value : values) {
             pixels[index++] = colourScheme.getColor(value).getRGB();
         }
-        image.setRGB(0, 0, image.getWidth(), image.getHeight(), pixels, 0, image.getWidth());
     }
 
     @Override
@@ -34,6 +34,7 @@ import java.util.LinkedHashSet;
 import java.util.Set;
 
 import uk.ac.rdg.resc.edal.exceptions.EdalException;
+import uk.ac.rdg.resc.edal.graphics.utils.RasterBuffers;
 import uk.ac.rdg.resc.edal.util.Array2D;
 
 public class RasterRGBLayer extends GriddedImageLayer {
@@ -63,7 +64,7 @@ public class RasterRGBLayer extends GriddedImageLayer {
         Iterator<Number> gIterator = gValues.iterator();
         Iterator<Number> bIterator = bValues.iterator();
         int index = 0;
-        int[] pixels = new int[image.getWidth() * image.getHeight()];
+        int[] pixels = RasterBuffers.getPixels(image);
         /*
          * Could have done check on any of the iterators - they should be the same size
          * 
@@ -72,7 +73,6 @@ public class RasterRGBLayer extends GriddedImageLayer {
         while(rIterator.hasNext()) {
             pixels[index++] = colourScheme.getColor(rIterator.next(), gIterator.next(), bIterator.next()).getRGB();
         }
-        image.setRGB(0, 0, image.getWidth(), image.getHeight(), pixels, 0, image.getWidth());
     }
 
     @Override
@@ -39,11 +39,10 @@ import uk.ac.rdg.resc.edal.exceptions.EdalException;
 import uk.ac.rdg.resc.edal.graphics.style.ArrowLayer.ArrowStyle;
 import uk.ac.rdg.resc.edal.graphics.utils.BarbFactory;
 import uk.ac.rdg.resc.edal.graphics.utils.VectorFactory;
-import uk.ac.rdg.resc.edal.position.HorizontalPosition;
-import uk.ac.rdg.resc.edal.util.Array;
 import uk.ac.rdg.resc.edal.util.Array2D;
 import uk.ac.rdg.resc.edal.util.Extents;
 import uk.ac.rdg.resc.edal.util.GISUtils;
+import uk.ac.rdg.resc.edal.util.HeadingCorrectionField;
 
 public class SizedArrowLayer extends GriddedImageLayer {
     protected String directionFieldName;
@@ -78,11 +77,28 @@ public class SizedArrowLayer extends GriddedImageLayer {
     @Override
     protected void drawIntoImage(BufferedImage image, MapFeatureDataReader dataReader)
             throws EdalException {
+        dataReader = getArrowDataReader(image, dataReader);
         Array2D<Number> directions = dataReader.getDataForLayerName(directionFieldName);
         Array2D<Number> magnitudes = dataReader.getDataForLayerName(arrowSizeFieldName);
         drawArrows(image, dataReader, directions, magnitudes, magnitudes);
     }
 
+    /**
+     * Gets a {@link MapFeatureDataReader} which only extracts data at the
+     * positions where arrows will be drawn.
+     * 
+     * @param image
+     *            The image which arrows will be drawn into
+     * @param dataReader
+     *            The {@link MapFeatureDataReader} for the full image
+     * @return A {@link MapFeatureDataReader} for the arrow positions
+     */
+    protected MapFeatureDataReader getArrowDataReader(BufferedImage image,
+            MapFeatureDataReader dataReader) {
+        return dataReader.getGlyphReader(image.getWidth() / (maxArrowSize * 2),
+                image.getHeight() / (maxArrowSize * 2));
+    }
+
     protected void drawArrows(BufferedImage image, MapFeatureDataReader dataReader,
             Array2D<Number> directions, Array2D<Number> sizeData, Array2D<Number> colourData) {
         Graphics2D g = image.createGraphics();
@@ -103,8 +119,11 @@ public class SizedArrowLayer extends GriddedImageLayer {
         double xLoc = xPixelsPerArrow / 2;
         double yLoc = yPixelsPerArrow / 2;
 
-        Array<HorizontalPosition> domainObjects = dataReader
-                .getMapDomainObjects(directionFieldName);
+        /*
+         * Transforming each heading individually is slow in projected CRSs, so
+         * we use a field of corrections for the whole image
+         */
+        HeadingCorrectionField headingCorrections = dataReader.getHeadingCorrections();
 
         for (int j = 0; j < height; j++) {
             if (yLoc > yPixelsPerArrow) {
@@ -118,8 +137,8 @@ public class SizedArrowLayer extends GriddedImageLayer {
                          * We are at a point where we need to draw an arrow
                          */
                         Number sizeValue = sizeData.get(j, i);
-                        Double angle = GISUtils.transformWgs84Heading(directions.get(j, i),
-                                domainObjects.get(j, i));
+                        Double angle = headingCorrections.transformHeading(directions.get(j, i),
+                                i, j);
                         if (sizeValue != null && !Float.isNaN(sizeValue.floatValue())
                                 && angle != null && !Float.isNaN(angle.floatValue())) {
 
@@ -167,21 +186,7 @@ public class SizedArrowLayer extends GriddedImageLayer {
                                         / 180.0, i, j, arrowSize * 0.1f, g);
                                 break;
                             case WIND_BARBS:
-                                HorizontalPosition horizontalPosition = domainObjects.get(j, i);
-                                boolean isSouthern = false;
-                                if (GISUtils.isWgs84LonLat(horizontalPosition
-                                        .getCoordinateReferenceSystem())) {
-                                    if (horizontalPosition.getY() < 0) {
-                                        isSouthern = true;
-                                    }
-                                } else {
-                                    HorizontalPosition transformPosition = GISUtils
-                                            .transformPosition(horizontalPosition,
-                                                    GISUtils.defaultGeographicCRS());
-                                    if (transformPosition.getY() < 0) {
-                                        isSouthern = true;
-                                    }
-                                }
+                                boolean isSouthern = headingCorrections.getLatitude(i, j) < 0;
                                 /*
                                  * If we give the scale as maxArrowSize, we
                                  * guarantee that no two barbs ever collide
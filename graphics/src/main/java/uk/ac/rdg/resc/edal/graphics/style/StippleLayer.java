@@ -36,6 +36,7 @@ import java.util.Set;
 import javax.naming.OperationNotSupportedException;
 
 import uk.ac.rdg.resc.edal.exceptions.EdalException;
+import uk.ac.rdg.resc.edal.graphics.utils.RasterBuffers;
 import uk.ac.rdg.resc.edal.util.Array2D;
 import uk.ac.rdg.resc.edal.util.Extents;
 
@@ -51,27 +52,12 @@ public class StippleLayer extends GriddedImageLayer {
 
     @Override
     protected void drawIntoImage(BufferedImage image, MapFeatureDataReader dataReader) throws EdalException {
-        int[][] alphas = new int[image.getWidth()][image.getHeight()];
         Array2D<Number> values = dataReader.getDataForLayerName(dataFieldName);
         try {
-	        /*
-	         * Set the alpha values
-	         */
-	        for(int i=0; i< image.getWidth();i++) {
-	            for(int j=0; j< image.getHeight();j++) {
-	                /*
-	                 * This is an int between 0 and 255, representing the alpha channel value.
-	                 * 
-	                 * We use values.get(j, i) because Array2Ds specify the co-ordinates as (y,x) 
-	                 */
-	                int alpha = Math.round(255 * map.getDensity(values.get(j, i)));
-	                alphas[i][j] = alpha;
-	            }
-	        }
-	        /*
-	         * Apply black/transparent stippling to the blue image
-	         */
-	        stippleAlphas(image, alphas, image.getWidth(), image.getHeight());
+            /*
+             * Apply black/transparent stippling directly to the image pixels
+             */
+            stipple(RasterBuffers.getPixels(image), values, image.getWidth(), image.getHeight());
         } catch (OperationNotSupportedException onse) {
         	throw new EdalException("Problem plotting stipple layer.", onse);
         }
@@ -89,8 +75,8 @@ public class StippleLayer extends GriddedImageLayer {
     };
     
     /*
-     * This stipples an image into black and transparent pixels depending on an
-     * array of alpha values
+     * This stipples an image into black and transparent pixels depending on
+     * the density of the data values
      * 
      * The thresholdMap above specifies the order that pixels should get
      * switched on to form 65 levels of dithering (incl. endpoints).
@@ -99,18 +85,27 @@ public class StippleLayer extends GriddedImageLayer {
      * for an image which consisted entirely of the target alpha value. This is
      * a standard dithering method
      */
-    private static void stippleAlphas(BufferedImage image, int[][] alphas, int width, int height) {
+    private void stipple(int[] pixels, Array2D<Number> values, int width, int height)
+            throws OperationNotSupportedException {
         int black = Color.black.getRGB();
         int transparent = new Color(0.0f, 0.0f, 0.0f, 0.0f).getRGB();
-        for (int x = 0; x < width; x++) {
-            int xmod = x % thresholdMap.length;
-            for (int y = 0; y < height; y++) {
-                int ymod = y % thresholdMap[0].length;
-                int alpha = alphas[x][y];
-                if(alpha > 256 * thresholdMap[xmod][ymod] /  ((float) thresholdMap.length * thresholdMap[0].length + 1)){
-                    image.setRGB(x, y, black);
+        for (int y = 0; y < height; y++) {
+            int ymod = y % thresholdMap[0].length;
+            for (int x = 0; x < width; x++) {
+                int xmod = x % thresholdMap.length;
+                /*
+                 * This is an int between 0 and 255, representing the alpha
+                 * channel value.
+                 * 
+                 * We use values.get(y, x) because Array2Ds specify the
+                 * co-ordinates as (y,x)
+                 */
+                int alpha = Math.round(255 * map.getDensity(values.get(y, x)));
+                if (alpha > 256 * thresholdMap[xmod][ymod]
+                        / ((float) thresholdMap.length * thresholdMap[0].length + 1)) {
+                    pixels[y * width + x] = black;
                 } else {
-                    image.setRGB(x, y, transparent);
+                    pixels[y * width + x] = transparent;
                 }
             }
         }
@@ -0,0 +1,619 @@
+/*******************************************************************************
+ * Copyright (c) 2017 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.graphics.utils;
+
+import java.awt.geom.Path2D;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * Contour lines traced from a 2D field of values using the marching squares
+ * algorithm.
+ * 
+ * The field is given in image order - i.e. row-major, with the first row at
+ * the top - and the contour geometry is in pixel coordinates, with the centre
+ * of pixel (i,j) at (i+0.5, j+0.5). Cells containing missing values
+ * (represented as {@link Float#NaN}) are not contoured.
+ * 
+ * The geometry does not depend on how the contours are drawn, so it is cached
+ * and shared between requests which differ only in style. The cache is bounded
+ * by the memory used by the fields and their contours, as well as by the
+ * number of entries.
+ */
+public final class Contours {
+    /*
+     * The (approximate) number of cells in each band of rows traced, and the
+     * field size above which bands are traced in parallel
+     */
+    private static final int BAND_SIZE = 16384;
+    private static final int PARALLEL_THRESHOLD = 65536;
+    /*
+     * The maximum number of sets of contours to cache, and the maximum
+     * (approximate) memory they and the fields they were traced from may use
+     */
+    private static final int MAX_CACHED_CONTOURS = 32;
+    static final long MAX_CACHED_BYTES = 64L * 1024 * 1024;
+    private static final Map<Key, Contours> CACHE = new LinkedHashMap<Key, Contours>(16, 0.75f,
+            true);
+    /* The memory used by the cached entries. Guarded by CACHE. */
+    private static long cachedBytes = 0L;
+
+    private final double[] levels;
+    /*
+     * For each level, the contour lines as arrays of (x,y) pairs. Closed lines
+     * have the same first and last point.
+     */
+    private final List<List<float[]>> lines;
+    private final Path2D[] paths;
+    /* The approximate memory used by the lines and paths */
+    private final long sizeBytes;
+
+    /**
+     * A position at which to label a contour line
+     */
+    public static final class Label {
+        private final double x;
+        private final double y;
+        private final double angle;
+
+        private Label(double x, double y, double angle) {
+            this.x = x;
+            this.y = y;
+            this.angle = angle;
+        }
+
+        /**
+         * @return The x-coordinate of the centre of the label, in pixels
+         */
+        public double getX() {
+            return x;
+        }
+
+        /**
+         * @return The y-coordinate of the centre of the label, in pixels
+         */
+        public double getY() {
+            return y;
+        }
+
+        /**
+         * @return The angle of the contour line at the label, in radians
+         *         clockwise from the x-axis. This is always in the range
+         *         [-&pi;/2, &pi;/2], so that text drawn at this angle is the
+         *         right way up.
+         */
+        public double getAngle() {
+            return angle;
+        }
+    }
+
+    /**
+     * Gets the contours of a field, tracing them if they are not already
+     * cached
+     * 
+     * @param values
+     *            The values of the field, in image order. This array must not
+     *            be modified after it has been passed to this method.
+     * @param width
+     *            The width of the field
+     * @param height
+     *            The height of the field
+     * @param levels
+     *            The values at which to draw contours
+     * @return The {@link Contours}
+     */
+    public static Contours get(float[] values, int width, int height, double[] levels) {
+        if (values.length < width * height) {
+            throw new IllegalArgumentException("Need " + (width * height)
+                    + " values to contour a " + width + "x" + height + " field");
+        }
+        Key key = new Key(values, width, height, levels);
+        synchronized (CACHE) {
+            Contours contours = CACHE.get(key);
+            if (contours != null) {
+                return contours;
+            }
+        }
+        Contours contours = new Contours(values, width, height, levels.clone());
+        long bytes = key.getSizeBytes() + contours.sizeBytes;
+        if (bytes <= MAX_CACHED_BYTES) {
+            synchronized (CACHE) {
+                Contours previous = CACHE.put(key, contours);
+                if (previous != null) {
+                    cachedBytes -= key.getSizeBytes() + previous.sizeBytes;
+                }
+                cachedBytes += bytes;
+                /* Remove the least recently used entries until within limits */
+                Iterator<Map.Entry<Key, Contours>> entries = CACHE.entrySet().iterator();
+                while (cachedBytes > MAX_CACHED_BYTES || CACHE.size() > MAX_CACHED_CONTOURS) {
+                    Map.Entry<Key, Contours> eldest = entries.next();
+                    cachedBytes -= eldest.getKey().getSizeBytes() + eldest.getValue().sizeBytes;
+                    entries.remove();
+                }
+            }
+        }
+        return contours;
+    }
+
+    /**
+     * Removes all cached {@link Contours}
+     */
+    public static void clearCache() {
+        synchronized (CACHE) {
+            CACHE.clear();
+            cachedBytes = 0L;
+        }
+    }
+
+    /*
+     * The memory used by the cache, for testing
+     */
+    static long getCachedBytes() {
+        synchronized (CACHE) {
+            return cachedBytes;
+        }
+    }
+
+    private Contours(final float[] values, final int width, final int height, double[] levels) {
+        this.levels = levels;
+        final int nLevels = levels.length;
+
+        /*
+         * Find the segments in bands of rows of cells. A segment joins the
+         * points at which a contour crosses 2 edges of a cell, and is stored
+         * as the IDs of those edges.
+         */
+        final int nCellRows = Math.max(0, height - 1);
+        final int rowsPerBand = Math.max(1, BAND_SIZE / Math.max(1, width));
+        int nBands = (nCellRows + rowsPerBand - 1) / rowsPerBand;
+        final IntList[][] bandSegments = new IntList[nBands][nLevels];
+        IntStream bands = IntStream.range(0, nBands);
+        if ((long) width * height > PARALLEL_THRESHOLD) {
+            bands = bands.parallel();
+        }
+        bands.forEach(new IntConsumer() {
+            @Override
+            public void accept(int band) {
+                IntList[] segments = bandSegments[band];
+                for (int l = 0; l < nLevels; l++) {
+                    segments[l] = new IntList();
+                }
+                int jMin = band * rowsPerBand;
+                int jMax = Math.min(nCellRows, jMin + rowsPerBand);
+                traceBand(values, width, jMin, jMax, segments);
+            }
+        });
+
+        /*
+         * Join the segments for each level into lines. Segments from adjacent
+         * bands share the IDs of the edges between the bands, so this stitches
+         * the bands together.
+         */
+        final List<List<float[]>> levelLines = new ArrayList<>(Collections.nCopies(nLevels,
+                (List<float[]>) null));
+        IntStream levelIndices = IntStream.range(0, nLevels);
+        if ((long) width * height > PARALLEL_THRESHOLD) {
+            levelIndices = levelIndices.parallel();
+        }
+        levelIndices.forEach(new IntConsumer() {
+            @Override
+            public void accept(int l) {
+                IntList segments = new IntList();
+                for (int band = 0; band < bandSegments.length; band++) {
+                    segments.addAll(bandSegments[band][l]);
+                }
+                levelLines.set(l, joinSegments(segments, values, width, Contours.this.levels[l]));
+            }
+        });
+        lines = Collections.unmodifiableList(levelLines);
+
+        paths = new Path2D[nLevels];
+        long nFloats = 0L;
+        for (int l = 0; l < nLevels; l++) {
+            Path2D.Float path = new Path2D.Float();
+            for (float[] line : lines.get(l)) {
+                nFloats += line.length;
+                path.moveTo(line[0], line[1]);
+                for (int p = 2; p < line.length; p += 2) {
+                    path.lineTo(line[p], line[p + 1]);
+                }
+            }
+            paths[l] = path;
+        }
+        /* Each point is stored in both the lines and the paths */
+        sizeBytes = 2 * 4 * nFloats;
+    }
+
+    /*
+     * The ID of the horizontal edge between pixels (i,j) and (i+1,j)
+     */
+    private static int hEdge(int i, int j, int width) {
+        return 2 * (j * width + i);
+    }
+
+    /*
+     * The ID of the vertical edge between pixels (i,j) and (i,j+1)
+     */
+    private static int vEdge(int i, int j, int width) {
+        return 2 * (j * width + i) + 1;
+    }
+
+    /*
+     * Finds the contour segments in cell rows jMin to jMax-1, for every level
+     */
+    private void traceBand(float[] values, int width, int jMin, int jMax, IntList[] segments) {
+        for (int j = jMin; j < jMax; j++) {
+            for (int i = 0; i < width - 1; i++) {
+                /*
+                 * The corners of the cell, clockwise from the top left
+                 */
+                float a = values[j * width + i];
+                float b = values[j * width + i + 1];
+                float c = values[(j + 1) * width + i + 1];
+                float d = values[(j + 1) * width + i];
+                if (Float.isNaN(a) || Float.isNaN(b) || Float.isNaN(c) || Float.isNaN(d)) {
+                    continue;
+                }
+                int top = hEdge(i, j, width);
+                int right = vEdge(i + 1, j, width);
+                int bottom = hEdge(i, j + 1, width);
+                int left = vEdge(i, j, width);
+                for (int l = 0; l < levels.length; l++) {
+                    double level = levels[l];
+                    int cellCase = (a >= level ? 1 : 0) | (b >= level ? 2 : 0)
+                            | (c >= level ? 4 : 0) | (d >= level ? 8 : 0);
+                    IntList levelSegments = segments[l];
+                    switch (cellCase) {
+                    case 0:
+                    case 15:
+                        break;
+                    case 1:
+                    case 14:
+                        levelSegments.add(left, top);
+                        break;
+                    case 2:
+                    case 13:
+                        levelSegments.add(top, right);
+                        break;
+                    case 3:
+                    case 12:
+                        levelSegments.add(left, right);
+                        break;
+                    case 4:
+                    case 11:
+                        levelSegments.add(right, bottom);
+                        break;
+                    case 6:
+                    case 9:
+                        levelSegments.add(top, bottom);
+                        break;
+                    case 7:
+                    case 8:
+                        levelSegments.add(left, bottom);
+                        break;
+                    case 5:
+                    case 10:
+                        /*
+                         * Saddle points. Use the mean value at the centre of
+                         * the cell to decide which corners are connected.
+                         */
+                        boolean centreHigh = (a + b + c + d) / 4.0 >= level;
+                        if (centreHigh == (cellCase == 5)) {
+                            /* Separate the top-right and bottom-left corners */
+                            levelSegments.add(top, right);
+                            levelSegments.add(left, bottom);
+                        } else {
+                            /* Separate the top-left and bottom-right corners */
+                            levelSegments.add(left, top);
+                            levelSegments.add(right, bottom);
+                        }
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /*
+     * Joins segments (as pairs of edge IDs) into lines of points
+     */
+    private static List<float[]> joinSegments(IntList segments, float[] values, int width,
+            double level) {
+        int nSegments = segments.size() / 2;
+        if (nSegments == 0) {
+            return Collections.emptyList();
+        }
+        /*
+         * Each end of a segment is identified as 2 * segment + end. Find the
+         * ends which share an edge by sorting them by edge ID. Each edge is
+         * shared by at most 2 ends.
+         */
+        long[] ends = new long[2 * nSegments];
+        for (int e = 0; e < 2 * nSegments; e++) {
+            ends[e] = ((long) segments.get(e) << 32) | e;
+        }
+        Arrays.sort(ends);
+        int[] partner = new int[2 * nSegments];
+        Arrays.fill(partner, -1);
+        for (int e = 0; e + 1 < ends.length; e++) {
+            if ((ends[e] >>> 32) == (ends[e + 1] >>> 32)) {
+                int end1 = (int) ends[e];
+                int end2 = (int) ends[e + 1];
+                partner[end1] = end2;
+                partner[end2] = end1;
+                e++;
+            }
+        }
+
+        List<float[]> lines = new ArrayList<>();
+        boolean[] used = new boolean[nSegments];
+        FloatList points = new FloatList();
+        /*
+         * Start with open lines (from ends with no partner), so that they are
+         * traced from one end to the other. Any remaining segments form closed
+         * loops.
+         */
+        for (int pass = 0; pass < 2; pass++) {
+            for (int end = 0; end < 2 * nSegments; end++) {
+                int segment = end / 2;
+                if (used[segment] || (pass == 0 && partner[end] >= 0)) {
+                    continue;
+                }
+                points.clear();
+                int inEnd = end;
+                addPoint(points, segments.get(inEnd), values, width, level);
+                while (true) {
+                    int current = inEnd / 2;
+                    used[current] = true;
+                    int outEnd = inEnd ^ 1;
+                    addPoint(points, segments.get(outEnd), values, width, level);
+                    int next = partner[outEnd];
+                    if (next < 0 || used[next / 2]) {
+                        break;
+                    }
+                    inEnd = next;
+                }
+                lines.add(points.toArray());
+            }
+        }
+        return lines;
+    }
+
+    /*
+     * Adds the point at which the contour at the given level crosses an edge
+     */
+    private static void addPoint(FloatList points, int edge, float[] values, int width,
+            double level) {
+        int pixel = edge / 2;
+        int i = pixel % width;
+        int j = pixel / width;
+        float v0 = values[pixel];
+        if ((edge & 1) == 0) {
+            float v1 = values[pixel + 1];
+            double t = (level - v0) / (v1 - v0);
+            points.add((float) (i + t + 0.5), (float) (j + 0.5));
+        } else {
+            float v1 = values[pixel + width];
+            double t = (level - v0) / (v1 - v0);
+            points.add((float) (i + 0.5), (float) (j + t + 0.5));
+        }
+    }
+
+    /**
+     * @return The values at which contours were traced
+     */
+    public double[] getLevels() {
+        return levels.clone();
+    }
+
+    /**
+     * @param level
+     *            The index of the contour level
+     * @return A {@link Path2D} containing all of the lines for the given level.
+     *         This is shared, and must not be modified.
+     */
+    public Path2D getPath(int level) {
+        return paths[level];
+    }
+
+    /**
+     * @param level
+     *            The index of the contour level
+     * @return The lines for the given level, as arrays of (x,y) pairs
+     */
+    public List<float[]> getLines(int level) {
+        return lines.get(level);
+    }
+
+    /**
+     * Finds positions along the contour lines for a level at which to place
+     * labels. Each line which is long enough is labelled at regular intervals
+     * along its length.
+     * 
+     * @param level
+     *            The index of the contour level
+     * @param spacing
+     *            The distance, in pixels, between labels on the same line
+     * @param minLength
+     *            The minimum length, in pixels, of a line to label
+     * @return The {@link Label}s for the given level
+     */
+    public List<Label> getLabels(int level, double spacing, double minLength) {
+        List<Label> labels = new ArrayList<>();
+        for (float[] line : lines.get(level)) {
+            double length = 0.0;
+            for (int p = 2; p < line.length; p += 2) {
+                length += Math.hypot(line[p] - line[p - 2], line[p + 1] - line[p - 1]);
+            }
+            if (length < minLength) {
+                continue;
+            }
+            /*
+             * Space the labels evenly, with half of the spacing at each end
+             */
+            int nLabels = Math.max(1, (int) (length / spacing));
+            double gap = length / nLabels;
+            double nextLabel = gap / 2;
+            double distance = 0.0;
+            for (int p = 2; p < line.length; p += 2) {
+                double dx = line[p] - line[p - 2];
+                double dy = line[p + 1] - line[p - 1];
+                double segmentLength = Math.hypot(dx, dy);
+                while (segmentLength > 0 && nextLabel <= distance + segmentLength) {
+                    double f = (nextLabel - distance) / segmentLength;
+                    double angle = Math.atan2(dy, dx);
+                    if (angle > Math.PI / 2) {
+                        angle -= Math.PI;
+                    } else if (angle < -Math.PI / 2) {
+                        angle += Math.PI;
+                    }
+                    labels.add(new Label(line[p - 2] + f * dx, line[p - 1] + f * dy, angle));
+                    nextLabel += gap;
+                }
+                distance += segmentLength;
+            }
+        }
+        return labels;
+    }
+
+    /*
+     * A growable list of ints
+     */
+    private static final class IntList {
+        private int[] data = new int[64];
+        private int size = 0;
+
+        public void add(int v1, int v2) {
+            if (size + 2 > data.length) {
+                data = Arrays.copyOf(data, Math.max(2 * data.length, size + 2));
+            }
+            data[size++] = v1;
+            data[size++] = v2;
+        }
+
+        public void addAll(IntList other) {
+            if (size + other.size > data.length) {
+                data = Arrays.copyOf(data, Math.max(2 * data.length, size + other.size));
+            }
+            System.arraycopy(other.data, 0, data, size, other.size);
+            size += other.size;
+        }
+
+        public int get(int index) {
+            return data[index];
+        }
+
+        public int size() {
+            return size;
+        }
+    }
+
+    /*
+     * A growable list of floats
+     */
+    private static final class FloatList {
+        private float[] data = new float[64];
+        private int size = 0;
+
+        public void add(float v1, float v2) {
+            if (size + 2 > data.length) {
+                data = Arrays.copyOf(data, Math.max(2 * data.length, size + 2));
+            }
+            data[size++] = v1;
+            data[size++] = v2;
+        }
+
+        public void clear() {
+            size = 0;
+        }
+
+        public float[] toArray() {
+            return Arrays.copyOf(data, size);
+        }
+    }
+
+    /*
+     * The key for cached contours. The values are compared in full, so that
+     * changed data is never given stale contours.
+     */
+    private static final class Key {
+        private final float[] values;
+        private final int width;
+        private final int height;
+        private final double[] levels;
+        private final int hashCode;
+
+        public Key(float[] values, int width, int height, double[] levels) {
+            this.values = values;
+            this.width = width;
+            this.height = height;
+            this.levels = levels.clone();
+            final int prime = 31;
+            int result = 1;
+            result = prime * result + Arrays.hashCode(values);
+            result = prime * result + width;
+            result = prime * result + height;
+            result = prime * result + Arrays.hashCode(levels);
+            hashCode = result;
+        }
+
+        /*
+         * The approximate memory used by the values held by this key
+         */
+        long getSizeBytes() {
+            return 4L * values.length;
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (obj == null)
+                return false;
+            if (getClass() != obj.getClass())
+                return false;
+            Key other = (Key) obj;
+            return hashCode == other.hashCode && width == other.width
+                    && height == other.height && Arrays.equals(levels, other.levels)
+                    && Arrays.equals(values, other.values);
+        }
+    }
+}
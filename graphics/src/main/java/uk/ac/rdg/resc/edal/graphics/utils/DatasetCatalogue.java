@@ -78,4 +78,19 @@ public interface DatasetCatalogue {
      *         last updated
      */
     public DateTime getLastUpdateTime();
+
+    /**
+     * Returns the time at which a single {@link Dataset} was last updated.
+     * This can be used to validate anything derived from the dataset. By
+     * default this returns the last update time of the whole catalogue, which
+     * is always safe but may be later than necessary.
+     * 
+     * @param datasetId
+     *            The ID of the dataset
+     * @return The {@link DateTime} at which the given {@link Dataset} was last
+     *         updated
+     */
+    public default DateTime getLastUpdateTime(String datasetId) {
+        return getLastUpdateTime();
+    }
 }
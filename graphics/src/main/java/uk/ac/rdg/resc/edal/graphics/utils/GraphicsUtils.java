@@ -40,6 +40,7 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
@@ -54,6 +55,7 @@ import uk.ac.rdg.resc.edal.dataset.AbstractContinuousDomainDataset;
 import uk.ac.rdg.resc.edal.dataset.ContinuousDomainDataset;
 import uk.ac.rdg.resc.edal.dataset.Dataset;
 import uk.ac.rdg.resc.edal.dataset.DiscreteFeatureReader;
+import uk.ac.rdg.resc.edal.dataset.GriddedDataset;
 import uk.ac.rdg.resc.edal.dataset.HorizontallyDiscreteDataset;
 import uk.ac.rdg.resc.edal.domain.Extent;
 import uk.ac.rdg.resc.edal.domain.MapDomain;
@@ -75,6 +77,7 @@ import uk.ac.rdg.resc.edal.position.VerticalCrs;
 import uk.ac.rdg.resc.edal.util.Array;
 import uk.ac.rdg.resc.edal.util.CollectionUtils;
 import uk.ac.rdg.resc.edal.util.Extents;
+import uk.ac.rdg.resc.edal.util.ValueStatistics;
 
 /**
  * Class containing static utility methods for dealing with graphics
@@ -268,6 +271,36 @@ public class GraphicsUtils implements Serializable {
      * @return An approximate value range
      */
     public static Extent<Float> estimateValueRange(Dataset dataset, String varId) {
+        return estimateValueRange(dataset, varId, 0.0, 100.0);
+    }
+
+    /**
+     * Estimate the range of values between two percentiles in this layer. If
+     * precomputed statistics are available for the default time and elevation
+     * (see {@link GriddedDataset#getStatistics()}) they are used, otherwise a
+     * sample of data is read from the default time and elevation.
+     * 
+     * If the given variable is not found, a default range of 0-100 is returned
+     * 
+     * @param dataset
+     *            The dataset containing the variable to estimate
+     * @param varId
+     *            The ID of the variable to estimate
+     * @param lowPercentile
+     *            The percentile of the values at the bottom of the range,
+     *            between 0 and 100
+     * @param highPercentile
+     *            The percentile of the values at the top of the range, between
+     *            0 and 100. If this is 100 and lowPercentile is 0, the range is
+     *            padded slightly so that no values lie at its ends.
+     * @return An approximate value range
+     */
+    public static Extent<Float> estimateValueRange(Dataset dataset, String varId,
+            double lowPercentile, double highPercentile) {
+        if (lowPercentile < 0 || highPercentile > 100 || lowPercentile > highPercentile) {
+            throw new IllegalArgumentException(
+                    "Percentiles must be between 0 and 100, with the low percentile first");
+        }
         VariableMetadata variableMetadata;
         try {
             variableMetadata = dataset.getVariableMetadata(varId);
@@ -305,10 +338,17 @@ public class GraphicsUtils implements Serializable {
 
         Double zPos = null;
 
-        float min = Float.MAX_VALUE;
-        float max = -Float.MAX_VALUE;
         Collection<? extends DiscreteFeature<?, ?>> mapFeatures = null;
-        if ((dataset instanceof HorizontallyDiscreteDataset<?>)) {
+        /*
+         * If available, these are the full-resolution statistics of the slice
+         * we would otherwise sample
+         */
+        ValueStatistics statistics = getPrecomputedStatistics(dataset, variableMetadata);
+        if (statistics != null) {
+            /*
+             * No need to read any data
+             */
+        } else if ((dataset instanceof HorizontallyDiscreteDataset<?>)) {
             /*
              * Extract map features at a low resolution over the entire domain
              * of the dataset. This will give a good approximation of the values
@@ -372,39 +412,49 @@ public class GraphicsUtils implements Serializable {
                     CollectionUtils.setOf(varId));
         }
         if (mapFeatures != null) {
+            List<Number> sample = new ArrayList<>();
             for (DiscreteFeature<?, ?> feature : mapFeatures) {
                 Array<Number> values = feature.getValues(varId);
                 if (values != null) {
                     for (Number value : values) {
-                        if (value != null && !Double.isNaN(value.doubleValue())) {
-                            min = (float) Math.min(value.doubleValue(), min);
-                            max = (float) Math.max(value.doubleValue(), max);
-                        }
+                        sample.add(value);
                     }
                 }
             }
+            statistics = ValueStatistics.fromValues(sample);
         }
 
-        if (max == -Float.MAX_VALUE || min == Float.MAX_VALUE) {
+        float min;
+        float max;
+        if (statistics == null || statistics.getCount() == 0) {
             /*
-             * Defensive - either they are both equal to their start values, or
-             * neither is.
-             * 
-             * Anyway, here we have no data, or can't read it. Pick a range.
-             * I've chosen 0 to 100, but it really doesn't matter.
+             * Here we have no data, or can't read it. Pick a range. I've
+             * chosen 0 to 100, but it really doesn't matter.
              */
             min = 0;
             max = 100;
-        } else if (min == max) {
-            /*
-             * We've hit an area of uniform data. Make sure that max > min
-             */
-            min -= 0.5f;
-            max += 0.5f;
         } else {
-            float diff = max - min;
-            min -= 0.05 * diff;
-            max += 0.05 * diff;
+            boolean fullRange = lowPercentile == 0.0 && highPercentile == 100.0;
+            if (fullRange) {
+                min = (float) statistics.getMin();
+                max = (float) statistics.getMax();
+            } else {
+                Extent<Float> percentileRange = statistics.getPercentileRange(lowPercentile,
+                        highPercentile);
+                min = percentileRange.getLow();
+                max = percentileRange.getHigh();
+            }
+            if (min == max) {
+                /*
+                 * We've hit an area of uniform data. Make sure that max > min
+                 */
+                min -= 0.5f;
+                max += 0.5f;
+            } else if (fullRange) {
+                float diff = max - min;
+                min -= 0.05 * diff;
+                max += 0.05 * diff;
+            }
         }
 
         log.debug("Estimated value range.  Returning");
@@ -412,6 +462,36 @@ public class GraphicsUtils implements Serializable {
                 (float) roundToSignificantFigures(max, 4));
     }
 
+    /**
+     * Gets the precomputed statistics (if available) for the slice of a
+     * variable which {@link GraphicsUtils#estimateValueRange(Dataset, String)}
+     * would otherwise sample - i.e. the lowest elevation and the latest time
+     * 
+     * @return The {@link ValueStatistics} of the slice, or <code>null</code> if
+     *         they are not available or contain no data
+     */
+    private static ValueStatistics getPrecomputedStatistics(Dataset dataset,
+            VariableMetadata variableMetadata) {
+        if (!(dataset instanceof GriddedDataset)
+                || ((GriddedDataset) dataset).getStatistics() == null) {
+            return null;
+        }
+        Double zPos = null;
+        if (variableMetadata.getVerticalDomain() != null) {
+            zPos = variableMetadata.getVerticalDomain().getExtent().getLow();
+        }
+        DateTime time = null;
+        if (variableMetadata.getTemporalDomain() != null) {
+            time = variableMetadata.getTemporalDomain().getExtent().getHigh();
+        }
+        ValueStatistics statistics = ((GriddedDataset) dataset).getStatistics()
+                .getStatistics(variableMetadata.getId(), time, zPos);
+        if (statistics == null || statistics.getCount() == 0) {
+            return null;
+        }
+        return statistics;
+    }
+
     /**
      * Rounds a double to a number of significant figures
      * 
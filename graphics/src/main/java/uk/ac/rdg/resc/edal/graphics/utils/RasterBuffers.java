@@ -0,0 +1,319 @@
+/*******************************************************************************
+ * Copyright (c) 2017 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.graphics.utils;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * A bounded pool of ARGB images used as raster buffers when rendering, along
+ * with methods for accessing and compositing their pixels directly.
+ * 
+ * Images are taken from the pool with {@link RasterBuffers#acquire(int, int)}
+ * and should be handed back with {@link RasterBuffers#release(BufferedImage)}
+ * once they are no longer needed. Images which are never released are simply
+ * garbage collected.
+ * 
+ * The number and size of the buffers allocated and reused are recorded for
+ * each thread, so that the allocations made while handling a request can be
+ * reported.
+ */
+public final class RasterBuffers {
+    /*
+     * The maximum number of images to keep in the pool, and the maximum total
+     * number of pixels they may contain (i.e. 64MB)
+     */
+    private static final int MAX_POOLED_IMAGES = 32;
+    private static final long MAX_POOLED_PIXELS = 16L * 1024 * 1024;
+
+    /* Most recently released images are at the start */
+    private static final LinkedList<BufferedImage> POOL = new LinkedList<>();
+    private static long pooledPixels = 0L;
+
+    private static final ThreadLocal<Statistics> STATISTICS = new ThreadLocal<Statistics>() {
+        @Override
+        protected Statistics initialValue() {
+            return new Statistics();
+        }
+    };
+
+    /**
+     * Counts of the raster buffers allocated and reused by a thread
+     */
+    public static final class Statistics {
+        private long buffersAllocated = 0L;
+        private long bytesAllocated = 0L;
+        private long buffersReused = 0L;
+        private long bytesReused = 0L;
+
+        private Statistics() {
+        }
+
+        private Statistics(Statistics other) {
+            buffersAllocated = other.buffersAllocated;
+            bytesAllocated = other.bytesAllocated;
+            buffersReused = other.buffersReused;
+            bytesReused = other.bytesReused;
+        }
+
+        public long getBuffersAllocated() {
+            return buffersAllocated;
+        }
+
+        public long getBytesAllocated() {
+            return bytesAllocated;
+        }
+
+        public long getBuffersReused() {
+            return buffersReused;
+        }
+
+        public long getBytesReused() {
+            return bytesReused;
+        }
+
+        @Override
+        public String toString() {
+            return buffersAllocated + " raster buffers allocated (" + bytesAllocated
+                    + " bytes), " + buffersReused + " reused (" + bytesReused + " bytes)";
+        }
+    }
+
+    private RasterBuffers() {
+    }
+
+    /**
+     * Gets a fully transparent image of type {@link BufferedImage#TYPE_INT_ARGB}
+     * , reusing a pooled image if one of the right size is available
+     * 
+     * @param width
+     *            The width of the image
+     * @param height
+     *            The height of the image
+     * @return The image
+     */
+    public static BufferedImage acquire(int width, int height) {
+        BufferedImage image = null;
+        synchronized (POOL) {
+            Iterator<BufferedImage> iterator = POOL.iterator();
+            while (iterator.hasNext()) {
+                BufferedImage pooled = iterator.next();
+                if (pooled.getWidth() == width && pooled.getHeight() == height) {
+                    iterator.remove();
+                    pooledPixels -= (long) width * height;
+                    image = pooled;
+                    break;
+                }
+            }
+        }
+        Statistics statistics = STATISTICS.get();
+        if (image != null) {
+            Arrays.fill(getPixels(image), 0);
+            statistics.buffersReused++;
+            statistics.bytesReused += 4L * width * height;
+        } else {
+            image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            statistics.buffersAllocated++;
+            statistics.bytesAllocated += 4L * width * height;
+        }
+        return image;
+    }
+
+    /**
+     * Returns an image to the pool. The image must not be used by the caller
+     * after it has been released. Images which cannot be accessed directly
+     * (see {@link RasterBuffers#hasDirectPixels(BufferedImage)}) or which are
+     * too large to pool are ignored.
+     * 
+     * @param image
+     *            The image to release. This may be <code>null</code>
+     */
+    public static void release(BufferedImage image) {
+        if (image == null || !hasDirectPixels(image)) {
+            return;
+        }
+        long pixels = (long) image.getWidth() * image.getHeight();
+        if (pixels > MAX_POOLED_PIXELS) {
+            return;
+        }
+        synchronized (POOL) {
+            for (BufferedImage pooled : POOL) {
+                if (pooled == image) {
+                    /* Already released */
+                    return;
+                }
+            }
+            POOL.addFirst(image);
+            pooledPixels += pixels;
+            while (POOL.size() > MAX_POOLED_IMAGES || pooledPixels > MAX_POOLED_PIXELS) {
+                BufferedImage evicted = POOL.removeLast();
+                pooledPixels -= (long) evicted.getWidth() * evicted.getHeight();
+            }
+        }
+    }
+
+    /**
+     * Empties the pool of images
+     */
+    public static void clearPool() {
+        synchronized (POOL) {
+            POOL.clear();
+            pooledPixels = 0L;
+        }
+    }
+
+    /**
+     * @return A snapshot of the buffers allocated and reused by the current
+     *         thread since the last call to
+     *         {@link RasterBuffers#resetStatistics()}
+     */
+    public static Statistics getStatistics() {
+        return new Statistics(STATISTICS.get());
+    }
+
+    /**
+     * Resets the buffer statistics for the current thread. This should be
+     * called at the start of each request.
+     */
+    public static void resetStatistics() {
+        STATISTICS.set(new Statistics());
+    }
+
+    /**
+     * @param image
+     *            The image to test
+     * @return <code>true</code> if the image is of type
+     *         {@link BufferedImage#TYPE_INT_ARGB} and its pixels are stored
+     *         contiguously, in which case they can be accessed with
+     *         {@link RasterBuffers#getPixels(BufferedImage)}
+     */
+    public static boolean hasDirectPixels(BufferedImage image) {
+        if (image.getType() != BufferedImage.TYPE_INT_ARGB) {
+            return false;
+        }
+        WritableRaster raster = image.getRaster();
+        if (!(raster.getSampleModel() instanceof SinglePixelPackedSampleModel)
+                || !(raster.getDataBuffer() instanceof DataBufferInt)) {
+            return false;
+        }
+        SinglePixelPackedSampleModel sampleModel = (SinglePixelPackedSampleModel) raster
+                .getSampleModel();
+        return sampleModel.getScanlineStride() == image.getWidth()
+                && raster.getSampleModelTranslateX() == 0
+                && raster.getSampleModelTranslateY() == 0
+                && raster.getDataBuffer().getOffset() == 0
+                && ((DataBufferInt) raster.getDataBuffer()).getData().length == image.getWidth()
+                        * image.getHeight();
+    }
+
+    /**
+     * Gets the pixels backing an image. Changes to the returned array are
+     * changes to the image.
+     * 
+     * @param image
+     *            An image for which
+     *            {@link RasterBuffers#hasDirectPixels(BufferedImage)} is
+     *            <code>true</code>
+     * @return The non-premultiplied ARGB pixels of the image, in row-major
+     *         order starting at the top-left
+     */
+    public static int[] getPixels(BufferedImage image) {
+        if (!hasDirectPixels(image)) {
+            throw new IllegalArgumentException(
+                    "Pixels can only be accessed directly for unshared TYPE_INT_ARGB images");
+        }
+        return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+
+    /**
+     * Composites one image over another (i.e. the Porter-Duff "source over"
+     * rule), with their top-left corners aligned. This is done in place
+     * wherever possible.
+     * 
+     * @param dest
+     *            The image to draw onto
+     * @param source
+     *            The image to draw
+     */
+    public static void compositeOver(BufferedImage dest, BufferedImage source) {
+        if (dest.getWidth() != source.getWidth() || dest.getHeight() != source.getHeight()
+                || !hasDirectPixels(dest) || !hasDirectPixels(source)) {
+            Graphics2D graphics = dest.createGraphics();
+            graphics.drawImage(source, 0, 0, null);
+            graphics.dispose();
+            return;
+        }
+        int[] destPixels = getPixels(dest);
+        int[] sourcePixels = getPixels(source);
+        for (int p = 0; p < destPixels.length; p++) {
+            destPixels[p] = compositePixel(destPixels[p], sourcePixels[p]);
+        }
+    }
+
+    /*
+     * Composites a single (non-premultiplied) ARGB pixel over another
+     */
+    private static int compositePixel(int dest, int source) {
+        int sourceAlpha = source >>> 24;
+        if (sourceAlpha == 0) {
+            return dest;
+        }
+        int destAlpha = dest >>> 24;
+        if (sourceAlpha == 255 || destAlpha == 0) {
+            return source;
+        }
+        /*
+         * Both alphas are scaled by 255 here, to keep everything in integer
+         * arithmetic
+         */
+        int sourceWeight = sourceAlpha * 255;
+        int destWeight = destAlpha * (255 - sourceAlpha);
+        int totalWeight = sourceWeight + destWeight;
+        int alpha = (totalWeight + 127) / 255;
+        int red = blend(source >> 16, dest >> 16, sourceWeight, destWeight);
+        int green = blend(source >> 8, dest >> 8, sourceWeight, destWeight);
+        int blue = blend(source, dest, sourceWeight, destWeight);
+        return (alpha << 24) | (red << 16) | (green << 8) | blue;
+    }
+
+    /*
+     * Blends the lowest byte of 2 pixels, rounding to the nearest integer
+     */
+    private static int blend(int source, int dest, int sourceWeight, int destWeight) {
+        int totalWeight = sourceWeight + destWeight;
+        return ((source & 0xff) * sourceWeight + (dest & 0xff) * destWeight + totalWeight / 2)
+                / totalWeight;
+    }
+}
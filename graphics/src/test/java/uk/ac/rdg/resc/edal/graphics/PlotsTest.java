@@ -36,8 +36,10 @@ import java.awt.Color;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import javax.imageio.ImageIO;
@@ -259,6 +261,47 @@ public class PlotsTest {
         compareImages(comparisonImage, image);
     }
 
+    @Test
+    public void testArrowExtractsAtGlyphPositions() throws EdalException {
+        final List<PlottingDomainParams> requestedParams = new ArrayList<>();
+        FeatureCatalogue glyphCatalogue = new FeatureCatalogue() {
+            @Override
+            public FeaturesAndMemberName getFeaturesForLayer(String id,
+                    PlottingDomainParams params) {
+                requestedParams.add(params);
+                Map<String, Array2D<Number>> valuesMap = new HashMap<String, Array2D<Number>>();
+                valuesMap.put("testvarth", new Array2D<Number>(params.getHeight(),
+                        params.getWidth()) {
+                    @Override
+                    public Number get(int... coords) {
+                        return 45f;
+                    }
+
+                    @Override
+                    public void set(Number value, int... coords) {
+                        throw new UnsupportedOperationException();
+                    }
+                });
+                MapFeature feature = new MapFeature("glyphfeature", "Glyph Feature",
+                        "This is a feature used for testing",
+                        new MapDomain(params.getImageGrid(), null, null, null), null, valuesMap);
+                return new FeaturesAndMemberName(feature, "testvarth");
+            }
+        };
+        ArrowLayer arrowLayer = new ArrowLayer("thetatest", 8, Color.black, new Color(0, true),
+                ArrowStyle.UPSTREAM);
+        MapImage mapImage = new MapImage();
+        mapImage.getLayers().add(arrowLayer);
+        BufferedImage image = mapImage.drawImage(params, glyphCatalogue);
+        /*
+         * Data should only have been extracted once per arrow
+         */
+        assertEquals(1, requestedParams.size());
+        assertEquals(WIDTH / 16, requestedParams.get(0).getWidth());
+        assertEquals(HEIGHT / 16, requestedParams.get(0).getHeight());
+        assertFalse(imageBlank(image));
+    }
+
     /*
      * Static arrays defined at the bottom to stay out of the way
      */
@@ -0,0 +1,203 @@
+/*******************************************************************************
+ * Copyright (c) 2017 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.graphics.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.rdg.resc.edal.graphics.utils.Contours.Label;
+
+public class ContoursTest {
+    @Before
+    public void setUp() {
+        Contours.clearCache();
+    }
+
+    /*
+     * A cone, with its peak in the centre of the field
+     */
+    private static float[] getCone(int width, int height) {
+        float[] values = new float[width * height];
+        for (int j = 0; j < height; j++) {
+            for (int i = 0; i < width; i++) {
+                values[j * width + i] = (float) -Math.hypot(i + 0.5 - width / 2.0, j + 0.5
+                        - height / 2.0);
+            }
+        }
+        return values;
+    }
+
+    private static void assertCircle(float[] line, double x, double y, double radius) {
+        for (int p = 0; p < line.length; p += 2) {
+            assertEquals(radius, Math.hypot(line[p] - x, line[p + 1] - y), 0.1);
+        }
+    }
+
+    @Test
+    public void testClosedContour() {
+        Contours contours = Contours.get(getCone(20, 20), 20, 20, new double[] { -5.0 });
+        List<float[]> lines = contours.getLines(0);
+        assertEquals(1, lines.size());
+        float[] line = lines.get(0);
+        /* Closed lines end where they start */
+        assertEquals(line[0], line[line.length - 2], 1e-6);
+        assertEquals(line[1], line[line.length - 1], 1e-6);
+        assertCircle(line, 10.0, 10.0, 5.0);
+    }
+
+    @Test
+    public void testOpenContours() {
+        /*
+         * Missing data across the middle row should split the circle into 2
+         * open lines
+         */
+        float[] values = getCone(20, 20);
+        for (int i = 0; i < 20; i++) {
+            values[10 * 20 + i] = Float.NaN;
+        }
+        Contours contours = Contours.get(values, 20, 20, new double[] { -5.0 });
+        List<float[]> lines = contours.getLines(0);
+        assertEquals(2, lines.size());
+        for (float[] line : lines) {
+            assertFalse(line[0] == line[line.length - 2] && line[1] == line[line.length - 1]);
+            assertCircle(line, 10.0, 10.0, 5.0);
+        }
+    }
+
+    @Test
+    public void testParallelStitching() {
+        /*
+         * This is large enough to be traced in parallel bands, which must be
+         * joined into a single line
+         */
+        int size = 600;
+        Contours contours = Contours.get(getCone(size, size), size, size, new double[] {
+                -100.0, -250.0 });
+        assertEquals(1, contours.getLines(0).size());
+        assertEquals(1, contours.getLines(1).size());
+        assertCircle(contours.getLines(0).get(0), 300.0, 300.0, 100.0);
+        assertCircle(contours.getLines(1).get(0), 300.0, 300.0, 250.0);
+    }
+
+    @Test
+    public void testCache() {
+        float[] values = getCone(20, 20);
+        Contours contours = Contours.get(values, 20, 20, new double[] { -5.0, -8.0 });
+        assertSame(contours, Contours.get(values.clone(), 20, 20, new double[] { -5.0, -8.0 }));
+        assertFalse(contours == Contours.get(values, 20, 20, new double[] { -5.0 }));
+    }
+
+    @Test
+    public void testCacheBounded() {
+        /*
+         * Each of these fields takes up a quarter of the cache, so adding a
+         * fifth should remove the first
+         */
+        int size = (int) Math.sqrt(Contours.MAX_CACHED_BYTES / 4 / 4) - 1;
+        float[][] fields = new float[5][];
+        Contours[] contours = new Contours[5];
+        for (int f = 0; f < 5; f++) {
+            fields[f] = new float[size * size];
+            Arrays.fill(fields[f], f);
+            contours[f] = Contours.get(fields[f], size, size, new double[] { 0.5 });
+            assertTrue(Contours.getCachedBytes() <= Contours.MAX_CACHED_BYTES);
+        }
+        assertSame(contours[4], Contours.get(fields[4], size, size, new double[] { 0.5 }));
+        assertFalse(contours[0] == Contours.get(fields[0], size, size, new double[] { 0.5 }));
+
+        /* Fields which would fill the cache by themselves are not cached */
+        int tooBig = (int) Math.sqrt(Contours.MAX_CACHED_BYTES / 4) + 1;
+        float[] values = new float[tooBig * tooBig];
+        Contours uncached = Contours.get(values, tooBig, tooBig, new double[] { 0.5 });
+        assertFalse(uncached == Contours.get(values, tooBig, tooBig, new double[] { 0.5 }));
+        assertTrue(Contours.getCachedBytes() <= Contours.MAX_CACHED_BYTES);
+    }
+
+    @Test
+    public void testSaddle() {
+        /*
+         * A single cell with high values in opposite corners. The mean value
+         * at the centre of the cell is 0.5, so a contour below it separates
+         * the low corners, and a contour above it separates the high corners.
+         */
+        float[] values = new float[] { 1f, 0f, 0f, 1f };
+        Contours contours = Contours.get(values, 2, 2, new double[] { 0.4, 0.6 });
+        assertCorners(contours.getLines(0), 1.5, 0.5, 0.5, 1.5);
+        assertCorners(contours.getLines(1), 0.5, 0.5, 1.5, 1.5);
+
+        /* The other orientation of saddle */
+        values = new float[] { 0f, 1f, 1f, 0f };
+        contours = Contours.get(values, 2, 2, new double[] { 0.4, 0.6 });
+        assertCorners(contours.getLines(0), 0.5, 0.5, 1.5, 1.5);
+        assertCorners(contours.getLines(1), 1.5, 0.5, 0.5, 1.5);
+    }
+
+    /*
+     * Checks that there are 2 lines, each of which cuts off one of the given
+     * corners of the cell
+     */
+    private static void assertCorners(List<float[]> lines, double x1, double y1, double x2,
+            double y2) {
+        assertEquals(2, lines.size());
+        boolean[] found = new boolean[2];
+        for (float[] line : lines) {
+            assertEquals(4, line.length);
+            boolean nearFirst = true;
+            boolean nearSecond = true;
+            for (int p = 0; p < line.length; p += 2) {
+                nearFirst &= Math.hypot(line[p] - x1, line[p + 1] - y1) < 0.5;
+                nearSecond &= Math.hypot(line[p] - x2, line[p + 1] - y2) < 0.5;
+            }
+            assertTrue(nearFirst != nearSecond);
+            found[nearFirst ? 0 : 1] = true;
+        }
+        assertTrue(found[0] && found[1]);
+    }
+
+    @Test
+    public void testLabels() {
+        Contours contours = Contours.get(getCone(100, 100), 100, 100, new double[] { -40.0 });
+        /* The circumference is ~250 pixels */
+        List<Label> labels = contours.getLabels(0, 100.0, 50.0);
+        assertEquals(2, labels.size());
+        for (Label label : labels) {
+            assertEquals(40.0, Math.hypot(label.getX() - 50.0, label.getY() - 50.0), 0.1);
+            assertTrue(Math.abs(label.getAngle()) <= Math.PI / 2);
+        }
+        assertTrue(contours.getLabels(0, 100.0, 300.0).isEmpty());
+    }
+}
@@ -0,0 +1,108 @@
+/*******************************************************************************
+ * Copyright (c) 2017 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.graphics.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class RasterBuffersTest {
+    @Before
+    public void setUp() {
+        RasterBuffers.clearPool();
+        RasterBuffers.resetStatistics();
+    }
+
+    @Test
+    public void testReuse() {
+        BufferedImage image = RasterBuffers.acquire(20, 10);
+        assertEquals(BufferedImage.TYPE_INT_ARGB, image.getType());
+        RasterBuffers.getPixels(image)[5] = 0xff123456;
+        RasterBuffers.release(image);
+
+        /* A buffer of a different size must be allocated */
+        assertFalse(image == RasterBuffers.acquire(10, 20));
+        BufferedImage reused = RasterBuffers.acquire(20, 10);
+        assertSame(image, reused);
+        /* Reused buffers are cleared */
+        assertEquals(0, reused.getRGB(5, 0));
+
+        RasterBuffers.Statistics statistics = RasterBuffers.getStatistics();
+        assertEquals(2, statistics.getBuffersAllocated());
+        assertEquals(2 * 4 * 200, statistics.getBytesAllocated());
+        assertEquals(1, statistics.getBuffersReused());
+        assertEquals(4 * 200, statistics.getBytesReused());
+    }
+
+    @Test
+    public void testDirectPixels() {
+        BufferedImage image = RasterBuffers.acquire(20, 10);
+        assertTrue(RasterBuffers.hasDirectPixels(image));
+        RasterBuffers.getPixels(image)[2 * 20 + 3] = 0x80ff0000;
+        assertEquals(0x80ff0000, image.getRGB(3, 2));
+
+        assertFalse(RasterBuffers.hasDirectPixels(image.getSubimage(0, 0, 10, 10)));
+        assertFalse(RasterBuffers.hasDirectPixels(new BufferedImage(20, 10,
+                BufferedImage.TYPE_INT_RGB)));
+    }
+
+    @Test
+    public void testCompositeOver() {
+        int[] sources = new int[] { 0x00000000, 0xff00ff00, 0x80ff0000, 0x400000ff, 0x80ff0000 };
+        int[] dests = new int[] { 0xff123456, 0x80ffffff, 0x00000000, 0xff00ff00, 0x800000ff };
+        BufferedImage dest = new BufferedImage(sources.length, 1, BufferedImage.TYPE_INT_ARGB);
+        BufferedImage source = new BufferedImage(sources.length, 1, BufferedImage.TYPE_INT_ARGB);
+        BufferedImage expected = new BufferedImage(sources.length, 1,
+                BufferedImage.TYPE_INT_ARGB);
+        for (int i = 0; i < sources.length; i++) {
+            dest.setRGB(i, 0, dests[i]);
+            expected.setRGB(i, 0, dests[i]);
+            source.setRGB(i, 0, sources[i]);
+        }
+        Graphics2D graphics = expected.createGraphics();
+        graphics.drawImage(source, 0, 0, null);
+        graphics.dispose();
+
+        RasterBuffers.compositeOver(dest, source);
+        for (int i = 0; i < sources.length; i++) {
+            int actualPixel = dest.getRGB(i, 0);
+            int expectedPixel = expected.getRGB(i, 0);
+            for (int shift = 0; shift < 32; shift += 8) {
+                assertEquals((expectedPixel >>> shift) & 0xff, (actualPixel >>> shift) & 0xff, 1);
+            }
+        }
+    }
+}
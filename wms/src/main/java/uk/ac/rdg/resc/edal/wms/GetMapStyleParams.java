@@ -41,6 +41,7 @@ import java.util.Set;
 
 import org.apache.commons.io.IOUtils;
 
+import uk.ac.rdg.resc.edal.dataset.Dataset;
 import uk.ac.rdg.resc.edal.domain.Extent;
 import uk.ac.rdg.resc.edal.exceptions.EdalException;
 import uk.ac.rdg.resc.edal.graphics.exceptions.EdalLayerNotFoundException;
@@ -76,6 +77,11 @@ public class GetMapStyleParams {
     private Boolean logarithmic = null;
 
     private List<Extent<Float>> colourScaleRange = new ArrayList<>();
+    /*
+     * The percentiles to auto-scale each layer between, or null where it
+     * should be auto-scaled to the full range of values
+     */
+    private List<Extent<Float>> colourScalePercentiles = new ArrayList<>();
 
     /* true if we are using an XML style specification */
     private MapImage xmlMapImage = null;
@@ -238,6 +244,7 @@ public class GetMapStyleParams {
         }
 
         colourScaleRange = getColorScaleRanges(params, defaults.getColorScaleRange());
+        colourScalePercentiles = getColorScalePercentiles(params);
 
         logarithmic = params.getBoolean("logscale", defaults.isLogScaling());
 
@@ -270,9 +277,10 @@ public class GetMapStyleParams {
                  * The client wants this layer's default scale range to be used
                  */
                 ranges.add(defaultScale);
-            } else if (range.equalsIgnoreCase("auto")) {
+            } else if (range.toLowerCase().startsWith("auto")) {
                 /*
-                 * The client wants to auto scale the range on this layer
+                 * The client wants to auto scale the range on this layer,
+                 * possibly between percentiles (see getColorScalePercentiles)
                  */
                 ranges.add(null);
             } else {
@@ -292,6 +300,50 @@ public class GetMapStyleParams {
         return ranges;
     }
 
+    /**
+     * Gets the percentiles which the client wants each layer to be auto-scaled
+     * between. These are specified in the COLORSCALERANGE parameter as
+     * "auto:LOW,HIGH" (e.g. "auto:2,98"), and take the place of the
+     * corresponding range.
+     * 
+     * @return A {@link List} containing an entry for each range in the
+     *         COLORSCALERANGE parameter. This is an {@link Extent} of
+     *         percentiles (between 0 and 100) for ranges given as
+     *         "auto:LOW,HIGH", and <code>null</code> otherwise
+     * @throws EdalException
+     *             If the percentiles are not valid
+     */
+    public static List<Extent<Float>> getColorScalePercentiles(RequestParams params)
+            throws EdalException {
+        List<Extent<Float>> percentiles = new ArrayList<>();
+        String csr = params.getString("colorscalerange");
+        if (csr == null) {
+            return percentiles;
+        }
+        for (String range : csr.split(";")) {
+            if (!range.toLowerCase().startsWith("auto:")) {
+                percentiles.add(null);
+                continue;
+            }
+            String[] percentileEls = range.substring(5).split(",");
+            float low;
+            float high;
+            try {
+                low = Float.parseFloat(percentileEls[0]);
+                high = Float.parseFloat(percentileEls[1]);
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                throw new EdalException("Auto-scaled COLORSCALERANGE must be of the form "
+                        + "auto:LOW,HIGH, where LOW and HIGH are percentiles");
+            }
+            if (low < 0 || high > 100 || low > high) {
+                throw new EdalException("Percentiles in COLORSCALERANGE must be between 0 "
+                        + "and 100, with the low percentile first");
+            }
+            percentiles.add(Extents.newExtent(low, high));
+        }
+        return percentiles;
+    }
+
     /**
      * Gets the object used to generate the map plot with all correct styles and
      * layers set.
@@ -488,10 +540,18 @@ public class GetMapStyleParams {
                     varId = childWithRole.getId();
                 }
                 /*
-                 * Calculate the scale to use
+                 * Calculate the scale to use, between the requested
+                 * percentiles if there are any
                  */
-                colourScaleRange = GraphicsUtils.estimateValueRange(
-                        WmsUtils.getDatasetFromLayerName(layerName, catalogue), varId);
+                Dataset dataset = WmsUtils.getDatasetFromLayerName(layerName, catalogue);
+                Extent<Float> percentiles = i < colourScalePercentiles.size()
+                        ? colourScalePercentiles.get(i) : null;
+                if (percentiles == null) {
+                    colourScaleRange = GraphicsUtils.estimateValueRange(dataset, varId);
+                } else {
+                    colourScaleRange = GraphicsUtils.estimateValueRange(dataset, varId,
+                            percentiles.getLow(), percentiles.getHigh());
+                }
             }
             colourScaleRanges.add(colourScaleRange);
         }
@@ -41,13 +41,20 @@ import net.sf.ehcache.CacheManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import uk.ac.rdg.resc.edal.dataset.GriddedDatasetOverviews;
+import uk.ac.rdg.resc.edal.dataset.GriddedDatasetStatistics;
 import uk.ac.rdg.resc.edal.util.GISUtils;
+import uk.ac.rdg.resc.edal.util.Metrics;
 
 public class WmsContextListener implements ServletContextListener {
     private static final Logger log = LoggerFactory.getLogger(WmsContextListener.class);
 
     @Override
     public void contextInitialized(ServletContextEvent sce) {
+        /*
+         * Make the request metrics available through JMX
+         */
+        Metrics.registerMBean();
     }
 
     @Override
@@ -56,6 +63,18 @@ public class WmsContextListener implements ServletContextListener {
          * Shut down all cache threads
          */
         CacheManager.getInstance().shutdown();
+
+        /*
+         * Stop the threads which process datasets in the background
+         */
+        GriddedDatasetStatistics.shutdown();
+        GriddedDatasetOverviews.shutdown();
+
+        /*
+         * Remove the metrics from JMX, so that they don't keep this webapp's
+         * classes loaded
+         */
+        Metrics.unregisterMBean();
         
         /*
          * TODO Close any DB connections
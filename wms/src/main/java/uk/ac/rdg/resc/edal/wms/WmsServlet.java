@@ -33,8 +33,11 @@ import java.awt.Font;
 import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
 import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
+import java.io.StringWriter;
 import java.net.SocketException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -42,6 +45,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
@@ -52,6 +56,7 @@ import java.util.Properties;
 import java.util.Set;
 import java.util.Stack;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.imageio.ImageIO;
 import javax.naming.OperationNotSupportedException;
@@ -72,6 +77,7 @@ import org.apache.velocity.exception.MethodInvocationException;
 import org.apache.velocity.exception.ParseErrorException;
 import org.apache.velocity.exception.ResourceNotFoundException;
 import org.apache.velocity.runtime.RuntimeConstants;
+import org.geotoolkit.referencing.CRS;
 import org.jfree.chart.ChartUtilities;
 import org.jfree.chart.JFreeChart;
 import org.joda.time.DateTime;
@@ -80,6 +86,7 @@ import org.joda.time.Period;
 import org.joda.time.chrono.ISOChronology;
 import org.json.JSONArray;
 import org.json.JSONObject;
+import org.opengis.geometry.Envelope;
 import org.opengis.metadata.extent.GeographicBoundingBox;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 import org.slf4j.Logger;
@@ -90,6 +97,7 @@ import uk.ac.rdg.resc.edal.covjson.CoverageJsonConverterImpl;
 import uk.ac.rdg.resc.edal.dataset.ContinuousDomainDataset;
 import uk.ac.rdg.resc.edal.dataset.Dataset;
 import uk.ac.rdg.resc.edal.dataset.DiscreteLayeredDataset;
+import uk.ac.rdg.resc.edal.dataset.GriddedDataset;
 import uk.ac.rdg.resc.edal.dataset.HorizontallyDiscreteDataset;
 import uk.ac.rdg.resc.edal.dataset.plugins.VectorPlugin;
 import uk.ac.rdg.resc.edal.domain.Extent;
@@ -112,6 +120,7 @@ import uk.ac.rdg.resc.edal.feature.PointSeriesFeature;
 import uk.ac.rdg.resc.edal.feature.ProfileFeature;
 import uk.ac.rdg.resc.edal.feature.TrajectoryFeature;
 import uk.ac.rdg.resc.edal.geometry.BoundingBox;
+import uk.ac.rdg.resc.edal.geometry.BoundingBoxImpl;
 import uk.ac.rdg.resc.edal.geometry.LineString;
 import uk.ac.rdg.resc.edal.graphics.Charting;
 import uk.ac.rdg.resc.edal.graphics.exceptions.EdalLayerNotFoundException;
@@ -130,6 +139,7 @@ import uk.ac.rdg.resc.edal.graphics.utils.GraphicsUtils;
 import uk.ac.rdg.resc.edal.graphics.utils.LayerNameMapper;
 import uk.ac.rdg.resc.edal.graphics.utils.PlottingDomainParams;
 import uk.ac.rdg.resc.edal.graphics.utils.PlottingStyleParameters;
+import uk.ac.rdg.resc.edal.graphics.utils.RasterBuffers;
 import uk.ac.rdg.resc.edal.grid.HorizontalGrid;
 import uk.ac.rdg.resc.edal.grid.TimeAxis;
 import uk.ac.rdg.resc.edal.grid.VerticalAxis;
@@ -144,11 +154,16 @@ import uk.ac.rdg.resc.edal.util.CollectionUtils;
 import uk.ac.rdg.resc.edal.util.Extents;
 import uk.ac.rdg.resc.edal.util.GISUtils;
 import uk.ac.rdg.resc.edal.util.GridCoordinates2D;
+import uk.ac.rdg.resc.edal.util.Metrics;
 import uk.ac.rdg.resc.edal.util.TimeUtils;
 import uk.ac.rdg.resc.edal.wms.exceptions.CurrentUpdateSequence;
 import uk.ac.rdg.resc.edal.wms.exceptions.EdalUnsupportedOperationException;
 import uk.ac.rdg.resc.edal.wms.exceptions.InvalidUpdateSequence;
 import uk.ac.rdg.resc.edal.wms.exceptions.LayerNotQueryableException;
+import uk.ac.rdg.resc.edal.wms.util.CapabilitiesCache;
+import uk.ac.rdg.resc.edal.wms.util.CapabilitiesCache.CachedDocument;
+import uk.ac.rdg.resc.edal.wms.util.RenderedImageCache;
+import uk.ac.rdg.resc.edal.wms.util.RenderedImageCache.CachedImage;
 import uk.ac.rdg.resc.edal.wms.util.WmsUtils;
 
 /**
@@ -195,6 +210,60 @@ public class WmsServlet extends HttpServlet {
 
     private String[] SupportedCrsCodes = DEFAULT_SUPPORTED_CRS_CODES;
 
+    /*
+     * Servlet init parameters which configure the rendered image cache
+     */
+    public static final String RENDERED_IMAGE_CACHE_ENABLED_PARAM = "renderedImageCacheEnabled";
+    public static final String RENDERED_IMAGE_CACHE_MEMORY_PARAM = "renderedImageCacheMemoryMB";
+    public static final String RENDERED_IMAGE_CACHE_DIR_PARAM = "renderedImageCacheDir";
+    public static final String RENDERED_IMAGE_CACHE_DISK_PARAM = "renderedImageCacheDiskMB";
+    /*
+     * Servlet init parameter which sets the size of metatiles
+     */
+    public static final String METATILE_SIZE_PARAM = "metatileSize";
+    private static final long DEFAULT_RENDERED_IMAGE_CACHE_MEMORY_MB = 64L;
+    private static final long DEFAULT_RENDERED_IMAGE_CACHE_DISK_MB = 512L;
+
+    private RenderedImageCache renderedImageCache = null;
+    /*
+     * The number of tiles along each side of a metatile. 1 disables
+     * metatiling
+     */
+    private int metatileSize = 1;
+    /*
+     * Held whilst a metatile is being rendered, so that concurrent requests
+     * for its tiles wait for it rather than rendering it again
+     */
+    private final Map<String, Object> metatileLocks = new ConcurrentHashMap<>();
+    /*
+     * Requests which don't set TILED=true are only treated as tiles if they
+     * are square and no larger than this
+     */
+    private static final int MAX_UNFLAGGED_TILE_SIZE = 512;
+    /*
+     * How close (as a fraction of the tile size) the bounding box of a GetMap
+     * request must be to a tile boundary to be considered part of a tile grid
+     */
+    private static final double TILE_ALIGNMENT_TOLERANCE = 1e-6;
+
+    /*
+     * Stands in for the dataset layers when rendering the main capabilities
+     * template. The layers themselves are rendered (and cached) separately for
+     * each dataset.
+     */
+    private static final String DATASET_LAYERS_MARKER = "EDAL_DATASET_LAYERS";
+    private final CapabilitiesCache capabilitiesCache = new CapabilitiesCache();
+    private boolean capabilitiesCachingEnabled = true;
+
+    /*
+     * The REQUEST values which are recorded separately in the metrics. Any
+     * others are recorded as "other", so that arbitrary values cannot create
+     * unlimited numbers of metrics.
+     */
+    private static final Set<String> METRICS_REQUESTS = new HashSet<>(Arrays.asList("GetMap",
+            "GetCapabilities", "GetFeatureInfo", "GetMetadata", "GetLegendGraphic",
+            "GetTimeseries", "GetTransect", "GetVerticalProfile"));
+
     /**
      * @see HttpServlet#HttpServlet()
      */
@@ -211,6 +280,12 @@ public class WmsServlet extends HttpServlet {
         props.put("resource.loader", "class");
         props.put("class.resource.loader.class",
                 "org.apache.velocity.runtime.resource.loader.ClasspathResourceLoader");
+        /*
+         * Templates are on the classpath and so never change. Without this
+         * they are re-parsed every time they are used (e.g. once per dataset
+         * when generating capabilities)
+         */
+        props.put("class.resource.loader.cache", "true");
         velocityEngine = new VelocityEngine();
         velocityEngine.setProperty(RuntimeConstants.RUNTIME_LOG_LOGSYSTEM_CLASS,
                 "org.apache.velocity.runtime.log.Log4JLogChute");
@@ -218,6 +293,70 @@ public class WmsServlet extends HttpServlet {
         velocityEngine.init(props);
     }
 
+    /**
+     * Configures the rendered image cache from the servlet init parameters.
+     * The cache is disabled by default, since changes to the styling of a
+     * layer (e.g. its default palette) do not change the validators of cached
+     * images. If {@link WmsServlet#RENDERED_IMAGE_CACHE_ENABLED_PARAM} is set
+     * to <code>true</code> and no cache has already been set with
+     * {@link WmsServlet#setRenderedImageCache(RenderedImageCache)}, a cache is
+     * created holding {@link WmsServlet#RENDERED_IMAGE_CACHE_MEMORY_PARAM} MB
+     * of images in memory (64 by default). If
+     * {@link WmsServlet#RENDERED_IMAGE_CACHE_DIR_PARAM} is set, up to
+     * {@link WmsServlet#RENDERED_IMAGE_CACHE_DISK_PARAM} MB (512 by default)
+     * are also stored in that directory.
+     * 
+     * The size of metatiles is read from
+     * {@link WmsServlet#METATILE_SIZE_PARAM}, if it is set (see
+     * {@link WmsServlet#setMetatileSize(int)}).
+     * 
+     * Subclasses which override this method should call
+     * <code>super.init()</code>.
+     */
+    @Override
+    public void init() throws ServletException {
+        super.init();
+        if (renderedImageCache == null
+                && Boolean.parseBoolean(getInitParameter(RENDERED_IMAGE_CACHE_ENABLED_PARAM,
+                        "false"))) {
+            long memoryMb = getLongInitParameter(RENDERED_IMAGE_CACHE_MEMORY_PARAM,
+                    DEFAULT_RENDERED_IMAGE_CACHE_MEMORY_MB);
+            String cacheDir = getInitParameter(RENDERED_IMAGE_CACHE_DIR_PARAM, null);
+            long diskMb = getLongInitParameter(RENDERED_IMAGE_CACHE_DISK_PARAM,
+                    DEFAULT_RENDERED_IMAGE_CACHE_DISK_MB);
+            renderedImageCache = new RenderedImageCache(memoryMb * 1024 * 1024,
+                    cacheDir == null ? null : new File(cacheDir), diskMb * 1024 * 1024);
+        }
+        if (getInitParameter(METATILE_SIZE_PARAM, null) != null) {
+            try {
+                setMetatileSize((int) getLongInitParameter(METATILE_SIZE_PARAM, 1L));
+            } catch (IllegalArgumentException e) {
+                throw new ServletException(e.getMessage(), e);
+            }
+        }
+    }
+
+    private String getInitParameter(String name, String defaultValue) {
+        String value = getInitParameter(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        return value.trim();
+    }
+
+    private long getLongInitParameter(String name, long defaultValue) throws ServletException {
+        String value = getInitParameter(name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new ServletException("The init parameter " + name
+                    + " must be an integer, but was " + value, e);
+        }
+    }
+
     /**
      * Sets a {@link WmsCatalogue} to be used globally for all requests.
      * 
@@ -238,6 +377,10 @@ public class WmsServlet extends HttpServlet {
      */
     public void setCatalogue(WmsCatalogue catalogue) {
         this.catalogue = catalogue;
+        /*
+         * Entries for the old catalogue can never be used again
+         */
+        capabilitiesCache.clear();
     }
 
     /**
@@ -251,6 +394,85 @@ public class WmsServlet extends HttpServlet {
         return this.catalogue;
     }
 
+    /**
+     * Sets a cache for rendered GetMap images, replacing any created by
+     * {@link WmsServlet#init()}. When this is set, GetMap
+     * responses also carry ETag and Last-Modified headers derived from the
+     * last update time of the datasets being plotted, and conditional requests
+     * for unchanged images will receive a 304 (Not Modified) response.
+     * 
+     * @param renderedImageCache
+     *            The {@link RenderedImageCache} to use, or <code>null</code> to
+     *            disable caching of rendered images
+     */
+    public void setRenderedImageCache(RenderedImageCache renderedImageCache) {
+        this.renderedImageCache = renderedImageCache;
+    }
+
+    /**
+     * Sets the size of metatiles used for tiled GetMap requests. When this is
+     * greater than 1 and a {@link RenderedImageCache} has been set, a tile
+     * request (one which sets TILED=true, or is square and no larger than 512
+     * pixels) whose bounding box is aligned to a tile grid (i.e. its corner
+     * lies on a multiple of its width and height) is expanded to the enclosing
+     * metatile of n x n tiles. The metatile is drawn once and sliced into
+     * tiles, all of which are stored in the cache. Neighbouring tile requests
+     * are then served from the cache, rather than each requiring a separate
+     * data extraction.
+     * 
+     * Tile grids whose origin is at a multiple of the tile size (which
+     * includes the common WGS84 and web mercator grids) are detected
+     * automatically.
+     * 
+     * @param metatileSize
+     *            The number of tiles along each side of a metatile. 1 disables
+     *            metatiling
+     */
+    public void setMetatileSize(int metatileSize) {
+        if (metatileSize < 1) {
+            throw new IllegalArgumentException("Metatile size must be at least 1");
+        }
+        this.metatileSize = metatileSize;
+    }
+
+    /**
+     * @return The number of tiles along each side of a metatile
+     */
+    protected int getMetatileSize() {
+        return metatileSize;
+    }
+
+    /**
+     * @return The {@link RenderedImageCache} used for GetMap requests, or
+     *         <code>null</code> if rendered images are not cached
+     */
+    protected RenderedImageCache getRenderedImageCache() {
+        return renderedImageCache;
+    }
+
+    /**
+     * Sets whether GetCapabilities documents are cached. When enabled (the
+     * default), the part of the document describing each dataset is only
+     * regenerated when that dataset is updated, and complete documents are
+     * only reassembled when the catalogue is updated.
+     * 
+     * @param enabled
+     *            Whether to cache GetCapabilities documents
+     */
+    public void setCapabilitiesCachingEnabled(boolean enabled) {
+        this.capabilitiesCachingEnabled = enabled;
+        capabilitiesCache.clear();
+    }
+
+    /**
+     * Removes all cached GetCapabilities documents. This should be called if
+     * anything which appears in them (e.g. layer titles) is changed without
+     * the catalogue's last update time changing.
+     */
+    public void clearCapabilitiesCache() {
+        capabilitiesCache.clear();
+    }
+
     /**
      * Sets the palettes to be advertised in the GetCapabilities document.
      * 
@@ -278,6 +500,7 @@ public class WmsServlet extends HttpServlet {
                 advertisedPalettes.add(palette);
             }
         }
+        capabilitiesCache.clear();
     }
 
     /**
@@ -294,14 +517,17 @@ public class WmsServlet extends HttpServlet {
          */
         RequestParams params = new RequestParams(httpServletRequest.getParameterMap());
 
+        long start = Metrics.start();
+        String request = params.getString("request");
         try {
             /*
              * Check the REQUEST parameter to see if we're producing a
              * capabilities document, a map or a FeatureInfo
              */
-            String request = params.getMandatoryString("request");
+            request = params.getMandatoryString("request");
             dispatchWmsRequest(request, params, httpServletRequest, httpServletResponse, catalogue);
         } catch (EdalException wmse) {
+            Metrics.increment("edal_wms_errors_total", "request", getMetricsRequest(request));
             boolean v130;
             try {
                 v130 = "1.3.0".equals(params.getMandatoryWmsVersion());
@@ -339,7 +565,37 @@ public class WmsServlet extends HttpServlet {
             /* An unexpected (internal) error has occurred */
             e.printStackTrace();
             throw new IOException(e);
+        } finally {
+            if (Metrics.isEnabled()) {
+                Metrics.stop(start, "edal_wms_request_seconds", "request",
+                        getMetricsRequest(request), "dataset", getMetricsDatasets(params));
+            }
+        }
+    }
+
+    /**
+     * @return The label used in the metrics for a REQUEST value
+     */
+    private static String getMetricsRequest(String request) {
+        return METRICS_REQUESTS.contains(request) ? request : "other";
+    }
+
+    /**
+     * @return The label used in the metrics for the datasets used in a
+     *         request. This is "none" for requests which aren't for specific
+     *         layers, or which refer to layers which don't exist.
+     */
+    private String getMetricsDatasets(RequestParams params) {
+        String layers = params.getString("query_layers",
+                params.getString("layers", params.getString("layer")));
+        Set<String> datasetIds = null;
+        if (layers != null && catalogue != null) {
+            datasetIds = getDatasetIds(layers.split(","), catalogue);
+        }
+        if (datasetIds == null || datasetIds.isEmpty()) {
+            return "none";
         }
+        return StringUtils.join(datasetIds, ",");
     }
 
     /**
@@ -365,9 +621,9 @@ public class WmsServlet extends HttpServlet {
                     "No WMS catalogue has been set to discover datasets.  This is likely to be a programming error.");
         }
         if (request.equals("GetMap")) {
-            getMap(params, httpServletResponse, catalogue);
+            getMap(params, httpServletRequest, httpServletResponse, catalogue);
         } else if (request.equals("GetCapabilities")) {
-            getCapabilities(params, httpServletResponse,
+            getCapabilities(params, httpServletRequest, httpServletResponse,
                     httpServletRequest.getRequestURL().toString(), catalogue);
         } else if (request.equals("GetFeatureInfo")) {
             /* Look to see if we're requesting data from a remote server */
@@ -410,6 +666,28 @@ public class WmsServlet extends HttpServlet {
 
     protected void getMap(RequestParams params, HttpServletResponse httpServletResponse,
             WmsCatalogue catalogue) throws EdalException {
+        getMap(params, null, httpServletResponse, catalogue);
+    }
+
+    /**
+     * Handles a GetMap request
+     * 
+     * @param params
+     *            The parameters of the request
+     * @param httpServletRequest
+     *            The {@link HttpServletRequest} object from the GET request.
+     *            This is used to check for conditional requests, and may be
+     *            <code>null</code>
+     * @param httpServletResponse
+     *            The {@link HttpServletResponse} object from the GET request
+     * @param catalogue
+     *            The {@link WmsCatalogue} which should be used to serve
+     *            datasets.
+     */
+    protected void getMap(RequestParams params, HttpServletRequest httpServletRequest,
+            HttpServletResponse httpServletResponse, WmsCatalogue catalogue)
+            throws EdalException {
+        RasterBuffers.resetStatistics();
         GetMapParameters getMapParams = new GetMapParameters(params, catalogue);
 
         PlottingDomainParams plottingParameters = getMapParams.getPlottingDomainParameters();
@@ -418,16 +696,18 @@ public class WmsServlet extends HttpServlet {
         /*
          * If the user has requested the actual data in coverageJSON format...
          */
+        boolean cbor = isCovCborFormat(getMapParams.getFormatString());
         if (getMapParams.getFormatString().equalsIgnoreCase("application/prs.coverage+json")
                 || getMapParams.getFormatString()
-                        .equalsIgnoreCase("application/prs.coverage json")) {
+                        .equalsIgnoreCase("application/prs.coverage json") || cbor) {
             String[] layerNames = getMapParams.getStyleParameters().getLayerNames();
             LayerNameMapper layerNameMapper = catalogue.getLayerNameMapper();
             List<Feature<?>> features = new ArrayList<>();
             for (String layerName : layerNames) {
                 if (!catalogue.isDownloadable(layerName)) {
-                    throw new InvalidFormatException(
-                            "The format \"application/prs.coverage+json\" is not enabled for this layer.\nIf you think this is an error, please contact the server administrator and get them to enable Download for this dataset");
+                    throw new InvalidFormatException("The format \""
+                            + getMapParams.getFormatString()
+                            + "\" is not enabled for this layer.\nIf you think this is an error, please contact the server administrator and get them to enable Download for this dataset");
                 }
                 Dataset dataset = catalogue
                         .getDatasetFromId(layerNameMapper.getDatasetIdFromLayerName(layerName));
@@ -450,8 +730,8 @@ public class WmsServlet extends HttpServlet {
                 }
             }
 
-            httpServletResponse.setContentType("application/prs.coverage+json");
-            CoverageJsonConverter converter = new CoverageJsonConverterImpl();
+            CoverageJsonConverterImpl converter = new CoverageJsonConverterImpl(cbor);
+            httpServletResponse.setContentType(converter.getMediaType());
 
             converter.checkFeaturesSupported(features);
             try {
@@ -518,6 +798,55 @@ public class WmsServlet extends HttpServlet {
                     + catalogue.getServerInfo().getMaxImageHeight());
         }
 
+        /*
+         * Single images in simple formats can be served from (and stored in)
+         * the rendered image cache, if there is one. Images defined by a
+         * remote SLD document are not cached, since the document may change.
+         */
+        RenderedImageCache imageCache = renderedImageCache;
+        String cacheKey = null;
+        String etag = null;
+        long lastModified = 0L;
+        Set<String> datasetIds = null;
+        if (imageCache != null && !getMapParams.isAnimation()
+                && getMapParams.getImageFormat() instanceof SimpleFormat
+                && params.getString("sld") == null) {
+            datasetIds = getDatasetIds(styleParameters.getLayerNames(), catalogue);
+        }
+        if (datasetIds != null) {
+            cacheKey = RenderedImageCache.getKey(params);
+            for (String datasetId : datasetIds) {
+                lastModified = Math.max(lastModified,
+                        catalogue.getLastUpdateTime(datasetId).getMillis());
+            }
+            etag = getEtag(cacheKey, lastModified);
+            httpServletResponse.setHeader("ETag", etag);
+            httpServletResponse.setDateHeader("Last-Modified", lastModified);
+            httpServletResponse.setHeader("Cache-Control", "public, no-cache");
+
+            if (isNotModified(httpServletRequest, etag, lastModified)) {
+                Metrics.increment("edal_wms_not_modified_total");
+                httpServletResponse.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return;
+            }
+
+            CachedImage cachedImage = imageCache.get(cacheKey, etag);
+            if (cachedImage != null) {
+                writeImageBytes(httpServletResponse, cachedImage.getData(),
+                        cachedImage.getMimeType());
+                return;
+            }
+
+            if (metatileSize > 1) {
+                byte[] tile = getTileFromMetatile(params, getMapParams, imageCache, cacheKey,
+                        lastModified, datasetIds, catalogue);
+                if (tile != null) {
+                    writeImageBytes(httpServletResponse, tile, getMapParams.getFormatString());
+                    return;
+                }
+            }
+        }
+
         /*
          * Set the content type to be what was requested. If anything goes
          * wrong, this will be overwritten to "text/xml" in the
@@ -564,6 +893,7 @@ public class WmsServlet extends HttpServlet {
         }
 
         ImageFormat imageFormat = getMapParams.getImageFormat();
+        long encodeStart = Metrics.start();
         try {
             ServletOutputStream outputStream = httpServletResponse.getOutputStream();
             if (imageFormat instanceof SimpleFormat) {
@@ -571,7 +901,20 @@ public class WmsServlet extends HttpServlet {
                  * We have a normal image format
                  */
                 SimpleFormat simpleFormat = (SimpleFormat) getMapParams.getImageFormat();
-                simpleFormat.writeImage(frames, outputStream, getMapParams.getFrameRate());
+                if (cacheKey != null) {
+                    /*
+                     * Encode the image once, for both the cache and the client
+                     */
+                    ByteArrayOutputStream imageBytes = new ByteArrayOutputStream();
+                    simpleFormat.writeImage(frames, imageBytes, getMapParams.getFrameRate());
+                    byte[] data = imageBytes.toByteArray();
+                    imageCache.put(cacheKey, new CachedImage(data,
+                            getMapParams.getFormatString(), etag, lastModified, datasetIds));
+                    httpServletResponse.setContentLength(data.length);
+                    outputStream.write(data);
+                } else {
+                    simpleFormat.writeImage(frames, outputStream, getMapParams.getFrameRate());
+                }
             } else {
                 /*
                  * We have KML (or another image format which needs additional
@@ -602,6 +945,9 @@ public class WmsServlet extends HttpServlet {
                 imageFormat.writeImage(frames, outputStream, name, description, gbbox, timeValues,
                         zValue, legend, getMapParams.getFrameRate());
             }
+            Metrics.stop(encodeStart, "edal_wms_encode_seconds", "format",
+                    getMapParams.getFormatString());
+            Metrics.add("edal_wms_frames_encoded_total", frames.size());
             outputStream.close();
         } catch (SocketException e) {
             /*
@@ -619,10 +965,329 @@ public class WmsServlet extends HttpServlet {
                 log.error("Problem writing output to stream", e);
             }
         }
+
+        /*
+         * The frames have been written, so their buffers can be reused
+         */
+        for (BufferedImage frame : frames) {
+            RasterBuffers.release(frame);
+        }
+        RasterBuffers.Statistics bufferStatistics = RasterBuffers.getStatistics();
+        log.debug("Rendered GetMap image: {}", bufferStatistics);
+        Metrics.add("edal_raster_buffer_bytes_allocated_total",
+                bufferStatistics.getBytesAllocated());
+        Metrics.add("edal_raster_buffer_bytes_reused_total", bufferStatistics.getBytesReused());
+    }
+
+    /**
+     * Renders the metatile containing a tile request, and stores all of its
+     * tiles in the rendered image cache.
+     * 
+     * @return The encoded image for the requested tile, or <code>null</code>
+     *         if the request is not part of a tile grid or the metatile cannot
+     *         be drawn
+     */
+    private byte[] getTileFromMetatile(RequestParams params, GetMapParameters getMapParams,
+            RenderedImageCache imageCache, String cacheKey, long lastModified,
+            Set<String> datasetIds, WmsCatalogue catalogue) throws EdalException {
+        PlottingDomainParams plottingParameters = getMapParams.getPlottingDomainParameters();
+        int n = metatileSize;
+        int width = plottingParameters.getWidth();
+        int height = plottingParameters.getHeight();
+        if (!isTileRequest(params, width, height)) {
+            return null;
+        }
+        if (width * n > catalogue.getServerInfo().getMaxImageWidth()
+                || height * n > catalogue.getServerInfo().getMaxImageHeight()) {
+            return null;
+        }
+
+        /*
+         * Work with the bounding box in the axis order of the request, so that
+         * the bounding boxes of the other tiles can be generated in the same
+         * form as the client would request them
+         */
+        String[] bboxEls = params.getMandatoryString("bbox").split(",");
+        double[] bbox = new double[4];
+        for (int i = 0; i < 4; i++) {
+            bbox[i] = Double.parseDouble(bboxEls[i]);
+        }
+        double size0 = bbox[2] - bbox[0];
+        double size1 = bbox[3] - bbox[1];
+        double index0 = bbox[0] / size0;
+        double index1 = bbox[1] / size1;
+        if (Math.abs(index0 - Math.rint(index0)) > TILE_ALIGNMENT_TOLERANCE
+                || Math.abs(index1 - Math.rint(index1)) > TILE_ALIGNMENT_TOLERANCE) {
+            return null;
+        }
+        long tile0 = (long) Math.rint(index0);
+        long tile1 = (long) Math.rint(index1);
+        long meta0 = Math.floorDiv(tile0, n) * n;
+        long meta1 = Math.floorDiv(tile1, n) * n;
+
+        /*
+         * WMS 1.3.0 uses lat-lon axis order for EPSG:4326
+         */
+        boolean xFirst = !("1.3.0".equals(getMapParams.getWmsVersion()) && "EPSG:4326"
+                .equalsIgnoreCase(params.getString("crs")));
+        double[] metaBbox = new double[] { meta0 * size0, meta1 * size1, (meta0 + n) * size0,
+                (meta1 + n) * size1 };
+        CoordinateReferenceSystem crs = plottingParameters.getBbox()
+                .getCoordinateReferenceSystem();
+        BoundingBox metaBoundingBox = xFirst ? new BoundingBoxImpl(metaBbox[0], metaBbox[1],
+                metaBbox[2], metaBbox[3], crs) : new BoundingBoxImpl(metaBbox[1], metaBbox[0],
+                metaBbox[3], metaBbox[2], crs);
+        if (!isWithinCrsBounds(metaBoundingBox)) {
+            return null;
+        }
+
+        String metatileKey = RenderedImageCache.getKey(withBbox(params, metaBbox)) + "metatile="
+                + n;
+        Object lock = metatileLocks.computeIfAbsent(metatileKey, k -> new Object());
+        try {
+            synchronized (lock) {
+                /*
+                 * Another request may have rendered this metatile whilst we
+                 * were waiting
+                 */
+                CachedImage cachedImage = imageCache.get(cacheKey,
+                        getEtag(cacheKey, lastModified));
+                if (cachedImage != null) {
+                    return cachedImage.getData();
+                }
+
+                MapImage imageGenerator = getMapParams.getStyleParameters().getImageGenerator(
+                        catalogue);
+                BufferedImage metatile = imageGenerator.drawImage(new PlottingDomainParams(n
+                        * width, n * height, metaBoundingBox, plottingParameters.getZExtent(),
+                        plottingParameters.getTExtent(),
+                        plottingParameters.getTargetHorizontalPosition(),
+                        plottingParameters.getTargetZ(), plottingParameters.getTargetT()),
+                        catalogue);
+
+                SimpleFormat format = (SimpleFormat) getMapParams.getImageFormat();
+                byte[] requestedTile = null;
+                for (int i = 0; i < n; i++) {
+                    for (int j = 0; j < n; j++) {
+                        /*
+                         * Image rows run from north to south
+                         */
+                        int col = xFirst ? i : j;
+                        int row = xFirst ? n - 1 - j : n - 1 - i;
+                        BufferedImage tile = metatile.getSubimage(col * width, row * height,
+                                width, height);
+                        ByteArrayOutputStream tileBytes = new ByteArrayOutputStream();
+                        long encodeStart = Metrics.start();
+                        try {
+                            format.writeImage(Arrays.asList(tile), tileBytes,
+                                    getMapParams.getFrameRate());
+                        } catch (IOException e) {
+                            throw new EdalException("Problem encoding tile", e);
+                        }
+                        Metrics.stop(encodeStart, "edal_wms_encode_seconds", "format",
+                                getMapParams.getFormatString());
+                        Metrics.increment("edal_wms_frames_encoded_total");
+                        byte[] data = tileBytes.toByteArray();
+
+                        String tileKey;
+                        if (meta0 + i == tile0 && meta1 + j == tile1) {
+                            tileKey = cacheKey;
+                            requestedTile = data;
+                        } else {
+                            tileKey = RenderedImageCache.getKey(withBbox(params, new double[] {
+                                    (meta0 + i) * size0, (meta1 + j) * size1,
+                                    (meta0 + i + 1) * size0, (meta1 + j + 1) * size1 }));
+                        }
+                        imageCache.put(tileKey, new CachedImage(data,
+                                getMapParams.getFormatString(), getEtag(tileKey, lastModified),
+                                lastModified, datasetIds));
+                    }
+                }
+                RasterBuffers.release(metatile);
+                log.debug("Rendered metatile: {}", RasterBuffers.getStatistics());
+                return requestedTile;
+            }
+        } finally {
+            metatileLocks.remove(metatileKey, lock);
+        }
+    }
+
+    /**
+     * Decides whether a GetMap request looks like part of a tiled map. Only
+     * these are expanded to metatiles, since a one-off image which happens to
+     * be aligned to a grid would otherwise be drawn at n x n times its size.
+     * 
+     * @return <code>true</code> if the request sets TILED=true, or (if TILED
+     *         is not set) the image is square and no larger than 512 pixels
+     */
+    static boolean isTileRequest(RequestParams params, int width, int height) {
+        String tiled = params.getString("tiled");
+        if (tiled != null) {
+            return Boolean.parseBoolean(tiled);
+        }
+        return width == height && width <= MAX_UNFLAGGED_TILE_SIZE;
+    }
+
+    /**
+     * @return A copy of the given parameters with a different bounding box
+     */
+    private static RequestParams withBbox(RequestParams params, double[] bbox) {
+        Map<String, String[]> paramMap = new HashMap<>();
+        for (String name : params.getParameterNames()) {
+            paramMap.put(name, new String[] { params.getString(name) });
+        }
+        paramMap.put("bbox", new String[] { bbox[0] + "," + bbox[1] + "," + bbox[2] + ","
+                + bbox[3] });
+        return new RequestParams(paramMap);
+    }
+
+    /**
+     * Checks whether a metatile lies within the valid area of its CRS. Tiles
+     * at the edge of a tile grid may otherwise be expanded into metatiles
+     * which extend past the edge of the world.
+     */
+    private static boolean isWithinCrsBounds(BoundingBox bbox) {
+        CoordinateReferenceSystem crs = bbox.getCoordinateReferenceSystem();
+        BoundingBox validBbox;
+        if (GISUtils.isWgs84LonLat(crs)) {
+            validBbox = BoundingBoxImpl.global();
+        } else {
+            Envelope envelope = CRS.getEnvelope(crs);
+            if (envelope == null) {
+                return true;
+            }
+            validBbox = new BoundingBoxImpl(crs);
+        }
+        /*
+         * Allow some leeway, since the domain of validity of a CRS is often
+         * slightly smaller than its tile grid
+         */
+        double xLeeway = 0.01 * (validBbox.getMaxX() - validBbox.getMinX());
+        double yLeeway = 0.01 * (validBbox.getMaxY() - validBbox.getMinY());
+        return bbox.getMinX() >= validBbox.getMinX() - xLeeway
+                && bbox.getMaxX() <= validBbox.getMaxX() + xLeeway
+                && bbox.getMinY() >= validBbox.getMinY() - yLeeway
+                && bbox.getMaxY() <= validBbox.getMaxY() + yLeeway;
+    }
+
+    static String getEtag(String cacheKey, long lastModified) {
+        return "\"" + Integer.toHexString(cacheKey.hashCode()) + "-"
+                + Long.toHexString(lastModified) + "\"";
+    }
+
+    private static void writeImageBytes(HttpServletResponse httpServletResponse, byte[] data,
+            String mimeType) {
+        httpServletResponse.setContentType(mimeType);
+        httpServletResponse.setContentLength(data.length);
+        try {
+            ServletOutputStream outputStream = httpServletResponse.getOutputStream();
+            outputStream.write(data);
+            outputStream.close();
+        } catch (IOException e) {
+            /*
+             * Most likely the client has cancelled the request
+             */
+        }
+    }
+
+    /**
+     * Finds the IDs of the datasets which a set of layers belong to
+     * 
+     * @return The dataset IDs, or <code>null</code> if any of the layers do not
+     *         belong to a known dataset
+     */
+    private static Set<String> getDatasetIds(String[] layerNames, WmsCatalogue catalogue) {
+        if (layerNames == null) {
+            return null;
+        }
+        Set<String> datasetIds = new TreeSet<>();
+        for (String layerName : layerNames) {
+            String datasetId;
+            try {
+                datasetId = catalogue.getLayerNameMapper().getDatasetIdFromLayerName(layerName);
+            } catch (EdalException e) {
+                return null;
+            }
+            if (datasetId == null || catalogue.getDatasetFromId(datasetId) == null) {
+                return null;
+            }
+            datasetIds.add(datasetId);
+        }
+        return datasetIds;
+    }
+
+    /**
+     * @return Whether the given format is the CoverageJSON CBOR media type.
+     *         As with the JSON type, the "+" may have been decoded to a space
+     *         if it was not escaped in the request URL.
+     */
+    static boolean isCovCborFormat(String format) {
+        return CoverageJsonConverterImpl.COVCBOR_MEDIA_TYPE.equalsIgnoreCase(format)
+                || "application/prs.coverage cbor".equalsIgnoreCase(format);
+    }
+
+    /**
+     * Checks the validators of a conditional GET request. If-None-Match takes
+     * precedence over If-Modified-Since, as per RFC 7232.
+     * 
+     * @return <code>true</code> if the client already has the current version
+     *         of the resource
+     */
+    static boolean isNotModified(HttpServletRequest httpServletRequest, String etag,
+            long lastModified) {
+        if (httpServletRequest == null) {
+            return false;
+        }
+        String ifNoneMatch = httpServletRequest.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            for (String candidate : ifNoneMatch.split(",")) {
+                candidate = candidate.trim();
+                if (candidate.startsWith("W/")) {
+                    candidate = candidate.substring(2);
+                }
+                if (candidate.equals(etag) || candidate.equals("*")) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        long ifModifiedSince;
+        try {
+            ifModifiedSince = httpServletRequest.getDateHeader("If-Modified-Since");
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        /*
+         * HTTP dates only have a resolution of 1s
+         */
+        return ifModifiedSince >= 0 && lastModified / 1000 <= ifModifiedSince / 1000;
     }
 
     protected void getCapabilities(RequestParams params, HttpServletResponse httpServletResponse,
             String baseUrl, WmsCatalogue catalogue) throws EdalException {
+        getCapabilities(params, null, httpServletResponse, baseUrl, catalogue);
+    }
+
+    /**
+     * Handles a GetCapabilities request
+     * 
+     * @param params
+     *            The parameters of the request
+     * @param httpServletRequest
+     *            The {@link HttpServletRequest} object from the GET request.
+     *            This is used to check whether the client accepts compressed
+     *            responses, and may be <code>null</code>
+     * @param httpServletResponse
+     *            The {@link HttpServletResponse} object from the GET request
+     * @param baseUrl
+     *            The URL of this servlet, used for links within the document
+     * @param catalogue
+     *            The {@link WmsCatalogue} which should be used to serve
+     *            datasets.
+     */
+    protected void getCapabilities(RequestParams params, HttpServletRequest httpServletRequest,
+            HttpServletResponse httpServletResponse, String baseUrl, WmsCatalogue catalogue)
+            throws EdalException {
         /*
          * We only advertise text/xml as a GetCapabilities format. The spec says
          * we can return text/xml for unknown formats, so we don't even need to
@@ -658,11 +1323,8 @@ public class WmsServlet extends HttpServlet {
         }
 
         String wmsVersion = params.getString("version", "1.3.0");
-        Template template;
-        if ("1.1.1".equals(wmsVersion)) {
-            template = velocityEngine.getTemplate("templates/capabilities-1.1.1.vm");
-        } else {
-            template = velocityEngine.getTemplate("templates/capabilities-1.3.0.vm");
+        if (!"1.1.1".equals(wmsVersion)) {
+            wmsVersion = "1.3.0";
         }
 
         /*
@@ -686,6 +1348,7 @@ public class WmsServlet extends HttpServlet {
                         + "that includes all datasets on this server. "
                         + "You must specify a dataset identifier with &amp;DATASET=");
             }
+            datasetId = "";
         } else {
             Dataset ds = catalogue.getDatasetFromId(datasetId);
             if (ds == null) {
@@ -694,14 +1357,114 @@ public class WmsServlet extends HttpServlet {
             datasets = new ArrayList<Dataset>();
             datasets.add(ds);
         }
+        boolean verbose = params.getBoolean("verbose", false);
+
+        /*
+         * The document as a whole depends on the catalogue update time (it
+         * contains the update sequence), so it is reassembled whenever that
+         * changes. The (much more expensive) dataset layers are only
+         * regenerated when their own dataset changes.
+         */
+        String documentKey = wmsVersion + "|" + datasetId + "|" + verbose + "|" + baseUrl;
+        DateTime lastUpdateTime = catalogue.getLastUpdateTime();
+        CachedDocument document = null;
+        if (capabilitiesCachingEnabled) {
+            document = capabilitiesCache.getDocument(documentKey, catalogue, lastUpdateTime);
+        }
+        if (document == null) {
+            String documentString = generateCapabilities(wmsVersion, datasets, verbose, baseUrl,
+                    catalogue);
+            if (documentString == null) {
+                return;
+            }
+            document = new CachedDocument(documentString);
+            if (capabilitiesCachingEnabled) {
+                capabilitiesCache.putDocument(documentKey, catalogue, lastUpdateTime, document);
+            }
+        }
+
+        httpServletResponse.setContentType("text/xml");
+        httpServletResponse.setCharacterEncoding("UTF-8");
+        byte[] bytes;
+        String acceptEncoding = httpServletRequest == null ? null : httpServletRequest
+                .getHeader("Accept-Encoding");
+        if (acceptEncoding != null && acceptEncoding.toLowerCase().contains("gzip")) {
+            httpServletResponse.setHeader("Content-Encoding", "gzip");
+            bytes = document.getGzippedBytes();
+        } else {
+            bytes = document.getBytes();
+        }
+        httpServletResponse.setHeader("Vary", "Accept-Encoding");
+        httpServletResponse.setContentLength(bytes.length);
+        try {
+            ServletOutputStream outputStream = httpServletResponse.getOutputStream();
+            outputStream.write(bytes);
+            outputStream.close();
+        } catch (IOException e) {
+            log.error("Problem writing output to stream", e);
+        }
+    }
+
+    /**
+     * Generates a capabilities document, using cached layers for each dataset
+     * where possible
+     * 
+     * @return The capabilities document, or <code>null</code> if there was a
+     *         problem with the templates
+     */
+    private String generateCapabilities(String wmsVersion, Collection<Dataset> datasets,
+            boolean verbose, String baseUrl, WmsCatalogue catalogue) {
+        VelocityContext context = createCapabilitiesContext(baseUrl, verbose, catalogue);
+        context.put("datasetLayers", DATASET_LAYERS_MARKER);
+        String mainDocument = mergeTemplate("templates/capabilities-" + wmsVersion + ".vm",
+                context);
+        if (mainDocument == null) {
+            return null;
+        }
+        int markerPos = mainDocument.indexOf(DATASET_LAYERS_MARKER);
+
+        StringBuilder document = new StringBuilder(mainDocument.length());
+        document.append(mainDocument, 0, markerPos);
+        if (datasets != null) {
+            for (Dataset dataset : datasets) {
+                String fragmentKey = wmsVersion + "|" + dataset.getId() + "|" + verbose + "|"
+                        + baseUrl;
+                DateTime datasetUpdateTime = catalogue.getLastUpdateTime(dataset.getId());
+                String fragment = null;
+                if (capabilitiesCachingEnabled) {
+                    fragment = capabilitiesCache.getFragment(fragmentKey, catalogue,
+                            datasetUpdateTime);
+                }
+                if (fragment == null) {
+                    VelocityContext datasetContext = createCapabilitiesContext(baseUrl, verbose,
+                            catalogue);
+                    datasetContext.put("dataset", dataset);
+                    fragment = mergeTemplate("templates/capabilities-dataset-" + wmsVersion
+                            + ".vm", datasetContext);
+                    if (fragment == null) {
+                        return null;
+                    }
+                    if (capabilitiesCachingEnabled) {
+                        capabilitiesCache.putFragment(fragmentKey, catalogue, datasetUpdateTime,
+                                fragment);
+                    }
+                }
+                document.append(fragment);
+            }
+        }
+        document.append(mainDocument, markerPos + DATASET_LAYERS_MARKER.length(),
+                mainDocument.length());
+        return document.toString();
+    }
 
+    private VelocityContext createCapabilitiesContext(String baseUrl, boolean verbose,
+            WmsCatalogue catalogue) {
         VelocityContext context = new VelocityContext();
         EventCartridge ec = new EventCartridge();
         ec.addEventHandler(new EscapeXmlReference());
         ec.attachToContext(context);
         context.put("baseUrl", baseUrl);
         context.put("catalogue", catalogue);
-        context.put("datasets", datasets);
         context.put("supportedImageFormats", ImageFormat.getSupportedMimeTypes());
         context.put("supportedFeatureInfoFormats", new String[] { FEATURE_INFO_PLAIN_FORMAT,
                 FEATURE_INFO_XML_FORMAT, FEATURE_INFO_HTML_FORMAT });
@@ -709,28 +1472,34 @@ public class WmsServlet extends HttpServlet {
         context.put("GISUtils", GISUtils.class);
         context.put("TimeUtils", TimeUtils.class);
         context.put("WmsUtils", WmsUtils.class);
-        context.put("verbose", params.getBoolean("verbose", false));
+        context.put("verbose", verbose);
         context.put("allPalettes", ColourPalette.getPredefinedPalettes());
         context.put("availablePalettes", advertisedPalettes);
+        return context;
+    }
 
-        httpServletResponse.setContentType("text/xml");
+    /**
+     * Merges a capabilities template into a {@link String}
+     * 
+     * @return The merged template, or <code>null</code> if there was a
+     *         problem with the template
+     */
+    private String mergeTemplate(String templateName, VelocityContext context) {
+        StringWriter writer = new StringWriter();
         try {
-            template.merge(context, httpServletResponse.getWriter());
+            Template template = velocityEngine.getTemplate(templateName);
+            template.merge(context, writer);
         } catch (ResourceNotFoundException e) {
             log.error("Cannot find capabilities template", e);
+            return null;
         } catch (ParseErrorException e) {
             log.error("Cannot parse capabilities template", e);
+            return null;
         } catch (MethodInvocationException e) {
             log.error("Capabilities template has incorrect method", e);
-        } catch (IOException e) {
-            log.error("Problem writing output to stream", e);
-        } finally {
-            try {
-                httpServletResponse.flushBuffer();
-            } catch (IOException e) {
-                log.error("Problem flushing output buffer", e);
-            }
+            return null;
         }
+        return writer.toString();
     }
 
     protected void getFeatureInfo(RequestParams params, HttpServletResponse httpServletResponse,
@@ -1693,60 +2462,73 @@ public class WmsServlet extends HttpServlet {
             layerName = catalogue.getLayerNameMapper().getLayerName(datasetId, variableId);
         }
 
-        /*
-         * Now read the required features
-         */
-        FeaturesAndMemberName featuresAndMember;
-        try {
-            featuresAndMember = catalogue.getFeaturesForLayer(layerName,
-                    getMapParams.getPlottingDomainParameters());
-        } catch (EdalException e) {
-            log.error("Bad layer name", e);
-            throw new MetadataException("Problem reading data", e);
-        }
-
         double min = Double.MAX_VALUE;
         double max = -Double.MAX_VALUE;
-        Collection<? extends DiscreteFeature<?, ?>> features = featuresAndMember.getFeatures();
-        for (DiscreteFeature<?, ?> f : features) {
-            if (f instanceof MapFeature) {
-                /*
-                 * We want to look at all values of the grid feature.
-                 */
-                Array<Number> values = f.getValues(featuresAndMember.getMember());
-                if (values == null) {
-                    continue;
-                }
-                Iterator<Number> iterator = values.iterator();
-                while (iterator.hasNext()) {
-                    Number value = iterator.next();
-                    if (value != null) {
-                        max = Math.max(max, value.doubleValue());
-                        min = Math.min(min, value.doubleValue());
+        Extent<Float> precomputedRange = getPrecomputedValueRange(layerName,
+                getMapParams.getPlottingDomainParameters(), catalogue);
+        if (precomputedRange != null) {
+            /*
+             * The range has been found from the dataset's statistics index
+             */
+            if (!precomputedRange.isEmpty()) {
+                min = precomputedRange.getLow();
+                max = precomputedRange.getHigh();
+            }
+        } else {
+            /*
+             * Now read the required features
+             */
+            FeaturesAndMemberName featuresAndMember;
+            try {
+                featuresAndMember = catalogue.getFeaturesForLayer(layerName,
+                        getMapParams.getPlottingDomainParameters());
+            } catch (EdalException e) {
+                log.error("Bad layer name", e);
+                throw new MetadataException("Problem reading data", e);
+            }
+
+            Collection<? extends DiscreteFeature<?, ?>> features = featuresAndMember.getFeatures();
+            for (DiscreteFeature<?, ?> f : features) {
+                if (f instanceof MapFeature) {
+                    /*
+                     * We want to look at all values of the grid feature.
+                     */
+                    Array<Number> values = f.getValues(featuresAndMember.getMember());
+                    if (values == null) {
+                        continue;
                     }
-                }
-            } else if (f instanceof PointFeature) {
-                PointFeature pointFeature = (PointFeature) f;
-                Number value = pointFeature.getValues(featuresAndMember.getMember()).get(0);
-                if (value != null) {
-                    max = Math.max(max, value.doubleValue());
-                    min = Math.min(min, value.doubleValue());
-                }
-            } else if (f instanceof TrajectoryFeature) {
-                TrajectoryFeature trajectoryFeature = (TrajectoryFeature) f;
-                Array1D<Number> values = trajectoryFeature.getValues(featuresAndMember.getMember());
-                Iterator<Number> it = values.iterator();
-                while (it.hasNext()) {
-                    Number value = it.next();
+                    Iterator<Number> iterator = values.iterator();
+                    while (iterator.hasNext()) {
+                        Number value = iterator.next();
+                        if (value != null) {
+                            max = Math.max(max, value.doubleValue());
+                            min = Math.min(min, value.doubleValue());
+                        }
+                    }
+                } else if (f instanceof PointFeature) {
+                    PointFeature pointFeature = (PointFeature) f;
+                    Number value = pointFeature.getValues(featuresAndMember.getMember()).get(0);
                     if (value != null) {
                         max = Math.max(max, value.doubleValue());
                         min = Math.min(min, value.doubleValue());
                     }
+                } else if (f instanceof TrajectoryFeature) {
+                    TrajectoryFeature trajectoryFeature = (TrajectoryFeature) f;
+                    Array1D<Number> values = trajectoryFeature
+                            .getValues(featuresAndMember.getMember());
+                    Iterator<Number> it = values.iterator();
+                    while (it.hasNext()) {
+                        Number value = it.next();
+                        if (value != null) {
+                            max = Math.max(max, value.doubleValue());
+                            min = Math.min(min, value.doubleValue());
+                        }
+                    }
+                } else {
+                    /*
+                     * Would handle other feature types here.
+                     */
                 }
-            } else {
-                /*
-                 * Would handle other feature types here.
-                 */
             }
         }
 
@@ -1781,6 +2563,35 @@ public class WmsServlet extends HttpServlet {
         return minmax.toString();
     }
 
+    /**
+     * Finds the value range of a layer from the precomputed statistics of its
+     * dataset, if available
+     * 
+     * @return The value range (which may be empty if there is no data in the
+     *         requested area), or <code>null</code> if it cannot be determined
+     *         from precomputed statistics
+     */
+    private Extent<Float> getPrecomputedValueRange(String layerName,
+            PlottingDomainParams plottingParameters, WmsCatalogue catalogue) {
+        try {
+            Dataset dataset = WmsUtils.getDatasetFromLayerName(layerName, catalogue);
+            if (!(dataset instanceof GriddedDataset)
+                    || ((GriddedDataset) dataset).getStatistics() == null) {
+                return null;
+            }
+            String varId = WmsUtils.getVariableMetadataFromLayerName(layerName, catalogue).getId();
+            return ((GriddedDataset) dataset).getStatistics().getValueRange(varId,
+                    plottingParameters.getTargetT(), plottingParameters.getTargetZ(),
+                    plottingParameters.getBbox());
+        } catch (EdalException e) {
+            /*
+             * Fall back to reading the features
+             */
+            log.debug("Could not find value range from dataset statistics", e);
+            return null;
+        }
+    }
+
     protected String showAnimationTimesteps(RequestParams params, WmsCatalogue catalogue)
             throws MetadataException {
         String layerName = params.getString("layerName");
@@ -2022,7 +2833,8 @@ public class WmsServlet extends HttpServlet {
                 && !"text/csv".equalsIgnoreCase(outputFormat)
                 && !"text/json".equalsIgnoreCase(outputFormat)
                 && !"application/prs.coverage+json".equalsIgnoreCase(outputFormat)
-                && !"application/prs.coverage json".equalsIgnoreCase(outputFormat)) {
+                && !"application/prs.coverage json".equalsIgnoreCase(outputFormat)
+                && !isCovCborFormat(outputFormat)) {
             throw new InvalidFormatException(
                     outputFormat + " is not a valid output format for a timeseries plot");
         }
@@ -2045,7 +2857,8 @@ public class WmsServlet extends HttpServlet {
             if (("text/csv".equalsIgnoreCase(outputFormat)
                     || "text/json".equalsIgnoreCase(outputFormat)
                     || "application/prs.coverage+json".equalsIgnoreCase(outputFormat)
-                    || "application/prs.coverage json".equalsIgnoreCase(outputFormat))
+                    || "application/prs.coverage json".equalsIgnoreCase(outputFormat)
+                    || isCovCborFormat(outputFormat))
                     && !catalogue.isDownloadable(layerName)) {
                 throw new LayerNotQueryableException(
                         "The layer: " + layerName + " can only be downloaded as an image");
@@ -2099,12 +2912,14 @@ public class WmsServlet extends HttpServlet {
         httpServletResponse.setContentType(outputFormat);
         if ("text/json".equalsIgnoreCase(outputFormat)
                 || "application/prs.coverage+json".equalsIgnoreCase(outputFormat)
-                || "application/prs.coverage json".equalsIgnoreCase(outputFormat)) {
+                || "application/prs.coverage json".equalsIgnoreCase(outputFormat)
+                || isCovCborFormat(outputFormat)) {
             if (timeseriesFeatures.size() > 1) {
                 throw new IncorrectDomainException(
                         "JSON export is only supported for gridded data");
             }
-            CoverageJsonConverter converter = new CoverageJsonConverterImpl();
+            CoverageJsonConverter converter = new CoverageJsonConverterImpl(
+                    isCovCborFormat(outputFormat));
 
             converter.checkFeaturesSupported(timeseriesFeatures);
             try {
@@ -2310,22 +3125,17 @@ public class WmsServlet extends HttpServlet {
             String sectionElevationStr = params.getString("section-elevation");
             Extent<Double> zExtent = extractSectionElevation(sectionElevationStr);
 
-            List<ProfileFeature> profileFeatures = new ArrayList<>();
             TemporalDomain temporalDomain = gridDataset.getVariableMetadata(varId)
                     .getTemporalDomain();
             DateTime time = null;
             if (timeStr != null) {
                 time = TimeUtils.iso8601ToDateTime(timeStr, temporalDomain.getChronology());
             }
-            for (HorizontalPosition pos : verticalSectionHorizontalPositions) {
-                PlottingDomainParams plottingParams = new PlottingDomainParams(1, 1, null, null,
-                        null, pos, null, time);
-                List<? extends ProfileFeature> features = gridDataset.extractProfileFeatures(
-                        CollectionUtils.setOf(varId), plottingParams.getBbox(),
-                        plottingParams.getZExtent(), plottingParams.getTExtent(),
-                        plottingParams.getTargetHorizontalPosition(), plottingParams.getTargetT());
-                profileFeatures.addAll(features);
-            }
+            /*
+             * Extract all of the profiles along the transect in one go
+             */
+            List<ProfileFeature> profileFeatures = gridDataset.extractProfileSection(varId,
+                    verticalSectionHorizontalPositions, time);
 
             Extent<Float> scaleRange;
             if (zExtent != null) {
@@ -2338,7 +3148,16 @@ public class WmsServlet extends HttpServlet {
                 } else {
                     scaleRange = scaleRanges.get(0);
                     if (scaleRange == null || scaleRange.isEmpty()) {
-                        scaleRange = GraphicsUtils.estimateValueRange(gridDataset, varId);
+                        List<Extent<Float>> percentileRanges = GetMapStyleParams
+                                .getColorScalePercentiles(params);
+                        Extent<Float> percentiles = percentileRanges.isEmpty() ? null
+                                : percentileRanges.get(0);
+                        if (percentiles == null) {
+                            scaleRange = GraphicsUtils.estimateValueRange(gridDataset, varId);
+                        } else {
+                            scaleRange = GraphicsUtils.estimateValueRange(gridDataset, varId,
+                                    percentiles.getLow(), percentiles.getHigh());
+                        }
                     }
                 }
             }
@@ -2434,7 +3253,8 @@ public class WmsServlet extends HttpServlet {
                 && !"text/csv".equalsIgnoreCase(outputFormat)
                 && !"text/json".equalsIgnoreCase(outputFormat)
                 && !"application/prs.coverage+json".equalsIgnoreCase(outputFormat)
-                && !"application/prs.coverage json".equalsIgnoreCase(outputFormat)) {
+                && !"application/prs.coverage json".equalsIgnoreCase(outputFormat)
+                && !isCovCborFormat(outputFormat)) {
             throw new InvalidFormatException(
                     outputFormat + " is not a valid output format for a profile plot");
         }
@@ -2460,7 +3280,8 @@ public class WmsServlet extends HttpServlet {
             if (("text/csv".equalsIgnoreCase(outputFormat)
                     || "text/json".equalsIgnoreCase(outputFormat)
                     || "application/prs.coverage+json".equalsIgnoreCase(outputFormat)
-                    || "application/prs.coverage json".equalsIgnoreCase(outputFormat))
+                    || "application/prs.coverage json".equalsIgnoreCase(outputFormat)
+                    || isCovCborFormat(outputFormat))
                     && !catalogue.isDownloadable(layerName)) {
                 throw new LayerNotQueryableException(
                         "The layer: " + layerName + " can only be downloaded as an image");
@@ -2515,12 +3336,14 @@ public class WmsServlet extends HttpServlet {
 
         if ("text/json".equalsIgnoreCase(outputFormat)
                 || "application/prs.coverage+json".equalsIgnoreCase(outputFormat)
-                || "application/prs.coverage json".equalsIgnoreCase(outputFormat)) {
+                || "application/prs.coverage json".equalsIgnoreCase(outputFormat)
+                || isCovCborFormat(outputFormat)) {
             if (profileFeatures.size() > 1) {
                 throw new IncorrectDomainException(
                         "JSON export is only supported for gridded data");
             }
-            CoverageJsonConverter converter = new CoverageJsonConverterImpl();
+            CoverageJsonConverter converter = new CoverageJsonConverterImpl(
+                    isCovCborFormat(outputFormat));
 
             converter.checkFeaturesSupported(profileFeatures);
             try {
@@ -0,0 +1,260 @@
+/*******************************************************************************
+ * Copyright (c) 2017 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.wms.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.zip.GZIPOutputStream;
+
+import org.joda.time.DateTime;
+
+import uk.ac.rdg.resc.edal.util.Metrics;
+
+/**
+ * Stores generated GetCapabilities documents, along with the fragments of them
+ * which describe individual datasets.
+ * 
+ * Every entry is stored with the catalogue it was generated from and the time
+ * at which the relevant data was last updated. An entry is only returned if
+ * both of these still match, so a dataset's fragment is regenerated only when
+ * that dataset has been reloaded, and whole documents are reassembled (cheaply,
+ * from cached fragments) only when the catalogue has changed.
+ * 
+ * Since keys include request parameters such as the base URL, the total size
+ * of the cache is bounded, and the least recently used entries are discarded
+ * first.
+ */
+public class CapabilitiesCache {
+    /** The default maximum total size of the cached documents and fragments */
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+    private final long maxBytes;
+    /*
+     * Both fragments and documents are held in a single access-ordered map,
+     * so that they share the size limit
+     */
+    private final LinkedHashMap<String, Entry<?>> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes = 0L;
+
+    /**
+     * Creates a new {@link CapabilitiesCache} holding up to
+     * {@link CapabilitiesCache#DEFAULT_MAX_BYTES} of documents and fragments
+     */
+    public CapabilitiesCache() {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * Creates a new {@link CapabilitiesCache}
+     * 
+     * @param maxBytes
+     *            The maximum total size of the documents and fragments to hold
+     */
+    public CapabilitiesCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Retrieves the capabilities fragment for a single dataset
+     * 
+     * @param key
+     *            A key identifying the dataset and any other parameters which
+     *            affect the fragment
+     * @param catalogue
+     *            The catalogue the fragment is required for
+     * @param lastUpdateTime
+     *            The time at which the dataset was last updated
+     * @return The fragment, or <code>null</code> if no valid fragment is
+     *         cached
+     */
+    public String getFragment(String key, Object catalogue, DateTime lastUpdateTime) {
+        String fragment = (String) getValid("F|" + key, catalogue, lastUpdateTime);
+        Metrics.cacheLookup("capabilities-fragment", fragment != null);
+        return fragment;
+    }
+
+    /**
+     * Stores the capabilities fragment for a single dataset
+     * 
+     * @param key
+     *            A key identifying the dataset and any other parameters which
+     *            affect the fragment
+     * @param catalogue
+     *            The catalogue the fragment was generated from
+     * @param lastUpdateTime
+     *            The time at which the dataset was last updated
+     * @param fragment
+     *            The fragment to store
+     */
+    public void putFragment(String key, Object catalogue, DateTime lastUpdateTime,
+            String fragment) {
+        /* Strings are stored as UTF-16 */
+        put("F|" + key, new Entry<>(catalogue, lastUpdateTime, fragment, 2L * fragment.length()));
+    }
+
+    /**
+     * Retrieves a complete capabilities document
+     * 
+     * @param key
+     *            A key identifying the parameters which affect the document
+     * @param catalogue
+     *            The catalogue the document is required for
+     * @param lastUpdateTime
+     *            The time at which the catalogue was last updated
+     * @return The document, or <code>null</code> if no valid document is
+     *         cached
+     */
+    public CachedDocument getDocument(String key, Object catalogue, DateTime lastUpdateTime) {
+        CachedDocument document = (CachedDocument) getValid("D|" + key, catalogue,
+                lastUpdateTime);
+        Metrics.cacheLookup("capabilities-document", document != null);
+        return document;
+    }
+
+    /**
+     * Stores a complete capabilities document
+     * 
+     * @param key
+     *            A key identifying the parameters which affect the document
+     * @param catalogue
+     *            The catalogue the document was generated from
+     * @param lastUpdateTime
+     *            The time at which the catalogue was last updated
+     * @param document
+     *            The document to store
+     */
+    public void putDocument(String key, Object catalogue, DateTime lastUpdateTime,
+            CachedDocument document) {
+        /*
+         * The gzipped copy is generated later, but is usually much smaller
+         * than the document itself
+         */
+        put("D|" + key, new Entry<>(catalogue, lastUpdateTime, document,
+                document.getBytes().length));
+    }
+
+    /**
+     * Removes everything from the cache. This should be called if anything
+     * which appears in capabilities documents changes without the catalogue
+     * reporting an update.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        totalBytes = 0L;
+    }
+
+    /**
+     * @return The total size of the documents and fragments currently held
+     */
+    public synchronized long getSizeBytes() {
+        return totalBytes;
+    }
+
+    private synchronized Object getValid(String key, Object catalogue, DateTime lastUpdateTime) {
+        Entry<?> entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.catalogue != catalogue || lastUpdateTime == null
+                || !lastUpdateTime.isEqual(entry.lastUpdateTime)) {
+            entries.remove(key);
+            totalBytes -= entry.sizeBytes;
+            return null;
+        }
+        return entry.value;
+    }
+
+    private synchronized void put(String key, Entry<?> entry) {
+        Entry<?> previous = entries.remove(key);
+        if (previous != null) {
+            totalBytes -= previous.sizeBytes;
+        }
+        if (entry.sizeBytes > maxBytes) {
+            return;
+        }
+        entries.put(key, entry);
+        totalBytes += entry.sizeBytes;
+        Iterator<Entry<?>> iterator = entries.values().iterator();
+        while (totalBytes > maxBytes && iterator.hasNext()) {
+            totalBytes -= iterator.next().sizeBytes;
+            iterator.remove();
+        }
+    }
+
+    private static class Entry<T> {
+        private final Object catalogue;
+        private final DateTime lastUpdateTime;
+        private final T value;
+        private final long sizeBytes;
+
+        public Entry(Object catalogue, DateTime lastUpdateTime, T value, long sizeBytes) {
+            this.catalogue = catalogue;
+            this.lastUpdateTime = lastUpdateTime;
+            this.value = value;
+            this.sizeBytes = sizeBytes;
+        }
+    }
+
+    /**
+     * A capabilities document, encoded as UTF-8. A gzip-compressed copy is
+     * generated the first time it is needed, and kept, so that the document
+     * can be sent directly to clients either way.
+     */
+    public static class CachedDocument {
+        private final byte[] bytes;
+        private byte[] gzippedBytes = null;
+
+        public CachedDocument(String document) {
+            bytes = document.getBytes(StandardCharsets.UTF_8);
+        }
+
+        public byte[] getBytes() {
+            return bytes;
+        }
+
+        public synchronized byte[] getGzippedBytes() {
+            if (gzippedBytes == null) {
+                ByteArrayOutputStream gzipped = new ByteArrayOutputStream(bytes.length / 8);
+                try (GZIPOutputStream gzipStream = new GZIPOutputStream(gzipped)) {
+                    gzipStream.write(bytes);
+                } catch (IOException e) {
+                    /*
+                     * Not possible when writing to memory
+                     */
+                    throw new IllegalStateException(e);
+                }
+                gzippedBytes = gzipped.toByteArray();
+            }
+            return gzippedBytes;
+        }
+    }
+}
@@ -0,0 +1,500 @@
+/*******************************************************************************
+ * Copyright (c) 2017 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.wms.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.rdg.resc.edal.util.Metrics;
+import uk.ac.rdg.resc.edal.wms.RequestParams;
+
+/**
+ * A cache of encoded GetMap images, so that identical requests (which are very
+ * common with tiled clients) only need to be rendered once.
+ * 
+ * Images are keyed on a normalised form of the request parameters (see
+ * {@link RenderedImageCache#getKey(RequestParams)}) and stored along with a
+ * validator (ETag) which is derived from the last update times of the datasets
+ * which the image was drawn from. When an entry is retrieved, the caller
+ * supplies the current validator, so that entries drawn from datasets which
+ * have since been reloaded are discarded automatically.
+ * 
+ * Entries are held in a size-bounded in-memory tier and, optionally, a
+ * size-bounded disk tier. Any images left in the disk tier by a previous
+ * instance are removed when the cache is created, since they may have been
+ * rendered with a different configuration.
+ */
+public class RenderedImageCache {
+    private static final Logger log = LoggerFactory.getLogger(RenderedImageCache.class);
+
+    private static final String FILE_SUFFIX = ".img";
+    /* The name of this cache in the metrics */
+    private static final String METRICS_NAME = "rendered-image";
+    /*
+     * Parameters which do not affect the rendered image. "_" is commonly added
+     * by clients to defeat browser caching.
+     */
+    private static final Set<String> IGNORED_PARAMETERS = new HashSet<>(Arrays.asList("_",
+            "service"));
+
+    private final long maxMemoryBytes;
+    private final File diskCacheDir;
+    private final long maxDiskBytes;
+
+    private final LinkedHashMap<String, CachedImage> memoryCache = new LinkedHashMap<>(16, 0.75f,
+            true);
+    private long memoryBytes = 0L;
+    private final AtomicLong diskBytes = new AtomicLong(0L);
+
+    /**
+     * Creates a new {@link RenderedImageCache} which only stores images in
+     * memory
+     * 
+     * @param maxMemoryBytes
+     *            The maximum total size of images to hold in memory
+     */
+    public RenderedImageCache(long maxMemoryBytes) {
+        this(maxMemoryBytes, null, 0L);
+    }
+
+    /**
+     * Creates a new {@link RenderedImageCache}
+     * 
+     * @param maxMemoryBytes
+     *            The maximum total size of images to hold in memory
+     * @param diskCacheDir
+     *            The directory in which to store images on disk, or
+     *            <code>null</code> to disable the disk tier. This will be
+     *            created if it does not exist, and any images already in it
+     *            will be removed
+     * @param maxDiskBytes
+     *            The maximum total size of images to store on disk
+     */
+    public RenderedImageCache(long maxMemoryBytes, File diskCacheDir, long maxDiskBytes) {
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.maxDiskBytes = maxDiskBytes;
+        if (diskCacheDir != null && !diskCacheDir.isDirectory() && !diskCacheDir.mkdirs()) {
+            log.error("Cannot create rendered image cache directory " + diskCacheDir
+                    + ".  Images will only be cached in memory.");
+            diskCacheDir = null;
+        }
+        this.diskCacheDir = diskCacheDir;
+        if (diskCacheDir != null) {
+            for (File file : listCacheFiles()) {
+                if (!file.delete()) {
+                    diskBytes.addAndGet(file.length());
+                }
+            }
+        }
+    }
+
+    /**
+     * Generates a normalised cache key for a GetMap request. Parameter names
+     * are already case-insensitive. Here they are sorted, parameters which do
+     * not affect the output are removed, and values whose case or number
+     * formatting is not significant are normalised.
+     * 
+     * @param params
+     *            The parameters of the request
+     * @return A key which will be identical for all requests which produce the
+     *         same image
+     */
+    public static String getKey(RequestParams params) {
+        Map<String, String> sorted = new TreeMap<>();
+        for (String name : params.getParameterNames()) {
+            if (IGNORED_PARAMETERS.contains(name)) {
+                continue;
+            }
+            String value = params.getString(name);
+            if ("bbox".equals(name) && value != null) {
+                value = normaliseNumbers(value);
+            } else if ("crs".equals(name) || "srs".equals(name)) {
+                value = value.toUpperCase();
+            } else if ("format".equals(name) || "transparent".equals(name)) {
+                value = value.toLowerCase();
+            }
+            sorted.put(name, value);
+        }
+        StringBuilder key = new StringBuilder();
+        for (Entry<String, String> entry : sorted.entrySet()) {
+            key.append(entry.getKey()).append('=').append(entry.getValue()).append('&');
+        }
+        return key.toString();
+    }
+
+    /*
+     * Bounding box values are rounded to this many significant figures, so
+     * that values which differ only by floating point error (e.g. when tile
+     * boundaries are calculated rather than parsed) map to the same key
+     */
+    private static final MathContext BBOX_PRECISION = new MathContext(10);
+
+    private static String normaliseNumbers(String commaSeparated) {
+        String[] parts = commaSeparated.split(",");
+        StringBuilder ret = new StringBuilder();
+        for (int i = 0; i < parts.length; i++) {
+            if (i > 0) {
+                ret.append(',');
+            }
+            try {
+                ret.append(new BigDecimal(parts[i].trim()).round(BBOX_PRECISION)
+                        .stripTrailingZeros().toPlainString());
+            } catch (NumberFormatException e) {
+                /*
+                 * This will be rejected when the request is parsed anyway
+                 */
+                ret.append(parts[i]);
+            }
+        }
+        return ret.toString();
+    }
+
+    /**
+     * Retrieves an image from the cache
+     * 
+     * @param key
+     *            The key, as generated by
+     *            {@link RenderedImageCache#getKey(RequestParams)}
+     * @param etag
+     *            The current validator for the request. If the cached image
+     *            has a different validator it is out of date, and will be
+     *            removed from the cache
+     * @return The cached image, or <code>null</code> if there is no valid
+     *         image cached for this key
+     */
+    public CachedImage get(String key, String etag) {
+        CachedImage image;
+        synchronized (this) {
+            image = memoryCache.get(key);
+            if (image != null) {
+                if (image.getEtag().equals(etag)) {
+                    Metrics.cacheLookup(METRICS_NAME, true);
+                    return image;
+                }
+                removeFromMemory(key);
+            }
+        }
+        if (diskCacheDir != null) {
+            File file = getCacheFile(key);
+            image = readFromDisk(file, key);
+            if (image != null) {
+                if (image.getEtag().equals(etag)) {
+                    /*
+                     * Promote to the memory tier. It is already on disk.
+                     */
+                    putInMemory(key, image);
+                    Metrics.cacheLookup(METRICS_NAME, true);
+                    return image;
+                }
+                deleteFromDisk(file);
+            }
+        }
+        Metrics.cacheLookup(METRICS_NAME, false);
+        return null;
+    }
+
+    /**
+     * Adds an image to the cache
+     * 
+     * @param key
+     *            The key, as generated by
+     *            {@link RenderedImageCache#getKey(RequestParams)}
+     * @param image
+     *            The image to cache
+     */
+    public void put(String key, CachedImage image) {
+        putInMemory(key, image);
+        if (diskCacheDir != null) {
+            writeToDisk(key, image);
+        }
+    }
+
+    /**
+     * Removes all images generated from a particular dataset. It is not
+     * strictly necessary to call this when a dataset is reloaded, since out of
+     * date images will not be returned from
+     * {@link RenderedImageCache#get(String, String)}, but doing so frees the
+     * memory immediately.
+     * 
+     * @param datasetId
+     *            The ID of the dataset
+     */
+    public synchronized void invalidateDataset(String datasetId) {
+        Iterator<Entry<String, CachedImage>> iterator = memoryCache.entrySet().iterator();
+        while (iterator.hasNext()) {
+            CachedImage image = iterator.next().getValue();
+            if (image.getDatasetIds().contains(datasetId)) {
+                memoryBytes -= image.getData().length;
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Removes all images from the cache, including those stored on disk
+     */
+    public void clear() {
+        synchronized (this) {
+            memoryCache.clear();
+            memoryBytes = 0L;
+        }
+        if (diskCacheDir != null) {
+            for (File file : listCacheFiles()) {
+                deleteFromDisk(file);
+            }
+        }
+    }
+
+    private synchronized void putInMemory(String key, CachedImage image) {
+        if (image.getData().length > maxMemoryBytes) {
+            return;
+        }
+        removeFromMemory(key);
+        memoryCache.put(key, image);
+        memoryBytes += image.getData().length;
+        /*
+         * The map is in access order, so the first entries are the least
+         * recently used
+         */
+        Iterator<CachedImage> iterator = memoryCache.values().iterator();
+        while (memoryBytes > maxMemoryBytes && iterator.hasNext()) {
+            memoryBytes -= iterator.next().getData().length;
+            iterator.remove();
+        }
+    }
+
+    private void removeFromMemory(String key) {
+        CachedImage removed = memoryCache.remove(key);
+        if (removed != null) {
+            memoryBytes -= removed.getData().length;
+        }
+    }
+
+    private File getCacheFile(String key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder();
+            for (byte b : hash) {
+                name.append(String.format("%02x", b));
+            }
+            return new File(diskCacheDir, name.append(FILE_SUFFIX).toString());
+        } catch (NoSuchAlgorithmException e) {
+            /*
+             * SHA-1 is always available
+             */
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private List<File> listCacheFiles() {
+        File[] files = diskCacheDir.listFiles();
+        List<File> ret = new ArrayList<>();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(FILE_SUFFIX)) {
+                    ret.add(file);
+                }
+            }
+        }
+        return ret;
+    }
+
+    private static CachedImage readFromDisk(File file, String key) {
+        if (!file.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)))) {
+            if (!key.equals(in.readUTF())) {
+                /*
+                 * Hash collision. Treat as a miss.
+                 */
+                return null;
+            }
+            String mimeType = in.readUTF();
+            String etag = in.readUTF();
+            long lastModified = in.readLong();
+            int nDatasets = in.readInt();
+            Set<String> datasetIds = new HashSet<>();
+            for (int i = 0; i < nDatasets; i++) {
+                datasetIds.add(in.readUTF());
+            }
+            byte[] data = new byte[in.readInt()];
+            in.readFully(data);
+            return new CachedImage(data, mimeType, etag, lastModified, datasetIds);
+        } catch (IOException e) {
+            log.warn("Problem reading cached image from " + file, e);
+            return null;
+        }
+    }
+
+    private void writeToDisk(String key, CachedImage image) {
+        File file = getCacheFile(key);
+        File tmpFile = new File(diskCacheDir, file.getName() + ".tmp"
+                + Thread.currentThread().getId());
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmpFile)))) {
+            out.writeUTF(key);
+            out.writeUTF(image.getMimeType());
+            out.writeUTF(image.getEtag());
+            out.writeLong(image.getLastModified());
+            out.writeInt(image.getDatasetIds().size());
+            for (String datasetId : image.getDatasetIds()) {
+                out.writeUTF(datasetId);
+            }
+            out.writeInt(image.getData().length);
+            out.write(image.getData());
+        } catch (IOException e) {
+            log.warn("Problem writing cached image to " + tmpFile, e);
+            tmpFile.delete();
+            return;
+        }
+        deleteFromDisk(file);
+        if (tmpFile.renameTo(file)) {
+            if (diskBytes.addAndGet(file.length()) > maxDiskBytes) {
+                pruneDisk();
+            }
+        } else {
+            tmpFile.delete();
+        }
+    }
+
+    private void deleteFromDisk(File file) {
+        long length = file.length();
+        if (file.delete()) {
+            diskBytes.addAndGet(-length);
+        }
+    }
+
+    /**
+     * Removes the oldest files from the disk tier until it is comfortably
+     * within its size limit, so that this does not need to happen on every
+     * write
+     */
+    private synchronized void pruneDisk() {
+        if (diskBytes.get() <= maxDiskBytes) {
+            return;
+        }
+        List<File> files = listCacheFiles();
+        Collections.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                return Long.compare(f1.lastModified(), f2.lastModified());
+            }
+        });
+        long target = maxDiskBytes - maxDiskBytes / 10;
+        for (File file : files) {
+            if (diskBytes.get() <= target) {
+                break;
+            }
+            deleteFromDisk(file);
+        }
+    }
+
+    /**
+     * An encoded image, along with the information needed to serve it
+     */
+    public static class CachedImage {
+        private final byte[] data;
+        private final String mimeType;
+        private final String etag;
+        private final long lastModified;
+        private final Set<String> datasetIds;
+
+        /**
+         * @param data
+         *            The encoded image
+         * @param mimeType
+         *            The MIME type of the encoded image
+         * @param etag
+         *            The validator for the image
+         * @param lastModified
+         *            The time (in milliseconds since the epoch) at which the
+         *            data used to generate the image was last modified
+         * @param datasetIds
+         *            The IDs of the datasets the image was generated from
+         */
+        public CachedImage(byte[] data, String mimeType, String etag, long lastModified,
+                Set<String> datasetIds) {
+            this.data = data;
+            this.mimeType = mimeType;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.datasetIds = datasetIds;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+
+        public String getMimeType() {
+            return mimeType;
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public Set<String> getDatasetIds() {
+            return datasetIds;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*******************************************************************************
+ * Copyright (c) 2017 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.wms;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import uk.ac.rdg.resc.edal.domain.Extent;
+import uk.ac.rdg.resc.edal.exceptions.EdalException;
+import uk.ac.rdg.resc.edal.util.Extents;
+
+/**
+ * Test class for the parsing of COLORSCALERANGE in {@link GetMapStyleParams}
+ */
+public class GetMapStyleParamsTest {
+    private static final Extent<Float> DEFAULT_RANGE = Extents.newExtent(0f, 10f);
+
+    @Test
+    public void testColorScaleRanges() throws EdalException {
+        RequestParams params = params("-5,5;auto;default;auto:2,98");
+        List<Extent<Float>> ranges = GetMapStyleParams.getColorScaleRanges(params,
+                DEFAULT_RANGE);
+        assertEquals(4, ranges.size());
+        assertEquals(Extents.newExtent(-5f, 5f), ranges.get(0));
+        assertNull(ranges.get(1));
+        assertEquals(DEFAULT_RANGE, ranges.get(2));
+        /*
+         * Percentile ranges are auto-scaled
+         */
+        assertNull(ranges.get(3));
+
+        List<Extent<Float>> percentiles = GetMapStyleParams.getColorScalePercentiles(params);
+        assertEquals(4, percentiles.size());
+        assertNull(percentiles.get(0));
+        assertNull(percentiles.get(1));
+        assertNull(percentiles.get(2));
+        assertEquals(Extents.newExtent(2f, 98f), percentiles.get(3));
+    }
+
+    @Test
+    public void testNoColorScaleRange() throws EdalException {
+        RequestParams params = new RequestParams(new HashMap<String, String[]>());
+        assertTrue(GetMapStyleParams.getColorScalePercentiles(params).isEmpty());
+    }
+
+    @Test(expected = EdalException.class)
+    public void testPercentileOutOfRange() throws EdalException {
+        GetMapStyleParams.getColorScalePercentiles(params("auto:2,101"));
+    }
+
+    @Test(expected = EdalException.class)
+    public void testPercentilesReversed() throws EdalException {
+        GetMapStyleParams.getColorScalePercentiles(params("auto:98,2"));
+    }
+
+    @Test(expected = EdalException.class)
+    public void testMalformedPercentiles() throws EdalException {
+        GetMapStyleParams.getColorScalePercentiles(params("auto:2"));
+    }
+
+    private static RequestParams params(String colorScaleRange) {
+        Map<String, String[]> params = new HashMap<>();
+        params.put("COLORSCALERANGE", new String[] { colorScaleRange });
+        return new RequestParams(params);
+    }
+}
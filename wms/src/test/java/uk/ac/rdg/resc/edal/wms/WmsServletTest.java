@@ -0,0 +1,209 @@
+/*******************************************************************************
+ * Copyright (c) 2017 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.wms;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+
+import org.junit.Test;
+
+import uk.ac.rdg.resc.edal.wms.util.RenderedImageCache;
+
+/**
+ * Test class for the configuration of {@link WmsServlet} and its handling of
+ * conditional GetMap requests
+ */
+public class WmsServletTest {
+    @Test
+    public void testRenderedImageCacheDisabledByDefault() throws ServletException {
+        WmsServlet servlet = new WmsServlet();
+        servlet.init(config(new HashMap<String, String>()));
+        assertNull(servlet.getRenderedImageCache());
+    }
+
+    @Test
+    public void testRenderedImageCacheEnabled() throws ServletException {
+        Map<String, String> params = new HashMap<>();
+        params.put(WmsServlet.RENDERED_IMAGE_CACHE_ENABLED_PARAM, "true");
+        WmsServlet servlet = new WmsServlet();
+        servlet.init(config(params));
+        assertNotNull(servlet.getRenderedImageCache());
+    }
+
+    @Test
+    public void testRenderedImageCacheNotReplaced() throws ServletException {
+        WmsServlet servlet = new WmsServlet();
+        RenderedImageCache cache = new RenderedImageCache(1024);
+        servlet.setRenderedImageCache(cache);
+        servlet.init(config(new HashMap<String, String>()));
+        assertSame(cache, servlet.getRenderedImageCache());
+    }
+
+    @Test(expected = ServletException.class)
+    public void testInvalidInitParameter() throws ServletException {
+        Map<String, String> params = new HashMap<>();
+        params.put(WmsServlet.RENDERED_IMAGE_CACHE_ENABLED_PARAM, "true");
+        params.put(WmsServlet.RENDERED_IMAGE_CACHE_MEMORY_PARAM, "lots");
+        new WmsServlet().init(config(params));
+    }
+
+    @Test
+    public void testMetatileSize() throws ServletException {
+        WmsServlet servlet = new WmsServlet();
+        servlet.init(config(new HashMap<String, String>()));
+        assertEquals(1, servlet.getMetatileSize());
+
+        Map<String, String> params = new HashMap<>();
+        params.put(WmsServlet.METATILE_SIZE_PARAM, "4");
+        servlet = new WmsServlet();
+        servlet.init(config(params));
+        assertEquals(4, servlet.getMetatileSize());
+    }
+
+    @Test(expected = ServletException.class)
+    public void testInvalidMetatileSize() throws ServletException {
+        Map<String, String> params = new HashMap<>();
+        params.put(WmsServlet.METATILE_SIZE_PARAM, "0");
+        new WmsServlet().init(config(params));
+    }
+
+    @Test
+    public void testIsTileRequest() {
+        Map<String, String[]> params = new HashMap<>();
+        assertTrue(WmsServlet.isTileRequest(new RequestParams(params), 256, 256));
+        assertTrue(WmsServlet.isTileRequest(new RequestParams(params), 512, 512));
+        /*
+         * Large or non-square images are only tiles if they say so
+         */
+        assertFalse(WmsServlet.isTileRequest(new RequestParams(params), 1024, 1024));
+        assertFalse(WmsServlet.isTileRequest(new RequestParams(params), 256, 128));
+        params.put("TILED", new String[] { "true" });
+        assertTrue(WmsServlet.isTileRequest(new RequestParams(params), 1024, 768));
+        params.put("TILED", new String[] { "false" });
+        assertFalse(WmsServlet.isTileRequest(new RequestParams(params), 256, 256));
+    }
+
+    @Test
+    public void testIfNoneMatch() {
+        String etag = WmsServlet.getEtag("key", 1000L);
+        assertTrue(WmsServlet.isNotModified(request("If-None-Match", etag), etag, 1000L));
+        assertTrue(WmsServlet.isNotModified(request("If-None-Match", "\"other\", W/" + etag),
+                etag, 1000L));
+        assertTrue(WmsServlet.isNotModified(request("If-None-Match", "*"), etag, 1000L));
+        assertFalse(WmsServlet.isNotModified(request("If-None-Match", "\"other\""), etag,
+                1000L));
+        assertFalse(WmsServlet.isNotModified(request(null, null), etag, 1000L));
+    }
+
+    @Test
+    public void testDatasetUpdateChangesEtag() {
+        /*
+         * Once a dataset has been updated, clients holding the old validator
+         * must receive the new image
+         */
+        String oldEtag = WmsServlet.getEtag("key", 1000L);
+        String newEtag = WmsServlet.getEtag("key", 2000L);
+        assertFalse(oldEtag.equals(newEtag));
+        assertFalse(WmsServlet.isNotModified(request("If-None-Match", oldEtag), newEtag, 2000L));
+        assertFalse(oldEtag.equals(WmsServlet.getEtag("otherKey", 1000L)));
+    }
+
+    @Test
+    public void testCovCborFormat() {
+        assertTrue(WmsServlet.isCovCborFormat("application/prs.coverage+cbor"));
+        /*
+         * An unescaped "+" in the request URL is decoded to a space
+         */
+        assertTrue(WmsServlet.isCovCborFormat("application/prs.coverage cbor"));
+        assertFalse(WmsServlet.isCovCborFormat("application/prs.coverage+json"));
+    }
+
+    @Test
+    public void testIfModifiedSince() {
+        String etag = WmsServlet.getEtag("key", 1500L);
+        assertTrue(WmsServlet.isNotModified(request("If-Modified-Since", 1000L), etag, 1500L));
+        assertFalse(WmsServlet.isNotModified(request("If-Modified-Since", 1000L), etag, 2000L));
+    }
+
+    private static ServletConfig config(final Map<String, String> initParams) {
+        return new ServletConfig() {
+            @Override
+            public String getServletName() {
+                return "wms";
+            }
+
+            @Override
+            public ServletContext getServletContext() {
+                return null;
+            }
+
+            @Override
+            public String getInitParameter(String name) {
+                return initParams.get(name);
+            }
+
+            @Override
+            public Enumeration<?> getInitParameterNames() {
+                return Collections.enumeration(initParams.keySet());
+            }
+        };
+    }
+
+    /*
+     * A request with (at most) one header
+     */
+    private static HttpServletRequest request(final String header, final Object value) {
+        return (HttpServletRequest) Proxy.newProxyInstance(WmsServletTest.class
+                .getClassLoader(), new Class<?>[] { HttpServletRequest.class },
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        boolean matches = args != null && args[0].equals(header);
+                        if (method.getName().equals("getHeader")) {
+                            return matches ? value : null;
+                        } else if (method.getName().equals("getDateHeader")) {
+                            return matches ? (Long) value : -1L;
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+}
@@ -0,0 +1,88 @@
+/*******************************************************************************
+ * Copyright (c) 2017 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.wms.util;
+
+import static org.junit.Assert.*;
+
+import org.joda.time.DateTime;
+import org.junit.Test;
+
+import uk.ac.rdg.resc.edal.wms.util.CapabilitiesCache.CachedDocument;
+
+/**
+ * Test class for {@link CapabilitiesCache}
+ */
+public class CapabilitiesCacheTest {
+    private static final Object CATALOGUE = new Object();
+    private static final DateTime TIME = new DateTime(2017, 1, 1, 0, 0);
+
+    @Test
+    public void testUpdateTimeInvalidates() {
+        CapabilitiesCache cache = new CapabilitiesCache();
+        cache.putFragment("key", CATALOGUE, TIME, "fragment");
+        assertEquals("fragment", cache.getFragment("key", CATALOGUE, TIME));
+        assertNull(cache.getFragment("key", new Object(), TIME));
+        /*
+         * The failed lookup removed the entry
+         */
+        assertNull(cache.getFragment("key", CATALOGUE, TIME));
+        assertEquals(0L, cache.getSizeBytes());
+
+        cache.putDocument("key", CATALOGUE, TIME, new CachedDocument("document"));
+        assertNull(cache.getDocument("key", CATALOGUE, TIME.plusMinutes(1)));
+        assertEquals(0L, cache.getSizeBytes());
+    }
+
+    @Test
+    public void testSizeLimit() {
+        /*
+         * Room for two 10-character fragments
+         */
+        CapabilitiesCache cache = new CapabilitiesCache(40);
+        cache.putFragment("key1", CATALOGUE, TIME, "0123456789");
+        cache.putFragment("key2", CATALOGUE, TIME, "0123456789");
+        assertNotNull(cache.getFragment("key1", CATALOGUE, TIME));
+        cache.putFragment("key3", CATALOGUE, TIME, "0123456789");
+        /*
+         * key2 was the least recently used
+         */
+        assertNull(cache.getFragment("key2", CATALOGUE, TIME));
+        assertNotNull(cache.getFragment("key1", CATALOGUE, TIME));
+        assertNotNull(cache.getFragment("key3", CATALOGUE, TIME));
+        assertEquals(40L, cache.getSizeBytes());
+
+        /*
+         * Anything larger than the whole cache is not stored
+         */
+        cache.putDocument("key", CATALOGUE, TIME, new CachedDocument(
+                "A document which is much longer than 40 bytes"));
+        assertNull(cache.getDocument("key", CATALOGUE, TIME));
+        assertEquals(40L, cache.getSizeBytes());
+    }
+}
@@ -0,0 +1,172 @@
+/*******************************************************************************
+ * Copyright (c) 2017 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.wms.util;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.rdg.resc.edal.wms.RequestParams;
+import uk.ac.rdg.resc.edal.wms.util.RenderedImageCache.CachedImage;
+
+/**
+ * Test class for {@link RenderedImageCache}
+ */
+public class RenderedImageCacheTest {
+    private File cacheDir;
+
+    @Before
+    public void setUp() throws IOException {
+        cacheDir = Files.createTempDirectory("rendered-images").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = cacheDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        cacheDir.delete();
+    }
+
+    @Test
+    public void testHitAndMiss() {
+        RenderedImageCache cache = new RenderedImageCache(1024 * 1024);
+        assertNull(cache.get("key", "\"a\""));
+        cache.put("key", image("\"a\"", "dataset"));
+        CachedImage cached = cache.get("key", "\"a\"");
+        assertNotNull(cached);
+        assertArrayEquals(new byte[] { 1, 2, 3 }, cached.getData());
+        assertEquals("image/png", cached.getMimeType());
+        assertNull(cache.get("otherKey", "\"a\""));
+    }
+
+    @Test
+    public void testDatasetUpdateInvalidates() {
+        RenderedImageCache cache = new RenderedImageCache(1024 * 1024, cacheDir, 1024 * 1024);
+        cache.put("key", image("\"a\"", "dataset"));
+        /*
+         * Once the dataset has been updated, the validator changes and the
+         * old image must not be served, from either tier
+         */
+        assertNull(cache.get("key", "\"b\""));
+        assertNull(cache.get("key", "\"a\""));
+    }
+
+    @Test
+    public void testInvalidateDataset() {
+        RenderedImageCache cache = new RenderedImageCache(1024 * 1024);
+        cache.put("key1", image("\"a\"", "dataset1"));
+        cache.put("key2", image("\"a\"", "dataset2"));
+        cache.invalidateDataset("dataset1");
+        assertNull(cache.get("key1", "\"a\""));
+        assertNotNull(cache.get("key2", "\"a\""));
+    }
+
+    @Test
+    public void testDiskTier() {
+        /*
+         * The image is too big for the memory tier, so must be read from disk
+         */
+        RenderedImageCache cache = new RenderedImageCache(0, cacheDir, 1024 * 1024);
+        cache.put("key", image("\"a\"", "dataset"));
+        CachedImage cached = cache.get("key", "\"a\"");
+        assertNotNull(cached);
+        assertArrayEquals(new byte[] { 1, 2, 3 }, cached.getData());
+        assertEquals(Collections.singleton("dataset"), cached.getDatasetIds());
+
+        cache.clear();
+        assertNull(cache.get("key", "\"a\""));
+    }
+
+    @Test
+    public void testDiskTierClearedOnStartup() {
+        RenderedImageCache cache = new RenderedImageCache(0, cacheDir, 1024 * 1024);
+        cache.put("key", image("\"a\"", "dataset"));
+        assertEquals(1, cacheDir.listFiles().length);
+        /*
+         * Images from a previous instance may have been rendered with a
+         * different configuration, so must not be served
+         */
+        RenderedImageCache newCache = new RenderedImageCache(0, cacheDir, 1024 * 1024);
+        assertEquals(0, cacheDir.listFiles().length);
+        assertNull(newCache.get("key", "\"a\""));
+    }
+
+    @Test
+    public void testMemoryLimit() {
+        RenderedImageCache cache = new RenderedImageCache(4);
+        cache.put("key1", image("\"a\"", "dataset"));
+        cache.put("key2", image("\"a\"", "dataset"));
+        /*
+         * Only one image fits, so the least recently used is evicted
+         */
+        assertNull(cache.get("key1", "\"a\""));
+        assertNotNull(cache.get("key2", "\"a\""));
+    }
+
+    @Test
+    public void testKeyNormalisation() {
+        Map<String, String[]> params = new HashMap<>();
+        params.put("REQUEST", new String[] { "GetMap" });
+        params.put("BBOX", new String[] { "-180.0,-90,180.00,90" });
+        params.put("CRS", new String[] { "epsg:4326" });
+        params.put("FORMAT", new String[] { "IMAGE/PNG" });
+        params.put("_", new String[] { "1234" });
+
+        Map<String, String[]> equivalent = new HashMap<>();
+        equivalent.put("format", new String[] { "image/png" });
+        equivalent.put("crs", new String[] { "EPSG:4326" });
+        equivalent.put("bbox", new String[] { "-180,-90,180,90.000000000001" });
+        equivalent.put("request", new String[] { "GetMap" });
+
+        assertEquals(RenderedImageCache.getKey(new RequestParams(params)),
+                RenderedImageCache.getKey(new RequestParams(equivalent)));
+
+        equivalent.put("bbox", new String[] { "-180,-90,180,89" });
+        assertFalse(RenderedImageCache.getKey(new RequestParams(params)).equals(
+                RenderedImageCache.getKey(new RequestParams(equivalent))));
+    }
+
+    private static CachedImage image(String etag, String datasetId) {
+        return new CachedImage(new byte[] { 1, 2, 3 }, "image/png", etag, 1000L,
+                Collections.singleton(datasetId));
+    }
+}
@@ -32,10 +32,6 @@ import java.io.IOException;
 import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashMap;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.io.Serializable;
@@ -109,28 +105,26 @@ public class DataCatalogue implements DatasetCatalogue, DatasetStorage, FeatureC
     private static ObjectName cacheManagerObjectName;
 
     protected final CatalogueConfig config;
-    protected Map<String, Dataset> datasets;
-    private final Map<DatasetVariableId, EnhancedVariableMetadata> layerMetadata;
+    /* The datasets and layer metadata currently available */
+    private final DatasetRegistry registry = new DatasetRegistry();
+    /**
+     * All datasets in this catalogue, including those which are disabled,
+     * keyed by ID in the order in which they should be presented. This is an
+     * unmodifiable live view - datasets are added and removed by the
+     * catalogue itself.
+     */
+    protected final Map<String, Dataset> datasets = registry.getDatasetMap();
 
     protected final LayerNameMapper layerNameMapper;
 
-    private DateTime lastUpdateTime = new DateTime();
-
     public DataCatalogue() {
         cacheManager = null;
         config = null;
-        layerMetadata = null;
         layerNameMapper = null;
     }
 
     public DataCatalogue(CatalogueConfig config, LayerNameMapper layerNameMapper)
             throws IOException {
-        /*
-         * Initialise the storage for datasets and layer metadata.
-         */
-        datasets = new HashMap<>();
-        layerMetadata = new HashMap<>();
-
         this.config = config;
         this.config.setDatasetLoadedHandler(this);
         this.config.loadDatasets();
@@ -219,6 +213,12 @@ public class DataCatalogue implements DatasetCatalogue, DatasetStorage, FeatureC
     }
     
     public void shutdown() {
+        try {
+            config.savePendingChanges();
+        } catch (IOException e) {
+            log.error("Problem saving the config file", e);
+        }
+        config.saveUsage();
         CatalogueConfig.shutdown();
     }
 
@@ -335,7 +335,7 @@ public class DataCatalogue implements DatasetCatalogue, DatasetStorage, FeatureC
      *            The ID of the dataset to remove
      */
     public void removeDataset(String id) {
-        datasets.remove(id);
+        registry.removeDataset(id);
         config.removeDataset(config.getDatasetInfo(id));
     }
 
@@ -349,77 +349,49 @@ public class DataCatalogue implements DatasetCatalogue, DatasetStorage, FeatureC
      *            The new ID
      */
     public void changeDatasetId(String oldId, String newId) {
-        Dataset dataset = datasets.get(oldId);
-        datasets.remove(oldId);
-        datasets.put(newId, dataset);
+        registry.renameDataset(oldId, newId);
         config.changeDatasetId(config.getDatasetInfo(oldId), newId);
     }
 
     @Override
-    public synchronized void datasetLoaded(Dataset dataset, Collection<VariableConfig> variables) {
+    public void datasetLoaded(Dataset dataset, Collection<VariableConfig> variables) {
         /*
          * If we already have a dataset with this ID, it will be replaced. This
          * is exactly what we want.
          */
-        datasets.put(dataset.getId(), dataset);
+        DatasetConfig datasetConfig = config.getDatasetInfo(dataset.getId());
+        registry.putDataset(dataset, datasetConfig == null ? null : datasetConfig.getTitle(),
+                variables);
 
         /*
-         * Re-sort the datasets map according to the titles of the datasets, so
-         * that they appear in the menu in this order.
+         * The config has changed, so we save it. When many datasets are
+         * loading, this results in a single save once they have loaded.
          */
-        List<Map.Entry<String, Dataset>> entryList = new ArrayList<Map.Entry<String, Dataset>>(
-                datasets.entrySet());
-        try {
-            Collections.sort(entryList, new Comparator<Map.Entry<String, Dataset>>() {
-                public int compare(Map.Entry<String, Dataset> d1, Map.Entry<String, Dataset> d2) {
-                    return config.getDatasetInfo(d1.getKey()).getTitle()
-                            .compareTo(config.getDatasetInfo(d2.getKey()).getTitle());
-                }
-            });
-        } catch (NullPointerException e) {
-            log.error("Problem when sorting datasets", e);
-            /*
-             * Sometimes this gives a NullPointerException with remote datasets
-             * which are unavailable (?)
-             * 
-             * It's been seen a couple of times on the issue tracker, but I've
-             * been unable to reproduce it. I think it may be that the title is
-             * not getting set correctly (or at all?). Perhaps this needs some
-             * more robust checking in the CatalogueConfig object?
-             * 
-             * Since sorting the datasets by title isn't critical, we can ignore
-             * the error.
-             */
-        }
-
-        datasets = new LinkedHashMap<String, Dataset>();
-        for (Map.Entry<String, Dataset> entry : entryList) {
-            datasets.put(entry.getKey(), entry.getValue());
-        }
-
-        /*
-         * Now add the layer metadata to a map for future reference
-         */
-        for (VariableConfig variable : variables) {
-            DatasetVariableId id = new DatasetVariableId(variable.getParentDataset().getId(),
-                    variable.getId());
-            layerMetadata.put(id, variable);
-        }
-        lastUpdateTime = new DateTime();
+        config.scheduleSave();
+    }
 
-        /*
-         * The config has changed, so we save it.
-         */
-        try {
-            config.save();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+    /**
+     * @return The version of this catalogue. This increases every time a
+     *         dataset is loaded, removed or renamed. The last update time of
+     *         the catalogue increases with it, so it can be used as a WMS
+     *         updatesequence.
+     */
+    public long getVersion() {
+        return registry.getVersion();
     }
 
     @Override
     public DateTime getLastUpdateTime() {
-        return lastUpdateTime;
+        return registry.getLastUpdateTime();
+    }
+
+    @Override
+    public DateTime getLastUpdateTime(String datasetId) {
+        DateTime updateTime = registry.getUpdateTime(datasetId);
+        if (updateTime == null) {
+            return registry.getLastUpdateTime();
+        }
+        return updateTime;
     }
 
     @Override
@@ -430,7 +402,7 @@ public class DataCatalogue implements DatasetCatalogue, DatasetStorage, FeatureC
          * go)
          */
         List<Dataset> allDatasets = new ArrayList<Dataset>();
-        for (Dataset dataset : datasets.values()) {
+        for (Dataset dataset : registry.getDatasets()) {
             DatasetConfig datasetInfo = config.getDatasetInfo(dataset.getId());
             if (datasetInfo != null && !datasetInfo.isDisabled() && datasetInfo.isReady()) {
                 allDatasets.add(dataset);
@@ -441,13 +413,17 @@ public class DataCatalogue implements DatasetCatalogue, DatasetStorage, FeatureC
 
     @Override
     public Dataset getDatasetFromId(String datasetId) {
-        if (datasets.containsKey(datasetId)) {
-            return datasets.get(datasetId);
-        } else {
-            return null;
+        Dataset dataset = registry.getDataset(datasetId);
+        if (dataset != null) {
+            DatasetConfig datasetConfig = config.getDatasetInfo(datasetId);
+            if (datasetConfig != null) {
+                /* Recently used datasets are reloaded first */
+                datasetConfig.markUsed();
+            }
         }
+        return dataset;
     }
-    
+
     public DatasetConfig getDatabaseInfo(String datasetId) {
         return config.getDatasetInfo(datasetId);
     }
@@ -455,10 +431,10 @@ public class DataCatalogue implements DatasetCatalogue, DatasetStorage, FeatureC
     @Override
     public EnhancedVariableMetadata getLayerMetadata(final VariableMetadata variableMetadata)
             throws EdalLayerNotFoundException {
-        DatasetVariableId key = new DatasetVariableId(variableMetadata.getDataset().getId(),
-                variableMetadata.getId());
-        if (layerMetadata.containsKey(key)) {
-            return layerMetadata.get(key);
+        EnhancedVariableMetadata metadata = registry.getLayerMetadata(variableMetadata
+                .getDataset().getId(), variableMetadata.getId());
+        if (metadata != null) {
+            return metadata;
         } else {
             throw new EdalLayerNotFoundException("No layer exists for the variable: "
                     + variableMetadata.getId() + " in the dataset: "
@@ -544,53 +520,4 @@ public class DataCatalogue implements DatasetCatalogue, DatasetStorage, FeatureC
             return true;
         }
     }
-
-    private class DatasetVariableId {
-        String datasetId;
-        String variableId;
-
-        public DatasetVariableId(String datasetId, String variableId) {
-            super();
-            this.datasetId = datasetId;
-            this.variableId = variableId;
-        }
-
-        @Override
-        public int hashCode() {
-            final int prime = 31;
-            int result = 1;
-            result = prime * result + getOuterType().hashCode();
-            result = prime * result + ((datasetId == null) ? 0 : datasetId.hashCode());
-            result = prime * result + ((variableId == null) ? 0 : variableId.hashCode());
-            return result;
-        }
-
-        @Override
-        public boolean equals(Object obj) {
-            if (this == obj)
-                return true;
-            if (obj == null)
-                return false;
-            if (getClass() != obj.getClass())
-                return false;
-            DatasetVariableId other = (DatasetVariableId) obj;
-            if (!getOuterType().equals(other.getOuterType()))
-                return false;
-            if (datasetId == null) {
-                if (other.datasetId != null)
-                    return false;
-            } else if (!datasetId.equals(other.datasetId))
-                return false;
-            if (variableId == null) {
-                if (other.variableId != null)
-                    return false;
-            } else if (!variableId.equals(other.variableId))
-                return false;
-            return true;
-        }
-
-        private DataCatalogue getOuterType() {
-            return DataCatalogue.this;
-        }
-    }
 }
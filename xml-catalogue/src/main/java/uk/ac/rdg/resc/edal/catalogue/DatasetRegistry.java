@@ -0,0 +1,357 @@
+/*******************************************************************************
+ * Copyright (c) 2017 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.catalogue;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.joda.time.DateTime;
+
+import uk.ac.rdg.resc.edal.dataset.Dataset;
+import uk.ac.rdg.resc.edal.graphics.utils.EnhancedVariableMetadata;
+
+/**
+ * The datasets in a {@link DataCatalogue}, in the order in which they should
+ * be presented, along with their layer metadata and update times.
+ * 
+ * Changes are made in place, in time proportional to the number of variables
+ * in the dataset being changed and the logarithm of the number of datasets,
+ * so that loading many datasets does not take quadratic time. Changes are
+ * serialised, but reads never lock. Each change increases the version number
+ * and the last update time, which are published once the change is complete.
+ */
+final class DatasetRegistry {
+    /* Datasets by ID */
+    private final Map<String, Dataset> datasets = new ConcurrentHashMap<>();
+    /* Datasets in presentation order, i.e. sorted by title */
+    private final Map<DatasetOrder, Dataset> orderedDatasets = new ConcurrentSkipListMap<>();
+    private final Map<DatasetVariableId, EnhancedVariableMetadata> layerMetadata =
+            new ConcurrentHashMap<>();
+    private final Map<String, DateTime> datasetUpdateTimes = new ConcurrentHashMap<>();
+    /*
+     * The position of each dataset in orderedDatasets, and the IDs of its
+     * variables. These are only accessed when making changes.
+     */
+    private final Map<String, DatasetOrder> orders = new HashMap<>();
+    private final Map<String, Set<String>> variableIds = new HashMap<>();
+    private volatile long version = 0L;
+    private volatile DateTime lastUpdateTime = new DateTime();
+
+    /*
+     * A read-only view of the datasets keyed by ID. Lookups use the ID map,
+     * and iteration follows the presentation order.
+     */
+    private final Map<String, Dataset> datasetMap = new AbstractMap<String, Dataset>() {
+        @Override
+        public Dataset get(Object id) {
+            return datasets.get(id);
+        }
+
+        @Override
+        public boolean containsKey(Object id) {
+            return datasets.containsKey(id);
+        }
+
+        @Override
+        public Set<Map.Entry<String, Dataset>> entrySet() {
+            return new AbstractSet<Map.Entry<String, Dataset>>() {
+                @Override
+                public Iterator<Map.Entry<String, Dataset>> iterator() {
+                    final Iterator<Map.Entry<DatasetOrder, Dataset>> it = orderedDatasets
+                            .entrySet().iterator();
+                    return new Iterator<Map.Entry<String, Dataset>>() {
+                        @Override
+                        public boolean hasNext() {
+                            return it.hasNext();
+                        }
+
+                        @Override
+                        public Map.Entry<String, Dataset> next() {
+                            Map.Entry<DatasetOrder, Dataset> entry = it.next();
+                            return new SimpleImmutableEntry<>(entry.getKey().id,
+                                    entry.getValue());
+                        }
+
+                        @Override
+                        public void remove() {
+                            throw new UnsupportedOperationException(
+                                    "Datasets cannot be removed from this view");
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return orderedDatasets.size();
+                }
+            };
+        }
+    };
+
+    /**
+     * Adds a dataset, replacing any existing dataset with the same ID along
+     * with its layer metadata
+     * 
+     * @param dataset
+     *            The {@link Dataset} to add
+     * @param title
+     *            The title of the dataset, which determines its position. May
+     *            be <code>null</code>
+     * @param variables
+     *            The layer metadata of the variables in the dataset
+     */
+    synchronized void putDataset(Dataset dataset, String title,
+            Collection<? extends EnhancedVariableMetadata> variables) {
+        String id = dataset.getId();
+        removeEntries(id);
+
+        DatasetOrder order = new DatasetOrder(title, id);
+        orders.put(id, order);
+        orderedDatasets.put(order, dataset);
+        datasets.put(id, dataset);
+
+        Set<String> ids = new HashSet<>();
+        for (EnhancedVariableMetadata variable : variables) {
+            layerMetadata.put(new DatasetVariableId(id, variable.getId()), variable);
+            ids.add(variable.getId());
+        }
+        variableIds.put(id, ids);
+
+        DateTime updateTime = nextUpdateTime();
+        datasetUpdateTimes.put(id, updateTime);
+        publish(updateTime);
+    }
+
+    /**
+     * Removes a dataset and its layer metadata
+     * 
+     * @param id
+     *            The ID of the dataset to remove
+     */
+    synchronized void removeDataset(String id) {
+        removeEntries(id);
+        datasetUpdateTimes.remove(id);
+        publish(nextUpdateTime());
+    }
+
+    /**
+     * Changes the ID of a dataset. The dataset keeps its position.
+     * 
+     * @param oldId
+     *            The current ID of the dataset
+     * @param newId
+     *            The new ID of the dataset
+     */
+    synchronized void renameDataset(String oldId, String newId) {
+        DatasetOrder oldOrder = orders.remove(oldId);
+        Set<String> ids = variableIds.remove(oldId);
+        Dataset dataset = datasets.remove(oldId);
+        if (dataset != null) {
+            orderedDatasets.remove(oldOrder);
+            DatasetOrder newOrder = new DatasetOrder(oldOrder.title, newId);
+            orders.put(newId, newOrder);
+            orderedDatasets.put(newOrder, dataset);
+            datasets.put(newId, dataset);
+        }
+        if (ids != null) {
+            for (String variableId : ids) {
+                EnhancedVariableMetadata metadata = layerMetadata.remove(new DatasetVariableId(
+                        oldId, variableId));
+                if (metadata != null) {
+                    layerMetadata.put(new DatasetVariableId(newId, variableId), metadata);
+                }
+            }
+            variableIds.put(newId, ids);
+        }
+        DateTime updateTime = nextUpdateTime();
+        datasetUpdateTimes.remove(oldId);
+        datasetUpdateTimes.put(newId, updateTime);
+        publish(updateTime);
+    }
+
+    /**
+     * @return The dataset with the given ID, or <code>null</code> if there is
+     *         none
+     */
+    Dataset getDataset(String id) {
+        return datasets.get(id);
+    }
+
+    /**
+     * @return All datasets, in the order in which they should be presented
+     */
+    Collection<Dataset> getDatasets() {
+        return Collections.unmodifiableCollection(orderedDatasets.values());
+    }
+
+    /**
+     * @return An unmodifiable live view of the datasets, keyed by ID, which
+     *         iterates in the order in which they should be presented
+     */
+    Map<String, Dataset> getDatasetMap() {
+        return datasetMap;
+    }
+
+    /**
+     * @return The layer metadata for a variable, or <code>null</code> if
+     *         there is none
+     */
+    EnhancedVariableMetadata getLayerMetadata(String datasetId, String variableId) {
+        return layerMetadata.get(new DatasetVariableId(datasetId, variableId));
+    }
+
+    /**
+     * @return The time at which a dataset was last changed, or
+     *         <code>null</code> if it is not in the registry
+     */
+    DateTime getUpdateTime(String datasetId) {
+        return datasetUpdateTimes.get(datasetId);
+    }
+
+    /**
+     * @return The version of this registry, which increases with every change
+     */
+    long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return The time of the latest change. This increases with every
+     *         change, even if changes are made within the same millisecond.
+     */
+    DateTime getLastUpdateTime() {
+        return lastUpdateTime;
+    }
+
+    /*
+     * Removes a dataset and its layer metadata, but not its update time
+     */
+    private void removeEntries(String id) {
+        DatasetOrder order = orders.remove(id);
+        if (order != null) {
+            orderedDatasets.remove(order);
+        }
+        datasets.remove(id);
+        Set<String> ids = variableIds.remove(id);
+        if (ids != null) {
+            for (String variableId : ids) {
+                layerMetadata.remove(new DatasetVariableId(id, variableId));
+            }
+        }
+    }
+
+    /*
+     * The update time of the next version. This always increases, even if two
+     * versions are published within the same millisecond, so that update
+     * times can be used to identify versions.
+     */
+    private DateTime nextUpdateTime() {
+        long now = System.currentTimeMillis();
+        if (now <= lastUpdateTime.getMillis()) {
+            return lastUpdateTime.plusMillis(1);
+        }
+        return new DateTime(now);
+    }
+
+    private void publish(DateTime updateTime) {
+        lastUpdateTime = updateTime;
+        version++;
+    }
+
+    /*
+     * The position of a dataset: sorted by title, then by ID so that datasets
+     * with the same title are kept distinct
+     */
+    private static final class DatasetOrder implements Comparable<DatasetOrder> {
+        final String title;
+        final String id;
+
+        public DatasetOrder(String title, String id) {
+            this.title = title == null ? "" : title;
+            this.id = id;
+        }
+
+        @Override
+        public int compareTo(DatasetOrder other) {
+            int result = title.compareTo(other.title);
+            return result != 0 ? result : id.compareTo(other.id);
+        }
+    }
+
+    private static final class DatasetVariableId {
+        final String datasetId;
+        final String variableId;
+
+        public DatasetVariableId(String datasetId, String variableId) {
+            super();
+            this.datasetId = datasetId;
+            this.variableId = variableId;
+        }
+
+        @Override
+        public int hashCode() {
+            final int prime = 31;
+            int result = 1;
+            result = prime * result + ((datasetId == null) ? 0 : datasetId.hashCode());
+            result = prime * result + ((variableId == null) ? 0 : variableId.hashCode());
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (obj == null)
+                return false;
+            if (getClass() != obj.getClass())
+                return false;
+            DatasetVariableId other = (DatasetVariableId) obj;
+            if (datasetId == null) {
+                if (other.datasetId != null)
+                    return false;
+            } else if (!datasetId.equals(other.datasetId))
+                return false;
+            if (variableId == null) {
+                if (other.variableId != null)
+                    return false;
+            } else if (!variableId.equals(other.variableId))
+                return false;
+            return true;
+        }
+    }
+}
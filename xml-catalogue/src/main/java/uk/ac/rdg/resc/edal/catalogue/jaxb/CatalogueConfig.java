@@ -38,13 +38,11 @@ import java.io.Reader;
 import java.io.Writer;
 import java.nio.channels.FileChannel;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.Properties;
 import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
@@ -76,8 +74,13 @@ import uk.ac.rdg.resc.edal.graphics.utils.DatasetCatalogue;
 public class CatalogueConfig {
     private static final Logger log = LoggerFactory.getLogger(CatalogueConfig.class);
 
-    /* Included in XML - see setDatasets for details */
-    private Map<String, DatasetConfig> datasets = new LinkedHashMap<>();
+    /*
+     * Included in XML - see setDatasets for details.
+     * 
+     * This map is never modified once published. Changes are made to a copy
+     * which then replaces it, so that it can be read without locking.
+     */
+    private volatile Map<String, DatasetConfig> datasets = new LinkedHashMap<>();
     @XmlElement(name = "cache")
     private CacheInfo cacheInfo = new CacheInfo();
     @XmlTransient
@@ -86,14 +89,37 @@ public class CatalogueConfig {
     protected File configFile;
     @XmlTransient
     private File configBackup;
+    /* Set when there are changes which will be saved shortly */
+    @XmlTransient
+    private final AtomicBoolean savePending = new AtomicBoolean(false);
+    @XmlTransient
+    private ScheduledFuture<?> sweep = null;
+    /* The latest time of use of any dataset which has been saved to disk */
+    @XmlTransient
+    private long usageSavedTime = 0L;
 
-    /** The scheduler that will handle the background (re)loading of datasets */
-    private static ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(4);
-    /**
-     * Contains handles to background threads that can be used to cancel
-     * reloading of datasets. Maps dataset IDs to Future objects
+    /*
+     * Changes to the config are batched up, and saved at most this long after
+     * they are made
      */
-    private static Map<String, ScheduledFuture<?>> futures = new HashMap<String, ScheduledFuture<?>>();
+    private static final long SAVE_DELAY_MILLIS = 2000L;
+    /*
+     * Datasets are normally reloaded when they are due, or when their files
+     * change. As a backstop, all datasets are checked at this interval, which
+     * picks up changes made directly to the DatasetConfigs (e.g. enabling
+     * them)
+     */
+    private static final long SWEEP_INTERVAL_MILLIS = 60 * 1000L;
+    private static final int DEFAULT_LOADER_THREADS = 4;
+    /*
+     * The times at which datasets were last used are saved to this file,
+     * alongside the config file, so that loading can still be prioritised
+     * after a restart
+     */
+    private static final String USAGE_FILENAME = "dataset-usage.properties";
+
+    /** The loader that will handle the background (re)loading of datasets */
+    private static DatasetLoader loader = new DatasetLoader(DEFAULT_LOADER_THREADS);
 
     /*
      * Used for JAX-B
@@ -123,44 +149,60 @@ public class CatalogueConfig {
         this.datasetStorage = datasetStorage;
     }
 
-    public void loadDatasets() {
+    /**
+     * Sets the number of datasets which can be loaded simultaneously
+     * 
+     * @param nThreads
+     *            The number of threads to use for loading datasets
+     */
+    public static void setLoaderThreads(int nThreads) {
+        loader.setParallelism(nThreads);
+    }
+
+    public synchronized void loadDatasets() {
         /*
          * Loop through all DatasetConfigs and load Datasets from each.
          * 
-         * Do this in a manner which means that they are "reloaded" every second
-         * (and checked as to whether they need to actually have anything done
-         * to them)
+         * Each is queued for loading now, and will be requeued whenever it
+         * next needs refreshing.
          * 
          * Also during the load, return EnhancedVariableMetadata (these are just
          * the VariableConfigs...)
          */
+        loadUsage();
         for (final DatasetConfig dataset : datasets.values()) {
             scheduleReload(dataset);
         }
+        if (sweep == null) {
+            sweep = loader.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    for (DatasetConfig dataset : datasets.values()) {
+                        if (dataset.needsRefresh()) {
+                            loader.submit(dataset, datasetStorage, dataset.isReady());
+                        }
+                    }
+                    saveUsage();
+                }
+            }, SWEEP_INTERVAL_MILLIS);
+        }
     }
 
-    private void scheduleReload(final DatasetConfig dataset) {
+    /**
+     * Queues a dataset for (re)loading, and watches its location for changes
+     * if it is updated automatically
+     */
+    void scheduleReload(final DatasetConfig dataset) {
         if (datasetStorage == null) {
             throw new IllegalStateException(
                     "You need to set something to handle loaded datasets before loading them.");
         }
-        Runnable reloader = new Runnable() {
-            @Override
-            public void run() {
-                /*
-                 * This will check to see if the metadata need reloading, then
-                 * go ahead if so.
-                 */
-                dataset.refresh(datasetStorage);
-            }
-        };
-        /*
-         * Run the task immediately, and then redo it every 1s
-         */
-        ScheduledFuture<?> future = scheduler.scheduleWithFixedDelay(reloader, 0, 1,
-                TimeUnit.SECONDS);
-        /* We need to keep a handle to the Future object so we can cancel it */
-        futures.put(dataset.getId(), future);
+        dataset.setCatalogue(this);
+        loader.unwatch(dataset);
+        if (dataset.getUpdateInterval() >= 0) {
+            loader.watch(dataset, datasetStorage);
+        }
+        loader.submit(dataset, datasetStorage, false);
     }
 
     public CacheInfo getCacheSettings() {
@@ -168,6 +210,7 @@ public class CatalogueConfig {
     }
 
     public DatasetConfig getDatasetInfo(String datasetId) {
+        /* No locking is needed, since datasets is never modified */
         return datasets.get(datasetId);
     }
 
@@ -190,23 +233,27 @@ public class CatalogueConfig {
     }
 
     public synchronized void addDataset(DatasetConfig dataset) {
-        datasets.put(dataset.getId(), dataset);
+        Map<String, DatasetConfig> newDatasets = new LinkedHashMap<>(datasets);
+        newDatasets.put(dataset.getId(), dataset);
+        datasets = newDatasets;
         scheduleReload(dataset);
     }
 
     public synchronized void removeDataset(DatasetConfig dataset) {
-        datasets.remove(dataset.getId());
-        futures.get(dataset.getId()).cancel(true);
-        futures.remove(dataset.getId());
+        Map<String, DatasetConfig> newDatasets = new LinkedHashMap<>(datasets);
+        newDatasets.remove(dataset.getId());
+        datasets = newDatasets;
+        dataset.stopStatistics();
+        dataset.setCatalogue(null);
+        loader.cancel(dataset);
     }
 
     public synchronized void changeDatasetId(DatasetConfig dataset, String newId) {
-        datasets.remove(dataset.getId());
-        ScheduledFuture<?> removedScheduler = futures.remove(dataset.getId());
+        Map<String, DatasetConfig> newDatasets = new LinkedHashMap<>(datasets);
+        newDatasets.remove(dataset.getId());
         dataset.setId(newId);
-
-        datasets.put(newId, dataset);
-        futures.put(dataset.getId(), removedScheduler);
+        newDatasets.put(newId, dataset);
+        datasets = newDatasets;
     }
 
     public synchronized void save() throws IOException {
@@ -237,8 +284,105 @@ public class CatalogueConfig {
         }
     }
 
+    /**
+     * Saves this config shortly, in the background. Multiple calls in quick
+     * succession result in a single save.
+     */
+    public void scheduleSave() {
+        if (savePending.compareAndSet(false, true)) {
+            loader.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        savePendingChanges();
+                    } catch (IOException | IllegalStateException e) {
+                        log.error("Problem saving the config file", e);
+                    }
+                }
+            }, SAVE_DELAY_MILLIS);
+        }
+    }
+
+    /**
+     * Saves this config immediately if there is a save scheduled by
+     * {@link CatalogueConfig#scheduleSave()} which has not yet happened
+     * 
+     * @throws IOException
+     *             If there is a problem writing the config file
+     */
+    public void savePendingChanges() throws IOException {
+        if (savePending.getAndSet(false)) {
+            save();
+        }
+    }
+
+    /**
+     * Saves the times at which datasets were last used, so that the most
+     * recently used datasets can still be loaded first after a restart. This
+     * is called periodically once datasets are loaded, and does nothing if no
+     * dataset has been used since the last save.
+     */
+    public synchronized void saveUsage() {
+        File usageFile = getUsageFile();
+        if (usageFile == null) {
+            return;
+        }
+        Properties usage = new Properties();
+        long latestUse = 0L;
+        for (DatasetConfig dataset : datasets.values()) {
+            long lastUsed = dataset.getLastUsedTime();
+            if (lastUsed > 0) {
+                usage.setProperty(dataset.getId(), Long.toString(lastUsed));
+                latestUse = Math.max(latestUse, lastUsed);
+            }
+        }
+        if (latestUse <= usageSavedTime) {
+            return;
+        }
+        try (Writer writer = new FileWriter(usageFile)) {
+            usage.store(writer, "Times at which datasets were last used");
+            usageSavedTime = latestUse;
+        } catch (IOException e) {
+            log.error("Problem saving dataset usage to " + usageFile, e);
+        }
+    }
+
+    /*
+     * Restores the times at which datasets were last used from disk
+     */
+    private void loadUsage() {
+        File usageFile = getUsageFile();
+        if (usageFile == null || !usageFile.exists()) {
+            return;
+        }
+        Properties usage = new Properties();
+        try (Reader reader = new FileReader(usageFile)) {
+            usage.load(reader);
+        } catch (IOException e) {
+            log.warn("Problem reading dataset usage from " + usageFile, e);
+            return;
+        }
+        for (DatasetConfig dataset : datasets.values()) {
+            String lastUsed = usage.getProperty(dataset.getId());
+            if (lastUsed != null && dataset.getLastUsedTime() == 0L) {
+                try {
+                    dataset.setLastUsedTime(Long.parseLong(lastUsed));
+                    usageSavedTime = Math.max(usageSavedTime, dataset.getLastUsedTime());
+                } catch (NumberFormatException e) {
+                    log.warn("Invalid last use time for dataset " + dataset.getId() + ": "
+                            + lastUsed);
+                }
+            }
+        }
+    }
+
+    private File getUsageFile() {
+        return configFile == null ? null : new File(configFile.getAbsoluteFile()
+                .getParentFile(), USAGE_FILENAME);
+    }
+
     public static void shutdown() {
-        scheduler.shutdownNow();
+        loader.shutdown();
     }
 
     @Override
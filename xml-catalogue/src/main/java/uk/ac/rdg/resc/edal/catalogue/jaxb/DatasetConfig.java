@@ -29,6 +29,7 @@
 package uk.ac.rdg.resc.edal.catalogue.jaxb;
 
 import java.awt.Color;
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -52,6 +53,10 @@ import org.slf4j.LoggerFactory;
 import uk.ac.rdg.resc.edal.catalogue.jaxb.CatalogueConfig.DatasetStorage;
 import uk.ac.rdg.resc.edal.dataset.Dataset;
 import uk.ac.rdg.resc.edal.dataset.DatasetFactory;
+import uk.ac.rdg.resc.edal.dataset.DatasetSnapshot;
+import uk.ac.rdg.resc.edal.dataset.GriddedDataset;
+import uk.ac.rdg.resc.edal.dataset.GriddedDatasetOverviews;
+import uk.ac.rdg.resc.edal.dataset.GriddedDatasetStatistics;
 import uk.ac.rdg.resc.edal.domain.Extent;
 import uk.ac.rdg.resc.edal.exceptions.EdalException;
 import uk.ac.rdg.resc.edal.graphics.utils.ColourPalette;
@@ -116,6 +121,20 @@ public class DatasetConfig {
     @XmlAttribute(name = "disabled")
     private boolean disabled = false;
 
+    /*
+     * True if zoomed-out maps of gridded data should be read from
+     * reduced-resolution overviews
+     */
+    @XmlAttribute(name = "overviews")
+    private boolean overviews = false;
+
+    /*
+     * True if value statistics of gridded data should be calculated in the
+     * background and used to estimate value ranges
+     */
+    @XmlAttribute(name = "statistics")
+    private boolean statisticsEnabled = false;
+
     /* The update interval in minutes. -1 means "never update automatically" */
     @XmlAttribute(name = "updateInterval")
     private int updateInterval = -1;
@@ -174,6 +193,38 @@ public class DatasetConfig {
      */
     @XmlTransient
     private DateTime lastFailedUpdateTime = null;
+    /*
+     * The value statistics of the most recently loaded version of this
+     * dataset, or null if statistics are not enabled for it
+     */
+    @XmlTransient
+    private GriddedDatasetStatistics statistics = null;
+    /*
+     * True if this dataset is being served from a snapshot which has not yet
+     * been checked against its location
+     */
+    @XmlTransient
+    private volatile boolean unvalidatedSnapshot = false;
+    /* True if the files at the location of this dataset may have changed */
+    @XmlTransient
+    private volatile boolean locationChanged = false;
+    /*
+     * The signature of the location of this dataset at the time it was last
+     * read, used to determine whether it has changed since
+     */
+    @XmlTransient
+    private String locationSignature = null;
+    /*
+     * The time this dataset was last used, and the time it last took to load,
+     * used to prioritise loading
+     */
+    @XmlTransient
+    private volatile long lastUsedTime = 0L;
+    @XmlTransient
+    private volatile long lastLoadMillis = -1L;
+    /* The catalogue which schedules the loading of this dataset */
+    @XmlTransient
+    private CatalogueConfig catalogue = null;
 
     public DatasetConfig() {
     }
@@ -203,14 +254,39 @@ public class DatasetConfig {
         Thread.currentThread().setName("load-metadata-" + id);
 
         /* Now load the layers and manage the state of the dataset */
+        long startTime = System.currentTimeMillis();
         try {
+            boolean revalidate = state == DatasetState.READY
+                    && (unvalidatedSnapshot || locationChanged);
+            unvalidatedSnapshot = false;
+            locationChanged = false;
             /*
              * if lastUpdateTime == null, this dataset has never previously been
              * loaded.
              */
             state = lastSuccessfulUpdateTime == null ? DatasetState.LOADING : DatasetState.UPDATING;
 
-            createDataset(datasetStorage, true);
+            if (revalidate) {
+                /*
+                 * We are serving this dataset from a snapshot, or its directory
+                 * has changed. Only reload it if its files may have changed
+                 * since it was last read.
+                 */
+                String signature = DatasetSnapshot.getLocationSignature(location);
+                if (signature == null || !signature.equals(locationSignature)) {
+                    createDataset(datasetStorage, true);
+                    lastLoadMillis = System.currentTimeMillis() - startTime;
+                }
+            } else if (lastSuccessfulUpdateTime == null && loadSnapshot(datasetStorage)) {
+                /*
+                 * The dataset is available immediately, and will be
+                 * revalidated at the next opportunity
+                 */
+                unvalidatedSnapshot = true;
+            } else {
+                createDataset(datasetStorage, true);
+                lastLoadMillis = System.currentTimeMillis() - startTime;
+            }
 
             /*
              * Update the state of this dataset. If we've got this far there
@@ -251,9 +327,73 @@ public class DatasetConfig {
          * TODO In the old version, we dealt with OPeNDAP credentials here...
          */
 
+        /*
+         * Calculate the signature of the location before reading it, so that
+         * any changes made whilst it is being read will be picked up
+         */
+        String signature = DatasetSnapshot.getLocationSignature(location);
+
         Dataset dataset = factory.createDataset(id, location, forceRefresh);
+        locationSignature = signature;
 
         loadingProgress.add("Dataset created");
+
+        makeDatasetAvailable(dataset, datasetStorage);
+
+        if (DatasetSnapshot.save(dataset, location, factory.getClass().getName(), signature)) {
+            loadingProgress.add("Saved a snapshot of the dataset metadata");
+        }
+
+        loadingProgress.add("Finished loading dataset metadata");
+    }
+
+    /*
+     * Loads the dataset from a snapshot, if there is a valid one. Returns true
+     * if it was loaded
+     */
+    private boolean loadSnapshot(DatasetStorage datasetStorage) throws InstantiationException,
+            IllegalAccessException, ClassNotFoundException {
+        loadingProgress.add("Checking for a snapshot of the dataset");
+
+        DatasetFactory factory = DatasetFactory.forName(dataReaderClass);
+        DatasetSnapshot snapshot = DatasetSnapshot.load(id, location, factory.getClass()
+                .getName());
+        if (snapshot == null) {
+            return false;
+        }
+
+        loadingProgress.add("Dataset loaded from snapshot");
+        locationSignature = snapshot.getSignature();
+        makeDatasetAvailable(snapshot.getDataset(), datasetStorage);
+
+        loadingProgress.add("Finished loading dataset metadata");
+        return true;
+    }
+
+    /*
+     * Attaches statistics and overviews to a newly-loaded dataset, creates
+     * configurations for any new variables, and sends it to the catalogue
+     */
+    private void makeDatasetAvailable(Dataset dataset, DatasetStorage datasetStorage) {
+        /*
+         * Attach statistics to gridded datasets before estimating any value
+         * ranges, so that previously-calculated statistics can be used
+         */
+        GriddedDatasetStatistics previousStatistics = statistics;
+        statistics = null;
+        if (statisticsEnabled && dataset instanceof GriddedDataset) {
+            statistics = new GriddedDatasetStatistics((GriddedDataset) dataset,
+                    locationSignature, previousStatistics);
+            ((GriddedDataset) dataset).setStatistics(statistics);
+        }
+        if (previousStatistics != null) {
+            previousStatistics.stop();
+        }
+        if (overviews && dataset instanceof GriddedDataset) {
+            ((GriddedDataset) dataset).setOverviews(new GriddedDatasetOverviews(
+                    (GriddedDataset) dataset, locationSignature));
+        }
+
         /*
          * Loop through existing variables and check that they are still there,
          * removing them if not
@@ -291,14 +431,36 @@ public class DatasetConfig {
         loadingProgress.add("Making this dataset available through the WMS catalogue");
         datasetStorage.datasetLoaded(dataset, variables.values());
 
-        loadingProgress.add("Finished loading dataset metadata");
+        if (statistics != null) {
+            loadingProgress.add("Calculating value statistics in the background");
+            statistics.start();
+        }
+    }
+
+    /**
+     * Stops any background calculation of statistics for this dataset
+     */
+    void stopStatistics() {
+        if (statistics != null) {
+            statistics.stop();
+        }
     }
 
     public boolean needsRefresh() {
+        return getMillisUntilRefresh() == 0;
+    }
+
+    /**
+     * @return The number of milliseconds until this dataset next needs
+     *         refreshing, 0 if it needs refreshing now, or -1 if it will not
+     *         need refreshing unless its location changes or a refresh is
+     *         forced
+     */
+    public long getMillisUntilRefresh() {
         if (disabled || state == DatasetState.LOADING || state == DatasetState.UPDATING) {
-            return false;
+            return -1L;
         } else if (state == DatasetState.NEEDS_REFRESH) {
-            return true;
+            return 0L;
         } else if (state == DatasetState.ERROR) {
             /*
              * We implement an exponential backoff for reloading datasets that
@@ -308,19 +470,83 @@ public class DatasetConfig {
             /* The maximum interval between refreshes is 10 minutes */
             delaySeconds = Math.min(delaySeconds, 10 * 60);
             /* lastFailedUpdateTime should never be null: this is defensive */
-            boolean needsRefresh = lastFailedUpdateTime == null ? true : new DateTime()
-                    .isAfter(lastFailedUpdateTime.plusSeconds((int) delaySeconds));
-            return needsRefresh;
+            if (lastFailedUpdateTime == null) {
+                return 0L;
+            }
+            return Math.max(0L, lastFailedUpdateTime.plusSeconds((int) delaySeconds).getMillis()
+                    - System.currentTimeMillis());
+        } else if (unvalidatedSnapshot || locationChanged) {
+            /*
+             * State = READY, but served from a snapshot or with files which
+             * may have changed, which need checking
+             */
+            return 0L;
         } else if (this.updateInterval < 0) {
             /* We never update this dataset */
-            return false;
+            return -1L;
         } else {
             /*
-             * State = READY. Check the age of the metadata Return true if we
-             * are after the next scheduled update
+             * State = READY. Check the age of the metadata, and return the
+             * time until the next scheduled update
              */
-            return new DateTime().isAfter(lastSuccessfulUpdateTime.plusMinutes(updateInterval));
+            return Math.max(0L, lastSuccessfulUpdateTime.plusMinutes(updateInterval).getMillis()
+                    - System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Notifies this dataset that the files at its location may have changed.
+     * It will be checked, and reloaded if necessary, at the next opportunity.
+     */
+    public void locationChanged() {
+        locationChanged = true;
+    }
+
+    /**
+     * Records that the {@link Dataset} being configured has been used, so
+     * that it can be prioritised when loading
+     */
+    public void markUsed() {
+        lastUsedTime = System.currentTimeMillis();
+    }
+
+    /**
+     * @return The time at which the {@link Dataset} being configured was last
+     *         used, or 0 if it has not been used
+     */
+    public long getLastUsedTime() {
+        return lastUsedTime;
+    }
+
+    /**
+     * Restores the time at which the {@link Dataset} being configured was
+     * last used, e.g. from a previous run
+     */
+    void setLastUsedTime(long lastUsedTime) {
+        this.lastUsedTime = lastUsedTime;
+    }
+
+    /**
+     * @return An estimate of the relative cost of loading this dataset. This
+     *         is the time in milliseconds the last load took if it is known.
+     *         Otherwise local files are ordered by size after the datasets
+     *         whose load times are known, followed by all other datasets.
+     */
+    public long getEstimatedLoadCost() {
+        if (lastLoadMillis >= 0) {
+            return lastLoadMillis;
         }
+        if (location != null && !location.matches("^[a-zA-Z][a-zA-Z0-9+.\\-]+:.*")) {
+            File file = new File(location);
+            if (file.isFile()) {
+                return Long.MAX_VALUE / 2 + file.length();
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    void setCatalogue(CatalogueConfig catalogue) {
+        this.catalogue = catalogue;
     }
 
     /**
@@ -328,7 +554,11 @@ public class DatasetConfig {
      */
     public void forceRefresh() {
         this.err = null;
+        this.unvalidatedSnapshot = false;
         this.state = DatasetState.NEEDS_REFRESH;
+        if (catalogue != null) {
+            catalogue.scheduleReload(this);
+        }
     }
 
     /*
@@ -377,6 +607,22 @@ public class DatasetConfig {
         return disabled;
     }
 
+    /**
+     * @return Whether zoomed-out maps should be read from reduced-resolution
+     *         overviews of the data (only applicable to gridded datasets)
+     */
+    public boolean isOverviewsEnabled() {
+        return overviews;
+    }
+
+    /**
+     * @return Whether value statistics should be calculated in the background
+     *         (only applicable to gridded datasets)
+     */
+    public boolean isStatisticsEnabled() {
+        return statisticsEnabled;
+    }
+
     /**
      * @return How often, in minutes the {@link Dataset} should be updated (i.e.
      *         have metadata re-read in case of changes)
@@ -558,6 +804,14 @@ public class DatasetConfig {
         this.disabled = disabled;
     }
 
+    public void setOverviewsEnabled(boolean overviews) {
+        this.overviews = overviews;
+    }
+
+    public void setStatisticsEnabled(boolean statisticsEnabled) {
+        this.statisticsEnabled = statisticsEnabled;
+    }
+
     public void setUpdateInterval(int updateInterval) {
         this.updateInterval = updateInterval;
     }
@@ -0,0 +1,581 @@
+/*******************************************************************************
+ * Copyright (c) 2017 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.catalogue.jaxb;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.rdg.resc.edal.catalogue.jaxb.CatalogueConfig.DatasetStorage;
+
+/**
+ * Loads and reloads the datasets of {@link CatalogueConfig}s in the
+ * background.
+ * 
+ * Loads are run on a fixed number of threads, taken from a priority queue.
+ * Datasets which have been used most recently are loaded first, followed by
+ * those which are quickest to load (judged by the time they last took, or
+ * failing that the size of their file), so that as many datasets as possible
+ * become available as soon as possible. Revalidation of datasets which are
+ * already available has the lowest priority.
+ * 
+ * Rather than polling each dataset, datasets are resubmitted when they are
+ * next due to be refreshed (according to their update interval, or the
+ * back-off after an error), and when the local directories containing them
+ * change. Where a dataset's location is a glob expression, the directories
+ * below its base directory which the expression can match are watched too.
+ */
+final class DatasetLoader {
+    private static final Logger log = LoggerFactory.getLogger(DatasetLoader.class);
+
+    /*
+     * How long to wait after the last change to a dataset's files before
+     * reloading it, so that files which are still being written are not read
+     */
+    private static final long CHANGE_DELAY_MILLIS = 5000L;
+    /* The minimum time between timed refreshes of a dataset */
+    private static final long MIN_REFRESH_DELAY_MILLIS = 1000L;
+
+    private final ThreadPoolExecutor executor;
+    private final ScheduledExecutorService timer;
+    private final AtomicLong sequence = new AtomicLong();
+
+    /* Loads which are queued or running, and pending timed loads */
+    private final Map<DatasetConfig, LoadTask> tasks = new ConcurrentHashMap<>();
+    private final Map<DatasetConfig, ScheduledFuture<?>> timers = new HashMap<>();
+
+    /* Watches the directories of local datasets for changes */
+    private WatchService watchService = null;
+    private final Map<WatchKey, Map<DatasetConfig, DatasetStorage>> watchedDatasets = new HashMap<>();
+    private final Map<DatasetConfig, WatchedLocation> watchedLocations = new HashMap<>();
+
+    DatasetLoader(int nThreads) {
+        executor = new ThreadPoolExecutor(nThreads, nThreads, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>());
+        timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "dataset-load-timer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @param nThreads
+     *            The number of datasets which may be loaded simultaneously
+     */
+    synchronized void setParallelism(int nThreads) {
+        if (nThreads < 1) {
+            throw new IllegalArgumentException("At least one loading thread is required");
+        }
+        if (nThreads > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(nThreads);
+            executor.setCorePoolSize(nThreads);
+        } else {
+            executor.setCorePoolSize(nThreads);
+            executor.setMaximumPoolSize(nThreads);
+        }
+    }
+
+    /**
+     * Queues a dataset to be refreshed, if it is not already queued
+     * 
+     * @param dataset
+     *            The {@link DatasetConfig} to refresh
+     * @param datasetStorage
+     *            The {@link DatasetStorage} to send the loaded dataset to
+     * @param background
+     *            <code>true</code> if this is a revalidation of an available
+     *            dataset, which should only happen once other datasets have
+     *            loaded
+     */
+    void submit(DatasetConfig dataset, DatasetStorage datasetStorage, boolean background) {
+        LoadTask task = new LoadTask(dataset, datasetStorage, background,
+                sequence.getAndIncrement());
+        LoadTask existing = tasks.putIfAbsent(dataset, task);
+        if (existing == null) {
+            executor.execute(task);
+        }
+        /*
+         * Otherwise the dataset is already queued, or is loading, in which case
+         * it will be resubmitted once the load has completed if it still needs
+         * refreshing
+         */
+    }
+
+    /**
+     * Submits a dataset for refreshing after a delay. If a refresh is already
+     * scheduled, the earlier of the two is kept, unless <code>restart</code>
+     * is set, in which case the new delay always replaces the old one.
+     */
+    void schedule(final DatasetConfig dataset, final DatasetStorage datasetStorage,
+            long delayMillis, boolean restart) {
+        synchronized (timers) {
+            ScheduledFuture<?> existing = timers.get(dataset);
+            if (existing != null) {
+                if (!restart && existing.getDelay(TimeUnit.MILLISECONDS) <= delayMillis) {
+                    return;
+                }
+                existing.cancel(false);
+            }
+            timers.put(dataset, timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (timers) {
+                        timers.remove(dataset);
+                    }
+                    submit(dataset, datasetStorage, dataset.isReady());
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    /**
+     * Runs a task on the timer thread after a delay
+     */
+    ScheduledFuture<?> schedule(Runnable task, long delayMillis) {
+        return timer.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs a task on the timer thread periodically
+     */
+    ScheduledFuture<?> scheduleAtFixedRate(Runnable task, long periodMillis) {
+        return timer.scheduleAtFixedRate(task, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops loading a dataset. Any queued or timed loads are removed, any
+     * running load is interrupted, and its files are no longer watched.
+     */
+    void cancel(DatasetConfig dataset) {
+        LoadTask task = tasks.remove(dataset);
+        if (task != null) {
+            task.cancel();
+            executor.remove(task);
+        }
+        synchronized (timers) {
+            ScheduledFuture<?> existing = timers.remove(dataset);
+            if (existing != null) {
+                existing.cancel(false);
+            }
+        }
+        unwatch(dataset);
+    }
+
+    /**
+     * Watches the local directory containing a dataset, and reloads the
+     * dataset when its contents change. Remote datasets are ignored.
+     */
+    synchronized void watch(DatasetConfig dataset, DatasetStorage datasetStorage) {
+        File dir = getWatchDirectory(dataset.getLocation());
+        if (dir == null) {
+            return;
+        }
+        try {
+            if (watchService == null) {
+                watchService = FileSystems.getDefault().newWatchService();
+                Thread watcher = new Thread(new Watcher(watchService), "dataset-watcher");
+                watcher.setDaemon(true);
+                watcher.start();
+            }
+        } catch (IOException e) {
+            log.warn("Cannot watch " + dir + " for changes to dataset " + dataset.getId(), e);
+            return;
+        }
+        WatchedLocation location = new WatchedLocation(dir.toPath(),
+                getWatchDepth(dataset.getLocation()), datasetStorage);
+        watchedLocations.put(dataset, location);
+        register(dataset, location, location.baseDir, location.depth);
+    }
+
+    /*
+     * Registers a directory, and its subdirectories down to the given depth,
+     * for changes to a dataset
+     */
+    private void register(DatasetConfig dataset, WatchedLocation location, Path dir, int depth) {
+        try (Stream<Path> dirs = Files.walk(dir, depth)) {
+            for (Path subDir : dirs.filter(Files::isDirectory).collect(Collectors.toList())) {
+                WatchKey key = subDir.register(watchService, ENTRY_CREATE, ENTRY_DELETE,
+                        ENTRY_MODIFY);
+                Map<DatasetConfig, DatasetStorage> datasets = watchedDatasets.get(key);
+                if (datasets == null) {
+                    datasets = new HashMap<>();
+                    watchedDatasets.put(key, datasets);
+                }
+                datasets.put(dataset, location.datasetStorage);
+                location.keys.add(key);
+            }
+        } catch (IOException | UncheckedIOException e) {
+            log.warn("Cannot watch " + dir + " for changes to dataset " + dataset.getId(), e);
+        }
+    }
+
+    synchronized void unwatch(DatasetConfig dataset) {
+        WatchedLocation location = watchedLocations.remove(dataset);
+        if (location != null) {
+            for (WatchKey key : location.keys) {
+                Map<DatasetConfig, DatasetStorage> datasets = watchedDatasets.get(key);
+                if (datasets != null) {
+                    datasets.remove(dataset);
+                    if (datasets.isEmpty()) {
+                        watchedDatasets.remove(key);
+                        key.cancel();
+                    }
+                }
+            }
+        }
+    }
+
+    /*
+     * Called when new directories appear in a watched directory, so that any
+     * which a dataset's glob expression may match are also watched
+     */
+    private synchronized void directoriesCreated(WatchKey key, Set<Path> newDirs) {
+        Map<DatasetConfig, DatasetStorage> datasets = watchedDatasets.get(key);
+        if (datasets == null) {
+            return;
+        }
+        for (DatasetConfig dataset : datasets.keySet()) {
+            WatchedLocation location = watchedLocations.get(dataset);
+            for (Path newDir : newDirs) {
+                int remainingDepth = location.depth
+                        - location.baseDir.relativize(newDir).getNameCount();
+                if (remainingDepth >= 0) {
+                    register(dataset, location, newDir, remainingDepth);
+                }
+            }
+        }
+    }
+
+    /*
+     * Stops tracking a key which is no longer valid, e.g. because its
+     * directory has been deleted
+     */
+    private synchronized void keyInvalidated(WatchKey key) {
+        Map<DatasetConfig, DatasetStorage> datasets = watchedDatasets.remove(key);
+        if (datasets != null) {
+            for (DatasetConfig dataset : datasets.keySet()) {
+                watchedLocations.get(dataset).keys.remove(key);
+            }
+        }
+    }
+
+    private synchronized Map<DatasetConfig, DatasetStorage> getWatchedDatasets(WatchKey key) {
+        Map<DatasetConfig, DatasetStorage> datasets = watchedDatasets.get(key);
+        return datasets == null ? new HashMap<DatasetConfig, DatasetStorage>() : new HashMap<>(
+                datasets);
+    }
+
+    /*
+     * Finds the directory to watch for a dataset location. This is the parent
+     * directory of a single file, the directory itself, or the directory which
+     * a glob expression starts in. Returns null for remote locations.
+     */
+    static File getWatchDirectory(String location) {
+        String path = getLocalPath(location);
+        if (path == null) {
+            return null;
+        }
+        int globStart = getGlobStart(path);
+        File file;
+        if (globStart < path.length()) {
+            int baseEnd = getBaseEnd(path, globStart);
+            file = new File(baseEnd < 0 ? "." : path.substring(0, baseEnd + 1));
+        } else {
+            file = new File(path);
+            if (!file.isDirectory()) {
+                file = file.getAbsoluteFile().getParentFile();
+            }
+        }
+        return file != null && file.isDirectory() ? file.getAbsoluteFile() : null;
+    }
+
+    /*
+     * Finds how many levels of subdirectories below the watch directory a
+     * dataset location can match. This is 0 unless the location is a glob
+     * expression with directory separators after its base directory, and is
+     * unlimited if it contains "**".
+     */
+    static int getWatchDepth(String location) {
+        String path = getLocalPath(location);
+        if (path == null) {
+            return 0;
+        }
+        int globStart = getGlobStart(path);
+        if (globStart == path.length()) {
+            return 0;
+        }
+        String pattern = path.substring(getBaseEnd(path, globStart) + 1);
+        if (pattern.contains("**")) {
+            return Integer.MAX_VALUE;
+        }
+        int depth = 0;
+        for (char c : pattern.toCharArray()) {
+            if (c == '/' || c == File.separatorChar) {
+                depth++;
+            }
+        }
+        return depth;
+    }
+
+    /*
+     * Returns the local path of a dataset location, or null if it is remote
+     */
+    private static String getLocalPath(String location) {
+        if (location == null) {
+            return null;
+        }
+        if (location.startsWith("file:")) {
+            return location.substring(location.startsWith("file://") ? 7 : 5);
+        } else if (location.matches("^[a-zA-Z][a-zA-Z0-9+.\\-]+:.*")) {
+            return null;
+        }
+        return location;
+    }
+
+    /*
+     * Returns the index of the first glob character in a path, or its length
+     * if there are none
+     */
+    private static int getGlobStart(String path) {
+        int globStart = path.length();
+        for (char c : new char[] { '*', '?', '[', '{' }) {
+            int index = path.indexOf(c);
+            if (index >= 0) {
+                globStart = Math.min(globStart, index);
+            }
+        }
+        return globStart;
+    }
+
+    /*
+     * Returns the index of the last separator before the first glob character
+     * in a path
+     */
+    private static int getBaseEnd(String path, int globStart) {
+        return Math.max(path.lastIndexOf('/', globStart),
+                path.lastIndexOf(File.separatorChar, globStart));
+    }
+
+    void shutdown() {
+        /* Stop watching first, so that no further loads are scheduled */
+        synchronized (this) {
+            if (watchService != null) {
+                try {
+                    watchService.close();
+                } catch (IOException e) {
+                    log.debug("Problem closing file watcher", e);
+                }
+            }
+        }
+        executor.shutdownNow();
+        timer.shutdownNow();
+    }
+
+    /*
+     * Reschedules a dataset once a load has completed, if it will need
+     * refreshing again
+     */
+    private void reschedule(DatasetConfig dataset, DatasetStorage datasetStorage) {
+        long delay = dataset.getMillisUntilRefresh();
+        if (delay == 0 && (dataset.isReady() || dataset.hasError())) {
+            /*
+             * Revalidation of a dataset which is being served, or a retry
+             * after an error, can go straight into the queue
+             */
+            submit(dataset, datasetStorage, true);
+        } else if (delay >= 0) {
+            schedule(dataset, datasetStorage, Math.max(delay, MIN_REFRESH_DELAY_MILLIS), false);
+        }
+    }
+
+    private final class LoadTask implements Runnable, Comparable<LoadTask> {
+        private final DatasetConfig dataset;
+        private final DatasetStorage datasetStorage;
+        private final boolean background;
+        private final long lastUsed;
+        private final long cost;
+        private final long sequence;
+        private volatile Thread runner = null;
+        private volatile boolean cancelled = false;
+
+        public LoadTask(DatasetConfig dataset, DatasetStorage datasetStorage,
+                boolean background, long sequence) {
+            this.dataset = dataset;
+            this.datasetStorage = datasetStorage;
+            this.background = background;
+            this.lastUsed = dataset.getLastUsedTime();
+            this.cost = dataset.getEstimatedLoadCost();
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (cancelled) {
+                    return;
+                }
+                runner = Thread.currentThread();
+            }
+            try {
+                dataset.refresh(datasetStorage);
+            } finally {
+                synchronized (this) {
+                    runner = null;
+                    /* Clear any interrupt from a cancellation */
+                    Thread.interrupted();
+                }
+                tasks.remove(dataset, this);
+            }
+            if (!cancelled) {
+                reschedule(dataset, datasetStorage);
+            }
+        }
+
+        synchronized void cancel() {
+            cancelled = true;
+            if (runner != null) {
+                runner.interrupt();
+            }
+        }
+
+        @Override
+        public int compareTo(LoadTask other) {
+            if (background != other.background) {
+                return background ? 1 : -1;
+            }
+            if (lastUsed != other.lastUsed) {
+                return lastUsed > other.lastUsed ? -1 : 1;
+            }
+            if (cost != other.cost) {
+                return cost < other.cost ? -1 : 1;
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+
+    /*
+     * The directories being watched for a dataset
+     */
+    private static final class WatchedLocation {
+        private final Path baseDir;
+        private final int depth;
+        private final DatasetStorage datasetStorage;
+        private final Set<WatchKey> keys = new HashSet<>();
+
+        public WatchedLocation(Path baseDir, int depth, DatasetStorage datasetStorage) {
+            this.baseDir = baseDir;
+            this.depth = depth;
+            this.datasetStorage = datasetStorage;
+        }
+    }
+
+    private final class Watcher implements Runnable {
+        private final WatchService watchService;
+
+        public Watcher(WatchService watchService) {
+            this.watchService = watchService;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                WatchKey key;
+                try {
+                    key = watchService.take();
+                } catch (InterruptedException | ClosedWatchServiceException e) {
+                    return;
+                }
+                /*
+                 * We don't need to know which files changed - the datasets'
+                 * own signatures will determine whether they need reloading.
+                 * We do need to start watching any new directories.
+                 */
+                Set<Path> newDirs = new HashSet<>();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == ENTRY_CREATE) {
+                        Path path = ((Path) key.watchable()).resolve((Path) event.context());
+                        if (Files.isDirectory(path)) {
+                            newDirs.add(path);
+                        }
+                    }
+                }
+                if (!newDirs.isEmpty()) {
+                    directoriesCreated(key, newDirs);
+                }
+                try {
+                    for (Map.Entry<DatasetConfig, DatasetStorage> entry : getWatchedDatasets(
+                            key).entrySet()) {
+                        entry.getKey().locationChanged();
+                        schedule(entry.getKey(), entry.getValue(), CHANGE_DELAY_MILLIS, true);
+                    }
+                } catch (RejectedExecutionException e) {
+                    /* The loader has been shut down */
+                    return;
+                }
+                if (!key.reset()) {
+                    keyInvalidated(key);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,221 @@
+/*******************************************************************************
+ * Copyright (c) 2017 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.catalogue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.joda.time.DateTime;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.rdg.resc.edal.dataset.Dataset;
+import uk.ac.rdg.resc.edal.graphics.utils.EnhancedVariableMetadata;
+
+/**
+ * Tests the ordering, replacement, removal and renaming of datasets in a
+ * {@link DatasetRegistry}
+ */
+public class DatasetRegistryTest {
+    private DatasetRegistry registry;
+
+    @Before
+    public void setUp() {
+        registry = new DatasetRegistry();
+    }
+
+    @Test
+    public void testOrderedByTitle() {
+        registry.putDataset(dataset("c"), "Zeta", noVariables());
+        registry.putDataset(dataset("a"), "Alpha", noVariables());
+        registry.putDataset(dataset("b"), null, noVariables());
+        registry.putDataset(dataset("d"), "Alpha", noVariables());
+        assertEquals(Arrays.asList("b", "a", "d", "c"), getIds());
+
+        /* A reloaded dataset moves if its title has changed */
+        registry.putDataset(dataset("a"), "Omega", noVariables());
+        assertEquals(Arrays.asList("b", "d", "a", "c"), getIds());
+    }
+
+    @Test
+    public void testManyDatasetsOrdered() {
+        Random random = new Random(42L);
+        List<String> titles = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            String title = "Dataset " + random.nextInt(1000000);
+            registry.putDataset(dataset(title + "-" + i), title, noVariables());
+            titles.add(title);
+        }
+        Collections.sort(titles);
+        List<String> orderedTitles = new ArrayList<>();
+        for (String id : getIds()) {
+            orderedTitles.add(id.substring(0, id.lastIndexOf('-')));
+        }
+        assertEquals(titles, orderedTitles);
+        assertEquals(10000L, registry.getVersion());
+    }
+
+    @Test
+    public void testLayerMetadataReplaced() {
+        EnhancedVariableMetadata x = variable("x");
+        EnhancedVariableMetadata y = variable("y");
+        registry.putDataset(dataset("d"), "D", Arrays.asList(x, y));
+        assertSame(x, registry.getLayerMetadata("d", "x"));
+        assertSame(y, registry.getLayerMetadata("d", "y"));
+
+        /* Variables which no longer exist are dropped when reloading */
+        EnhancedVariableMetadata newX = variable("x");
+        registry.putDataset(dataset("d"), "D", Arrays.asList(newX));
+        assertSame(newX, registry.getLayerMetadata("d", "x"));
+        assertNull(registry.getLayerMetadata("d", "y"));
+    }
+
+    @Test
+    public void testRemove() {
+        registry.putDataset(dataset("a"), "A", Arrays.asList(variable("x")));
+        registry.putDataset(dataset("b"), "B", Arrays.asList(variable("x")));
+        registry.removeDataset("a");
+
+        assertEquals(Arrays.asList("b"), getIds());
+        assertNull(registry.getDataset("a"));
+        assertNull(registry.getLayerMetadata("a", "x"));
+        assertNull(registry.getUpdateTime("a"));
+        assertTrue(registry.getLayerMetadata("b", "x") != null);
+        assertEquals(3L, registry.getVersion());
+    }
+
+    @Test
+    public void testRename() {
+        Dataset a = dataset("a");
+        EnhancedVariableMetadata x = variable("x");
+        registry.putDataset(a, "A", Arrays.asList(x));
+        registry.putDataset(dataset("b"), "B", noVariables());
+        registry.renameDataset("a", "z");
+
+        /* The dataset keeps its position, and its metadata moves with it */
+        assertEquals(Arrays.asList("z", "b"), getIds());
+        assertEquals(2, registry.getDatasets().size());
+        assertSame(a, registry.getDataset("z"));
+        assertNull(registry.getDataset("a"));
+        assertSame(x, registry.getLayerMetadata("z", "x"));
+        assertNull(registry.getLayerMetadata("a", "x"));
+        assertNull(registry.getUpdateTime("a"));
+        assertEquals(registry.getLastUpdateTime(), registry.getUpdateTime("z"));
+    }
+
+    @Test
+    public void testLiveDatasetMap() {
+        Map<String, Dataset> datasets = registry.getDatasetMap();
+        assertTrue(datasets.isEmpty());
+        Dataset b = dataset("b");
+        registry.putDataset(b, "B", noVariables());
+        registry.putDataset(dataset("a"), "A", noVariables());
+
+        /* The view reflects later changes */
+        assertEquals(Arrays.asList("a", "b"), new ArrayList<>(datasets.keySet()));
+        assertSame(b, datasets.get("b"));
+        registry.removeDataset("a");
+        assertEquals(1, datasets.size());
+        assertTrue(!datasets.containsKey("a"));
+
+        try {
+            datasets.put("c", dataset("c"));
+            fail("The dataset map should not be modifiable");
+        } catch (UnsupportedOperationException e) {
+            /* Expected */
+        }
+    }
+
+    @Test
+    public void testUpdateTimesIncrease() {
+        DateTime lastUpdateTime = registry.getLastUpdateTime();
+        long version = registry.getVersion();
+        for (int i = 0; i < 100; i++) {
+            registry.putDataset(dataset("d" + (i % 10)), "D", noVariables());
+            assertTrue(registry.getLastUpdateTime().isAfter(lastUpdateTime));
+            assertEquals(version + 1, registry.getVersion());
+            assertEquals(registry.getLastUpdateTime(), registry.getUpdateTime("d" + (i % 10)));
+            lastUpdateTime = registry.getLastUpdateTime();
+            version = registry.getVersion();
+        }
+    }
+
+    /*
+     * Returns the IDs of the datasets in the order in which they will be
+     * presented
+     */
+    private List<String> getIds() {
+        return new ArrayList<>(registry.getDatasetMap().keySet());
+    }
+
+    private static List<EnhancedVariableMetadata> noVariables() {
+        return Collections.emptyList();
+    }
+
+    private static Dataset dataset(String id) {
+        return withId(Dataset.class, id);
+    }
+
+    private static EnhancedVariableMetadata variable(String id) {
+        return withId(EnhancedVariableMetadata.class, id);
+    }
+
+    /*
+     * Creates an instance of an interface which only implements getId()
+     */
+    private static <T> T withId(Class<T> clazz, final String id) {
+        return clazz.cast(Proxy.newProxyInstance(clazz.getClassLoader(), new Class<?>[] { clazz },
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("getId")) {
+                            return id;
+                        } else if (method.getName().equals("hashCode")) {
+                            return System.identityHashCode(proxy);
+                        } else if (method.getName().equals("equals")) {
+                            return proxy == args[0];
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                }));
+    }
+}
@@ -0,0 +1,258 @@
+/*******************************************************************************
+ * Copyright (c) 2017 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.catalogue.jaxb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.rdg.resc.edal.catalogue.jaxb.CatalogueConfig.DatasetStorage;
+import uk.ac.rdg.resc.edal.dataset.Dataset;
+
+/**
+ * Tests the order in which {@link DatasetLoader} loads datasets, the
+ * debouncing of changes to their files, and the watching of their locations
+ */
+public class DatasetLoaderTest {
+    private DatasetLoader loader;
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        loader = new DatasetLoader(1);
+        dir = Files.createTempDirectory("loadertest").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        loader.shutdown();
+        deleteAll(dir);
+    }
+
+    @Test
+    public void testLoadOrder() throws InterruptedException {
+        final List<String> loaded = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(5);
+
+        /* Occupies the single loading thread whilst the others are queued */
+        TestDatasetConfig blocker = new TestDatasetConfig("blocker", 0L, 0L) {
+            @Override
+            public void refresh(DatasetStorage datasetStorage) {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        loader.submit(blocker, null, false);
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+
+        for (TestDatasetConfig dataset : new TestDatasetConfig[] {
+                new TestDatasetConfig("revalidation", 1000L, 1L),
+                new TestDatasetConfig("unused", 0L, 1L),
+                new TestDatasetConfig("usedLongAgo", 10L, 1L),
+                new TestDatasetConfig("recentAndSlow", 500L, 100L),
+                new TestDatasetConfig("recentAndFast", 500L, 5L) }) {
+            dataset.loaded = loaded;
+            dataset.finished = finished;
+            loader.submit(dataset, null, dataset.getId().equals("revalidation"));
+        }
+        release.countDown();
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+
+        /*
+         * Recently used datasets first, then cheaper ones, with revalidation
+         * of available datasets last
+         */
+        assertEquals(Arrays.asList("recentAndFast", "recentAndSlow", "usedLongAgo", "unused",
+                "revalidation"), loaded);
+    }
+
+    @Test
+    public void testChangesDebounced() throws InterruptedException {
+        TestDatasetConfig dataset = new TestDatasetConfig("changing", 0L, 0L);
+        /*
+         * Each change restarts the delay, so only one load should happen,
+         * once the changes have stopped
+         */
+        for (int i = 0; i < 5; i++) {
+            loader.schedule(dataset, null, 300L, true);
+            Thread.sleep(50L);
+        }
+        assertEquals(0, dataset.refreshes.get());
+        Thread.sleep(1000L);
+        assertEquals(1, dataset.refreshes.get());
+
+        /* Without a restart, the earliest scheduled load is kept */
+        loader.schedule(dataset, null, 100L, false);
+        loader.schedule(dataset, null, 60000L, false);
+        Thread.sleep(1000L);
+        assertEquals(2, dataset.refreshes.get());
+    }
+
+    @Test
+    public void testWatchDirectory() throws IOException {
+        File subDir = new File(dir, "sub");
+        assertTrue(subDir.mkdir());
+        File file = new File(subDir, "data.nc");
+        assertTrue(file.createNewFile());
+
+        assertEquals(subDir.getAbsoluteFile(), DatasetLoader.getWatchDirectory(file.getPath()));
+        assertEquals(subDir.getAbsoluteFile(), DatasetLoader.getWatchDirectory(subDir.getPath()));
+        assertEquals(subDir.getAbsoluteFile(),
+                DatasetLoader.getWatchDirectory("file:" + subDir.getPath() + "/*.nc"));
+        assertEquals(dir.getAbsoluteFile(),
+                DatasetLoader.getWatchDirectory(dir.getPath() + "/*/data_[0-9].nc"));
+        assertEquals(null, DatasetLoader.getWatchDirectory("http://localhost/thredds/data.nc"));
+
+        assertEquals(0, DatasetLoader.getWatchDepth(file.getPath()));
+        assertEquals(0, DatasetLoader.getWatchDepth(subDir.getPath() + "/*.nc"));
+        assertEquals(2, DatasetLoader.getWatchDepth(dir.getPath() + "/*/sub/*.nc"));
+        assertEquals(Integer.MAX_VALUE, DatasetLoader.getWatchDepth(dir.getPath() + "/**/*.nc"));
+        assertEquals(0, DatasetLoader.getWatchDepth("http://localhost/thredds/*/*.nc"));
+    }
+
+    @Test
+    public void testSubdirectoriesWatched() throws IOException, InterruptedException {
+        File existingDir = new File(dir, "existing");
+        assertTrue(existingDir.mkdir());
+        TestDatasetConfig dataset = new TestDatasetConfig("watched", 0L, 0L);
+        dataset.setLocation(dir.getPath() + "/*/*.nc");
+        loader.watch(dataset, null);
+
+        /* Changes in subdirectories which exist already are seen */
+        assertTrue(new File(existingDir, "data.nc").createNewFile());
+        assertTrue(dataset.changes.tryAcquire(10, TimeUnit.SECONDS));
+
+        /*
+         * As are changes in new subdirectories, once the creation of the
+         * directory has been seen
+         */
+        File newDir = new File(dir, "new");
+        assertTrue(newDir.mkdir());
+        assertTrue(dataset.changes.tryAcquire(10, TimeUnit.SECONDS));
+        dataset.changes.drainPermits();
+        assertTrue(new File(newDir, "data.nc").createNewFile());
+        assertTrue(dataset.changes.tryAcquire(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testLastUsedTimesPersisted() {
+        TestDatasetConfig dataset = new TestDatasetConfig("used", 12345L, 0L);
+        CatalogueConfig config = new CatalogueConfig(new DatasetConfig[] { dataset },
+                new CacheInfo());
+        config.configFile = new File(dir, "config.xml");
+        config.saveUsage();
+
+        /* A fresh config, as after a restart */
+        TestDatasetConfig restored = new TestDatasetConfig("used", 0L, 0L);
+        restored.setDisabled(true);
+        config = new CatalogueConfig(new DatasetConfig[] { restored }, new CacheInfo());
+        config.configFile = new File(dir, "config.xml");
+        config.setDatasetLoadedHandler(new DatasetStorage() {
+            @Override
+            public void datasetLoaded(Dataset dataset, Collection<VariableConfig> variables) {
+            }
+        });
+        config.loadDatasets();
+        assertEquals(12345L, restored.getLastUsedTime());
+    }
+
+    private static void deleteAll(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteAll(child);
+            }
+        }
+        file.delete();
+    }
+
+    /*
+     * A dataset which records its loads, rather than loading anything, and
+     * never needs refreshing again
+     */
+    private static class TestDatasetConfig extends DatasetConfig {
+        private final long cost;
+        private final AtomicInteger refreshes = new AtomicInteger();
+        private final Semaphore changes = new Semaphore(0);
+        private List<String> loaded = null;
+        private CountDownLatch finished = null;
+
+        public TestDatasetConfig(String id, long lastUsed, long cost) {
+            setId(id);
+            setLastUsedTime(lastUsed);
+            this.cost = cost;
+        }
+
+        @Override
+        public void refresh(DatasetStorage datasetStorage) {
+            refreshes.incrementAndGet();
+            if (loaded != null) {
+                loaded.add(getId());
+                finished.countDown();
+            }
+        }
+
+        @Override
+        public long getMillisUntilRefresh() {
+            return -1L;
+        }
+
+        @Override
+        public long getEstimatedLoadCost() {
+            return cost;
+        }
+
+        @Override
+        public void locationChanged() {
+            changes.release();
+        }
+    }
+}